@@ -21,9 +21,11 @@ import io.kazuki.v0.store.keyvalue.KeyValueIterable;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.management.KazukiComponent;
 
+import java.math.BigInteger;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -104,6 +106,83 @@ public interface SecondaryIndexStore extends KazukiComponent<SecondaryIndexStore
       List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
       @Nullable Long limit);
 
+  /**
+   * Counts the entities matching a secondary index query using the Kazuki Query Language.
+   * 
+   * @param type String containing the Kazuki type tag of items to query
+   * @param indexName String name of the index
+   * @param queryString String containing the search query (not necessarily in left-to-right order)
+   * 
+   * @return long number of matching entities
+   */
+  long count(String type, String indexName, String queryString);
+
+  /**
+   * Counts the entities matching a secondary index query using an object-oriented list of QueryTerm instances.
+   * 
+   * @param type String containing the Kazuki type tag of items to query
+   * @param indexName String name of the index
+   * @param query List of QueryTerm instances (not necessarily in left-to-right order - they will be sorted "under the hood")
+   * 
+   * @return long number of matching entities
+   */
+  long count(String type, String indexName, List<QueryTerm> query);
+
+  /**
+   * Computes an aggregate of a numeric index attribute over the entities matching a secondary index
+   * query using the Kazuki Query Language.
+   * 
+   * @param type String containing the Kazuki type tag of items to query
+   * @param indexName String name of the index
+   * @param queryString String containing the search query (not necessarily in left-to-right order)
+   * @param function AggregateFunction to compute
+   * @param attributeName String name of an integer-typed attribute of the index
+   * 
+   * @return BigInteger aggregate value: null for MIN / MAX if no entity matches, zero for SUM
+   */
+  @Nullable
+  BigInteger aggregate(String type, String indexName, String queryString,
+      AggregateFunction function, String attributeName);
+
+  /**
+   * Computes an aggregate of a numeric index attribute over the entities matching a secondary index
+   * query using an object-oriented list of QueryTerm instances.
+   * 
+   * @param type String containing the Kazuki type tag of items to query
+   * @param indexName String name of the index
+   * @param query List of QueryTerm instances (not necessarily in left-to-right order - they will be sorted "under the hood")
+   * @param function AggregateFunction to compute
+   * @param attributeName String name of an integer-typed attribute of the index
+   * 
+   * @return BigInteger aggregate value: null for MIN / MAX if no entity matches, zero for SUM
+   */
+  @Nullable
+  BigInteger aggregate(String type, String indexName, List<QueryTerm> query,
+      AggregateFunction function, String attributeName);
+
+  /**
+   * Read-your-writes barrier for async indexes: blocks until every index mutation of writes
+   * committed before the call has been applied (stores maintaining all indexes synchronously
+   * return immediately).
+   * 
+   * @param timeout long maximum time to wait
+   * @param unit TimeUnit of the timeout
+   * 
+   * @return boolean true if the async indexes caught up, false if the timeout elapsed first
+   */
+  boolean awaitIndexUpdates(long timeout, TimeUnit unit);
+
+  /**
+   * Returns the number of async index mutations not yet applied.
+   */
+  long getPendingIndexUpdates();
+
+  /**
+   * Returns the age in milliseconds of the oldest async index mutation not yet applied, or 0 if
+   * the async indexes are up to date.
+   */
+  long getIndexLagMillis();
+
   /**
    * Multi-get operation for retrieving entity Keys from one or more unique indexes
    * 
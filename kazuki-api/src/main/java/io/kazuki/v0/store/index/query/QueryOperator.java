@@ -52,5 +52,11 @@ public enum QueryOperator {
   /**
    * "IN" comparison operator (value contained within set)
    */
-  IN;
+  IN,
+
+  /**
+   * String prefix ("starts with") operator; answered by an index as the range [prefix, prefix')
+   * where prefix' is the least string above every string starting with prefix
+   */
+  PREFIX;
 }
@@ -42,6 +42,13 @@ public interface KeyValueStore extends KazukiComponent<KeyValueStore> {
 
   <T> T retrieve(Key key, Class<T> clazz) throws KazukiException;
 
+  /**
+   * Retrieves only the given fields of a value (as they appear in the value retrieved as a map),
+   * decoding nothing else; fields the value does not contain are omitted. Returns null if the
+   * key does not exist.
+   */
+  Map<String, Object> retrieveFields(Key key, String... fields) throws KazukiException;
+
   <T> KeyValuePair<T> retrieveVersioned(Key key, Class<T> clazz) throws KazukiException;
 
   <T> Map<Key, T> multiRetrieve(Collection<Key> keys, Class<T> clazz) throws KazukiException;
@@ -68,6 +75,13 @@ public interface KeyValueStore extends KazukiComponent<KeyValueStore> {
 
   Long approximateSize(String type) throws KazukiException;
 
+  /**
+   * Trains a new version of the compression dictionary of the type from a sample of its stored
+   * values; values written from then on are compressed with it. Returns the new dictionary
+   * version, or null if the type has no values in common to train on.
+   */
+  Long trainCompressionDictionary(String type) throws KazukiException;
+
   KeyValueStoreIteration iterators();
 
   void destroy() throws KazukiException;
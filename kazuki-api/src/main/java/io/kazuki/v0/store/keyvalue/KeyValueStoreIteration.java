@@ -17,6 +17,9 @@ package io.kazuki.v0.store.keyvalue;
 
 import io.kazuki.v0.store.Key;
 
+import java.util.List;
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 public interface KeyValueStoreIteration {
@@ -44,4 +47,15 @@ public interface KeyValueStoreIteration {
 
   <T> KeyValueIterable<KeyValuePair<T>> entries(String type, Class<T> clazz,
       SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit);
+
+  /**
+   * Iterates over the given fields of the values of a type (see
+   * KeyValueStore.retrieveFields(Key, String...)), decoding nothing else.
+   */
+  KeyValueIterable<KeyValuePair<Map<String, Object>>> projections(String type,
+      List<String> fields, SortDirection sortDirection);
+
+  KeyValueIterable<KeyValuePair<Map<String, Object>>> projections(String type,
+      List<String> fields, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit);
 }
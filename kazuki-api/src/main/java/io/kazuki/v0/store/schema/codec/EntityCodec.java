@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reflection-free conversion between instances of an entity class and the map form of their
+ * properties, usually generated for KazukiEntity classes by EntityCodecProcessor.
+ *
+ * Property values are in the form Jackson conversion of the instance would produce (numbers,
+ * strings, booleans, plain maps and lists; enum constants and characters as strings, dates as
+ * ISO8601 strings or epoch millis).
+ */
+public interface EntityCodec<T> {
+  Class<T> getEntityClass();
+
+  /**
+   * Returns the schema matching the properties of the entity class.
+   */
+  Schema getSchema();
+
+  /**
+   * Passes every property of the instance (including null ones) to the writer.
+   */
+  void write(T instance, PropertyWriter writer) throws KazukiException;
+
+  T newInstance();
+
+  /**
+   * Sets a property of the instance; throws TransformException for unknown properties.
+   */
+  void set(T instance, String name, @Nullable Object value) throws KazukiException;
+
+  /**
+   * Receives the properties of an instance.
+   */
+  public interface PropertyWriter {
+    void put(String name, @Nullable Object value) throws KazukiException;
+  }
+}
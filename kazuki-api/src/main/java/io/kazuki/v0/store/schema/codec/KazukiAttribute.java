@@ -0,0 +1,47 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.store.schema.model.Attribute;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Overrides the schema attribute generated for a property of a KazukiEntity class.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface KazukiAttribute {
+  /**
+   * Attribute type; ANY (the default) infers the type from the field type.
+   */
+  Attribute.Type type() default Attribute.Type.ANY;
+
+  /**
+   * Whether the attribute is nullable; primitive fields never are.
+   */
+  boolean nullable() default true;
+
+  /**
+   * Whether values are stored as string dictionary codes (UTF8_SMALLSTRING only).
+   */
+  boolean dictionary() default false;
+}
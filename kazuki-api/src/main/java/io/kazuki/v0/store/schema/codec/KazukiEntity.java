@@ -0,0 +1,36 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity class for codec generation: with the EntityCodecProcessor annotation processor
+ * enabled, an EntityCodec named &lt;ClassName&gt;KazukiCodec (nested class names joined with '_')
+ * is generated in the same package, and used in place of Jackson bean conversion for the class.
+ *
+ * Properties are the public fields and the fields with public getter / setter pairs, as Jackson
+ * sees them by default (@JsonIgnore and @JsonProperty names are honored). The class needs an
+ * accessible no-argument constructor.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface KazukiEntity {}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Object class for a materialized aggregation definition: a counter (COUNT) or a sum of an integer
+ * attribute (SUM), grouped by zero or more attributes, and kept up to date as entities change.
+ */
+public class AggregationDefinition {
+  public enum Function {
+    COUNT, SUM
+  }
+
+  private final String name;
+  private final Function function;
+  private final List<String> groupBy;
+  private final String attribute;
+
+  @JsonCreator
+  public AggregationDefinition(@JsonProperty("name") String name,
+      @JsonProperty("function") Function function,
+      @JsonProperty("groupBy") @Nullable List<String> groupBy,
+      @JsonProperty("attribute") @Nullable String attribute) {
+    Preconditions.checkNotNull(name, "name");
+    Preconditions.checkNotNull(function, "function");
+
+    if (Function.SUM.equals(function) && attribute == null) {
+      throw new IllegalArgumentException("SUM aggregation '" + name + "' requires an attribute");
+    }
+
+    if (Function.COUNT.equals(function) && attribute != null) {
+      throw new IllegalArgumentException("COUNT aggregation '" + name
+          + "' must not specify an attribute");
+    }
+
+    List<String> newGroupBy =
+        (groupBy == null) ? ImmutableList.<String>of() : Collections.unmodifiableList(groupBy);
+
+    if (new HashSet<String>(newGroupBy).size() != newGroupBy.size()) {
+      throw new IllegalArgumentException("aggregation '" + name
+          + "' contains duplicate groupBy attribute");
+    }
+
+    this.name = name;
+    this.function = function;
+    this.groupBy = newGroupBy;
+    this.attribute = attribute;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Function getFunction() {
+    return function;
+  }
+
+  public List<String> getGroupBy() {
+    return groupBy;
+  }
+
+  @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+  public String getAttribute() {
+    return attribute;
+  }
+}
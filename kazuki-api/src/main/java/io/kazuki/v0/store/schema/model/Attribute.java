@@ -66,11 +66,18 @@ public class Attribute {
   private final List<String> values;
   private final boolean nullable;
   private final String renameOf;
+  private final boolean dictionary;
+
+  public Attribute(String name, Type type, List<Object> values, Boolean nullable,
+      @Nullable String renameOf) {
+    this(name, type, values, nullable, renameOf, null);
+  }
 
   @JsonCreator
   public Attribute(@JsonProperty("name") String name, @JsonProperty("type") Type type,
       @JsonProperty("values") List<Object> values, @JsonProperty("nullable") Boolean nullable,
-      @JsonProperty("renameOf") @Nullable String renameOf) {
+      @JsonProperty("renameOf") @Nullable String renameOf,
+      @JsonProperty("dictionary") @Nullable Boolean dictionary) {
     if (name == null) {
       throw new IllegalArgumentException("Attribute 'name' must not be null");
     }
@@ -83,6 +90,7 @@ public class Attribute {
     this.type = type;
     this.nullable = (nullable == null) || nullable;
     this.renameOf = renameOf;
+    this.dictionary = (dictionary != null) && dictionary;
 
     if (values != null) {
       List<String> newVals = new ArrayList<String>();
@@ -117,4 +125,12 @@ public class Attribute {
   public String getRenameOf() {
     return renameOf;
   }
+
+  /**
+   * Whether values are stored as codes of a per-type string dictionary rather than inline (for
+   * UTF8_SMALLSTRING attributes with few distinct values, such as country or currency codes).
+   */
+  public boolean isDictionary() {
+    return dictionary;
+  }
 }
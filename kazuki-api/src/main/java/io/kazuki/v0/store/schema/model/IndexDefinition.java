@@ -32,6 +32,13 @@ import com.google.common.base.Preconditions;
 
 /**
  * Object class for an index definition, including name and column definitions.
+ *
+ * An index with a filter (a query string such as <code>status eq "ACTIVE"</code>) is a partial
+ * index: it only holds the entities matching the filter, so its queries only ever return those.
+ *
+ * An async index is maintained outside of the KV write transaction: mutations are queued in a
+ * durable outbox and applied in the background, so its queries are eventually consistent (see
+ * SecondaryIndexStore.awaitIndexUpdates()). Unique indexes are always maintained synchronously.
  */
 public class IndexDefinition {
   private final String name;
@@ -40,18 +47,37 @@ public class IndexDefinition {
   private final boolean unique;
   private final Map<String, IndexAttribute> indexAttributeMap;
   private final String renameOf;
+  private final String filter;
+  private final boolean async;
+
+  public IndexDefinition(String name, List<IndexAttribute> cols, @Nullable Boolean unique,
+      @Nullable String renameOf) {
+    this(name, cols, unique, renameOf, null, null);
+  }
+
+  public IndexDefinition(String name, List<IndexAttribute> cols, @Nullable Boolean unique,
+      @Nullable String renameOf, @Nullable String filter) {
+    this(name, cols, unique, renameOf, filter, null);
+  }
 
   @JsonCreator
   public IndexDefinition(@JsonProperty("name") String name,
       @JsonProperty("cols") List<IndexAttribute> cols,
       @JsonProperty("unique") @Nullable Boolean unique,
-      @JsonProperty("renameOf") @Nullable String renameOf) {
+      @JsonProperty("renameOf") @Nullable String renameOf,
+      @JsonProperty("filter") @Nullable String filter,
+      @JsonProperty("async") @Nullable Boolean async) {
     Preconditions.checkNotNull(name, "name");
     Preconditions.checkNotNull(cols, "cols");
     Preconditions.checkArgument(!cols.isEmpty(), "cols");
 
     this.name = name;
     this.unique = (unique != null && unique);
+    this.async = (async != null && async);
+
+    if (this.unique && this.async) {
+      throw new IllegalArgumentException("unique index must not be async: " + name);
+    }
 
     List<String> newAttributeNames = new ArrayList<String>();
     Map<String, IndexAttribute> newIndexAttributeMap = new LinkedHashMap<String, IndexAttribute>();
@@ -76,6 +102,7 @@ public class IndexDefinition {
     this.attributeNames = Collections.unmodifiableList(newAttributeNames);
     this.indexAttributeMap = Collections.unmodifiableMap(newIndexAttributeMap);
     this.renameOf = renameOf;
+    this.filter = (filter == null || filter.trim().isEmpty()) ? null : filter;
   }
 
   public String getName() {
@@ -106,8 +133,22 @@ public class IndexDefinition {
     return indexAttributeMap;
   }
 
+  public boolean isAsync() {
+    return async;
+  }
+
   @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
   public String getRenameOf() {
     return renameOf;
   }
+
+  @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+  public String getFilter() {
+    return filter;
+  }
+
+  @JsonIgnore
+  public boolean isPartial() {
+    return filter != null;
+  }
 }
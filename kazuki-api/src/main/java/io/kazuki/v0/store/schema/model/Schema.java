@@ -29,6 +29,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -40,16 +41,31 @@ import com.google.common.collect.ImmutableMap;
 public class Schema {
   public static Schema SCHEMA_SCHEMA = (new Builder())
       .addAttribute("attributes", Type.ARRAY, false).addAttribute("indexes", Type.ARRAY, true)
+      .addAttribute("aggregations", Type.ARRAY, true).addAttribute("fullText", Type.ARRAY, true)
       .build();
 
   private final List<Attribute> attributes;
   private final Map<String, Attribute> attributeMap;
   private final List<IndexDefinition> indexes;
   private final Map<String, IndexDefinition> indexMap;
+  private final List<AggregationDefinition> aggregations;
+  private final Map<String, AggregationDefinition> aggregationMap;
+  private final List<String> fullText;
+
+  public Schema(List<Attribute> attributes, @Nullable List<IndexDefinition> indexes) {
+    this(attributes, indexes, null);
+  }
+
+  public Schema(List<Attribute> attributes, @Nullable List<IndexDefinition> indexes,
+      @Nullable List<AggregationDefinition> aggregations) {
+    this(attributes, indexes, aggregations, null);
+  }
 
   @JsonCreator
   public Schema(@JsonProperty("attributes") List<Attribute> attributes,
-      @JsonProperty("indexes") @Nullable List<IndexDefinition> indexes) {
+      @JsonProperty("indexes") @Nullable List<IndexDefinition> indexes,
+      @JsonProperty("aggregations") @Nullable List<AggregationDefinition> aggregations,
+      @JsonProperty("fullText") @Nullable List<String> fullText) {
     Preconditions.checkNotNull(attributes, "attributes");
 
     this.attributes = Collections.unmodifiableList(attributes);
@@ -94,6 +110,97 @@ public class Schema {
 
       this.indexMap = Collections.unmodifiableMap(newIndexes);
     }
+
+    if (aggregations == null || aggregations.isEmpty()) {
+      this.aggregations = ImmutableList.of();
+      this.aggregationMap = ImmutableMap.of();
+    } else {
+      this.aggregations = Collections.unmodifiableList(aggregations);
+
+      Map<String, AggregationDefinition> newAggregations =
+          new LinkedHashMap<String, AggregationDefinition>();
+      for (AggregationDefinition aggregation : aggregations) {
+        String name = aggregation.getName();
+
+        if (newAggregations.containsKey(name)) {
+          throw new IllegalArgumentException("duplicate aggregation entry for '" + name + "'");
+        }
+
+        for (String attrName : aggregation.getGroupBy()) {
+          Attribute attr = attributeMap.get(attrName);
+
+          if (attr == null) {
+            throw new IllegalArgumentException("aggregation '" + name
+                + "' references unknown attribute '" + attrName);
+          }
+
+          if (Type.ANY.equals(attr.getType()) || Type.MAP.equals(attr.getType())
+              || Type.ARRAY.equals(attr.getType())) {
+            throw new IllegalArgumentException("aggregation '" + name
+                + "' may not group by structured attribute '" + attrName);
+          }
+        }
+
+        if (aggregation.getAttribute() != null) {
+          Attribute attr = attributeMap.get(aggregation.getAttribute());
+
+          if (attr == null) {
+            throw new IllegalArgumentException("aggregation '" + name
+                + "' references unknown attribute '" + aggregation.getAttribute());
+          }
+
+          if (!isIntegerType(attr.getType())) {
+            throw new IllegalArgumentException("aggregation '" + name
+                + "' must sum an integer attribute, not '" + aggregation.getAttribute());
+          }
+        }
+
+        newAggregations.put(name, aggregation);
+      }
+
+      this.aggregationMap = Collections.unmodifiableMap(newAggregations);
+    }
+
+    if (fullText == null || fullText.isEmpty()) {
+      this.fullText = ImmutableList.of();
+    } else {
+      for (String attrName : fullText) {
+        Attribute attr = attributeMap.get(attrName);
+
+        if (attr == null) {
+          throw new IllegalArgumentException("full-text index references unknown attribute '"
+              + attrName);
+        }
+
+        if (!Type.UTF8_TEXT.equals(attr.getType())
+            && !Type.UTF8_SMALLSTRING.equals(attr.getType())) {
+          throw new IllegalArgumentException("full-text index requires a text attribute, not '"
+              + attrName);
+        }
+
+        if (fullText.indexOf(attrName) != fullText.lastIndexOf(attrName)) {
+          throw new IllegalArgumentException("duplicate full-text entry for '" + attrName + "'");
+        }
+      }
+
+      this.fullText = Collections.unmodifiableList(fullText);
+    }
+  }
+
+  private static boolean isIntegerType(Type type) {
+    switch (type) {
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case U8:
+      case U16:
+      case U32:
+      case U64:
+        return true;
+      default:
+        return false;
+    }
   }
 
   public List<Attribute> getAttributes() {
@@ -124,9 +231,29 @@ public class Schema {
     return indexMap;
   }
 
+  @JsonSerialize(include = JsonSerialize.Inclusion.NON_EMPTY)
+  public List<AggregationDefinition> getAggregations() {
+    return aggregations;
+  }
+
+  @JsonIgnore
+  public AggregationDefinition getAggregation(String name) {
+    return aggregationMap.get(name);
+  }
+
+  /**
+   * Returns the names of the attributes with a full-text index.
+   */
+  @JsonSerialize(include = JsonSerialize.Inclusion.NON_EMPTY)
+  public List<String> getFullText() {
+    return fullText;
+  }
+
   public static class Builder {
     private List<Attribute> attributes = new ArrayList<Attribute>();
     private List<IndexDefinition> indexes = new ArrayList<IndexDefinition>();
+    private List<AggregationDefinition> aggregations = new ArrayList<AggregationDefinition>();
+    private List<String> fullText = new ArrayList<String>();
 
     public Builder addAttribute(String name, Type type, boolean nullable) {
       return this.addAttribute(name, type, nullable, null);
@@ -138,6 +265,12 @@ public class Schema {
       return this;
     }
 
+    public Builder addAttribute(String name, Type type, boolean nullable, boolean dictionary) {
+      this.attributes.add(new Attribute(name, type, null, nullable, null, dictionary));
+
+      return this;
+    }
+
     public Builder addAttribute(String name, Type type, List<Object> values, boolean nullable) {
       return this.addAttribute(name, type, values, nullable, null);
     }
@@ -159,8 +292,40 @@ public class Schema {
       return this.addIndex(name, cols, unique, null);
     }
 
+    /**
+     * Adds a partial index holding only the entities that match the filter query.
+     */
+    public Builder addPartialIndex(String name, List<IndexAttribute> cols, Boolean unique,
+        String filter) {
+      this.indexes.add(new IndexDefinition(name, cols, unique, null, filter));
+
+      return this;
+    }
+
+    /**
+     * Adds a non-unique index maintained asynchronously (see IndexDefinition).
+     */
+    public Builder addAsyncIndex(String name, List<IndexAttribute> cols) {
+      this.indexes.add(new IndexDefinition(name, cols, false, null, null, true));
+
+      return this;
+    }
+
+    public Builder addAggregation(String name, AggregationDefinition.Function function,
+        List<String> groupBy, @Nullable String attribute) {
+      this.aggregations.add(new AggregationDefinition(name, function, groupBy, attribute));
+
+      return this;
+    }
+
+    public Builder addFullText(String attributeName) {
+      this.fullText.add(attributeName);
+
+      return this;
+    }
+
     public Schema build() {
-      return new Schema(attributes, indexes);
+      return new Schema(attributes, indexes, aggregations, fullText);
     }
   }
 }
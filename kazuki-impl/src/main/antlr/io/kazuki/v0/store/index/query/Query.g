@@ -7,6 +7,7 @@ options {
 
 tokens {
   AND  = 'and' ;
+  OR   = 'or' ;
   EQ   = 'eq' ;
   NE   = 'ne' ;
   LT   = 'lt' ;
@@ -14,6 +15,7 @@ tokens {
   GT   = 'gt' ;
   GE   = 'ge' ;
   IN   = 'in' ;
+  PREFIX = 'prefix' ;
   TRUE = 'true' ;
   FALSE = 'false' ;
   NULL  = 'null' ;
@@ -48,13 +50,23 @@ public void reportError(RecognitionException e) {
 term_list [List<QueryTerm> inList] :
         term[$inList] (AND term[$inList])* -> (term)+;
 
+term_disjunction [List<List<QueryTerm>> outList] :
+        term_conjunction[$outList] (OR term_conjunction[$outList])* -> (term_conjunction)+;
+
+term_conjunction [List<List<QueryTerm>> outList]
+@init{List<QueryTerm> inList = new ArrayList<QueryTerm>();} :
+        term_list[inList]                  { outList.add(inList); }
+        ;
+
 term [List<QueryTerm> inList] :
         (f=field o=op^ v=value)             { inList.add(new QueryTerm(o.value, f.value, v.value)); }
         | (f=field IN vl=value_list[new ArrayList<ValueHolder>()])    { inList.add(new QueryTerm(QueryOperator.IN, f.value, vl.outList)); }
         ;
 
+/* "or" only separates conjunctions after a complete term, so it stays usable as a field name */
 field returns [String value] :
         i=IDENT                            { $value = i.getText(); }
+        | o=OR                             { $value = o.getText(); }
         ;
 
 op returns [QueryOperator value] :
@@ -64,6 +76,7 @@ op returns [QueryOperator value] :
         | LE                               { $value = QueryOperator.LE; }
         | GT                               { $value = QueryOperator.GT; }
         | GE                               { $value = QueryOperator.GE; }
+        | PREFIX                           { $value = QueryOperator.PREFIX; }
         ;
 
 value returns [ValueHolder value] :
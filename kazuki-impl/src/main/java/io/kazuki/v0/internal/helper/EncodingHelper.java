@@ -17,34 +17,155 @@ package io.kazuki.v0.internal.helper;
 
 import io.kazuki.v0.internal.v2schema.types.UTCDateSecsTransform;
 import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.codec.EntityCodec;
+import io.kazuki.v0.store.schema.codec.EntityCodecs;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import com.fasterxml.jackson.dataformat.smile.SmileParser;
 
 public class EncodingHelper {
+  /** Initial size of the per-thread Smile output buffer */
+  public static final int INITIAL_BUFFER_SIZE = 1024;
+
+  /** Output buffers above this size are never kept for reuse */
+  public static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
   private static final SmileFactory smileFactory = new SmileFactory();
+  private static final SmileFactory valueSmileFactory = new SmileFactory();
   private static final ObjectMapper jsonMapper = new ObjectMapper();
   private static final ObjectMapper beanMapper = new ObjectMapper();
 
+  private static final ThreadLocal<OutputBuffer> outputBuffers = new ThreadLocal<OutputBuffer>() {
+    @Override
+    protected OutputBuffer initialValue() {
+      return new OutputBuffer();
+    }
+  };
+
   static {
     beanMapper.registerModule(new UTCDateSecsTransform.DateTimeModule());
     jsonMapper.registerModule(new UTCDateSecsTransform.DateTimeModule());
+
+    // stored values only: field names repeat across values of a type (and within arrays of
+    // objects), and short string values such as enum constants and flags repeat often enough to
+    // back-reference too. The Smile header announces back-references, so any parser reads both
+    // encodings; other Smile payloads (outbox rows, page tokens) keep Jackson's defaults.
+    valueSmileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, true);
+    valueSmileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
   }
 
+  /**
+   * Writes one Smile document; see writeSmile().
+   */
+  public interface SmileWriter {
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  /**
+   * Converts a bean to a map of its properties; classes with an EntityCodec are converted by
+   * their codec.
+   */
   @SuppressWarnings("unchecked")
   public static <T> Map<String, Object> asJsonMap(T value) throws Exception {
-    return beanMapper.convertValue(value, LinkedHashMap.class);
+    EntityCodec<T> codec =
+        (value == null) ? null : EntityCodecs.forClass((Class<T>) value.getClass());
+
+    if (codec == null) {
+      return beanMapper.convertValue(value, LinkedHashMap.class);
+    }
+
+    final Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+    codec.write(value, new EntityCodec.PropertyWriter() {
+      @Override
+      public void put(String name, Object propertyValue) {
+        result.put(name, propertyValue);
+      }
+    });
+
+    return result;
   }
 
+  /**
+   * Converts a map of properties to a bean; classes with an EntityCodec are converted by their
+   * codec.
+   */
   public static <T> T asValue(Map<String, Object> objectMap, Class<T> clazz) throws Exception {
-    return beanMapper.convertValue(objectMap, clazz);
+    EntityCodec<T> codec = EntityCodecs.forClass(clazz);
+
+    if (codec == null || objectMap == null) {
+      return beanMapper.convertValue(objectMap, clazz);
+    }
+
+    T result = codec.newInstance();
+
+    for (Map.Entry<String, Object> e : objectMap.entrySet()) {
+      codec.set(result, e.getKey(), e.getValue());
+    }
+
+    return result;
+  }
+
+  public static <T> T asValue(Object value, TypeReference<T> type) throws Exception {
+    return beanMapper.convertValue(value, type);
+  }
+
+  /**
+   * Converts a value to plain maps, lists and scalars.
+   */
+  public static Object asJsonValue(Object value) throws Exception {
+    return beanMapper.convertValue(value, Object.class);
+  }
+
+  /**
+   * Serializes a bean into a token buffer, for callers that walk the bean's properties as tokens
+   * instead of converting it to a map.
+   */
+  public static TokenBuffer asTokenBuffer(Object value) throws IOException {
+    TokenBuffer buffer = createTokenBuffer();
+    beanMapper.writeValue(buffer, value);
+
+    return buffer;
+  }
+
+  public static TokenBuffer createTokenBuffer() {
+    return new TokenBuffer(beanMapper, false);
+  }
+
+  public static <T> T asValue(TokenBuffer buffer, Class<T> clazz) throws IOException {
+    return beanMapper.readValue(buffer.asParser(beanMapper), clazz);
+  }
+
+  public static SmileGenerator createSmileGenerator(OutputStream out) throws IOException {
+    return smileFactory.createGenerator(out);
+  }
+
+  public static SmileParser createSmileParser(byte[] valueBytes) throws IOException {
+    return smileFactory.createParser(valueBytes);
+  }
+
+  /**
+   * Reads the value at the parser's current token as plain maps, lists and scalars (the same
+   * representation parseSmile(bytes, Object.class) produces).
+   */
+  public static Object readUntyped(JsonParser parser) throws IOException {
+    return jsonMapper.readValue(parser, Object.class);
+  }
+
+  public static void writeUntyped(JsonGenerator generator, Object value) throws IOException {
+    jsonMapper.writeValue(generator, value);
   }
 
   public static <T> String convertToJson(T value) throws Exception {
@@ -66,29 +187,107 @@ public class EncodingHelper {
     return (Map<String, Object>) parsed;
   }
 
-  public static byte[] convertToSmile(Object value) throws KazukiException {
-    try {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      SmileGenerator smile = smileFactory.createGenerator(out);
-      jsonMapper.writeValue(smile, value);
+  public static byte[] convertToSmile(final Object value) throws KazukiException {
+    return writeSmile(smileFactory, newUntypedWriter(value));
+  }
+
+  /**
+   * As convertToSmile(), for stored values: repeated names and short strings are written as
+   * back-references.
+   */
+  public static byte[] convertValueToSmile(Object value) throws KazukiException {
+    return writeSmile(valueSmileFactory, newUntypedWriter(value));
+  }
+
+  /**
+   * Encodes one Smile document into the calling thread's reusable output buffer and returns a
+   * copy of the bytes, so encoding only allocates the result array (the generator's own buffers
+   * are recycled by Jackson once it is closed).
+   */
+  public static byte[] writeSmile(SmileWriter writer) throws KazukiException {
+    return writeSmile(smileFactory, writer);
+  }
+
+  /**
+   * As writeSmile(), for stored values (see convertValueToSmile()).
+   */
+  public static byte[] writeValueSmile(SmileWriter writer) throws KazukiException {
+    return writeSmile(valueSmileFactory, writer);
+  }
+
+  private static SmileWriter newUntypedWriter(final Object value) {
+    return new SmileWriter() {
+      @Override
+      public void write(JsonGenerator generator) throws IOException {
+        jsonMapper.writeValue(generator, value);
+      }
+    };
+  }
+
+  private static byte[] writeSmile(SmileFactory factory, SmileWriter writer)
+      throws KazukiException {
+    OutputBuffer out = outputBuffers.get();
+
+    // a nested call (e.g. from a custom serializer) gets a buffer of its own
+    if (!out.acquire()) {
+      out = new OutputBuffer();
+      out.acquire();
+    }
 
-      byte[] smileBytes = out.toByteArray();
+    try {
+      try (SmileGenerator smile = factory.createGenerator(out)) {
+        writer.write(smile);
+      }
 
-      return smileBytes;
+      return out.toByteArray();
     } catch (Exception e) {
       throw new KazukiException(e);
+    } finally {
+      out.release();
     }
   }
 
   public static <T> T parseSmile(byte[] valueBytes, Class<T> clazz) throws KazukiException {
-    try {
-      ByteArrayInputStream in = new ByteArrayInputStream(valueBytes);
-      SmileParser smile = smileFactory.createParser(in);
-
+    try (SmileParser smile = smileFactory.createParser(valueBytes)) {
       return jsonMapper.readValue(smile, clazz);
     } catch (Exception e) {
       throw new KazukiException(e);
     }
   }
 
+  /**
+   * Reusable output buffer. Its capacity follows a moving average of recent document sizes, so
+   * an occasional large document does not pin a large array to the thread.
+   */
+  private static class OutputBuffer extends ByteArrayOutputStream {
+    private boolean inUse = false;
+    private int averageSize = INITIAL_BUFFER_SIZE;
+
+    public OutputBuffer() {
+      super(INITIAL_BUFFER_SIZE);
+    }
+
+    public boolean acquire() {
+      if (inUse) {
+        return false;
+      }
+
+      inUse = true;
+
+      return true;
+    }
+
+    public void release() {
+      averageSize = (int) ((averageSize * 7L + count) / 8L);
+
+      int wanted = Math.max(INITIAL_BUFFER_SIZE, 2 * averageSize);
+
+      if (buf.length > MAX_RETAINED_BUFFER_SIZE || buf.length > 4 * wanted) {
+        buf = new byte[Math.min(wanted, MAX_RETAINED_BUFFER_SIZE)];
+      }
+
+      reset();
+      inUse = false;
+    }
+  }
 }
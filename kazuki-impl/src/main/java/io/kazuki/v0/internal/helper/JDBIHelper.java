@@ -36,10 +36,12 @@ import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.exceptions.UnableToCreateStatementException;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.skife.jdbi.v2.tweak.StatementLocator;
+import org.skife.jdbi.v2.tweak.transactions.LocalTransactionHandler;
 
 public class JDBIHelper {
   public static DBI getDBI(Class<?> clazz, DataSource datasource) {
     DBI dbi = new DBI(datasource);
+    dbi.setTransactionHandler(new TransactionHooks(new LocalTransactionHandler()));
 
     final ClasspathGroupLoader theLoader =
         new ClasspathGroupLoader(AngleBracketTemplateLexer.class, clazz.getPackage().getName()
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.tweak.TransactionHandler;
+import org.slf4j.Logger;
+
+/**
+ * TransactionHandler decorator running the actions registered with afterCommit() once the
+ * transaction of the handle commits; a rollback discards them. Installed on every DBI created by
+ * JDBIHelper.getDBI(), so KeyValueStoreListener implementations keeping in-memory state (indexes,
+ * counters) only ever apply committed changes.
+ */
+public class TransactionHooks implements TransactionHandler {
+  private static final Logger log = LogTranslation.getLogger(TransactionHooks.class);
+
+  /** Pending actions by handle, for handles in a transaction begun through a TransactionHooks */
+  private static final ConcurrentHashMap<Handle, List<Runnable>> pending =
+      new ConcurrentHashMap<Handle, List<Runnable>>();
+
+  private final TransactionHandler delegate;
+
+  public TransactionHooks(TransactionHandler delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Runs the action once the current transaction of the handle commits, or right away if the
+   * handle is not in a transaction. Handles are confined to one thread, so the action list needs no
+   * locking.
+   */
+  public static void afterCommit(Handle handle, Runnable action) {
+    List<Runnable> actions = pending.get(handle);
+
+    if (actions == null) {
+      action.run();
+    } else {
+      actions.add(action);
+    }
+  }
+
+  @Override
+  public void begin(Handle handle) {
+    delegate.begin(handle);
+    pending.putIfAbsent(handle, new ArrayList<Runnable>());
+  }
+
+  @Override
+  public void commit(Handle handle) {
+    delegate.commit(handle);
+
+    List<Runnable> actions = pending.remove(handle);
+
+    if (actions != null) {
+      for (Runnable action : actions) {
+        try {
+          action.run();
+        } catch (RuntimeException e) {
+          // the transaction is committed either way; keep running the remaining actions
+          log.warn("Unable to run after-commit action", e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void rollback(Handle handle) {
+    pending.remove(handle);
+    delegate.rollback(handle);
+  }
+
+  @Override
+  public void rollback(Handle handle, String checkpointName) {
+    delegate.rollback(handle, checkpointName);
+  }
+
+  @Override
+  public boolean isInTransaction(Handle handle) {
+    return delegate.isInTransaction(handle);
+  }
+
+  @Override
+  public void checkpoint(Handle handle, String checkpointName) {
+    delegate.checkpoint(handle, checkpointName);
+  }
+
+  @Override
+  public void release(Handle handle, String checkpointName) {
+    delegate.release(handle, checkpointName);
+  }
+
+  @Override
+  public <ReturnType> ReturnType inTransaction(Handle handle,
+      TransactionCallback<ReturnType> callback) {
+    return delegate.inTransaction(handle, callback);
+  }
+
+  @Override
+  public <ReturnType> ReturnType inTransaction(Handle handle, TransactionIsolationLevel level,
+      TransactionCallback<ReturnType> callback) {
+    return delegate.inTransaction(handle, level, callback);
+  }
+}
@@ -18,36 +18,141 @@ package io.kazuki.v0.internal.serialize.kryo;
 import io.kazuki.v0.internal.serialize.SerializationException;
 import io.kazuki.v0.internal.serialize.Serializer;
 
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.ImmutableList;
 
+/**
+ * Kryo codec. Kryo instances are expensive to create and not thread-safe, so each thread keeps
+ * its own Kryo (with the registrations applied) and reusable Input / Output buffers.
+ *
+ * Registered classes are written as small integer ids instead of class names. Ids are assigned in
+ * registration order (common collection and number classes, then the codec's class, then the
+ * extra classes in the given order), so encoded bytes are only readable by a codec constructed
+ * with the same registrations. Unregistered classes are still written by name.
+ */
 public class KryoCodec<T> implements Serializer<T> {
+  /** Initial output buffer size; the buffer grows as needed */
+  public static final int BUFFER_SIZE = 4096;
+
+  /** Output buffers grown beyond this size are not kept for reuse */
+  public static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final List<Class<?>> COMMON_CLASSES = ImmutableList.<Class<?>>of(
+      ArrayList.class, HashMap.class, LinkedHashMap.class, BigInteger.class, BigDecimal.class,
+      Date.class);
+
   private final Class<T> theClass;
+  private final List<Class<?>> registrations;
+  private final ThreadLocal<Context> contexts;
 
-  public KryoCodec(Class<T> theClass) {
+  public KryoCodec(Class<T> theClass, Class<?>... extraClasses) {
     this.theClass = theClass;
+
+    ImmutableList.Builder<Class<?>> newRegistrations = ImmutableList.builder();
+    newRegistrations.addAll(COMMON_CLASSES);
+
+    if (isConcrete(theClass) && !COMMON_CLASSES.contains(theClass)) {
+      newRegistrations.add(theClass);
+    }
+
+    newRegistrations.add(extraClasses);
+
+    this.registrations = newRegistrations.build();
+    this.contexts = new ThreadLocal<Context>() {
+      @Override
+      protected Context initialValue() {
+        return new Context();
+      }
+    };
   }
 
   @Override
   public T decode(byte[] bytes) throws SerializationException {
-    Kryo kryo = new Kryo();
+    Context context = acquire();
     try {
-      return kryo.readObject(new Input(bytes), theClass);
+      context.input.setBuffer(bytes);
+
+      return context.kryo.readObject(context.input, theClass);
     } catch (Exception e) {
       throw new SerializationException(e);
+    } finally {
+      context.input.setBuffer(EMPTY);
+      release(context);
     }
   }
 
   @Override
   public byte[] encode(Object instance) throws SerializationException {
-    Kryo kryo = new Kryo();
+    Context context = acquire();
     try {
-      Output output = new Output();
-      kryo.writeObject(output, instance);
-      return output.toBytes();
+      context.output.clear();
+      context.kryo.writeObject(context.output, instance);
+
+      return context.output.toBytes();
     } catch (Exception e) {
       throw new SerializationException(e);
+    } finally {
+      if (context.output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+        context.output.setBuffer(new byte[BUFFER_SIZE], -1);
+      }
+
+      release(context);
+    }
+  }
+
+  /**
+   * Returns the thread's context, or a fresh one if it is already in use further up the stack
+   * (e.g. a custom serializer that calls back into the codec).
+   */
+  private Context acquire() {
+    Context context = contexts.get();
+
+    if (context.inUse) {
+      context = new Context();
+    }
+
+    context.inUse = true;
+
+    return context;
+  }
+
+  private void release(Context context) {
+    context.inUse = false;
+  }
+
+  private static boolean isConcrete(Class<?> clazz) {
+    return !clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers())
+        && !clazz.equals(Object.class);
+  }
+
+  private class Context {
+    private final Kryo kryo;
+    private final Input input;
+    private final Output output;
+    private boolean inUse;
+
+    public Context() {
+      this.kryo = new Kryo();
+
+      for (Class<?> clazz : registrations) {
+        this.kryo.register(clazz);
+      }
+
+      this.input = new Input();
+      this.output = new Output(BUFFER_SIZE, -1);
     }
   }
 }
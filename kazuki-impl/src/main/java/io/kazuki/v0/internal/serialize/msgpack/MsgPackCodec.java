@@ -18,8 +18,20 @@ package io.kazuki.v0.internal.serialize.msgpack;
 import io.kazuki.v0.internal.serialize.SerializationException;
 import io.kazuki.v0.internal.serialize.Serializer;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
 
+/**
+ * MessagePack codec. Maps, lists and Object are decoded dynamically into plain maps, lists and
+ * scalars (as Jackson does for untyped values), since MessagePack templates cannot read values of
+ * unknown type.
+ */
 public class MsgPackCodec<T> implements Serializer<T> {
   private final Class<T> theClass;
 
@@ -31,6 +43,10 @@ public class MsgPackCodec<T> implements Serializer<T> {
   public T decode(byte[] bytes) throws SerializationException {
     MessagePack msgpack = new MessagePack();
     try {
+      if (isUntyped()) {
+        return theClass.cast(toObject(msgpack.read(bytes)));
+      }
+
       return msgpack.read(bytes, theClass);
     } catch (Exception e) {
       throw new SerializationException(e);
@@ -46,4 +62,47 @@ public class MsgPackCodec<T> implements Serializer<T> {
       throw new SerializationException(e);
     }
   }
+
+  private boolean isUntyped() {
+    return theClass.equals(Object.class) || Map.class.isAssignableFrom(theClass)
+        || List.class.isAssignableFrom(theClass);
+  }
+
+  private static Object toObject(Value value) {
+    if (value.isNilValue()) {
+      return null;
+    } else if (value.isBooleanValue()) {
+      return value.asBooleanValue().getBoolean();
+    } else if (value.isIntegerValue()) {
+      BigInteger integer = value.asIntegerValue().getBigInteger();
+
+      if (integer.bitLength() < 32) {
+        return integer.intValue();
+      }
+
+      return (integer.bitLength() < 64) ? (Object) integer.longValue() : integer;
+    } else if (value.isFloatValue()) {
+      return value.asFloatValue().getDouble();
+    } else if (value.isRawValue()) {
+      return value.asRawValue().getString();
+    } else if (value.isArrayValue()) {
+      List<Object> result = new ArrayList<Object>();
+
+      for (Value element : value.asArrayValue()) {
+        result.add(toObject(element));
+      }
+
+      return result;
+    } else if (value.isMapValue()) {
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+      for (Map.Entry<Value, Value> e : value.asMapValue().entrySet()) {
+        result.put(String.valueOf(toObject(e.getKey())), toObject(e.getValue()));
+      }
+
+      return result;
+    }
+
+    throw new IllegalArgumentException("unsupported MessagePack value: " + value);
+  }
 }
@@ -156,7 +156,8 @@ public class SchemaDiffUtil {
 
       IndexDefinition oldIndex = oldIndexes.get(indexName);
 
-      if (oldIndex.isUnique() != index.isUnique()) {
+      if (oldIndex.isUnique() != index.isUnique() || oldIndex.isAsync() != index.isAsync()
+          || !Objects.equal(oldIndex.getFilter(), index.getFilter())) {
         diffs.add(new SchemaDiff<IndexDefinition>(SchemaDiff.DiffType.INDEX_MODIFY,
             IndexDefinition.class, oldIndex, index));
         oldIndexDone.add(indexName);
@@ -15,7 +15,9 @@
  */
 package io.kazuki.v0.internal.v2schema;
 
+import io.kazuki.v0.store.index.IndexFilter;
 import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
 import io.kazuki.v0.store.schema.model.TransformException;
 import io.kazuki.v0.store.schema.model.Attribute.Type;
 import io.kazuki.v0.store.schema.model.Schema;
@@ -35,6 +37,10 @@ public class SchemaValidator {
     for (Attribute attribute : schemaDefinition.getAttributes()) {
       SchemaValidator.validateAttribute(attribute);
     }
+
+    for (IndexDefinition indexDef : schemaDefinition.getIndexes()) {
+      SchemaValidator.validateIndexFilter(schemaDefinition, indexDef);
+    }
   }
 
   public static void validateUpgrade(Schema oldSchema, Schema newSchema) {
@@ -61,6 +67,24 @@ public class SchemaValidator {
         throw new TransformException("Invalid enum attribute (contains no values) : " + attrName);
       }
     }
+
+    if (attribute.isDictionary() && !attribute.getType().equals(Type.UTF8_SMALLSTRING)) {
+      throw new TransformException("Invalid dictionary attribute (not UTF8_SMALLSTRING) : "
+          + attrName);
+    }
+  }
+
+  public static void validateIndexFilter(Schema schema, IndexDefinition indexDef) {
+    if (!indexDef.isPartial()) {
+      return;
+    }
+
+    try {
+      IndexFilter.forIndex(schema, indexDef);
+    } catch (RuntimeException e) {
+      throw new TransformException("Invalid filter for index '" + indexDef.getName() + "' : "
+          + indexDef.getFilter());
+    }
   }
 
   public static void validateAttributeUpgrade(Attribute oldAttr, Attribute newAttr) {
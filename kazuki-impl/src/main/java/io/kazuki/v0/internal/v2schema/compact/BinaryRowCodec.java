@@ -0,0 +1,517 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.compact;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Schema-compiled binary row format (stored with _format 'B'). Since attribute types and order
+ * come from the schema, values are written without type or name information:
+ *
+ * <pre>
+ *   version byte (2)
+ *   varint  attribute count n
+ *   bitmap  present attributes (n bits, little-endian bytes)
+ *   bitmap  null attributes (n bits; subset of present)
+ *   values  of present, non-null attributes in schema order:
+ *             U8..U64        unsigned varint
+ *             I8..I64        zigzag varint
+ *             UTC_DATE_SECS  zigzag varint (epoch seconds)
+ *             ENUM           unsigned varint (value index)
+ *             BOOLEAN        one byte
+ *             CHAR_ONE, UTF8_SMALLSTRING, UTF8_TEXT  unsigned varint (length << 1) + UTF-8,
+ *                            or (code << 1 | 1) for dictionary-coded values
+ *             ANY, MAP, ARRAY  varint length + Smile
+ *   extras  varint length + Smile map of non-schema fields (length 0 if none)
+ * </pre>
+ *
+ * Input and output are field-transformed maps (see FieldTransform). Like the
+ * structure-compacted Smile form, rows are positional: they stay readable as attributes are
+ * added, but not across attribute type changes.
+ *
+ * Values of dictionary attributes (see Attribute.isDictionary()) are written as codes of the
+ * type's StringDictionary, if one is given. Since every string value is tagged as inline or
+ * coded, rows stay readable when the dictionary option of an attribute changes; version 1 rows
+ * (untagged string lengths) are still read.
+ */
+public class BinaryRowCodec {
+  public static final byte VERSION = 2;
+
+  private static final byte UNTAGGED_VERSION = 1;
+
+  private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+  private static final LoadingCache<Schema, BinaryRowCodec> codecs = CacheBuilder.newBuilder()
+      .weakKeys().build(new CacheLoader<Schema, BinaryRowCodec>() {
+        @Override
+        public BinaryRowCodec load(Schema schema) {
+          return new BinaryRowCodec(schema);
+        }
+      });
+
+  private final Schema schema;
+  private final List<Attribute> attributes;
+  private final Map<String, Integer> positions;
+
+  public BinaryRowCodec(Schema schema) {
+    if (schema == null) {
+      throw new IllegalArgumentException("schema definition must not be null");
+    }
+
+    this.schema = schema;
+    this.attributes = schema.getAttributes();
+
+    Map<String, Integer> newPositions = new HashMap<String, Integer>();
+
+    for (int i = 0; i < attributes.size(); i++) {
+      newPositions.put(attributes.get(i).getName(), i);
+    }
+
+    this.positions = Collections.unmodifiableMap(newPositions);
+  }
+
+  /**
+   * Returns the (shared) codec of the schema instance.
+   */
+  public static BinaryRowCodec forSchema(Schema schema) {
+    return codecs.getUnchecked(schema);
+  }
+
+  public byte[] encode(Map<String, Object> packed) throws KazukiException {
+    return encode(packed, null);
+  }
+
+  /**
+   * Encodes the packed map, writing values of dictionary attributes as codes of the given
+   * dictionary (or inline, if null).
+   */
+  public byte[] encode(Map<String, Object> packed, @Nullable StringDictionary dictionary)
+      throws KazukiException {
+    int count = attributes.size();
+    byte[] present = new byte[(count + 7) / 8];
+    byte[] nulls = new byte[present.length];
+    Map<String, Object> extra = null;
+
+    for (int i = 0; i < count; i++) {
+      String attrName = attributes.get(i).getName();
+
+      if (packed.containsKey(attrName)) {
+        present[i / 8] |= (byte) (1 << (i % 8));
+
+        if (packed.get(attrName) == null) {
+          nulls[i / 8] |= (byte) (1 << (i % 8));
+        }
+      }
+    }
+
+    for (Map.Entry<String, Object> e : packed.entrySet()) {
+      if (schema.getAttribute(e.getKey()) == null) {
+        if (extra == null) {
+          extra = new LinkedHashMap<String, Object>();
+        }
+
+        extra.put(e.getKey(), e.getValue());
+      }
+    }
+
+    Output out = new Output(16 + 8 * count);
+    out.writeByte(VERSION);
+    out.writeUnsignedVarint(count);
+    out.writeBytes(present);
+    out.writeBytes(nulls);
+
+    for (Attribute attribute : attributes) {
+      Object value = packed.get(attribute.getName());
+
+      if (value != null) {
+        writeValue(out, attribute, value, dictionary);
+      }
+    }
+
+    if (extra == null) {
+      out.writeUnsignedVarint(0L);
+    } else {
+      out.writeLengthPrefixed(EncodingHelper.convertToSmile(extra));
+    }
+
+    return out.toByteArray();
+  }
+
+  public Map<String, Object> decodePacked(byte[] valueBytes) throws KazukiException {
+    return read(valueBytes, null, null);
+  }
+
+  public Map<String, Object> decodePacked(byte[] valueBytes, @Nullable StringDictionary dictionary)
+      throws KazukiException {
+    return read(valueBytes, null, dictionary);
+  }
+
+  /**
+   * Decodes only the given fields (in packed form); fields absent from the row are omitted.
+   * Values of other attributes are skipped over, and decoding stops after the last requested
+   * attribute unless a requested field is not in the schema.
+   */
+  public Map<String, Object> decodeFields(byte[] valueBytes, Collection<String> fields)
+      throws KazukiException {
+    return read(valueBytes, fields, null);
+  }
+
+  public Map<String, Object> decodeFields(byte[] valueBytes, Collection<String> fields,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    return read(valueBytes, fields, dictionary);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> read(byte[] valueBytes, @Nullable Collection<String> fields,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    Input in = new Input(valueBytes);
+
+    byte version = in.readByte();
+    if (version != VERSION && version != UNTAGGED_VERSION) {
+      throw new KazukiException("unsupported binary row version: " + version);
+    }
+
+    boolean tagged = (version == VERSION);
+    int count = (int) in.readUnsignedVarint();
+    byte[] present = in.readBytes((count + 7) / 8);
+    byte[] nulls = in.readBytes(present.length);
+
+    if (count > attributes.size()) {
+      throw new TransformException("row has more attributes than the schema: " + count);
+    }
+
+    BitSet wanted = new BitSet();
+    boolean wantsExtra = true;
+
+    if (fields == null) {
+      wanted.set(0, count);
+    } else {
+      wantsExtra = false;
+
+      for (String field : fields) {
+        Integer position = positions.get(field);
+
+        if (position == null) {
+          wantsExtra = true;
+        } else {
+          wanted.set(position);
+        }
+      }
+    }
+
+    int end = wantsExtra ? count : Math.min(count, wanted.length());
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+    for (int i = 0; i < end; i++) {
+      if ((present[i / 8] & (1 << (i % 8))) == 0) {
+        continue;
+      }
+
+      Attribute attribute = attributes.get(i);
+      boolean isNull = (nulls[i / 8] & (1 << (i % 8))) != 0;
+
+      if (!wanted.get(i)) {
+        if (!isNull) {
+          skipValue(in, attribute, tagged);
+        }
+      } else if (isNull) {
+        result.put(attribute.getName(), null);
+      } else {
+        result.put(attribute.getName(), readValue(in, attribute, tagged, dictionary));
+      }
+    }
+
+    if (!wantsExtra) {
+      return result;
+    }
+
+    byte[] extraBytes = in.readLengthPrefixed();
+
+    if (extraBytes.length > 0) {
+      Map<String, Object> extra = EncodingHelper.parseSmile(extraBytes, Map.class);
+
+      if (fields == null) {
+        result.putAll(extra);
+      } else {
+        for (String field : fields) {
+          if (extra.containsKey(field)) {
+            result.put(field, extra.get(field));
+          }
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private static void writeValue(Output out, Attribute attribute, Object value,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    try {
+      switch (attribute.getType()) {
+        case U8:
+        case U16:
+        case U32:
+        case U64:
+        case ENUM:
+          // U64 values above Long.MAX_VALUE keep their low 64 bits, read back as unsigned
+          out.writeUnsignedVarint(((Number) value).longValue());
+          break;
+        case I8:
+        case I16:
+        case I32:
+        case I64:
+        case UTC_DATE_SECS:
+          long signed = ((Number) value).longValue();
+          out.writeUnsignedVarint((signed << 1) ^ (signed >> 63));
+          break;
+        case BOOLEAN:
+          out.writeByte((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+          break;
+        case CHAR_ONE:
+        case UTF8_SMALLSTRING:
+        case UTF8_TEXT:
+          if (dictionary != null && attribute.isDictionary()) {
+            out.writeUnsignedVarint((dictionary.encode((String) value) << 1) | 1L);
+          } else {
+            byte[] utf8 = ((String) value).getBytes(Charsets.UTF_8);
+            out.writeUnsignedVarint((long) utf8.length << 1);
+            out.writeBytes(utf8);
+          }
+          break;
+        default:
+          out.writeLengthPrefixed(EncodingHelper.convertToSmile(value));
+          break;
+      }
+    } catch (ClassCastException e) {
+      throw new TransformException("invalid attribute value for '" + attribute.getName() + "'");
+    }
+  }
+
+  private static Object readValue(Input in, Attribute attribute, boolean tagged,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    switch (attribute.getType()) {
+      case U8:
+      case U16:
+      case U32:
+        return in.readUnsignedVarint();
+      case U64:
+        long unsigned = in.readUnsignedVarint();
+        return (unsigned >= 0L) ? Long.valueOf(unsigned) : BigInteger.valueOf(unsigned).add(
+            TWO_TO_THE_64);
+      case ENUM:
+        return (int) in.readUnsignedVarint();
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case UTC_DATE_SECS:
+        long zigzag = in.readUnsignedVarint();
+        return (zigzag >>> 1) ^ -(zigzag & 1L);
+      case BOOLEAN:
+        return in.readByte() != 0;
+      case CHAR_ONE:
+      case UTF8_SMALLSTRING:
+      case UTF8_TEXT:
+        if (!tagged) {
+          return new String(in.readLengthPrefixed(), Charsets.UTF_8);
+        }
+
+        long tag = in.readUnsignedVarint();
+
+        if ((tag & 1L) == 0L) {
+          return new String(in.readBytes(in.checkLength(tag >>> 1)), Charsets.UTF_8);
+        }
+
+        if (dictionary == null) {
+          throw new KazukiException("dictionary-coded value of '" + attribute.getName()
+              + "' requires a string dictionary");
+        }
+
+        return dictionary.decode(tag >>> 1);
+      default:
+        return EncodingHelper.parseSmile(in.readLengthPrefixed(), Object.class);
+    }
+  }
+
+  private static void skipValue(Input in, Attribute attribute, boolean tagged)
+      throws KazukiException {
+    switch (attribute.getType()) {
+      case U8:
+      case U16:
+      case U32:
+      case U64:
+      case ENUM:
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case UTC_DATE_SECS:
+        in.readUnsignedVarint();
+        break;
+      case BOOLEAN:
+        in.readByte();
+        break;
+      case CHAR_ONE:
+      case UTF8_SMALLSTRING:
+      case UTF8_TEXT:
+        if (!tagged) {
+          in.skip(in.readUnsignedVarint());
+        } else {
+          long tag = in.readUnsignedVarint();
+
+          if ((tag & 1L) == 0L) {
+            in.skip(tag >>> 1);
+          }
+        }
+        break;
+      default:
+        in.skip(in.readUnsignedVarint());
+        break;
+    }
+  }
+
+  private static class Output {
+    private byte[] buf;
+    private int pos;
+
+    public Output(int capacity) {
+      this.buf = new byte[capacity];
+    }
+
+    public void writeByte(byte value) {
+      ensure(1);
+      buf[pos++] = value;
+    }
+
+    public void writeBytes(byte[] value) {
+      ensure(value.length);
+      System.arraycopy(value, 0, buf, pos, value.length);
+      pos += value.length;
+    }
+
+    public void writeUnsignedVarint(long value) {
+      ensure(10);
+
+      while ((value & ~0x7FL) != 0L) {
+        buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+
+      buf[pos++] = (byte) value;
+    }
+
+    public void writeLengthPrefixed(byte[] value) {
+      writeUnsignedVarint(value.length);
+      writeBytes(value);
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(buf, pos);
+    }
+
+    private void ensure(int needed) {
+      if (pos + needed > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + needed));
+      }
+    }
+  }
+
+  private static class Input {
+    private final byte[] buf;
+    private int pos;
+
+    public Input(byte[] buf) {
+      this.buf = buf;
+    }
+
+    public byte readByte() throws KazukiException {
+      check(1);
+
+      return buf[pos++];
+    }
+
+    public byte[] readBytes(int length) throws KazukiException {
+      check(length);
+
+      byte[] result = Arrays.copyOfRange(buf, pos, pos + length);
+      pos += length;
+
+      return result;
+    }
+
+    public long readUnsignedVarint() throws KazukiException {
+      long result = 0L;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        result |= (long) (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+
+      throw new KazukiException("malformed varint in binary row");
+    }
+
+    public void skip(long length) throws KazukiException {
+      if (length > buf.length - pos) {
+        throw new KazukiException("truncated binary row");
+      }
+
+      pos += (int) length;
+    }
+
+    public byte[] readLengthPrefixed() throws KazukiException {
+      return readBytes(checkLength(readUnsignedVarint()));
+    }
+
+    public int checkLength(long length) throws KazukiException {
+      if (length > buf.length - pos) {
+        throw new KazukiException("truncated binary row");
+      }
+
+      return (int) length;
+    }
+
+    private void check(int needed) throws KazukiException {
+      if (pos + needed > buf.length) {
+        throw new KazukiException("truncated binary row");
+      }
+    }
+  }
+}
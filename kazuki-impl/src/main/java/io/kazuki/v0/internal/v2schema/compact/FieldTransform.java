@@ -135,6 +135,16 @@ public class FieldTransform implements Transform<Map<String, Object>, Map<String
     return mindlessClone;
   }
 
+  /**
+   * Reverses transformValue() for a single attribute value (values of unknown attributes are
+   * returned as-is).
+   */
+  public Object untransformValue(String attrName, Object value) throws TransformException {
+    Transform validator = (Transform) fieldCompactions.get(attrName);
+
+    return validator != null ? validator.unpack(value) : value;
+  }
+
   public Object transformValue(String attrName, Object value) throws TransformException {
     try {
       Transform validator = (Transform) fieldCompactions.get(attrName);
@@ -0,0 +1,535 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.compact;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.v2schema.util.BitSetUtil;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.codec.EntityCodec;
+import io.kazuki.v0.store.schema.codec.EntityCodecs;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Streaming equivalent of FieldTransform + StructureTransform + Smile encoding for schema'd
+ * values. Writes and reads the same bytes as
+ * EncodingHelper.convertValueToSmile(structureTransform.pack(fieldTransform.pack(map))), but
+ * walks the schema attribute order and moves Smile tokens directly between the stored bytes and
+ * the target, instead of materializing the intermediate maps and lists of each transform step.
+ *
+ * Beans are read from / written to Jackson token buffers, so the POJO side never goes through a
+ * LinkedHashMap either; map targets (LinkedHashMap.class and supertypes) are built directly.
+ * Classes with an EntityCodec (see EntityCodecs) skip the token buffer as well: their properties
+ * are packed from, and read into, the instance directly by the codec.
+ */
+public class SchemaSmileCodec {
+  private static final LoadingCache<Schema, SchemaSmileCodec> codecs = CacheBuilder.newBuilder()
+      .weakKeys().build(new CacheLoader<Schema, SchemaSmileCodec>() {
+        @Override
+        public SchemaSmileCodec load(Schema schema) {
+          return new SchemaSmileCodec(schema);
+        }
+      });
+
+  private final Schema schema;
+  private final FieldTransform fieldTransform;
+  private final List<Attribute> attributes;
+  private final Map<String, Integer> positions;
+
+  public SchemaSmileCodec(Schema schema) {
+    if (schema == null) {
+      throw new IllegalArgumentException("schema definition must not be null");
+    }
+
+    this.schema = schema;
+    this.fieldTransform = new FieldTransform(schema);
+    this.attributes = schema.getAttributes();
+
+    Map<String, Integer> newPositions = new HashMap<String, Integer>();
+
+    for (int i = 0; i < attributes.size(); i++) {
+      newPositions.put(attributes.get(i).getName(), i);
+    }
+
+    this.positions = Collections.unmodifiableMap(newPositions);
+  }
+
+  /**
+   * Returns the (shared) codec of the schema instance.
+   */
+  public static SchemaSmileCodec forSchema(Schema schema) {
+    return codecs.getUnchecked(schema);
+  }
+
+  /**
+   * Converts a bean (or map) to its field-transformed map, i.e. the form passed to
+   * KeyValueStoreListener hooks; equivalent to
+   * fieldTransform.pack(EncodingHelper.asJsonMap(value)).
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> pack(Object value) throws KazukiException {
+    if (value == null) {
+      throw new TransformException("instance must not be null");
+    }
+
+    final Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    EntityCodec<Object> codec = EntityCodecs.forClass((Class<Object>) value.getClass());
+
+    if (value instanceof LinkedHashMap) {
+      // as with asJsonMap(), maps that need no conversion are taken as-is
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+        putPacked(packed, e.getKey(), e.getValue());
+      }
+    } else if (codec != null) {
+      codec.write(value, new EntityCodec.PropertyWriter() {
+        @Override
+        public void put(String name, Object propertyValue) {
+          putPacked(packed, name, propertyValue);
+        }
+      });
+    } else {
+      try (JsonParser parser = EncodingHelper.asTokenBuffer(value).asParser()) {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+          throw new TransformException("instance must be an object");
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String attrName = parser.getCurrentName();
+          parser.nextToken();
+
+          putPacked(packed, attrName, readValue(parser));
+        }
+      } catch (IOException e) {
+        throw new KazukiException(e);
+      }
+    }
+
+    for (Attribute attribute : attributes) {
+      if (!attribute.isNullable() && !packed.containsKey(attribute.getName())) {
+        throw new TransformException("attribute must not be null: " + attribute.getName());
+      }
+    }
+
+    return packed;
+  }
+
+  /**
+   * Encodes a field-transformed map in the structure-compacted Smile form.
+   */
+  public byte[] encode(final Map<String, Object> packed) throws KazukiException {
+    return EncodingHelper.writeValueSmile(new EncodingHelper.SmileWriter() {
+      @Override
+      public void write(JsonGenerator generator) throws IOException {
+        writeStructure(generator, packed);
+      }
+    });
+  }
+
+  /**
+   * Decodes stored bytes to the field-transformed map (the form passed to KeyValueStoreListener
+   * hooks). Values stored without structure compaction are returned as parsed.
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decodePacked(byte[] valueBytes) throws KazukiException {
+    try (JsonParser parser = EncodingHelper.createSmileParser(valueBytes)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        return (Map<String, Object>) EncodingHelper.readUntyped(parser);
+      }
+
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      readStructure(parser, false, mapWriter(result));
+
+      return result;
+    } catch (IOException e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  /**
+   * Decodes stored bytes to an instance of the given class; equivalent to
+   * EncodingHelper.asValue(fieldTransform.unpack(structureTransform.unpack(parsed)), clazz). As
+   * there, a stored property the class doesn't declare (e.g. one outside the schema) fails the
+   * decode, also through a generated entity codec; decode to a map to keep such properties.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T decode(byte[] valueBytes, Class<T> clazz) throws KazukiException {
+    try (JsonParser parser = EncodingHelper.createSmileParser(valueBytes)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        return EncodingHelper.asValue((Map<String, Object>) EncodingHelper.readUntyped(parser),
+            clazz);
+      }
+
+      if (clazz.isAssignableFrom(LinkedHashMap.class)) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        readStructure(parser, true, mapWriter(result));
+
+        return (T) result;
+      }
+
+      EntityCodec<T> codec = EntityCodecs.forClass(clazz);
+
+      if (codec != null) {
+        T result = codec.newInstance();
+        readStructure(parser, true, codecWriter(codec, result));
+
+        return result;
+      }
+
+      TokenBuffer buffer = EncodingHelper.createTokenBuffer();
+      buffer.writeStartObject();
+      readStructure(parser, true, bufferWriter(buffer));
+      buffer.writeEndObject();
+
+      return EncodingHelper.asValue(buffer, clazz);
+    } catch (KazukiException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  /**
+   * Decodes only the given fields of stored bytes (in unpacked form, as retrieved with a map
+   * class); fields absent from the value are omitted. Values of other attributes are skipped
+   * without being materialized, and decoding stops after the last requested attribute unless a
+   * requested field is not in the schema.
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decodeFields(byte[] valueBytes, Collection<String> fields)
+      throws KazukiException {
+    try (JsonParser parser = EncodingHelper.createSmileParser(valueBytes)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        return project((Map<String, Object>) EncodingHelper.readUntyped(parser), fields);
+      }
+
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+      if (parser.nextToken() == JsonToken.END_ARRAY) {
+        return result;
+      }
+
+      BitSet wanted = new BitSet();
+      boolean wantsExtra = false;
+
+      for (String field : fields) {
+        Integer position = positions.get(field);
+
+        if (position == null) {
+          wantsExtra = true;
+        } else {
+          wanted.set(position);
+        }
+      }
+
+      BitSet present = BitSetUtil.unpack(readValue(parser));
+
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IllegalArgumentException(
+            "packed representation must contain at least 2 elements");
+      }
+
+      int last = wanted.length();
+
+      for (int i = present.nextSetBit(0); i >= 0 && (wantsExtra || i < last); i =
+          present.nextSetBit(i + 1)) {
+        parser.nextToken();
+
+        if (wanted.get(i)) {
+          Attribute attribute = attributes.get(i);
+          result.put(attribute.getName(), unpackValue(attribute, readValue(parser)));
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      if (wantsExtra && parser.nextToken() == JsonToken.END_ARRAY
+          && parser.nextToken() == JsonToken.START_OBJECT) {
+        result.putAll(project((Map<String, Object>) EncodingHelper.readUntyped(parser), fields));
+      }
+
+      return result;
+    } catch (IOException e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  /**
+   * Converts a field-transformed map (e.g. decoded from another storage format) to an instance of
+   * the given class, without the intermediate unpacked map.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T bind(Map<String, Object> packed, Class<T> clazz) throws KazukiException {
+    if (clazz.isAssignableFrom(LinkedHashMap.class)) {
+      return (T) fieldTransform.unpack(packed);
+    }
+
+    EntityCodec<T> codec = EntityCodecs.forClass(clazz);
+
+    if (codec != null) {
+      T result = codec.newInstance();
+
+      for (Map.Entry<String, Object> e : packed.entrySet()) {
+        Attribute attribute = schema.getAttribute(e.getKey());
+
+        codec.set(result, e.getKey(), (attribute == null) ? e.getValue() : unpackValue(attribute,
+            e.getValue()));
+      }
+
+      return result;
+    }
+
+    try {
+      TokenBuffer buffer = EncodingHelper.createTokenBuffer();
+      buffer.writeStartObject();
+
+      for (Map.Entry<String, Object> e : packed.entrySet()) {
+        Attribute attribute = schema.getAttribute(e.getKey());
+        Object value = (attribute == null) ? e.getValue() : unpackValue(attribute, e.getValue());
+
+        buffer.writeFieldName(e.getKey());
+        writeValue(buffer, value);
+      }
+
+      buffer.writeEndObject();
+
+      return EncodingHelper.asValue(buffer, clazz);
+    } catch (IOException e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  /**
+   * Reads the structure-compacted array (the parser is positioned on its START_ARRAY) into the
+   * target, optionally reversing the field transforms.
+   */
+  private void readStructure(JsonParser parser, boolean unpack, EntityCodec.PropertyWriter target)
+      throws IOException, KazukiException {
+    JsonToken token = parser.nextToken();
+
+    if (token == JsonToken.END_ARRAY) {
+      return;
+    }
+
+    BitSet present = BitSetUtil.unpack(readValue(parser));
+
+    if (parser.nextToken() != JsonToken.START_ARRAY) {
+      throw new IllegalArgumentException("packed representation must contain at least 2 elements");
+    }
+
+    for (int i = 0; i < attributes.size(); i++) {
+      if (!present.get(i)) {
+        continue;
+      }
+
+      Attribute attribute = attributes.get(i);
+      String attrName = attribute.getName();
+
+      parser.nextToken();
+      Object value = readValue(parser);
+
+      target.put(attrName, unpack ? unpackValue(attribute, value) : value);
+    }
+
+    parser.nextToken();
+
+    if (parser.nextToken() == JsonToken.START_OBJECT) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> extra = (Map<String, Object>) EncodingHelper.readUntyped(parser);
+
+      for (Map.Entry<String, Object> e : extra.entrySet()) {
+        target.put(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  private static Map<String, Object> project(Map<String, Object> value, Collection<String> fields) {
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+    for (String field : fields) {
+      if (value.containsKey(field)) {
+        result.put(field, value.get(field));
+      }
+    }
+
+    return result;
+  }
+
+  private void writeStructure(JsonGenerator generator, Map<String, Object> packed)
+      throws IOException {
+    generator.writeStartArray();
+
+    if (!packed.isEmpty()) {
+      BitSet present = new BitSet();
+
+      for (int i = 0; i < attributes.size(); i++) {
+        if (packed.containsKey(attributes.get(i).getName())) {
+          present.set(i);
+        }
+      }
+
+      writeValue(generator, BitSetUtil.pack(present));
+
+      generator.writeStartArray();
+
+      for (Attribute attribute : attributes) {
+        if (packed.containsKey(attribute.getName())) {
+          writeValue(generator, packed.get(attribute.getName()));
+        }
+      }
+
+      generator.writeEndArray();
+
+      Map<String, Object> extra = null;
+
+      for (Map.Entry<String, Object> e : packed.entrySet()) {
+        if (!positions.containsKey(e.getKey())) {
+          if (extra == null) {
+            extra = new LinkedHashMap<String, Object>();
+          }
+
+          extra.put(e.getKey(), e.getValue());
+        }
+      }
+
+      if (extra != null) {
+        EncodingHelper.writeUntyped(generator, extra);
+      }
+    }
+
+    generator.writeEndArray();
+  }
+
+  private Object unpackValue(Attribute attribute, Object value) throws TransformException {
+    if (value == null) {
+      if (!attribute.isNullable()) {
+        throw new TransformException("attribute must not be null: " + attribute.getName());
+      }
+
+      return null;
+    }
+
+    return fieldTransform.untransformValue(attribute.getName(), value);
+  }
+
+  private void putPacked(Map<String, Object> packed, String attrName, Object value)
+      throws TransformException {
+    Attribute attribute = schema.getAttribute(attrName);
+
+    if (attribute == null) {
+      packed.put(attrName, value);
+    } else if (value == null) {
+      if (!attribute.isNullable()) {
+        throw new TransformException("attribute must not be null: " + attrName);
+      }
+
+      packed.put(attrName, null);
+    } else {
+      packed.put(attrName, fieldTransform.transformValue(attrName, value));
+    }
+  }
+
+  private static EntityCodec.PropertyWriter mapWriter(final Map<String, Object> result) {
+    return new EntityCodec.PropertyWriter() {
+      @Override
+      public void put(String name, Object value) {
+        result.put(name, value);
+      }
+    };
+  }
+
+  private static EntityCodec.PropertyWriter bufferWriter(final TokenBuffer buffer) {
+    return new EntityCodec.PropertyWriter() {
+      @Override
+      public void put(String name, Object value) throws KazukiException {
+        try {
+          buffer.writeFieldName(name);
+          writeValue(buffer, value);
+        } catch (IOException e) {
+          throw new KazukiException(e);
+        }
+      }
+    };
+  }
+
+  private static <T> EntityCodec.PropertyWriter codecWriter(final EntityCodec<T> codec,
+      final T instance) {
+    return new EntityCodec.PropertyWriter() {
+      @Override
+      public void put(String name, Object value) throws KazukiException {
+        codec.set(instance, name, value);
+      }
+    };
+  }
+
+  /**
+   * Reads the value at the current token; scalars are read directly, structures as plain maps and
+   * lists.
+   */
+  private static Object readValue(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberValue();
+      case VALUE_NUMBER_FLOAT:
+        return Double.valueOf(parser.getDoubleValue());
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      case VALUE_EMBEDDED_OBJECT:
+        return parser.getEmbeddedObject();
+      default:
+        return EncodingHelper.readUntyped(parser);
+    }
+  }
+
+  private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+    if (value == null) {
+      generator.writeNull();
+    } else if (value instanceof String) {
+      generator.writeString((String) value);
+    } else if (value instanceof Integer) {
+      generator.writeNumber(((Integer) value).intValue());
+    } else if (value instanceof Long) {
+      generator.writeNumber(((Long) value).longValue());
+    } else if (value instanceof Boolean) {
+      generator.writeBoolean(((Boolean) value).booleanValue());
+    } else {
+      EncodingHelper.writeUntyped(generator, value);
+    }
+  }
+}
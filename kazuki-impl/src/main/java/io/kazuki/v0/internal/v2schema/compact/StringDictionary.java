@@ -0,0 +1,34 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.compact;
+
+import io.kazuki.v0.store.KazukiException;
+
+/**
+ * Per-type mapping between the values of dictionary attributes and small integer codes, used by
+ * BinaryRowCodec. Codes are never reassigned, so a code always decodes to the same string.
+ */
+public interface StringDictionary {
+  /**
+   * Returns the code of the value, assigning a new code to values not in the dictionary yet.
+   */
+  long encode(String value) throws KazukiException;
+
+  /**
+   * Returns the value of the code; throws if the code is not in the dictionary.
+   */
+  String decode(long code) throws KazukiException;
+}
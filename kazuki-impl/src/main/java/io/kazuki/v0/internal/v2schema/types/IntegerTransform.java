@@ -23,25 +23,46 @@ import java.math.BigInteger;
 
 
 /**
- * Validates / transforms integer values.
+ * Validates / transforms integer values. Boxed primitive integers (and BigIntegers of at most 63
+ * bits) are range-checked with long comparisons; only other Numbers, strings and the upper half
+ * of U64 go through the BigInteger parse. Values are packed as Long, or as BigInteger if they
+ * do not fit in 63 bits (i.e. the upper half of U64).
  */
 public class IntegerTransform implements Transform<Object, Number> {
   private final BigInteger min;
   private final BigInteger max;
+  private final long longMin;
+  private final long longMax;
 
   public IntegerTransform(String minString, String maxString) {
     this.min = new BigInteger(minString);
     this.max = new BigInteger(maxString);
+    this.longMin = this.min.longValue();
+    boolean maxExceedsLong = this.max.bitLength() > 63;
+    this.longMax = maxExceedsLong ? Long.MAX_VALUE : this.max.longValue();
   }
 
-  public BigInteger pack(Object instance) throws TransformException {
+  public Number pack(Object instance) throws TransformException {
     if (instance == null) {
       throw new TransformException("must not be null");
     }
 
+    if (isLongValued(instance)) {
+      long value = ((Number) instance).longValue();
+
+      if (value < longMin) {
+        throw new TransformException("must be greater than or equal to " + min);
+      } else if (value > longMax) {
+        throw new TransformException("must be less than or equal to " + max);
+      }
+
+      return (instance instanceof Long) ? (Long) instance : Long.valueOf(value);
+    }
+
     try {
-      String instanceString = instance.toString();
-      BigInteger instanceInteger = new BigInteger(instanceString);
+      BigInteger instanceInteger =
+          (instance instanceof BigInteger) ? (BigInteger) instance : new BigInteger(
+              instance.toString());
 
       if (instanceInteger.compareTo(min) < 0) {
         throw new TransformException("must be greater than or equal to " + min);
@@ -49,7 +70,8 @@ public class IntegerTransform implements Transform<Object, Number> {
         throw new TransformException("must be less than or equal to " + max);
       }
 
-      return instanceInteger;
+      return (instanceInteger.bitLength() <= 63) ? (Number) instanceInteger.longValue()
+          : instanceInteger;
     } catch (NumberFormatException e) {
       throw new TransformException("is not a valid integer");
     }
@@ -61,17 +83,27 @@ public class IntegerTransform implements Transform<Object, Number> {
       throw new TransformException("must not be null");
     }
 
+    if (isLongValued(instance)) {
+      return instance.longValue();
+    }
+
     BigInteger bigInstance =
         (instance instanceof BigInteger) ? (BigInteger) instance : new BigInteger(
             instance.toString());
-    Object result = instance;
 
-    int compareMin = bigInstance.compareTo(BigInteger.valueOf(Long.MIN_VALUE));
-    int compareMax = bigInstance.compareTo(BigInteger.valueOf(Long.MAX_VALUE));
-    if (compareMin >= 0 && compareMax <= 0) {
-      result = instance.longValue();
+    return (bigInstance.bitLength() <= 63) ? (Object) bigInstance.longValue() : instance;
+  }
+
+  /**
+   * True if the instance is an integral Number whose long value is exact (so no BigInteger is
+   * needed to range-check it).
+   */
+  private static boolean isLongValued(Object instance) {
+    if (instance instanceof Long || instance instanceof Integer || instance instanceof Short
+        || instance instanceof Byte) {
+      return true;
     }
 
-    return result;
+    return instance instanceof BigInteger && ((BigInteger) instance).bitLength() <= 63;
   }
 }
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.aggregate;
+
+import io.kazuki.v0.store.schema.model.AggregationDefinition;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+
+/**
+ * In-memory state of one materialized aggregation: the current value of every group, keyed by the
+ * encoded group key (a JSON array of the packed group-by values), plus the set of groups changed
+ * since the last flush (the write-back buffer).
+ *
+ * Instances are updated from the KV store hooks with packed (FieldTransform) entity maps. Groups
+ * whose value drops to zero are removed, so that getValues() lists only non-empty groups.
+ */
+public class MaterializedAggregation {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final AggregationDefinition definition;
+  private final ConcurrentHashMap<String, BigInteger> values;
+  private final Set<String> dirty;
+
+  public MaterializedAggregation(AggregationDefinition definition) {
+    this.definition = definition;
+    this.values = new ConcurrentHashMap<String, BigInteger>();
+    this.dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+
+  public AggregationDefinition getDefinition() {
+    return definition;
+  }
+
+  public void insert(Map<String, Object> packed) {
+    BigInteger contribution = contribution(packed);
+
+    if (contribution != null) {
+      adjust(groupKey(packed), contribution);
+    }
+  }
+
+  public void delete(Map<String, Object> packed) {
+    BigInteger contribution = contribution(packed);
+
+    if (contribution != null) {
+      adjust(groupKey(packed), contribution.negate());
+    }
+  }
+
+  public void update(Map<String, Object> newPacked, Map<String, Object> oldPacked) {
+    BigInteger newContribution = contribution(newPacked);
+    BigInteger oldContribution = contribution(oldPacked);
+    String newKey = groupKey(newPacked);
+    String oldKey = groupKey(oldPacked);
+
+    if (newKey.equals(oldKey) && Objects.equal(newContribution, oldContribution)) {
+      return;
+    }
+
+    if (oldContribution != null) {
+      adjust(oldKey, oldContribution.negate());
+    }
+
+    if (newContribution != null) {
+      adjust(newKey, newContribution);
+    }
+  }
+
+  /**
+   * Returns the value of the group with the given encoded key (zero if the group is empty).
+   */
+  public BigInteger getValue(String groupKey) {
+    BigInteger value = values.get(groupKey);
+
+    return (value == null) ? BigInteger.ZERO : value;
+  }
+
+  /**
+   * Returns a snapshot of all non-empty groups by encoded group key.
+   */
+  public Map<String, BigInteger> getValues() {
+    return new HashMap<String, BigInteger>(values);
+  }
+
+  /**
+   * Sets a group value read back from storage, without marking it dirty.
+   */
+  public void load(String groupKey, BigInteger value) {
+    if (value.signum() != 0) {
+      values.put(groupKey, value);
+    }
+  }
+
+  /**
+   * Removes all groups; the removals are part of the next flush.
+   */
+  public synchronized void clear() {
+    dirty.addAll(values.keySet());
+    values.clear();
+  }
+
+  public int getDirtyCount() {
+    return dirty.size();
+  }
+
+  /**
+   * Removes and returns the keys of groups changed since the last drain; the caller writes their
+   * current values (or deletes the rows of groups now absent).
+   */
+  public synchronized List<String> drainDirty() {
+    List<String> result = new ArrayList<String>(dirty);
+    dirty.removeAll(result);
+
+    return result;
+  }
+
+  public String groupKey(Map<String, Object> packed) {
+    List<Object> groupValues = new ArrayList<Object>();
+
+    for (String attrName : definition.getGroupBy()) {
+      groupValues.add(packed.get(attrName));
+    }
+
+    return encodeGroupKey(groupValues);
+  }
+
+  /**
+   * Encodes packed group-by values as a group key. Numbers are normalized, so that a value packed
+   * as Integer, Long or BigInteger yields the same key.
+   */
+  public static String encodeGroupKey(List<?> packedValues) {
+    List<Object> normalized = new ArrayList<Object>();
+
+    for (Object value : packedValues) {
+      normalized.add(normalize(value));
+    }
+
+    try {
+      return MAPPER.writeValueAsString(normalized);
+    } catch (JsonProcessingException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  public static List<Object> decodeGroupKey(String groupKey) {
+    try {
+      return MAPPER.readValue(groupKey, MAPPER.getTypeFactory().constructCollectionType(
+          List.class, Object.class));
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Nullable
+  private static Object normalize(@Nullable Object value) {
+    if (value == null || value instanceof Boolean) {
+      return value;
+    }
+
+    if (value instanceof Number) {
+      return new BigDecimal(value.toString()).toBigInteger();
+    }
+
+    return value.toString();
+  }
+
+  /**
+   * Returns what the entity adds to its group: 1 for COUNT, the attribute value for SUM (null if
+   * the attribute is null, i.e. the entity does not take part).
+   */
+  @Nullable
+  private BigInteger contribution(Map<String, Object> packed) {
+    if (AggregationDefinition.Function.COUNT.equals(definition.getFunction())) {
+      return BigInteger.ONE;
+    }
+
+    Object value = packed.get(definition.getAttribute());
+
+    return (value == null) ? null : new BigDecimal(value.toString()).toBigInteger();
+  }
+
+  private synchronized void adjust(String groupKey, BigInteger delta) {
+    BigInteger value = getValue(groupKey).add(delta);
+
+    if (value.signum() == 0) {
+      values.remove(groupKey);
+    } else {
+      values.put(groupKey, value);
+    }
+
+    dirty.add(groupKey);
+  }
+}
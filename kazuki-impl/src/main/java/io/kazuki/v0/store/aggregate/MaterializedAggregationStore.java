@@ -0,0 +1,754 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.aggregate;
+
+import io.kazuki.v0.internal.hash.LongHash;
+import io.kazuki.v0.internal.hash.MurmurHash;
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.internal.helper.SqlTypeHelper;
+import io.kazuki.v0.internal.helper.TransactionHooks;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.index.TypeStateLoader;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.management.KazukiComponent;
+import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreListener;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.AggregationDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.slf4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Maintains the materialized aggregations declared on each schema (grouped counters and sums,
+ * see AggregationDefinition) incrementally from the KeyValueStoreListener hooks, and answers
+ * reads for a group with a single in-memory lookup.
+ *
+ * Each aggregation is stored in its own table of (group key, value) rows. Changes are applied once
+ * the KV transaction commits (see TransactionHooks), buffered in memory and written back by a
+ * background flush every FLUSH_INTERVAL_MS (sooner once MAX_DIRTY_GROUPS groups are pending) and on
+ * lifecycle stop. The flush thread only runs while the store is started and some type declares
+ * aggregations. Every table also holds a state row
+ * recording whether the last shutdown was clean; after an unclean shutdown (or when a table is
+ * new) the aggregation is recomputed from a KV scan on start, so buffered changes lost in a crash
+ * are recovered.
+ */
+public class MaterializedAggregationStore
+    implements
+      KazukiComponent<MaterializedAggregationStore>,
+      SchemaStoreListener,
+      KeyValueStoreListener {
+  public static final long FLUSH_INTERVAL_MS = 1000L;
+  public static final int MAX_DIRTY_GROUPS = 1024;
+
+  /** Key of the state row; never a valid group key, since those are JSON arrays */
+  private static final String STATE_KEY = "";
+  private static final BigInteger STATE_RUNNING = BigInteger.ZERO;
+  private static final BigInteger STATE_CLEAN = BigInteger.ONE;
+
+  private final Logger log = LogTranslation.getLogger(getClass());
+
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final IDBI database;
+  private final SqlTypeHelper typeHelper;
+  private final LongHash longHash;
+  private final String groupName;
+  private final String storeName;
+  private final ConcurrentHashMap<String, TypeAggregations> aggregations;
+  private final TypeStateLoader<TypeAggregations> loader;
+  private final Runnable flushTask;
+  private final Object flushExecutorLock = new Object();
+  private volatile ScheduledExecutorService flushExecutor;
+  private volatile boolean started;
+  private final ComponentDescriptor<MaterializedAggregationStore> componentDescriptor;
+
+  @Inject
+  public MaterializedAggregationStore(KeyValueStoreConfiguration config, LockManager lockManager,
+      SequenceService sequence, SchemaStore schemaStore, KeyValueStore kvStore, IDBI database,
+      SqlTypeHelper typeHelper) {
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.database = database;
+    this.typeHelper = typeHelper;
+    this.longHash = new MurmurHash();
+    this.groupName = config.getGroupName();
+    this.storeName = config.getStoreName();
+    this.aggregations = new ConcurrentHashMap<String, TypeAggregations>();
+    this.loader =
+        new TypeStateLoader<TypeAggregations>("materialized aggregations", lockManager, sequence,
+            schemaStore, kvStore, aggregations) {
+          @Override
+          protected TypeAggregations load(String type, Schema schema) {
+            if (schema.getAggregations().isEmpty()) {
+              return null;
+            }
+
+            TypeAggregations typeAggs = MaterializedAggregationStore.this.load(type, schema);
+            maybeStartFlushing();
+
+            return typeAggs;
+          }
+        };
+    this.flushTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (Exception e) {
+          log.warn("Unable to flush materialized aggregations", e);
+        }
+      }
+    };
+    this.componentDescriptor =
+        new ComponentDescriptorImpl<MaterializedAggregationStore>("KZ:MaterializedAggregation:"
+            + groupName + "-" + storeName, MaterializedAggregationStore.class, this,
+            new ImmutableList.Builder().add(
+                ((KazukiComponent) this.schemaStore).getComponentDescriptor(),
+                ((KazukiComponent) this.kvStore).getComponentDescriptor()).build());
+  }
+
+  @Override
+  public ComponentDescriptor<MaterializedAggregationStore> getComponentDescriptor() {
+    return this.componentDescriptor;
+  }
+
+  @Override
+  @Inject
+  public void registerAsComponent(ComponentRegistrar manager) {
+    manager.register(this.componentDescriptor);
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    kvStore.addListener(this);
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    schemaStore.addListener(this);
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        loader.loadAll();
+
+        started = true;
+
+        if (!aggregations.isEmpty()) {
+          startFlushing();
+        }
+      }
+
+      @Override
+      public void stop() {
+        started = false;
+        stopFlushing();
+
+        try (LockManager toRelease = lockManager.acquire()) {
+          flush();
+
+          for (Map.Entry<String, TypeAggregations> entry : aggregations.entrySet()) {
+            if (hasType(entry.getKey())) {
+              writeState(entry.getKey(), entry.getValue(), STATE_CLEAN);
+            }
+          }
+
+          aggregations.clear();
+        }
+      }
+
+      @Override
+      public void shutdown() {
+        stopFlushing();
+      }
+    });
+  }
+
+  /**
+   * Returns the current value of a group of the aggregation: the number of entities (COUNT) or the
+   * sum of the attribute (SUM) over the entities whose group-by attributes equal the given values,
+   * in groupBy order. Values are given as for entity attributes (e.g. enum names) and packed
+   * accordingly. Returns zero for an empty group.
+   */
+  public BigInteger getValue(String type, String aggregationName, List<?> groupValues) {
+    Preconditions.checkNotNull(groupValues, "groupValues");
+
+    TypeAggregations typeAggs = getRequiredAggregations(type);
+    MaterializedAggregation aggregation = getRequiredAggregation(typeAggs, aggregationName);
+    List<String> groupBy = aggregation.getDefinition().getGroupBy();
+
+    if (groupValues.size() != groupBy.size()) {
+      throw new IllegalArgumentException("aggregation '" + aggregationName + "' groups by "
+          + groupBy + ", got " + groupValues.size() + " values");
+    }
+
+    List<Object> packed = new ArrayList<Object>();
+
+    for (int i = 0; i < groupBy.size(); i++) {
+      Object value = groupValues.get(i);
+
+      packed.add((value == null) ? null : typeAggs.transform.transformValue(groupBy.get(i),
+          value));
+    }
+
+    return aggregation.getValue(MaterializedAggregation.encodeGroupKey(packed));
+  }
+
+  public BigInteger getValue(String type, String aggregationName, Object... groupValues) {
+    return getValue(type, aggregationName, Arrays.asList(groupValues));
+  }
+
+  /**
+   * Returns all non-empty groups of the aggregation, keyed by their (unpacked) group-by values.
+   */
+  @SuppressWarnings("unchecked")
+  public Map<List<Object>, BigInteger> getValues(String type, String aggregationName) {
+    TypeAggregations typeAggs = getRequiredAggregations(type);
+    MaterializedAggregation aggregation = getRequiredAggregation(typeAggs, aggregationName);
+    List<String> groupBy = aggregation.getDefinition().getGroupBy();
+
+    Map<List<Object>, BigInteger> result = new LinkedHashMap<List<Object>, BigInteger>();
+
+    for (Map.Entry<String, BigInteger> entry : aggregation.getValues().entrySet()) {
+      List<Object> packed = MaterializedAggregation.decodeGroupKey(entry.getKey());
+      Map<String, Object> packedMap = new LinkedHashMap<String, Object>();
+
+      for (int i = 0; i < groupBy.size(); i++) {
+        packedMap.put(groupBy.get(i), packed.get(i));
+      }
+
+      Map<String, Object> unpacked = typeAggs.transform.unpack(packedMap);
+
+      result.put(Collections.unmodifiableList(new ArrayList<Object>(unpacked.values())),
+          entry.getValue());
+    }
+
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Recomputes the aggregations of the type from a KV scan, e.g. after a restore.
+   */
+  public void rebuild(String type) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      TypeAggregations typeAggs = getRequiredAggregations(type);
+
+      rebuild(type, typeAggs.schema, typeAggs.byName.values());
+      flush(type, typeAggs);
+    }
+  }
+
+  /**
+   * Writes all buffered changes back to the aggregation tables. Types removed from the store
+   * since (e.g. by a clear) are skipped, their tables are gone with them.
+   */
+  public synchronized void flush() {
+    for (Map.Entry<String, TypeAggregations> entry : aggregations.entrySet()) {
+      if (hasType(entry.getKey())) {
+        flush(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {}
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> instance) {
+    final TypeAggregations typeAggs = aggregations.get(type);
+
+    if (typeAggs != null) {
+      TransactionHooks.afterCommit(handle, new Runnable() {
+        @Override
+        public void run() {
+          for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+            aggregation.insert(instance);
+            maybeFlush(aggregation);
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> newInstance,
+      final Map<String, Object> oldInstance) {
+    final TypeAggregations typeAggs = aggregations.get(type);
+
+    if (typeAggs != null) {
+      TransactionHooks.afterCommit(handle, new Runnable() {
+        @Override
+        public void run() {
+          for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+            aggregation.update(newInstance, oldInstance);
+            maybeFlush(aggregation);
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> oldInstance) {
+    final TypeAggregations typeAggs = aggregations.get(type);
+
+    if (typeAggs != null) {
+      TransactionHooks.afterCommit(handle, new Runnable() {
+        @Override
+        public void run() {
+          for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+            aggregation.delete(oldInstance);
+            maybeFlush(aggregation);
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      for (Map.Entry<String, Schema> entry : typeToSchemaMap.entrySet()) {
+        String type = entry.getKey();
+        TypeAggregations typeAggs = aggregations.get(type);
+
+        if (typeAggs == null) {
+          continue;
+        }
+
+        for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+          String tableName = getTableName(type, aggregation.getDefinition().getName());
+
+          if (preserveSchema) {
+            handle.createStatement(
+                "delete from " + tableName + " where " + typeHelper.quote("_group_key")
+                    + " <> :state").bind("state", STATE_KEY).execute();
+          } else {
+            handle.createStatement("drop table if exists " + tableName).execute();
+          }
+        }
+
+        if (preserveSchema) {
+          aggregations.put(type, new TypeAggregations(typeAggs.schema));
+        } else {
+          aggregations.remove(type);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    if (schema.getAggregations().isEmpty()) {
+      return;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      TypeAggregations typeAggs = new TypeAggregations(schema);
+
+      createTables(type, schema.getAggregations(), true);
+      writeState(type, typeAggs, STATE_RUNNING);
+
+      aggregations.put(type, typeAggs);
+      maybeStartFlushing();
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    try {
+      if (EncodingHelper.convertToJson(newSchema.getAggregations()).equals(
+          EncodingHelper.convertToJson(oldSchema.getAggregations()))) {
+        TypeAggregations typeAggs = aggregations.get(type);
+
+        if (typeAggs != null) {
+          aggregations.put(type, new TypeAggregations(newSchema, typeAggs.byName));
+        }
+
+        return;
+      }
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      aggregations.remove(type);
+      dropTables(type, oldSchema.getAggregations());
+
+      if (newSchema.getAggregations().isEmpty()) {
+        return;
+      }
+
+      TypeAggregations typeAggs = new TypeAggregations(newSchema);
+
+      createTables(type, newSchema.getAggregations(), true);
+      rebuild(type, newSchema, typeAggs.byName.values());
+      flush(type, typeAggs);
+      writeState(type, typeAggs, STATE_RUNNING);
+
+      aggregations.put(type, typeAggs);
+      maybeStartFlushing();
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      aggregations.remove(type);
+
+      if (oldSchema != null) {
+        dropTables(type, oldSchema.getAggregations());
+      }
+    }
+  }
+
+  private TypeAggregations getRequiredAggregations(String type) {
+    TypeAggregations typeAggs = loader.get(type);
+
+    if (typeAggs == null) {
+      throw new IllegalArgumentException("no aggregations for type: " + type);
+    }
+
+    return typeAggs;
+  }
+
+  private static MaterializedAggregation getRequiredAggregation(TypeAggregations typeAggs,
+      String aggregationName) {
+    MaterializedAggregation aggregation = typeAggs.byName.get(aggregationName);
+
+    if (aggregation == null) {
+      throw new IllegalArgumentException("unknown aggregation: " + aggregationName);
+    }
+
+    return aggregation;
+  }
+
+  private void maybeFlush(MaterializedAggregation aggregation) {
+    ScheduledExecutorService executor = flushExecutor;
+
+    if (aggregation.getDirtyCount() >= MAX_DIRTY_GROUPS && executor != null) {
+      try {
+        executor.execute(flushTask);
+      } catch (RejectedExecutionException e) {
+        // stopping; stop() flushes the buffered changes
+      }
+    }
+  }
+
+  private void maybeStartFlushing() {
+    if (started) {
+      startFlushing();
+    }
+  }
+
+  /**
+   * Starts the background flush, with a new executor per lifecycle start.
+   */
+  private void startFlushing() {
+    synchronized (flushExecutorLock) {
+      if (flushExecutor != null) {
+        return;
+      }
+
+      ScheduledExecutorService executor =
+          Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kazuki-aggregation-flush-" + groupName + "-" + storeName + "-%d")
+              .build());
+      executor.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+          TimeUnit.MILLISECONDS);
+
+      flushExecutor = executor;
+    }
+  }
+
+  /**
+   * Stops the background flush; a flush in progress completes (see flush()).
+   */
+  private void stopFlushing() {
+    synchronized (flushExecutorLock) {
+      if (flushExecutor != null) {
+        flushExecutor.shutdown();
+        flushExecutor = null;
+      }
+    }
+  }
+
+  /**
+   * Loads the aggregations of the type from their tables, recomputing those whose table is new or
+   * was not shut down cleanly.
+   */
+  private TypeAggregations load(final String type, Schema schema) {
+    final TypeAggregations typeAggs = new TypeAggregations(schema);
+
+    if (typeAggs.byName.isEmpty()) {
+      return typeAggs;
+    }
+
+    createTables(type, schema.getAggregations(), false);
+
+    List<MaterializedAggregation> stale =
+        database.inTransaction(new TransactionCallback<List<MaterializedAggregation>>() {
+          @Override
+          public List<MaterializedAggregation> inTransaction(Handle handle,
+              TransactionStatus status) throws Exception {
+            List<MaterializedAggregation> result = new ArrayList<MaterializedAggregation>();
+
+            for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+              BigInteger state = null;
+
+              for (Map<String, Object> row : handle.createQuery(
+                  "select " + typeHelper.quote("_group_key") + ", " + typeHelper.quote("_value")
+                      + " from " + getTableName(type, aggregation.getDefinition().getName()))
+                  .list()) {
+                String groupKey = (String) row.get("_group_key");
+                BigInteger value = new BigDecimal(row.get("_value").toString()).toBigInteger();
+
+                if (STATE_KEY.equals(groupKey)) {
+                  state = value;
+                } else {
+                  aggregation.load(groupKey, value);
+                }
+              }
+
+              if (!STATE_CLEAN.equals(state)) {
+                result.add(aggregation);
+              }
+            }
+
+            return result;
+          }
+        });
+
+    if (!stale.isEmpty()) {
+      log.info("Recomputing {} materialized aggregation(s) of type {}", stale.size(), type);
+
+      rebuild(type, schema, stale);
+      flush(type, typeAggs);
+    }
+
+    writeState(type, typeAggs, STATE_RUNNING);
+
+    return typeAggs;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void rebuild(String type, Schema schema, Iterable<MaterializedAggregation> toRebuild) {
+    FieldTransform transform = new FieldTransform(schema);
+
+    for (MaterializedAggregation aggregation : toRebuild) {
+      aggregation.clear();
+    }
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> entities =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> entity : entities) {
+        Map<String, Object> packed = transform.pack(entity.getValue());
+
+        for (MaterializedAggregation aggregation : toRebuild) {
+          aggregation.insert(packed);
+        }
+      }
+    }
+  }
+
+  private void flush(final String type, final TypeAggregations typeAggs) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+          String tableName = getTableName(type, aggregation.getDefinition().getName());
+
+          for (String groupKey : aggregation.drainDirty()) {
+            writeRow(handle, tableName, groupKey, aggregation.getValue(groupKey));
+          }
+        }
+
+        return null;
+      }
+    });
+  }
+
+  private void writeState(final String type, final TypeAggregations typeAggs,
+      final BigInteger state) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        for (MaterializedAggregation aggregation : typeAggs.byName.values()) {
+          writeRow(handle, getTableName(type, aggregation.getDefinition().getName()), STATE_KEY,
+              state);
+        }
+
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Replaces the row of the group; a zero value removes it (the state row is always written).
+   */
+  private void writeRow(Handle handle, String tableName, String groupKey, BigInteger value) {
+    handle
+        .createStatement(
+            "delete from " + tableName + " where " + typeHelper.quote("_group_key") + " = :key")
+        .bind("key", groupKey).execute();
+
+    if (value.signum() != 0 || STATE_KEY.equals(groupKey)) {
+      handle
+          .createStatement(
+              "insert into " + tableName + " (" + typeHelper.quote("_group_key") + ", "
+                  + typeHelper.quote("_value") + ") values (:key, :value)").bind("key", groupKey)
+          .bind("value", new BigDecimal(value)).execute();
+    }
+  }
+
+  private void createTables(final String type, final List<AggregationDefinition> definitions,
+      final boolean replace) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        for (AggregationDefinition definition : definitions) {
+          String tableName = getTableName(type, definition.getName());
+
+          if (replace) {
+            handle.createStatement("drop table if exists " + tableName).execute();
+          }
+
+          handle.createStatement(
+              "create table if not exists " + tableName + " (" + typeHelper.quote("_group_key")
+                  + " VARCHAR(1024) NOT NULL, " + typeHelper.quote("_value")
+                  + " DECIMAL NOT NULL, PRIMARY KEY(" + typeHelper.quote("_group_key") + "))")
+              .execute();
+        }
+
+        return null;
+      }
+    });
+  }
+
+  private void dropTables(final String type, final List<AggregationDefinition> definitions) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        for (AggregationDefinition definition : definitions) {
+          handle.createStatement("drop table if exists " + getTableName(type, definition.getName()))
+              .execute();
+        }
+
+        return null;
+      }
+    });
+  }
+
+  private boolean hasType(String type) {
+    try {
+      return sequence.hasType(type);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private String getTableName(String type, String aggregationName) {
+    try {
+      Integer typeId = sequence.getTypeId(type, false);
+
+      return typeHelper.quote("_" + groupName + "_" + storeName + "__aggtbl__"
+          + String.format("%04d", typeId) + "__"
+          + String.format("%016x", longHash.getLongHashCode(aggregationName)));
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static class TypeAggregations {
+    private final Schema schema;
+    private final FieldTransform transform;
+    private final Map<String, MaterializedAggregation> byName;
+
+    public TypeAggregations(Schema schema) {
+      this.schema = schema;
+      this.transform = new FieldTransform(schema);
+
+      Map<String, MaterializedAggregation> newByName =
+          new LinkedHashMap<String, MaterializedAggregation>();
+
+      for (AggregationDefinition definition : schema.getAggregations()) {
+        newByName.put(definition.getName(), new MaterializedAggregation(definition));
+      }
+
+      this.byName = Collections.unmodifiableMap(newByName);
+    }
+
+    public TypeAggregations(Schema schema, Map<String, MaterializedAggregation> byName) {
+      this.schema = schema;
+      this.transform = new FieldTransform(schema);
+      this.byName = byName;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import io.airlift.command.Help;
 import io.airlift.command.Option;
 import io.airlift.command.OptionType;
 import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.helper.Hex;
 import io.kazuki.v0.store.cmd.impl.SqlCommandHelper;
 import io.kazuki.v0.store.cmd.impl.SqlCommandHelper.ResultHandler;
 import io.kazuki.v0.store.cmd.impl.SqlCommandHelper.RowHandler;
@@ -36,6 +37,8 @@ import io.kazuki.v0.store.keyvalue.KeyValuePair;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.ValueCompression;
+import io.kazuki.v0.store.keyvalue.ValueFormat;
 import io.kazuki.v0.store.lifecycle.Lifecycle;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.management.KazukiManager;
@@ -215,8 +218,15 @@ public class Main {
                 public void handleRow(Map<String, Object> row) {
                   try {
                     if (row.containsKey("_value")) {
-                      Object val = row.remove("_value");
-                      Object newVal = EncodingHelper.parseSmile((byte[]) val, Object.class);
+                      byte[] val = (byte[]) row.remove("_value");
+
+                      // schema-compiled and compressed rows can't be decoded without the
+                      // schema / dictionary
+                      Object newVal =
+                          ValueFormat.SMILE.equals(ValueFormat.fromCode(row.get("_format")))
+                              && !ValueCompression.DICTIONARY.equals(row.get("_compression"))
+                              ? EncodingHelper.parseSmile(val, Object.class) : new String(Hex
+                                  .encodeHex(val));
                       row.put("_value", newVal);
                     }
 
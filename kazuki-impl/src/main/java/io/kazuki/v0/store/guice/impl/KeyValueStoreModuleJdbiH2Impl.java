@@ -19,9 +19,14 @@ import io.kazuki.v0.internal.availability.AvailabilityManager;
 import io.kazuki.v0.internal.helper.H2TypeHelper;
 import io.kazuki.v0.internal.helper.LockManager;
 import io.kazuki.v0.internal.helper.SqlTypeHelper;
+import io.kazuki.v0.store.aggregate.MaterializedAggregationStore;
 import io.kazuki.v0.store.index.SecondaryIndexStore;
 import io.kazuki.v0.store.index.SecondaryIndexStoreProvider;
 import io.kazuki.v0.store.index.SecondaryIndexTableHelper;
+import io.kazuki.v0.store.index.bitmap.BitmapIndexStore;
+import io.kazuki.v0.store.index.fulltext.FullTextIndexStore;
+import io.kazuki.v0.store.index.planner.QueryPlanner;
+import io.kazuki.v0.store.index.stats.IndexStatisticsStore;
 import io.kazuki.v0.store.jdbi.IdbiProvider;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
@@ -117,11 +122,35 @@ public class KeyValueStoreModuleJdbiH2Impl extends PrivateModule {
     bind(SecondaryIndexStore.class).annotatedWith(Names.named(name)).to(
         Key.get(SecondaryIndexStore.class));
 
+    bind(BitmapIndexStore.class).asEagerSingleton();
+    bind(BitmapIndexStore.class).annotatedWith(Names.named(name)).to(
+        Key.get(BitmapIndexStore.class));
+
+    bind(FullTextIndexStore.class).asEagerSingleton();
+    bind(FullTextIndexStore.class).annotatedWith(Names.named(name)).to(
+        Key.get(FullTextIndexStore.class));
+
+    bind(IndexStatisticsStore.class).asEagerSingleton();
+    bind(IndexStatisticsStore.class).annotatedWith(Names.named(name)).to(
+        Key.get(IndexStatisticsStore.class));
+
+    bind(MaterializedAggregationStore.class).asEagerSingleton();
+    bind(MaterializedAggregationStore.class).annotatedWith(Names.named(name)).to(
+        Key.get(MaterializedAggregationStore.class));
+
+    bind(QueryPlanner.class).in(Scopes.SINGLETON);
+    bind(QueryPlanner.class).annotatedWith(Names.named(name)).to(Key.get(QueryPlanner.class));
+
     includeInternal();
 
     expose(Key.get(SchemaStore.class, Names.named(name)));
     expose(Key.get(KeyValueStore.class, Names.named(name)));
     expose(Key.get(SecondaryIndexStore.class, Names.named(name)));
+    expose(Key.get(BitmapIndexStore.class, Names.named(name)));
+    expose(Key.get(FullTextIndexStore.class, Names.named(name)));
+    expose(Key.get(IndexStatisticsStore.class, Names.named(name)));
+    expose(Key.get(MaterializedAggregationStore.class, Names.named(name)));
+    expose(Key.get(QueryPlanner.class, Names.named(name)));
 
     includeExposures();
   }
@@ -0,0 +1,576 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.OpaquePaginationHelper;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterators;
+
+/**
+ * Result cache in front of a secondary index store, enabled by
+ * KeyValueStoreConfiguration.getQueryCacheSize(). Caches the result keys of bounded index queries
+ * (limit at most MAX_CACHED_LIMIT) keyed by type, index, normalized query terms, sort direction,
+ * offset and limit; paginated queries load entity values fresh from the KV store.
+ *
+ * Every (type, index) pair has a generation number that is part of the cache key. The KV store
+ * hooks bump the generation of each index whose contents a write changes (schema changes and
+ * clears bump every index of the type), so stale entries are never returned and simply age out.
+ * Results are only cached if no write committed while they were computed: the generation is read
+ * under the store lock (which writers hold until commit) and re-checked afterwards. Async indexes
+ * are never cached, since their contents change without a write.
+ *
+ * Memory is bounded by the total number of cached keys; hit / miss / eviction counts are
+ * available from getStats().
+ */
+public class CachingSecondaryIndexStore implements SecondaryIndexSupport {
+  /** Queries with larger (or no) limits are passed through uncached */
+  public static final long MAX_CACHED_LIMIT = 1000L;
+
+  private final SecondaryIndexSupport delegate;
+  private final LockManager lockManager;
+  private final KeyValueStore kvStore;
+  private final SchemaStore schemaStore;
+  private final Cache<CacheKey, List<Key>> cache;
+  private final ConcurrentHashMap<String, AtomicLong> generations;
+  private final ConcurrentHashMap<String, Schema> schemas;
+
+  public CachingSecondaryIndexStore(SecondaryIndexSupport delegate, LockManager lockManager,
+      KeyValueStore kvStore, SchemaStore schemaStore, long maximumCachedKeys) {
+    Preconditions.checkArgument(maximumCachedKeys > 0L, "maximumCachedKeys");
+
+    this.delegate = delegate;
+    this.lockManager = lockManager;
+    this.kvStore = kvStore;
+    this.schemaStore = schemaStore;
+    this.cache =
+        CacheBuilder.newBuilder().maximumWeight(maximumCachedKeys)
+            .weigher(new Weigher<CacheKey, List<Key>>() {
+              @Override
+              public int weigh(CacheKey key, List<Key> value) {
+                return value.size() + 1;
+              }
+            }).recordStats().build();
+    this.generations = new ConcurrentHashMap<String, AtomicLong>();
+    this.schemas = new ConcurrentHashMap<String, Schema>();
+  }
+
+  public SecondaryIndexSupport getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Returns hit, miss and eviction counts of the query cache.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  public long getCachedQueryCount() {
+    return cache.size();
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public ComponentDescriptor<SecondaryIndexStore> getComponentDescriptor() {
+    return delegate.getComponentDescriptor();
+  }
+
+  @Override
+  public void registerAsComponent(ComponentRegistrar manager) {
+    delegate.registerAsComponent(manager);
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    kvStore.addListener(this);
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    schemaStore.addListener(this);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit) {
+    if (!isCacheable(type, indexName, limit)) {
+      return delegate.queryWithoutPagination(type, clazz, indexName, query, sortDirection, offset,
+          limit);
+    }
+
+    return keysIterable(getKeys(type, clazz, indexName, query, sortDirection, offset, limit));
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String indexName, String queryString, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return queryWithoutPagination(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, SortDirection sortDirection,
+      @Nullable Boolean loadResults, @Nullable PageToken token, @Nullable Long limit) {
+    if (!isCacheable(type, indexName, limit)) {
+      return delegate.queryWithPagination(type, clazz, indexName, query, sortDirection,
+          loadResults, token, limit);
+    }
+
+    try {
+      Long offset =
+          (token == null) ? null : OpaquePaginationHelper.decodeOpaqueCursor(token.getToken());
+      List<Key> keys = getKeys(type, clazz, indexName, query, sortDirection, offset, limit);
+      boolean doLoad = loadResults != null && loadResults;
+      List<KeyValuePair<T>> kvPairs = new ArrayList<KeyValuePair<T>>();
+
+      if (doLoad) {
+        Map<Key, KeyValuePair<T>> resultMap = kvStore.multiRetrieveVersioned(keys, clazz);
+
+        for (Key key : keys) {
+          KeyValuePair<T> kv = resultMap.get(key);
+
+          if (kv != null) {
+            kvPairs.add(new KeyValuePair<T>(key, kv.getVersion(), kv.getSchemaVersion(), kv
+                .getValue()));
+          }
+        }
+      } else {
+        for (Key key : keys) {
+          kvPairs.add(new KeyValuePair<T>(key, null, null, null));
+        }
+      }
+
+      return new QueryResultsPageImpl<T>(kvPairs, doLoad);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz,
+      String indexName, String queryString, SortDirection sortDirection,
+      @Nullable Boolean loadResults, @Nullable PageToken token, @Nullable Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return queryWithPagination(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        sortDirection, loadResults, token, limit);
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    return delegate.count(type, indexName, queryString);
+  }
+
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    return delegate.count(type, indexName, query);
+  }
+
+  @Override
+  @Nullable
+  public BigInteger aggregate(String type, String indexName, String queryString,
+      AggregateFunction function, String attributeName) {
+    return delegate.aggregate(type, indexName, queryString, function, attributeName);
+  }
+
+  @Override
+  @Nullable
+  public BigInteger aggregate(String type, String indexName, List<QueryTerm> query,
+      AggregateFunction function, String attributeName) {
+    return delegate.aggregate(type, indexName, query, function, attributeName);
+  }
+
+  @Override
+  public boolean awaitIndexUpdates(long timeout, TimeUnit unit) {
+    return delegate.awaitIndexUpdates(timeout, unit);
+  }
+
+  @Override
+  public long getPendingIndexUpdates() {
+    return delegate.getPendingIndexUpdates();
+  }
+
+  @Override
+  public long getIndexLagMillis() {
+    return delegate.getIndexLagMillis();
+  }
+
+  @Override
+  public Map<UniqueEntityDescription, Key> multiRetrieveUniqueKeys(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    return delegate.multiRetrieveUniqueKeys(entityDefinitions);
+  }
+
+  @Override
+  public Map<UniqueEntityDescription, Object> multiRetrieveUniqueEntities(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    return delegate.multiRetrieveUniqueEntities(entityDefinitions);
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {}
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) {
+    schemas.put(type, schema);
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (IndexFilter.includes(schema, indexDef, instance)) {
+        bump(type, indexDef.getName());
+      }
+    }
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance) {
+    schemas.put(type, schema);
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      boolean wasIncluded = IndexFilter.includes(schema, indexDef, oldInstance);
+      boolean isIncluded = IndexFilter.includes(schema, indexDef, newInstance);
+
+      if (wasIncluded != isIncluded
+          || (isIncluded && !sameIndexValues(indexDef, newInstance, oldInstance))) {
+        bump(type, indexDef.getName());
+      }
+    }
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> oldInstance) {
+    schemas.put(type, schema);
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (IndexFilter.includes(schema, indexDef, oldInstance)) {
+        bump(type, indexDef.getName());
+      }
+    }
+  }
+
+  @Override
+  public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    for (Map.Entry<String, Schema> entry : typeToSchemaMap.entrySet()) {
+      bumpAll(entry.getKey(), entry.getValue());
+
+      if (!preserveSchema) {
+        schemas.remove(entry.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    schemas.put(type, schema);
+    bumpAll(type, schema);
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    schemas.put(type, newSchema);
+    bumpAll(type, oldSchema);
+    bumpAll(type, newSchema);
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    schemas.remove(type);
+    bumpAll(type, oldSchema);
+  }
+
+  private <T> List<Key> getKeys(String type, Class<T> clazz, String indexName,
+      List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    AtomicLong generation = getGeneration(type, indexName);
+    long before;
+
+    // writers hold the store lock until commit, so this generation is of committed data
+    try (LockManager toRelease = lockManager.acquire()) {
+      before = generation.get();
+    }
+
+    CacheKey cacheKey =
+        new CacheKey(type, indexName, normalize(query), sortDirection, offset, limit, before,
+            isRebuilding(type));
+    List<Key> keys = cache.getIfPresent(cacheKey);
+
+    if (keys != null) {
+      return keys;
+    }
+
+    List<Key> newKeys = new ArrayList<Key>();
+
+    try (KeyValueIterable<Key> iter =
+        delegate.queryWithoutPagination(type, clazz, indexName, query, sortDirection, offset,
+            limit)) {
+      Iterators.addAll(newKeys, iter.iterator());
+    }
+
+    keys = Collections.unmodifiableList(newKeys);
+
+    if (generation.get() == before) {
+      cache.put(cacheKey, keys);
+    }
+
+    return keys;
+  }
+
+  private static KeyValueIterable<Key> keysIterable(final List<Key> keys) {
+    return new KeyValueIterable<Key>() {
+      @Override
+      public KeyValueIterator<Key> iterator() {
+        final Iterator<Key> iter = keys.iterator();
+
+        return new KeyValueIterator<Key>() {
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          @Override
+          public Key next() {
+            return iter.next();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("not supported - yet");
+          }
+
+          @Override
+          public void close() {}
+        };
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  private boolean isCacheable(String type, String indexName, @Nullable Long limit) {
+    if (limit == null || limit <= 0L || limit > MAX_CACHED_LIMIT) {
+      return false;
+    }
+
+    Schema schema = getSchema(type);
+
+    if (schema == null) {
+      return false;
+    }
+
+    IndexDefinition indexDef = schema.getIndex(indexName);
+
+    return indexDef != null && !indexDef.isAsync();
+  }
+
+  @Nullable
+  private Schema getSchema(String type) {
+    Schema schema = schemas.get(type);
+
+    if (schema != null) {
+      return schema;
+    }
+
+    // not seen by a hook since startup
+    try {
+      KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+
+      if (schemaKv == null) {
+        return null;
+      }
+
+      // a schema recorded by a hook meanwhile is newer
+      Schema existing = schemas.putIfAbsent(type, schemaKv.getValue());
+
+      return (existing != null) ? existing : schemaKv.getValue();
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private boolean isRebuilding(String type) {
+    // results computed from the previous index tables must not outlive an online rebuild
+    return (delegate instanceof SecondaryIndexStoreJdbiImpl)
+        && ((SecondaryIndexStoreJdbiImpl) delegate).isRebuilding(type);
+  }
+
+  private AtomicLong getGeneration(String type, String indexName) {
+    String name = type + "/" + indexName;
+    AtomicLong generation = generations.get(name);
+
+    if (generation == null) {
+      AtomicLong newGeneration = new AtomicLong();
+      generation = generations.putIfAbsent(name, newGeneration);
+
+      if (generation == null) {
+        generation = newGeneration;
+      }
+    }
+
+    return generation;
+  }
+
+  private void bump(String type, String indexName) {
+    getGeneration(type, indexName).incrementAndGet();
+  }
+
+  private void bumpAll(String type, Schema schema) {
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      bump(type, indexDef.getName());
+    }
+  }
+
+  private static boolean sameIndexValues(IndexDefinition indexDef, Map<String, Object> a,
+      Map<String, Object> b) {
+    for (IndexAttribute attr : indexDef.getIndexAttributes()) {
+      if (!Objects.equal(a.get(attr.getName()), b.get(attr.getName()))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns a canonical form of the terms: order-independent, and distinguishing value types.
+   */
+  private static List<String> normalize(List<QueryTerm> query) {
+    List<String> terms = new ArrayList<String>();
+
+    for (QueryTerm term : query) {
+      StringBuilder normalized =
+          new StringBuilder(term.getField()).append('\u0000').append(term.getOperator().name());
+
+      List<ValueHolder> values =
+          (term.getValue() != null) ? Collections.singletonList(term.getValue()) : term
+              .getValueList().getValueList();
+
+      for (ValueHolder value : values) {
+        normalized.append('\u0000').append(value.getValueType().name()).append(':')
+            .append(value.getValue());
+      }
+
+      terms.add(normalized.toString());
+    }
+
+    Collections.sort(terms);
+
+    return terms;
+  }
+
+  private static final class CacheKey {
+    private final String type;
+    private final String indexName;
+    private final List<String> terms;
+    private final SortDirection sortDirection;
+    private final Long offset;
+    private final Long limit;
+    private final long generation;
+    private final boolean rebuilding;
+    private final int hashCode;
+
+    private CacheKey(String type, String indexName, List<String> terms,
+        SortDirection sortDirection, @Nullable Long offset, Long limit, long generation,
+        boolean rebuilding) {
+      this.type = type;
+      this.indexName = indexName;
+      this.terms = terms;
+      this.sortDirection = sortDirection;
+      this.offset = offset;
+      this.limit = limit;
+      this.generation = generation;
+      this.rebuilding = rebuilding;
+      this.hashCode =
+          Objects.hashCode(type, indexName, terms, sortDirection, offset, limit, generation,
+              rebuilding);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+
+      CacheKey other = (CacheKey) obj;
+
+      return generation == other.generation && rebuilding == other.rebuilding
+          && type.equals(other.type) && indexName.equals(other.indexName)
+          && terms.equals(other.terms) && Objects.equal(sortDirection, other.sortDirection)
+          && Objects.equal(offset, other.offset) && Objects.equal(limit, other.limit);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
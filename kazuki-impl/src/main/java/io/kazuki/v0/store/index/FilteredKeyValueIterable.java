@@ -100,7 +100,8 @@ public class FilteredKeyValueIterable<U> implements KeyValueIterable<U> {
       } else if (remaining == -1L) {
         nextMatch = advance();
       } else if (remaining > 0L) {
-        toReturn.decrementAndGet();
+        // no need to look further once the limit is reached
+        nextMatch = (toReturn.decrementAndGet() > 0L) ? advance() : null;
       }
 
       return innerTransform.apply(result);
@@ -0,0 +1,601 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.primitives.UnsignedLong;
+import com.google.common.primitives.UnsignedLongs;
+
+/**
+ * A single secondary index held in memory as a concurrent sorted map. Each entry is keyed by the
+ * encoded index attribute values (followed by the entity id, so that non-unique indexes hold one
+ * entry per entity) and maps to the long entity id. Ordering matches the SQL index tables: nulls
+ * first, then natural value order, then id. A partial index only holds entities matching its
+ * filter.
+ */
+public class InMemorySecondaryIndex {
+  private enum Kind {
+    LONG, UNSIGNED_LONG, BOOLEAN, STRING
+  }
+
+  private final IndexDefinition indexDefinition;
+  private final IndexFilter filter;
+  private final List<IndexAttribute> columns;
+  private final Kind[] kinds;
+  private final Map<String, Integer> positions;
+  private final ConcurrentSkipListMap<IndexKey, Long> entries;
+
+  public InMemorySecondaryIndex(IndexDefinition indexDefinition, Schema schema) {
+    this.indexDefinition = indexDefinition;
+    this.filter = IndexFilter.forIndex(schema, indexDefinition);
+    this.columns = new ArrayList<IndexAttribute>();
+    this.positions = new HashMap<String, Integer>();
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      if ("id".equals(attr.getName())) {
+        continue;
+      }
+
+      positions.put(attr.getName(), columns.size());
+      columns.add(attr);
+    }
+
+    this.kinds = new Kind[columns.size()];
+
+    for (int i = 0; i < kinds.length; i++) {
+      String attrName = columns.get(i).getName();
+      Attribute attribute = schema.getAttribute(attrName);
+
+      if (attribute == null) {
+        throw new IllegalArgumentException("Unknown attribute : " + attrName);
+      }
+
+      kinds[i] = kindOf(attribute.getType());
+    }
+
+    this.entries = new ConcurrentSkipListMap<IndexKey, Long>(new IndexKeyComparator());
+  }
+
+  public IndexDefinition getIndexDefinition() {
+    return indexDefinition;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Adds the entity with the given id; the instance must already be field-transformed.
+   */
+  public void insert(long id, Map<String, Object> instance) {
+    if (!includes(instance)) {
+      return;
+    }
+
+    entries.put(encode(id, instance), id);
+  }
+
+  /**
+   * Removes the entity with the given id; the instance must be the previously indexed value.
+   */
+  public void delete(long id, Map<String, Object> instance) {
+    if (!includes(instance)) {
+      return;
+    }
+
+    entries.remove(encode(id, instance));
+  }
+
+  public void update(long id, Map<String, Object> newInstance, Map<String, Object> oldInstance) {
+    if (filter != null) {
+      boolean wasIncluded = filter.matches(oldInstance);
+      boolean isIncluded = filter.matches(newInstance);
+
+      if (wasIncluded != isIncluded) {
+        if (isIncluded) {
+          insert(id, newInstance);
+        } else {
+          delete(id, oldInstance);
+        }
+
+        return;
+      }
+
+      if (!isIncluded) {
+        return;
+      }
+    }
+
+    IndexKey newKey = encode(id, newInstance);
+    IndexKey oldKey = encode(id, oldInstance);
+
+    if (newKey.equals(oldKey)) {
+      return;
+    }
+
+    entries.put(newKey, id);
+    entries.remove(oldKey);
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns true if an entity other than the given id already holds the instance's index values.
+   * Following SQL unique index semantics, values containing null never conflict.
+   */
+  public boolean hasConflict(long id, Map<String, Object> instance) {
+    if (!includes(instance)) {
+      return false;
+    }
+
+    IndexKey key = encode(id, instance);
+
+    for (Object value : key.values) {
+      if (value == null) {
+        return false;
+      }
+    }
+
+    for (Long existing : entries.subMap(key.probe(-1), true, key.probe(1), true).values()) {
+      if (existing.longValue() != id) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the ids matching the given (index-sorted) query terms, in the requested order. Terms on
+   * the leading attribute narrow the scanned range; all terms are then checked per entry.
+   */
+  public Iterator<Long> query(Map<String, List<QueryTerm>> termMap, SortDirection sortDirection,
+      FieldTransform transform) {
+    final Iterator<Map.Entry<IndexKey, Long>> matches =
+        matchingEntries(termMap, sortDirection, transform);
+
+    return new Iterator<Long>() {
+      @Override
+      public boolean hasNext() {
+        return matches.hasNext();
+      }
+
+      @Override
+      public Long next() {
+        return matches.next().getValue();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("not supported");
+      }
+    };
+  }
+
+  /**
+   * Returns the number of entries matching the given (index-sorted) query terms.
+   */
+  public long count(Map<String, List<QueryTerm>> termMap, FieldTransform transform) {
+    return Iterators.size(matchingEntries(termMap, SortDirection.ASCENDING, transform));
+  }
+
+  /**
+   * Computes the aggregate of an integer-typed index attribute over the entries matching the given
+   * (index-sorted) query terms, skipping null values. Returns null for MIN / MAX if no value
+   * matches, zero for SUM.
+   */
+  @Nullable
+  public BigInteger aggregate(Map<String, List<QueryTerm>> termMap, FieldTransform transform,
+      AggregateFunction function, String attributeName) {
+    Integer position = positions.get(attributeName);
+
+    if (position == null || kinds[position] == Kind.BOOLEAN || kinds[position] == Kind.STRING) {
+      throw new IllegalArgumentException("aggregate attribute must be integer-typed: "
+          + attributeName);
+    }
+
+    Iterator<Map.Entry<IndexKey, Long>> matches =
+        matchingEntries(termMap, SortDirection.ASCENDING, transform);
+
+    Object result = null;
+    BigInteger sum = BigInteger.ZERO;
+
+    while (matches.hasNext()) {
+      Object value = matches.next().getKey().values[position];
+
+      if (value == null) {
+        continue;
+      }
+
+      switch (function) {
+        case MIN:
+          result = (result == null || compareValues(position, value, result) < 0) ? value : result;
+          break;
+        case MAX:
+          result = (result == null || compareValues(position, value, result) > 0) ? value : result;
+          break;
+        case SUM:
+          sum = sum.add(toBigInteger(position, value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown aggregate: " + function);
+      }
+    }
+
+    if (AggregateFunction.SUM.equals(function)) {
+      return sum;
+    }
+
+    return (result == null) ? null : toBigInteger(position, result);
+  }
+
+  private Iterator<Map.Entry<IndexKey, Long>> matchingEntries(
+      Map<String, List<QueryTerm>> termMap, SortDirection sortDirection, FieldTransform transform) {
+    final List<Integer> termPositions = new ArrayList<Integer>();
+    final List<QueryOperator> termOperators = new ArrayList<QueryOperator>();
+    final List<Object> termValues = new ArrayList<Object>();
+
+    IndexKey lower = new IndexKey(new Object[0], 0L, -1);
+    IndexKey upper = new IndexKey(new Object[0], 0L, 1);
+    IndexKeyComparator comparator = (IndexKeyComparator) entries.comparator();
+
+    for (Map.Entry<String, List<QueryTerm>> entry : termMap.entrySet()) {
+      Integer position = positions.get(entry.getKey());
+      if (position == null) {
+        continue;
+      }
+
+      for (QueryTerm term : entry.getValue()) {
+        QueryOperator op = term.getOperator();
+        Object value;
+
+        if (op.equals(QueryOperator.IN)) {
+          List<Object> inValues = new ArrayList<Object>();
+          for (ValueHolder holder : term.getValueList().getValueList()) {
+            inValues.add(normalizeQueryValue(position, holder, transform));
+          }
+          value = inValues;
+        } else {
+          value = normalizeQueryValue(position, term.getValue(), transform);
+        }
+
+        termPositions.add(position);
+        termOperators.add(op);
+        termValues.add(value);
+
+        if (position != 0) {
+          continue;
+        }
+
+        IndexKey from = null;
+        IndexKey to = null;
+
+        switch (op) {
+          case EQ:
+            from = new IndexKey(new Object[] {value}, 0L, -1);
+            to = new IndexKey(new Object[] {value}, 0L, 1);
+            break;
+          case GT:
+            from = new IndexKey(new Object[] {value}, 0L, 1);
+            break;
+          case GE:
+            from = new IndexKey(new Object[] {value}, 0L, -1);
+            break;
+          case LT:
+            to = new IndexKey(new Object[] {value}, 0L, -1);
+            break;
+          case LE:
+            to = new IndexKey(new Object[] {value}, 0L, 1);
+            break;
+          case PREFIX:
+            String upperBound = QueryHelper.prefixUpperBound(checkPrefix(position, value));
+
+            from = new IndexKey(new Object[] {value}, 0L, -1);
+            to = (upperBound == null) ? null : new IndexKey(new Object[] {upperBound}, 0L, -1);
+            break;
+          case IN:
+            for (Object inValue : (List<?>) value) {
+              IndexKey inFrom = new IndexKey(new Object[] {inValue}, 0L, -1);
+              IndexKey inTo = new IndexKey(new Object[] {inValue}, 0L, 1);
+
+              from = (from == null || comparator.compare(inFrom, from) < 0) ? inFrom : from;
+              to = (to == null || comparator.compare(inTo, to) > 0) ? inTo : to;
+            }
+            break;
+          default:
+            break;
+        }
+
+        if (from != null && comparator.compare(from, lower) > 0) {
+          lower = from;
+        }
+
+        if (to != null && comparator.compare(to, upper) < 0) {
+          upper = to;
+        }
+      }
+    }
+
+    if (comparator.compare(lower, upper) > 0) {
+      return Collections.<Map.Entry<IndexKey, Long>>emptyIterator();
+    }
+
+    NavigableMap<IndexKey, Long> range = entries.subMap(lower, true, upper, true);
+
+    if (SortDirection.DESCENDING.equals(sortDirection)) {
+      range = range.descendingMap();
+    }
+
+    return Iterators.filter(range.entrySet().iterator(),
+        new Predicate<Map.Entry<IndexKey, Long>>() {
+          @Override
+          public boolean apply(Map.Entry<IndexKey, Long> entry) {
+            Object[] values = entry.getKey().values;
+
+            for (int i = 0; i < termPositions.size(); i++) {
+              int position = termPositions.get(i);
+
+              if (!matches(position, termOperators.get(i), values[position], termValues.get(i))) {
+                return false;
+              }
+            }
+
+            return true;
+          }
+        });
+  }
+
+  private BigInteger toBigInteger(int position, Object value) {
+    long longValue = (Long) value;
+
+    return (kinds[position] == Kind.UNSIGNED_LONG)
+        ? UnsignedLong.fromLongBits(longValue).bigIntegerValue()
+        : BigInteger.valueOf(longValue);
+  }
+
+  private boolean matches(int position, QueryOperator op, Object actual, Object expected) {
+    switch (op) {
+      case EQ:
+        return expected == null ? actual == null : actual != null
+            && compareValues(position, actual, expected) == 0;
+      case NE:
+        return expected == null ? actual != null : actual != null
+            && compareValues(position, actual, expected) != 0;
+      case GT:
+        return actual != null && expected != null && compareValues(position, actual, expected) > 0;
+      case GE:
+        return actual != null && expected != null && compareValues(position, actual, expected) >= 0;
+      case LT:
+        return actual != null && expected != null && compareValues(position, actual, expected) < 0;
+      case LE:
+        return actual != null && expected != null && compareValues(position, actual, expected) <= 0;
+      case IN:
+        if (actual == null) {
+          return false;
+        }
+
+        for (Object inValue : (List<?>) expected) {
+          if (inValue != null && compareValues(position, actual, inValue) == 0) {
+            return true;
+          }
+        }
+
+        return false;
+      case PREFIX:
+        return actual != null && ((String) actual).startsWith(checkPrefix(position, expected));
+      default:
+        throw new IllegalArgumentException("Unknown operator: " + op);
+    }
+  }
+
+  private String checkPrefix(int position, Object expected) {
+    if (kinds[position] != Kind.STRING || expected == null) {
+      throw new IllegalArgumentException("prefix query requires a string attribute: "
+          + columns.get(position).getName());
+    }
+
+    return (String) expected;
+  }
+
+  private boolean includes(Map<String, Object> instance) {
+    return filter == null || filter.matches(instance);
+  }
+
+  private IndexKey encode(long id, Map<String, Object> instance) {
+    Object[] values = new Object[columns.size()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = normalize(i, instance.get(columns.get(i).getName()));
+    }
+
+    return new IndexKey(values, id, 0);
+  }
+
+  private Object normalizeQueryValue(int position, ValueHolder holder, FieldTransform transform) {
+    if (holder.getValueType().equals(ValueType.NULL)) {
+      return null;
+    }
+
+    return normalize(position,
+        transform.transformValue(columns.get(position).getName(), holder.getValue()));
+  }
+
+  private Object normalize(int position, Object value) {
+    if (value == null) {
+      return null;
+    }
+
+    switch (kinds[position]) {
+      case LONG:
+      case UNSIGNED_LONG:
+        if (value instanceof Number) {
+          return ((Number) value).longValue();
+        }
+
+        return new BigInteger(value.toString()).longValue();
+      case BOOLEAN:
+        return Boolean.valueOf(value.toString());
+      default:
+        String stringValue = value.toString();
+
+        switch (columns.get(position).getTransform()) {
+          case UPPERCASE:
+            return stringValue.toUpperCase();
+          case LOWERCASE:
+            return stringValue.toLowerCase();
+          default:
+            return stringValue;
+        }
+    }
+  }
+
+  private int compareValues(int position, Object a, Object b) {
+    if (a == null || b == null) {
+      return (a == null) ? ((b == null) ? 0 : -1) : 1;
+    }
+
+    switch (kinds[position]) {
+      case LONG:
+        long left = (Long) a;
+        long right = (Long) b;
+        return left < right ? -1 : (left == right ? 0 : 1);
+      case UNSIGNED_LONG:
+        return UnsignedLongs.compare((Long) a, (Long) b);
+      case BOOLEAN:
+        return ((Boolean) a).compareTo((Boolean) b);
+      default:
+        return ((String) a).compareTo((String) b);
+    }
+  }
+
+  private static Kind kindOf(Attribute.Type type) {
+    switch (type) {
+      case BOOLEAN:
+        return Kind.BOOLEAN;
+      case CHAR_ONE:
+      case UTF8_SMALLSTRING:
+        return Kind.STRING;
+      case U64:
+        return Kind.UNSIGNED_LONG;
+      case ENUM:
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case U8:
+      case U16:
+      case U32:
+      case UTC_DATE_SECS:
+        return Kind.LONG;
+      default:
+        throw new IllegalArgumentException("Unsupported type in index: " + type);
+    }
+  }
+
+  /**
+   * Encoded composite key: normalized attribute values plus entity id. Probe keys (bias != 0) carry
+   * a value prefix only and sort just before (-1) or just after (1) every key sharing that prefix.
+   */
+  private static final class IndexKey {
+    private final Object[] values;
+    private final long id;
+    private final int bias;
+
+    private IndexKey(Object[] values, long id, int bias) {
+      this.values = values;
+      this.id = id;
+      this.bias = bias;
+    }
+
+    private IndexKey probe(int probeBias) {
+      return new IndexKey(values, 0L, probeBias);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof IndexKey)) {
+        return false;
+      }
+
+      IndexKey that = (IndexKey) other;
+
+      return id == that.id && bias == that.bias && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values) * 31 + (int) (id ^ (id >>> 32));
+    }
+  }
+
+  private final class IndexKeyComparator implements Comparator<IndexKey> {
+    @Override
+    public int compare(IndexKey a, IndexKey b) {
+      int common = Math.min(a.values.length, b.values.length);
+
+      for (int i = 0; i < common; i++) {
+        int result = compareValues(i, a.values[i], b.values[i]);
+
+        if (result != 0) {
+          return result;
+        }
+      }
+
+      if (a.values.length != b.values.length) {
+        return (a.values.length < b.values.length) ? a.bias : -b.bias;
+      }
+
+      if (a.bias != b.bias) {
+        return a.bias < b.bias ? -1 : 1;
+      }
+
+      if (a.bias != 0) {
+        return 0;
+      }
+
+      return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.query.QueryCompiler;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Compiled filter of a partial index (IndexDefinition.getFilter()): decides which entities the
+ * index holds, and whether the terms of a query imply the filter (so that the planner may answer
+ * the query from the partial index).
+ *
+ * Filters are parsed once per schema instance and cached (weakly, by schema identity), since they
+ * are consulted on every mutation.
+ */
+public class IndexFilter {
+  private static final Cache<Schema, ConcurrentMap<String, IndexFilter>> CACHE = CacheBuilder
+      .newBuilder().weakKeys().build();
+
+  private final List<QueryTerm> terms;
+  private final Set<String> attributeNames;
+  private final FieldTransform transform;
+  private final Predicate<Object> predicate;
+
+  public IndexFilter(String filter, Schema schema) {
+    this.terms = Collections.unmodifiableList(QueryHelper.parseQuery(filter));
+    this.attributeNames = new LinkedHashSet<String>();
+
+    for (QueryTerm term : terms) {
+      if (schema.getAttribute(term.getField()) == null) {
+        throw new IllegalArgumentException("index filter references unknown attribute: "
+            + term.getField());
+      }
+
+      attributeNames.add(term.getField());
+    }
+
+    this.transform = new FieldTransform(schema);
+    this.predicate = QueryCompiler.compile(terms, schema, null);
+  }
+
+  /**
+   * Returns the filter of the index, or null if the index is not partial.
+   */
+  @Nullable
+  public static IndexFilter forIndex(Schema schema, IndexDefinition indexDef) {
+    if (!indexDef.isPartial()) {
+      return null;
+    }
+
+    ConcurrentMap<String, IndexFilter> filters = CACHE.getIfPresent(schema);
+
+    if (filters == null) {
+      filters = new ConcurrentHashMap<String, IndexFilter>();
+      CACHE.put(schema, filters);
+    }
+
+    IndexFilter filter = filters.get(indexDef.getName());
+
+    if (filter == null) {
+      filter = new IndexFilter(indexDef.getFilter(), schema);
+      filters.put(indexDef.getName(), filter);
+    }
+
+    return filter;
+  }
+
+  /**
+   * Returns true if the entity belongs in the index of the given definition (always, unless the
+   * index is partial); the instance is in packed (FieldTransform) form.
+   */
+  public static boolean includes(Schema schema, IndexDefinition indexDef,
+      Map<String, Object> packed) {
+    IndexFilter filter = forIndex(schema, indexDef);
+
+    return filter == null || filter.matches(packed);
+  }
+
+  /**
+   * Returns true if every entity matching the query terms is in the index of the given definition.
+   */
+  public static boolean isImpliedBy(Schema schema, IndexDefinition indexDef,
+      List<QueryTerm> query) {
+    IndexFilter filter = forIndex(schema, indexDef);
+
+    return filter == null || filter.isImpliedBy(query);
+  }
+
+  public List<QueryTerm> getTerms() {
+    return terms;
+  }
+
+  /**
+   * Returns true if the (packed) instance matches the filter.
+   */
+  public boolean matches(Map<String, Object> packed) {
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    for (String attrName : attributeNames) {
+      values.put(attrName, packed.get(attrName));
+    }
+
+    // filter literals are written against entity values, so compare unpacked values
+    return predicate.apply(transform.unpack(values));
+  }
+
+  /**
+   * Returns true if the query contains every filter term (same attribute, operator and literal).
+   */
+  public boolean isImpliedBy(List<QueryTerm> query) {
+    for (QueryTerm filterTerm : terms) {
+      boolean found = false;
+
+      for (QueryTerm term : query) {
+        if (sameTerm(filterTerm, term)) {
+          found = true;
+          break;
+        }
+      }
+
+      if (!found) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean sameTerm(QueryTerm a, QueryTerm b) {
+    if (!a.getField().equals(b.getField()) || !a.getOperator().equals(b.getOperator())) {
+      return false;
+    }
+
+    if (QueryOperator.IN.equals(a.getOperator())) {
+      List<ValueHolder> aValues = a.getValueList().getValueList();
+      List<ValueHolder> bValues = b.getValueList().getValueList();
+
+      if (aValues.size() != bValues.size()) {
+        return false;
+      }
+
+      for (int i = 0; i < aValues.size(); i++) {
+        if (!sameValue(aValues.get(i), bValues.get(i))) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    return sameValue(a.getValue(), b.getValue());
+  }
+
+  private static boolean sameValue(ValueHolder a, ValueHolder b) {
+    return a.getValueType().equals(b.getValueType()) && Objects.equal(a.getValue(), b.getValue());
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.KazukiException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+
+/**
+ * Durable outbox of pending mutations to async indexes (see IndexDefinition.isAsync()). Entries
+ * are appended with the Handle of the KV write, so they commit or roll back together with it, and
+ * are later read back in sequence order, applied to the index tables and removed in one
+ * transaction by SecondaryIndexStoreJdbiImpl.
+ *
+ * Sequence numbers are allocated in memory (from the highest stored sequence on start); callers
+ * append under the global LockManager lock, so sequence order is commit order.
+ */
+public class IndexOutbox {
+  public enum Operation {
+    CREATE('C'), UPDATE('U'), DELETE('D');
+
+    private final char code;
+
+    private Operation(char code) {
+      this.code = code;
+    }
+
+    public String getCode() {
+      return String.valueOf(code);
+    }
+
+    public static Operation forCode(String code) {
+      for (Operation op : values()) {
+        if (op.getCode().equals(code)) {
+          return op;
+        }
+      }
+
+      throw new IllegalArgumentException("unknown outbox operation: " + code);
+    }
+  }
+
+  private final IDBI database;
+  private final SecondaryIndexTableHelper tableHelper;
+  private final String tableName;
+  private final String tableDefinition;
+  private final AtomicLong lastSequence;
+
+  public IndexOutbox(IDBI database, SecondaryIndexTableHelper tableHelper, String groupName,
+      String storeName, String partitionName) {
+    this.database = database;
+    this.tableHelper = tableHelper;
+    this.tableName = tableHelper.getOutboxTableName(groupName, storeName, partitionName);
+    this.tableDefinition =
+        tableHelper.getOutboxTableDefinition(groupName, storeName, partitionName);
+    this.lastSequence = new AtomicLong();
+  }
+
+  /**
+   * Creates the outbox table if needed and resumes sequence allocation after the highest stored
+   * entry.
+   */
+  public void start() {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        handle.createStatement(tableDefinition).execute();
+
+        Number maxSequence = selectNumber(handle, "max(" + col("seq") + ")", "");
+
+        lastSequence.set((maxSequence == null) ? 0L : maxSequence.longValue());
+
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns the sequence number of the most recently appended entry.
+   */
+  public long getLastSequence() {
+    return lastSequence.get();
+  }
+
+  public void append(Handle handle, String type, String partitionName, Operation op, long id,
+      @Nullable Map<String, Object> newInstance, @Nullable Map<String, Object> oldInstance)
+      throws KazukiException {
+    handle
+        .createStatement(
+            "insert into " + tableName + " (" + col("seq") + ", " + col("type") + ", "
+                + col("partition") + ", " + col("op") + ", " + col("id") + ", " + col("created")
+                + ", " + col("new_value") + ", " + col("old_value")
+                + ") values (:seq, :type, :partition, :op, :id, :created, :new, :old)")
+        .bind("seq", lastSequence.incrementAndGet()).bind("type", type)
+        .bind("partition", partitionName).bind("op", op.getCode())
+        .bind("id", new BigDecimal(Long.toString(id))).bind("created", System.currentTimeMillis())
+        .bind("new", (newInstance == null) ? null : EncodingHelper.convertToSmile(newInstance))
+        .bind("old", (oldInstance == null) ? null : EncodingHelper.convertToSmile(oldInstance))
+        .execute();
+  }
+
+  /**
+   * Returns up to limit entries with sequence numbers up to throughSequence, in sequence order.
+   */
+  @SuppressWarnings("unchecked")
+  public List<Entry> next(Handle handle, long throughSequence, int limit) throws KazukiException {
+    List<Entry> entries = new ArrayList<Entry>();
+
+    for (Map<String, Object> row : handle
+        .createQuery(
+            "select * from " + tableName + " where " + col("seq") + " <= :through order by "
+                + col("seq") + " asc limit " + limit).bind("through", throughSequence).list()) {
+      byte[] newBytes = (byte[]) row.get("_new_value");
+      byte[] oldBytes = (byte[]) row.get("_old_value");
+
+      entries.add(new Entry(((Number) row.get("_seq")).longValue(), (String) row.get("_type"),
+          (String) row.get("_partition"), Operation.forCode((String) row.get("_op")),
+          ((Number) row.get("_id")).longValue(), (newBytes == null) ? null
+              : EncodingHelper.parseSmile(newBytes, Map.class), (oldBytes == null) ? null
+              : EncodingHelper.parseSmile(oldBytes, Map.class)));
+    }
+
+    return entries;
+  }
+
+  public void remove(Handle handle, Collection<Entry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    PreparedBatch batch =
+        handle.prepareBatch("delete from " + tableName + " where " + col("seq") + " = :seq");
+
+    for (Entry entry : entries) {
+      batch.add().bind("seq", entry.getSequence());
+    }
+
+    batch.execute();
+  }
+
+  /**
+   * Removes the pending entries of the given types (e.g. when their indexes are cleared).
+   */
+  public void removeTypes(Handle handle, Collection<String> types) {
+    for (String type : types) {
+      handle.createStatement("delete from " + tableName + " where " + col("type") + " = :type")
+          .bind("type", type).execute();
+    }
+  }
+
+  /**
+   * Returns true if an entry with a sequence number up to throughSequence is still pending.
+   */
+  public boolean hasPending(long throughSequence) {
+    return count(" where " + col("seq") + " <= " + throughSequence) > 0L;
+  }
+
+  public long getPendingCount() {
+    return count("");
+  }
+
+  /**
+   * Returns the age in milliseconds of the oldest pending entry, or 0 if there is none.
+   */
+  public long getLagMillis() {
+    Number oldest = database.inTransaction(new TransactionCallback<Number>() {
+      @Override
+      public Number inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        return selectNumber(handle, "min(" + col("created") + ")", "");
+      }
+    });
+
+    return (oldest == null) ? 0L : Math.max(0L, System.currentTimeMillis() - oldest.longValue());
+  }
+
+  private long count(final String whereClause) {
+    return database.inTransaction(new TransactionCallback<Long>() {
+      @Override
+      public Long inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        return selectNumber(handle, "count(*)", whereClause).longValue();
+      }
+    });
+  }
+
+  @Nullable
+  private Number selectNumber(Handle handle, String expression, String whereClause) {
+    Map<String, Object> row =
+        handle.createQuery(
+            "select " + expression + " as " + col("result") + " from " + tableName + whereClause)
+            .first();
+
+    return (row == null) ? null : (Number) row.get("_result");
+  }
+
+  private String col(String name) {
+    return tableHelper.getColumnName(name);
+  }
+
+  public static class Entry {
+    private final long sequence;
+    private final String type;
+    private final String partitionName;
+    private final Operation operation;
+    private final long id;
+    private final Map<String, Object> newInstance;
+    private final Map<String, Object> oldInstance;
+
+    public Entry(long sequence, String type, String partitionName, Operation operation, long id,
+        @Nullable Map<String, Object> newInstance, @Nullable Map<String, Object> oldInstance) {
+      this.sequence = sequence;
+      this.type = type;
+      this.partitionName = partitionName;
+      this.operation = operation;
+      this.id = id;
+      this.newInstance =
+          (newInstance == null) ? null : Collections.unmodifiableMap(newInstance);
+      this.oldInstance =
+          (oldInstance == null) ? null : Collections.unmodifiableMap(oldInstance);
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getPartitionName() {
+      return partitionName;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    @Nullable
+    public Map<String, Object> getNewInstance() {
+      return newInstance;
+    }
+
+    @Nullable
+    public Map<String, Object> getOldInstance() {
+      return oldInstance;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+
+/**
+ * Parallel counterpart of {@link FilteredKeyValueIterable} for brute-force queries. Keys of the
+ * type are read in the requested sort order (without values) and cut into chunks, which are
+ * retrieved and filtered concurrently on a fork/join pool, with up to one chunk per worker in
+ * flight. Matches are returned chunk by chunk in key order as soon as each chunk is done, so offset
+ * and limit are applied exactly as in the sequential scan, and no further chunks are started once
+ * offset + limit matches have been found.
+ */
+public class ParallelFilteredKeyValueIterable implements KeyValueIterable<Key> {
+  private final KeyValueStore kvStore;
+  private final String type;
+  private final SortDirection sortDirection;
+  private final Predicate<Object> filter;
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+  private final long offset;
+  private final Long limit;
+
+  private volatile KeyValueIterable<Key> keys;
+  private volatile ParallelFilteredKeyValueIterator iter;
+
+  public ParallelFilteredKeyValueIterable(KeyValueStore kvStore, String type,
+      SortDirection sortDirection, Predicate<Object> filter, ForkJoinPool pool, int chunkSize,
+      @Nullable Long offset, @Nullable Long limit) {
+    this.kvStore = kvStore;
+    this.type = type;
+    this.sortDirection = sortDirection;
+    this.filter = filter;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.offset = offset == null ? 0L : offset;
+    this.limit = limit;
+  }
+
+  @Override
+  public KeyValueIterator<Key> iterator() {
+    this.keys = kvStore.iterators().keys(type, LinkedHashMap.class, sortDirection);
+    this.iter = new ParallelFilteredKeyValueIterator(keys.iterator());
+
+    return iter;
+  }
+
+  @Override
+  public void close() {
+    ParallelFilteredKeyValueIterator iterToClose = this.iter;
+
+    if (iterToClose != null) {
+      iterToClose.close();
+    }
+
+    KeyValueIterable<Key> toClose = this.keys;
+
+    if (toClose != null) {
+      toClose.close();
+    }
+  }
+
+  private class ParallelFilteredKeyValueIterator implements KeyValueIterator<Key> {
+    private final KeyValueIterator<Key> keyIter;
+    private final Deque<ForkJoinTask<List<Key>>> inFlight;
+    private Iterator<Key> chunkMatches;
+    private long toSkip;
+    private long toReturn;
+    private Key nextMatch;
+
+    public ParallelFilteredKeyValueIterator(KeyValueIterator<Key> keyIter) {
+      this.keyIter = keyIter;
+      this.inFlight = new ArrayDeque<ForkJoinTask<List<Key>>>();
+      this.chunkMatches = Collections.<Key>emptyList().iterator();
+      this.toSkip = offset;
+      this.toReturn = (limit == null) ? -1L : limit;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+      if (nextMatch == null) {
+        nextMatch = advance();
+      }
+
+      return nextMatch != null;
+    }
+
+    @Override
+    public synchronized Key next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      Key result = nextMatch;
+      nextMatch = null;
+
+      if (toReturn > 0L) {
+        toReturn -= 1L;
+      }
+
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove() not supported");
+    }
+
+    @Override
+    public synchronized void close() {
+      cancelInFlight();
+      keyIter.close();
+    }
+
+    private Key advance() {
+      if (toReturn == 0L) {
+        // limit reached: don't wait for (or start) any more chunks
+        cancelInFlight();
+
+        return null;
+      }
+
+      while (true) {
+        while (chunkMatches.hasNext()) {
+          Key match = chunkMatches.next();
+
+          if (toSkip > 0L) {
+            toSkip -= 1L;
+            continue;
+          }
+
+          return match;
+        }
+
+        submitChunks();
+
+        ForkJoinTask<List<Key>> oldest = inFlight.poll();
+
+        if (oldest == null) {
+          return null;
+        }
+
+        chunkMatches = oldest.join().iterator();
+      }
+    }
+
+    private void submitChunks() {
+      while (inFlight.size() < pool.getParallelism() && keyIter.hasNext()) {
+        List<Key> chunk = new ArrayList<Key>(chunkSize);
+
+        while (keyIter.hasNext() && chunk.size() < chunkSize) {
+          chunk.add(keyIter.next());
+        }
+
+        inFlight.add(pool.submit(new FilterTask(chunk)));
+      }
+    }
+
+    private void cancelInFlight() {
+      for (ForkJoinTask<List<Key>> task : inFlight) {
+        task.cancel(false);
+      }
+
+      inFlight.clear();
+    }
+  }
+
+  private class FilterTask extends RecursiveTask<List<Key>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Key> keys;
+
+    public FilterTask(List<Key> keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    protected List<Key> compute() {
+      Map<Key, LinkedHashMap> values;
+
+      try {
+        values = kvStore.multiRetrieve(keys, LinkedHashMap.class);
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
+      }
+
+      List<Key> found = new ArrayList<Key>();
+
+      for (Key key : keys) {
+        LinkedHashMap value = values.get(key);
+
+        // entities deleted since the key scan are skipped
+        if (value != null && filter.apply(value)) {
+          found.add(key);
+        }
+      }
+
+      return found;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package io.kazuki.v0.store.index;
 
 import io.kazuki.v0.store.index.query.QueryOperator;
 import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueType;
 import io.kazuki.v0.store.schema.model.Attribute;
 import io.kazuki.v0.store.schema.model.IndexAttribute;
 import io.kazuki.v0.store.schema.model.IndexDefinition;
@@ -56,6 +57,13 @@ public class SecondaryIndexQueryValidation {
         throw new IllegalArgumentException("unknown index attribute: " + attrName);
       }
 
+      if (QueryOperator.PREFIX.equals(term.getOperator())
+          && (!isStringType(existsSchema.getType()) || !ValueType.STRING.equals(term.getValue()
+              .getValueType()))) {
+        throw new IllegalArgumentException("prefix query requires a string attribute and value: "
+            + attrName);
+      }
+
       containsFirst = containsFirst || attrName.equals(firstIndexCol);
       allEquality = allEquality && term.getOperator().equals(QueryOperator.EQ);
 
@@ -79,4 +87,48 @@ public class SecondaryIndexQueryValidation {
       }
     }
   }
+
+  /**
+   * Checks that the attribute is an integer-typed attribute of the index, so that MIN / MAX / SUM
+   * can be computed over the index column.
+   */
+  public static void validateAggregate(String indexName, String attributeName, Schema schema) {
+    Preconditions.checkNotNull(attributeName, "attributeName");
+    Preconditions.checkNotNull(schema, "schema");
+
+    IndexDefinition indexDef = schema.getIndex(indexName);
+    Preconditions.checkNotNull(indexDef, "index");
+
+    if (indexDef.getIndexAttribute(attributeName) == null) {
+      throw new IllegalArgumentException("unknown index attribute: " + attributeName);
+    }
+
+    Attribute attribute = schema.getAttribute(attributeName);
+
+    if (attribute == null || !isIntegerType(attribute.getType())) {
+      throw new IllegalArgumentException("aggregate attribute must be integer-typed: "
+          + attributeName);
+    }
+  }
+
+  public static boolean isStringType(Attribute.Type type) {
+    return Attribute.Type.UTF8_SMALLSTRING.equals(type) || Attribute.Type.CHAR_ONE.equals(type);
+  }
+
+  public static boolean isIntegerType(Attribute.Type type) {
+    switch (type) {
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case U8:
+      case U16:
+      case U32:
+      case U64:
+      case UTC_DATE_SECS:
+        return true;
+      default:
+        return false;
+    }
+  }
 }
@@ -0,0 +1,443 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.helper.JDBIHelper;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.internal.helper.SqlParamBindings;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.internal.v2schema.compact.StructureTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.keyvalue.StringDictionaries;
+import io.kazuki.v0.store.keyvalue.ValueCompression;
+import io.kazuki.v0.store.keyvalue.ValueFormat;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bulk (re)population of the secondary index tables of a type. The type's key id range is split
+ * into chunks which are decoded and inserted by a pool of workers, each chunk in its own
+ * transaction using batched inserts.
+ *
+ * Callers are responsible for excluding concurrent writers to the type (typically by holding the
+ * store lock) for the duration of a rebuild.
+ */
+public class SecondaryIndexRebuilder {
+  public static final long DEFAULT_CHUNK_SIZE = 10000L;
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final Logger log = LogTranslation.getLogger(getClass());
+
+  private final IDBI database;
+  private final SecondaryIndexTableHelper tableHelper;
+  private final String kvTableName;
+  private final String groupName;
+  private final String storeName;
+  private final int workers;
+  private final long chunkSize;
+  private final int batchSize;
+  private final ValueCompression compression;
+  private final StringDictionaries stringDictionaries;
+  private ExecutorService executor;
+
+  public SecondaryIndexRebuilder(IDBI database, SecondaryIndexTableHelper tableHelper,
+      String kvTableName, String groupName, String storeName, int workers, long chunkSize,
+      int batchSize, ValueCompression compression, StringDictionaries stringDictionaries) {
+    this.database = database;
+    this.tableHelper = tableHelper;
+    this.kvTableName = kvTableName;
+    this.groupName = groupName;
+    this.storeName = storeName;
+    this.workers = workers;
+    this.chunkSize = chunkSize;
+    this.batchSize = batchSize;
+    this.compression = compression;
+    this.stringDictionaries = stringDictionaries;
+  }
+
+  /**
+   * Populates the index tables of the given schema in the target partition from all live
+   * entities of the type, blocking until every chunk has been processed. Returns the number of
+   * entities indexed.
+   */
+  public long rebuild(final String type, final Integer typeId, final Schema schema,
+      final String partitionName, final Progress progress) throws KazukiException {
+    KeyRange range = database.inTransaction(new TransactionCallback<KeyRange>() {
+      @Override
+      public KeyRange inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        return getKeyRange(handle, typeId);
+      }
+    });
+
+    if (range == null) {
+      return 0L;
+    }
+
+    List<KeyRange> chunks = partition(range.getLo(), range.getHi(), chunkSize);
+    progress.start(chunks.size());
+
+    log.info("Rebuilding indexes for type {} over ids [{}, {}] in {} chunks with {} workers",
+        type, range.getLo(), range.getHi(), chunks.size(), workers);
+
+    ExecutorService workerPool = getExecutor();
+    List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+    for (final KeyRange chunk : chunks) {
+      results.add(workerPool.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int count = database.inTransaction(new TransactionCallback<Integer>() {
+            @Override
+            public Integer inTransaction(Handle handle, TransactionStatus status)
+                throws Exception {
+              return rebuildChunk(handle, type, typeId, schema, partitionName, chunk);
+            }
+          });
+
+          progress.chunkCompleted(count);
+
+          log.debug("Index rebuild for type {}: {}", type, progress);
+
+          return count;
+        }
+      }));
+    }
+
+    long total = 0L;
+
+    try {
+      for (Future<Integer> result : results) {
+        total += result.get();
+      }
+    } catch (InterruptedException e) {
+      cancelAll(results);
+      Thread.currentThread().interrupt();
+
+      throw new KazukiException("interrupted during index rebuild for type " + type);
+    } catch (ExecutionException e) {
+      cancelAll(results);
+      Throwables.propagateIfInstanceOf(e.getCause(), KazukiException.class);
+
+      throw Throwables.propagate(e.getCause());
+    }
+
+    log.info("Rebuilt indexes for type {}: {}", type, progress);
+
+    return total;
+  }
+
+  /**
+   * Inserts the given (packed) instances into every index of the schema in the target partition,
+   * using one batched statement per index (partial indexes only receive matching instances).
+   */
+  public void insertBatch(Handle handle, String type, Schema schema, String partitionName,
+      List<Long> ids, List<Map<String, Object>> instances) throws KazukiException {
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      String indexName = indexDef.getName();
+
+      SqlParamBindings bindings = new SqlParamBindings(true);
+
+      PreparedBatch batch =
+          handle.prepareBatch(tableHelper.getInsertStatement(type, indexName, schema, bindings,
+              groupName, storeName, partitionName));
+
+      IndexFilter filter = IndexFilter.forIndex(schema, indexDef);
+      int added = 0;
+
+      for (int i = 0; i < ids.size(); i++) {
+        if (filter != null && !filter.matches(instances.get(i))) {
+          continue;
+        }
+
+        bindInsert(bindings, ids.get(i), instances.get(i), indexDef, schema);
+        bindings.bindToStatement(batch.add());
+        added += 1;
+      }
+
+      if (added == 0) {
+        continue;
+      }
+
+      try {
+        batch.execute();
+      } catch (UnableToExecuteStatementException e) {
+        if (tableHelper.isConstraintViolation(e)) {
+          throw new KazukiException("unique index constraint violation");
+        } else {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Decodes the stored entity value of a KV row ("_format", "_compression" and "_value" columns)
+   * into the packed form expected by the index tables.
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decode(Handle handle, String type, Map<String, Object> row,
+      Schema schema, FieldTransform fieldTransform, StructureTransform structureTransform)
+      throws Exception {
+    ValueFormat format = ValueFormat.fromCode(row.get("_format"));
+    byte[] value = compression.uncompress(handle, row);
+
+    if (!ValueFormat.SMILE.equals(format)) {
+      return format.decodePacked(schema, value, stringDictionaries.forType(handle, type));
+    }
+
+    Object parsed = EncodingHelper.parseSmile(value, Object.class);
+
+    return (parsed instanceof List) ? structureTransform.unpack((List<Object>) parsed)
+        : fieldTransform.pack((Map<String, Object>) parsed);
+  }
+
+  /**
+   * Splits the inclusive id range [lo, hi] into consecutive inclusive chunks of at most chunkSize
+   * ids each.
+   */
+  public static List<KeyRange> partition(long lo, long hi, long chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+
+    if (hi < lo) {
+      return Collections.emptyList();
+    }
+
+    List<KeyRange> chunks = new ArrayList<KeyRange>();
+    long start = lo;
+
+    while (true) {
+      long end = (hi - start < chunkSize) ? hi : start + chunkSize - 1;
+      chunks.add(new KeyRange(start, end));
+
+      if (end == hi) {
+        break;
+      }
+
+      start = end + 1;
+    }
+
+    return chunks;
+  }
+
+  /**
+   * Stops the workers; a later rebuild starts a new pool.
+   */
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kazuki-index-rebuild-" + groupName + "-" + storeName + "-%d")
+              .build());
+    }
+
+    return executor;
+  }
+
+  private KeyRange getKeyRange(Handle handle, Integer typeId) {
+    Query<Map<String, Object>> select =
+        JDBIHelper.getBoundQuery(handle, tableHelper.getPrefix(), "kv_table_name", kvTableName,
+            "kv_key_id_range_of_type");
+    select.bind("key_type", typeId);
+
+    Map<String, Object> row = select.first();
+    if (row == null || row.get("_min") == null) {
+      return null;
+    }
+
+    return new KeyRange(((Number) row.get("_min")).longValue(),
+        ((Number) row.get("_max")).longValue());
+  }
+
+  private int rebuildChunk(Handle handle, String type, Integer typeId, Schema schema,
+      String partitionName, KeyRange chunk) throws Exception {
+    Query<Map<String, Object>> select =
+        JDBIHelper.getBoundQuery(handle, tableHelper.getPrefix(), "kv_table_name", kvTableName,
+            "kv_key_values_of_type_between");
+    select.bind("key_type", typeId);
+    select.bind("key_id_lo_min", chunk.getLo());
+    select.bind("key_id_lo_max", chunk.getHi());
+
+    FieldTransform fieldTransform = new FieldTransform(schema);
+    StructureTransform structureTransform = new StructureTransform(schema);
+
+    List<Long> ids = new ArrayList<Long>(batchSize);
+    List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>(batchSize);
+    int count = 0;
+
+    for (Map<String, Object> row : select) {
+      ids.add(((Number) row.get("_key_id_lo")).longValue());
+      instances.add(decode(handle, type, row, schema, fieldTransform, structureTransform));
+      count += 1;
+
+      if (ids.size() >= batchSize) {
+        insertBatch(handle, type, schema, partitionName, ids, instances);
+        ids.clear();
+        instances.clear();
+      }
+    }
+
+    insertBatch(handle, type, schema, partitionName, ids, instances);
+
+    return count;
+  }
+
+  private void bindInsert(SqlParamBindings bindings, Long id, Map<String, Object> value,
+      IndexDefinition indexDefinition, Schema schema) {
+    bindings.bind("id", id, Attribute.Type.U64);
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      String attrName = attr.getName();
+      if ("id".equals(attrName)) {
+        continue;
+      }
+
+      Object v = value.get(attrName) != null ? value.get(attrName).toString() : null;
+
+      bindings.bind(attrName, tableHelper.transformAttributeValue(v, attr),
+          schema.getAttribute(attrName).getType());
+    }
+  }
+
+  private static void cancelAll(List<Future<Integer>> results) {
+    for (Future<Integer> result : results) {
+      result.cancel(true);
+    }
+  }
+
+  /**
+   * Inclusive range of key ids.
+   */
+  public static class KeyRange {
+    private final long lo;
+    private final long hi;
+
+    public KeyRange(long lo, long hi) {
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    public long getLo() {
+      return lo;
+    }
+
+    public long getHi() {
+      return hi;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof KeyRange)) {
+        return false;
+      }
+
+      KeyRange other = (KeyRange) obj;
+
+      return lo == other.lo && hi == other.hi;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (lo ^ (lo >>> 32)) * 31 + (int) (hi ^ (hi >>> 32));
+    }
+
+    @Override
+    public String toString() {
+      return "[" + lo + ", " + hi + "]";
+    }
+  }
+
+  /**
+   * Progress of a running rebuild; safe to read from any thread.
+   */
+  public static class Progress {
+    private final AtomicInteger chunksTotal = new AtomicInteger();
+    private final AtomicInteger chunksCompleted = new AtomicInteger();
+    private final AtomicLong entitiesIndexed = new AtomicLong();
+    private volatile long startedAt = 0L;
+
+    void start(int chunks) {
+      this.chunksTotal.set(chunks);
+      this.startedAt = System.currentTimeMillis();
+    }
+
+    void chunkCompleted(int entities) {
+      this.entitiesIndexed.addAndGet(entities);
+      this.chunksCompleted.incrementAndGet();
+    }
+
+    public int getChunksTotal() {
+      return chunksTotal.get();
+    }
+
+    public int getChunksCompleted() {
+      return chunksCompleted.get();
+    }
+
+    public long getEntitiesIndexed() {
+      return entitiesIndexed.get();
+    }
+
+    public long getElapsedMillis() {
+      return startedAt == 0L ? 0L : System.currentTimeMillis() - startedAt;
+    }
+
+    @Override
+    public String toString() {
+      return chunksCompleted.get() + "/" + chunksTotal.get() + " chunks, "
+          + entitiesIndexed.get() + " entities, " + getElapsedMillis() + " ms";
+    }
+  }
+}
@@ -16,9 +16,10 @@
 package io.kazuki.v0.store.index;
 
 import io.kazuki.v0.internal.helper.OpaquePaginationHelper;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Key;
-import io.kazuki.v0.store.index.query.QueryEvaluator;
+import io.kazuki.v0.store.index.query.QueryCompiler;
 import io.kazuki.v0.store.index.query.QueryHelper;
 import io.kazuki.v0.store.index.query.QueryTerm;
 import io.kazuki.v0.store.index.query.ValueHolder;
@@ -29,6 +30,8 @@ import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
 import io.kazuki.v0.store.management.ComponentDescriptor;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.management.KazukiComponent;
@@ -40,6 +43,8 @@ import io.kazuki.v0.store.schema.model.Schema;
 import io.kazuki.v0.store.sequence.ResolvedKey;
 import io.kazuki.v0.store.sequence.SequenceService;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -49,7 +54,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import org.skife.jdbi.v2.Handle;
@@ -57,14 +65,20 @@ import org.skife.jdbi.v2.Handle;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
 public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport {
+  /** Number of entities retrieved and filtered per task in parallel query mode */
+  public static final int PARALLEL_CHUNK_SIZE = 250;
+
   private final SequenceService sequenceService;
   private final KeyValueStore kvStore;
   private final SchemaStore schemaStore;
+  private final int queryParallelism;
+  private volatile ForkJoinPool queryPool;
   private final ComponentDescriptor<SecondaryIndexStore> componentDescriptor;
 
   @Inject
@@ -73,6 +87,7 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
     this.sequenceService = sequenceService;
     this.kvStore = kvStore;
     this.schemaStore = schemaStore;
+    this.queryParallelism = config.getQueryParallelism();
     this.componentDescriptor =
         new ComponentDescriptorImpl<SecondaryIndexStore>("KZ:SecondaryIndexStore:"
             + config.getGroupName() + "-" + config.getStoreName(), SecondaryIndexStore.class,
@@ -102,6 +117,34 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
     schemaStore.addListener(this);
   }
 
+  /**
+   * The parallel query pool (if configured) runs from start to shutdown; queries outside of that
+   * scan sequentially.
+   */
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        synchronized (SecondaryIndexStoreBruteForceImpl.this) {
+          if (queryParallelism > 1 && queryPool == null) {
+            queryPool = new ForkJoinPool(queryParallelism);
+          }
+        }
+      }
+
+      @Override
+      public void shutdown() {
+        synchronized (SecondaryIndexStoreBruteForceImpl.this) {
+          if (queryPool != null) {
+            queryPool.shutdownNow();
+            queryPool = null;
+          }
+        }
+      }
+    });
+  }
+
   @Override
   public void onSchemaCreate(String type, Schema schema) {}
 
@@ -267,26 +310,20 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
   public <T> KeyValueIterable<Key> queryWithoutPagination(final String type, final Class<T> clazz,
       final String indexName, final List<QueryTerm> query, final SortDirection sortDirection,
       final Long offset, final Long limit) {
-    Schema schema = null;
-    try {
-      schema = schemaStore.retrieveSchema(type).getValue();
-    } catch (KazukiException e) {
-      throw Throwables.propagate(e);
-    }
-
-    Preconditions.checkNotNull(schema, "schema");
+    Schema schema = getSchema(type);
     SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
 
-    final QueryEvaluator eval = new QueryEvaluator();
+    final Predicate<Object> filter = compileQuery(schema, indexName, query);
+
+    ForkJoinPool pool = queryPool;
+
+    if (pool != null) {
+      return new ParallelFilteredKeyValueIterable(kvStore, type, sortDirection, filter, pool,
+          PARALLEL_CHUNK_SIZE, offset, limit);
+    }
 
     return new FilteredKeyValueIterable<Key>(kvStore.iterators().entries(type, LinkedHashMap.class,
-        sortDirection), new Predicate<Object>() {
-      @SuppressWarnings("unchecked")
-      @Override
-      public boolean apply(Object instance) {
-        return eval.matches((LinkedHashMap<String, Object>) instance, query);
-      }
-    }, new Function<KeyValuePair<?>, Key>() {
+        sortDirection), filter, new Function<KeyValuePair<?>, Key>() {
       @Override
       public Key apply(KeyValuePair<?> instance) {
         return instance.getKey();
@@ -304,6 +341,108 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
         sortDirection, offset, limit);
   }
 
+  @SuppressWarnings("rawtypes")
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    Schema schema = getSchema(type);
+    SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+
+    Predicate<Object> filter = compileQuery(schema, indexName, query);
+    long count = 0L;
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> iter =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> kvPair : iter) {
+        if (filter.apply(kvPair.getValue())) {
+          count += 1;
+        }
+      }
+    }
+
+    return count;
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return count(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  @Nullable
+  public BigInteger aggregate(String type, String indexName, List<QueryTerm> query,
+      AggregateFunction function, String attributeName) {
+    Preconditions.checkNotNull(function, "function");
+
+    Schema schema = getSchema(type);
+    SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+    SecondaryIndexQueryValidation.validateAggregate(indexName, attributeName, schema);
+
+    Predicate<Object> filter = compileQuery(schema, indexName, query);
+    FieldTransform transform = new FieldTransform(schema);
+    BigInteger result = null;
+    BigInteger sum = BigInteger.ZERO;
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> iter =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> kvPair : iter) {
+        Object value = kvPair.getValue().get(attributeName);
+
+        if (value == null || !filter.apply(kvPair.getValue())) {
+          continue;
+        }
+
+        // aggregate the packed (index column) form, e.g. epoch seconds for UTC_DATE_SECS
+        Object packed = transform.transformValue(attributeName, value);
+        BigInteger number = new BigDecimal(packed.toString()).toBigInteger();
+
+        switch (function) {
+          case MIN:
+            result = (result == null) ? number : result.min(number);
+            break;
+          case MAX:
+            result = (result == null) ? number : result.max(number);
+            break;
+          case SUM:
+            sum = sum.add(number);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown aggregate: " + function);
+        }
+      }
+    }
+
+    return AggregateFunction.SUM.equals(function) ? sum : result;
+  }
+
+  @Override
+  @Nullable
+  public BigInteger aggregate(String type, String indexName, String queryString,
+      AggregateFunction function, String attributeName) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return aggregate(type, indexName, QueryHelper.parseQuery(queryString), function,
+        attributeName);
+  }
+
+  @Override
+  public boolean awaitIndexUpdates(long timeout, TimeUnit unit) {
+    // queries scan the KV store, so there is nothing to wait for
+    return true;
+  }
+
+  @Override
+  public long getPendingIndexUpdates() {
+    return 0L;
+  }
+
+  @Override
+  public long getIndexLagMillis() {
+    return 0L;
+  }
+
   @Override
   public <T> QueryResultsPage<T> queryWithPagination(final String type, final Class<T> clazz,
       final String indexName, final List<QueryTerm> query, final SortDirection sortDirection,
@@ -344,6 +483,36 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
         sortDirection, loadResults, token, limit);
   }
 
+  /**
+   * Compiles the query against the index, also requiring the filter of a partial index (which
+   * only holds matching entities).
+   */
+  private static Predicate<Object> compileQuery(Schema schema, String indexName,
+      List<QueryTerm> query) {
+    IndexDefinition indexDef = schema.getIndex(indexName);
+    Predicate<Object> predicate = QueryCompiler.compile(query, schema, indexDef);
+    IndexFilter indexFilter = IndexFilter.forIndex(schema, indexDef);
+
+    if (indexFilter == null) {
+      return predicate;
+    }
+
+    return Predicates.and(predicate, QueryCompiler.compile(indexFilter.getTerms(), schema, null));
+  }
+
+  private Schema getSchema(String type) {
+    Schema schema = null;
+    try {
+      schema = schemaStore.retrieveSchema(type).getValue();
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    Preconditions.checkNotNull(schema, "schema");
+
+    return schema;
+  }
+
   private IndexDefinition getUniqueIndexDef(Schema schema) {
     for (IndexDefinition indexDef : schema.getIndexes()) {
       if (indexDef.isUnique()) {
@@ -0,0 +1,549 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.OpaquePaginationHelper;
+import io.kazuki.v0.internal.helper.TransactionHooks;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.management.KazukiComponent;
+import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+
+/**
+ * SecondaryIndexSupport implementation that keeps every index in memory (see
+ * InMemorySecondaryIndex). Indexes are rebuilt from a KV scan on lifecycle start (or lazily on first
+ * use of a type) and maintained through the KeyValueStoreListener hooks, which the KV store invokes
+ * while holding the store lock; queries never touch the database. Changes are applied once the KV
+ * transaction commits (see TransactionHooks), so failed or rolled back writes never show up in the
+ * indexes.
+ */
+public class SecondaryIndexStoreInMemoryImpl implements SecondaryIndexSupport {
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final SecondaryIndexTableHelper tableHelper;
+  private final ConcurrentHashMap<String, Map<String, InMemorySecondaryIndex>> indexes;
+  private final TypeStateLoader<Map<String, InMemorySecondaryIndex>> loader;
+  private final ComponentDescriptor<SecondaryIndexStore> componentDescriptor;
+
+  @Inject
+  public SecondaryIndexStoreInMemoryImpl(LockManager lockManager, SequenceService sequence,
+      SchemaStore schemaStore, KeyValueStore kvStore, SecondaryIndexTableHelper tableHelper,
+      String groupName, String storeName, String partitionName) {
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.tableHelper = tableHelper;
+    this.indexes = new ConcurrentHashMap<String, Map<String, InMemorySecondaryIndex>>();
+    this.loader =
+        new TypeStateLoader<Map<String, InMemorySecondaryIndex>>("in-memory indexes",
+            lockManager, sequence, schemaStore, kvStore, indexes) {
+          @Override
+          protected Map<String, InMemorySecondaryIndex> load(String type, Schema schema) {
+            return buildIndexes(schema, SecondaryIndexStoreInMemoryImpl.this.kvStore.iterators()
+                .entries(type, LinkedHashMap.class, SortDirection.ASCENDING));
+          }
+        };
+    this.componentDescriptor =
+        new ComponentDescriptorImpl<SecondaryIndexStore>("KZ:SecondaryIndexStore:" + groupName
+            + "-" + storeName + "-" + partitionName, SecondaryIndexStore.class,
+            (SecondaryIndexStore) this, new ImmutableList.Builder().add(
+                ((KazukiComponent) this.lockManager).getComponentDescriptor(),
+                ((KazukiComponent) this.sequence).getComponentDescriptor(),
+                ((KazukiComponent) this.schemaStore).getComponentDescriptor(),
+                ((KazukiComponent) this.kvStore).getComponentDescriptor()).build());
+  }
+
+  @Override
+  public ComponentDescriptor<SecondaryIndexStore> getComponentDescriptor() {
+    return this.componentDescriptor;
+  }
+
+  @Override
+  @Inject
+  public void registerAsComponent(ComponentRegistrar manager) {
+    manager.register(this.componentDescriptor);
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    kvStore.addListener(this);
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    schemaStore.addListener(this);
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        loader.loadAll();
+      }
+
+      @Override
+      public void stop() {
+        indexes.clear();
+      }
+    });
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(final String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, final SortDirection sortDirection,
+      @Nullable final Long offset, @Nullable final Long limit) {
+    try {
+      KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+      Preconditions.checkNotNull(schemaKv, "schema");
+
+      Schema schema = schemaKv.getValue();
+      SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+
+      final InMemorySecondaryIndex index = getIndexes(type, schema).get(indexName);
+      Preconditions.checkNotNull(index, "index");
+
+      final Map<String, List<QueryTerm>> termMap =
+          tableHelper.sortTerms(schema.getIndex(indexName), query);
+      final FieldTransform transform = new FieldTransform(schema);
+
+      return new KeyValueIterable<Key>() {
+        @Override
+        public KeyValueIterator<Key> iterator() {
+          Iterator<Long> ids = index.query(termMap, sortDirection, transform);
+
+          if (offset != null) {
+            Iterators.advance(ids, offset.intValue());
+          }
+
+          if (limit != null) {
+            ids = Iterators.limit(ids, limit.intValue());
+          }
+
+          final Iterator<Key> keys = Iterators.transform(ids, new Function<Long, Key>() {
+            @Override
+            public Key apply(Long id) {
+              return KeyImpl.createInternal(type, id);
+            }
+          });
+
+          return new KeyValueIterator<Key>() {
+            @Override
+            public boolean hasNext() {
+              return keys.hasNext();
+            }
+
+            @Override
+            public Key next() {
+              return keys.next();
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException("not supported - yet");
+            }
+
+            @Override
+            public void close() {}
+          };
+        }
+
+        @Override
+        public void close() {}
+      };
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String indexName, String queryString, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return queryWithoutPagination(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz, String indexName,
+      List<QueryTerm> query, SortDirection sortDirection, Boolean loadResults, PageToken token,
+      Long limit) {
+    try {
+      KeyValueIterable<Key> kvIter =
+          queryWithoutPagination(type, clazz, indexName, query, sortDirection,
+              OpaquePaginationHelper.decodeOpaqueCursor(token.getToken()), limit);
+      List<KeyValuePair<T>> kvPairs = new ArrayList<KeyValuePair<T>>();
+
+      if (loadResults) {
+        List<Key> toRetrieve = new ArrayList<Key>();
+        Iterators.addAll(toRetrieve, kvIter.iterator());
+
+        Map<Key, KeyValuePair<T>> resultMap = kvStore.multiRetrieveVersioned(toRetrieve, clazz);
+
+        for (Map.Entry<Key, KeyValuePair<T>> entry : resultMap.entrySet()) {
+          kvPairs.add(new KeyValuePair<T>(entry.getKey(), entry.getValue().getVersion(), entry
+              .getValue().getSchemaVersion(), entry.getValue().getValue()));
+        }
+      } else {
+        for (Key key : kvIter) {
+          kvPairs.add(new KeyValuePair<T>(key, null, null, null));
+        }
+      }
+
+      return new QueryResultsPageImpl<T>(kvPairs, loadResults);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz, String indexName,
+      String queryString, SortDirection sortDirection, Boolean loadResults, PageToken token,
+      Long limit) {
+    return queryWithPagination(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        sortDirection, loadResults, token, limit);
+  }
+
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    try {
+      Schema schema = getSchema(type);
+      SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+
+      InMemorySecondaryIndex index = getIndexes(type, schema).get(indexName);
+      Preconditions.checkNotNull(index, "index");
+
+      return index.count(tableHelper.sortTerms(schema.getIndex(indexName), query),
+          new FieldTransform(schema));
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return count(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public BigInteger aggregate(String type, String indexName, List<QueryTerm> query,
+      AggregateFunction function, String attributeName) {
+    Preconditions.checkNotNull(function, "function");
+
+    try {
+      Schema schema = getSchema(type);
+      SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+      SecondaryIndexQueryValidation.validateAggregate(indexName, attributeName, schema);
+
+      InMemorySecondaryIndex index = getIndexes(type, schema).get(indexName);
+      Preconditions.checkNotNull(index, "index");
+
+      return index.aggregate(tableHelper.sortTerms(schema.getIndex(indexName), query),
+          new FieldTransform(schema), function, attributeName);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public BigInteger aggregate(String type, String indexName, String queryString,
+      AggregateFunction function, String attributeName) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return aggregate(type, indexName, QueryHelper.parseQuery(queryString), function,
+        attributeName);
+  }
+
+  @Override
+  public boolean awaitIndexUpdates(long timeout, TimeUnit unit) {
+    // in-memory indexes are always maintained synchronously
+    return true;
+  }
+
+  @Override
+  public long getPendingIndexUpdates() {
+    return 0L;
+  }
+
+  @Override
+  public long getIndexLagMillis() {
+    return 0L;
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  @Override
+  public Map<UniqueEntityDescription, Object> multiRetrieveUniqueEntities(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    Map<UniqueEntityDescription, Key> keys = multiRetrieveUniqueKeys(entityDefinitions);
+    Map<UniqueEntityDescription, Object> resultMap = new LinkedHashMap<>();
+
+    for (Map.Entry<UniqueEntityDescription, Key> entry : keys.entrySet()) {
+      UniqueEntityDescription desc = entry.getKey();
+      Key key = entry.getValue();
+
+      try {
+        resultMap.put(desc, key == null ? null : kvStore.retrieve(key, desc.getClazz()));
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    return Collections.unmodifiableMap(resultMap);
+  }
+
+  @Override
+  public Map<UniqueEntityDescription, Key> multiRetrieveUniqueKeys(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    LinkedHashMap<UniqueEntityDescription, Key> inOrderResultMap = new LinkedHashMap<>();
+
+    for (UniqueEntityDescription<?> desc : entityDefinitions) {
+      List<QueryTerm> query = new ArrayList<QueryTerm>();
+      query.addAll(desc.getColumnDefinitions().values());
+
+      try (KeyValueIterator<Key> result =
+          this.queryWithoutPagination(desc.getType(), desc.getClazz(), desc.getIndexName(), query,
+              SortDirection.ASCENDING, 0L, 1L).iterator()) {
+        inOrderResultMap.put(desc, result.hasNext() ? result.next() : null);
+      }
+    }
+
+    return Collections.unmodifiableMap(inOrderResultMap);
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+    for (InMemorySecondaryIndex index : getIndexes(type, schema).values()) {
+      if (index.getIndexDefinition().isUnique()
+          && index.hasConflict(resolvedKey.getIdentifierLo(), instance)) {
+        throw new KazukiException("unique index constraint violation");
+      }
+    }
+  }
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> instance) {
+    final Map<String, InMemorySecondaryIndex> typeIndexes = indexes.get(type);
+
+    if (typeIndexes == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (InMemorySecondaryIndex index : typeIndexes.values()) {
+          index.insert(id, instance);
+        }
+      }
+    });
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> newInstance,
+      final Map<String, Object> oldInstance) {
+    final Map<String, InMemorySecondaryIndex> typeIndexes = indexes.get(type);
+
+    if (typeIndexes == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (InMemorySecondaryIndex index : typeIndexes.values()) {
+          index.update(id, newInstance, oldInstance);
+        }
+      }
+    });
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> oldInstance) {
+    final Map<String, InMemorySecondaryIndex> typeIndexes = indexes.get(type);
+
+    if (typeIndexes == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (InMemorySecondaryIndex index : typeIndexes.values()) {
+          index.delete(id, oldInstance);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void clear(Handle handle, final Map<String, Schema> typeToSchemaMap,
+      final boolean preserveSchema) {
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        clearIndexes(typeToSchemaMap, preserveSchema);
+      }
+    });
+  }
+
+  private void clearIndexes(Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      for (String type : typeToSchemaMap.keySet()) {
+        Map<String, InMemorySecondaryIndex> typeIndexes = indexes.get(type);
+
+        if (typeIndexes == null) {
+          continue;
+        }
+
+        if (preserveSchema) {
+          for (InMemorySecondaryIndex index : typeIndexes.values()) {
+            index.clear();
+          }
+        } else {
+          indexes.remove(type);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.put(type, createIndexes(schema));
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.put(type, buildIndexes(newSchema, entityCollection));
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.remove(type);
+    }
+  }
+
+  private Schema getSchema(String type) throws KazukiException {
+    KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+    Preconditions.checkNotNull(schemaKv, "schema");
+
+    return schemaKv.getValue();
+  }
+
+  private Map<String, InMemorySecondaryIndex> getIndexes(String type, Schema schema) {
+    return loader.get(type, schema);
+  }
+
+  private Map<String, InMemorySecondaryIndex> createIndexes(Schema schema) {
+    Map<String, InMemorySecondaryIndex> typeIndexes =
+        new LinkedHashMap<String, InMemorySecondaryIndex>();
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      typeIndexes.put(indexDef.getName(), new InMemorySecondaryIndex(indexDef, schema));
+    }
+
+    return Collections.unmodifiableMap(typeIndexes);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, InMemorySecondaryIndex> buildIndexes(Schema schema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    Map<String, InMemorySecondaryIndex> typeIndexes = createIndexes(schema);
+    FieldTransform fieldTransform = new FieldTransform(schema);
+
+    try {
+      for (KeyValuePair<LinkedHashMap> entity : entityCollection) {
+        Map<String, Object> fieldTransformed = fieldTransform.pack(entity.getValue());
+        long id = sequence.resolveKey(entity.getKey()).getIdentifierLo();
+
+        for (InMemorySecondaryIndex index : typeIndexes.values()) {
+          index.insert(id, fieldTransformed);
+        }
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      entityCollection.close();
+    }
+
+    return typeIndexes;
+  }
+}
@@ -23,6 +23,7 @@ import io.kazuki.v0.internal.helper.LogTranslation;
 import io.kazuki.v0.internal.helper.OpaquePaginationHelper;
 import io.kazuki.v0.internal.helper.SqlParamBindings;
 import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.internal.v2schema.compact.StructureTransform;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Key;
 import io.kazuki.v0.store.index.query.QueryHelper;
@@ -35,12 +36,18 @@ import io.kazuki.v0.store.keyvalue.KeyValuePair;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteratorJdbiImpl.KeyValueIterableJdbiImpl;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.keyvalue.StringDictionaries;
+import io.kazuki.v0.store.keyvalue.ValueCompression;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
 import io.kazuki.v0.store.management.ComponentDescriptor;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.management.KazukiComponent;
 import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
 import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreImpl;
 import io.kazuki.v0.store.schema.SchemaStoreRegistration;
 import io.kazuki.v0.store.schema.model.Attribute;
 import io.kazuki.v0.store.schema.model.IndexAttribute;
@@ -49,12 +56,22 @@ import io.kazuki.v0.store.schema.model.Schema;
 import io.kazuki.v0.store.sequence.ResolvedKey;
 import io.kazuki.v0.store.sequence.SequenceService;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -69,11 +86,30 @@ import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.slf4j.Logger;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
+  /** Number of entities copied into the shadow index tables per backfill transaction */
+  public static final int BACKFILL_BATCH_SIZE = 500;
+
+  /** Upper bound on backfill throughput, to leave room for foreground traffic */
+  public static final double BACKFILL_MAX_ROWS_PER_SECOND = 5000.0;
+
+  /** Number of workers used by a full (offline) index rebuild */
+  public static final int REBUILD_WORKERS = Math.max(1,
+      Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /** Delay between background passes applying the outbox of async indexes */
+  public static final long ASYNC_APPLY_INTERVAL_MS = 100L;
+
+  /** Number of outbox entries applied to the async indexes per transaction */
+  public static final int ASYNC_APPLY_BATCH_SIZE = 500;
+
   private final Logger log = LogTranslation.getLogger(getClass());
 
   private final AvailabilityManager availability;
@@ -87,6 +123,21 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   private final String groupName;
   private final String storeName;
   private final String partitionName;
+  private final String shadowPartitionName;
+  private final String retiredPartitionName;
+  private final String kvTableName;
+  private final ConcurrentHashMap<String, Backfill> backfills;
+  private final Object executorLock;
+  private ExecutorService backfillExecutor;
+  private final ReadWriteLock swapLock;
+  private final SecondaryIndexRebuilder rebuilder;
+  private final ConcurrentHashMap<String, SecondaryIndexRebuilder.Progress> rebuilds;
+  private final IndexOutbox outbox;
+  private volatile ScheduledExecutorService applyExecutor;
+  private final Runnable applyTask;
+  private final Object appliedMonitor;
+  private long appliedThrough;
+  private volatile boolean started;
   private final ComponentDescriptor<SecondaryIndexStore> componentDescriptor;
 
   @Inject
@@ -105,6 +156,31 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     this.groupName = groupName;
     this.storeName = storeName;
     this.partitionName = partitionName;
+    this.shadowPartitionName = partitionName + "__shadow";
+    this.retiredPartitionName = partitionName + "__retired";
+    this.kvTableName = KeyValueStoreJdbiBaseImpl.getTableName(groupName, storeName, partitionName);
+    this.backfills = new ConcurrentHashMap<String, Backfill>();
+    this.executorLock = new Object();
+    this.swapLock = new ReentrantReadWriteLock();
+    this.rebuilder =
+        new SecondaryIndexRebuilder(database, tableHelper, kvTableName, groupName, storeName,
+            REBUILD_WORKERS, SecondaryIndexRebuilder.DEFAULT_CHUNK_SIZE,
+            SecondaryIndexRebuilder.DEFAULT_BATCH_SIZE, new ValueCompression(sequence, tableHelper
+                .getPrefix(), kvTableName), new StringDictionaries(tableHelper.getPrefix(),
+                kvTableName));
+    this.rebuilds = new ConcurrentHashMap<String, SecondaryIndexRebuilder.Progress>();
+    this.outbox = new IndexOutbox(database, tableHelper, groupName, storeName, partitionName);
+    this.applyTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          applyOutbox(outbox.getLastSequence());
+        } catch (Exception e) {
+          log.warn("Unable to apply async index updates", e);
+        }
+      }
+    };
+    this.appliedMonitor = new Object();
     this.componentDescriptor =
         new ComponentDescriptorImpl<SecondaryIndexStore>("KZ:SecondaryIndexStore:" + groupName
             + "-" + storeName + "-" + partitionName, SecondaryIndexStore.class,
@@ -136,13 +212,62 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     schemaStore.addListener(this);
   }
 
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        outbox.start();
+
+        synchronized (appliedMonitor) {
+          // every entry still in the outbox is unapplied, and sequences restart after its max
+          appliedThrough = 0L;
+        }
+
+        started = true;
+
+        if (outbox.getLastSequence() > 0L) {
+          startApplying();
+        }
+
+        recoverInterruptedRebuilds();
+      }
+
+      @Override
+      public void stop() {
+        started = false;
+        stopApplying();
+
+        applyOutbox(outbox.getLastSequence());
+      }
+
+      @Override
+      public void shutdown() {
+        for (Backfill backfill : backfills.values()) {
+          backfill.cancelled = true;
+        }
+
+        stopApplying();
+
+        synchronized (executorLock) {
+          if (backfillExecutor != null) {
+            backfillExecutor.shutdownNow();
+            backfillExecutor = null;
+          }
+        }
+
+        rebuilder.shutdown();
+      }
+    });
+  }
+
   @Override
   public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
       String indexName, List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
       @Nullable Long limit) {
     try {
       return this.doIndexQuery(database, type, indexName, query, sortDirection, offset, limit,
-          false, schemaStore.retrieveSchema(type).getValue());
+          false, getLiveSchema(type));
     } catch (Exception e) {
       throw Throwables.propagate(e);
     }
@@ -197,6 +322,50 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
         sortDirection, loadResults, token, limit);
   }
 
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    try {
+      Number count = doIndexAggregate(type, indexName, query, null, null, getLiveSchema(type));
+
+      return (count == null) ? 0L : count.longValue();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    return count(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public BigInteger aggregate(String type, String indexName, List<QueryTerm> query,
+      AggregateFunction function, String attributeName) {
+    Preconditions.checkNotNull(function, "function");
+
+    try {
+      Schema schema = getLiveSchema(type);
+      SecondaryIndexQueryValidation.validateAggregate(indexName, attributeName, schema);
+
+      Number value = doIndexAggregate(type, indexName, query, function, attributeName, schema);
+
+      if (value == null) {
+        return AggregateFunction.SUM.equals(function) ? BigInteger.ZERO : null;
+      }
+
+      return new BigDecimal(value.toString()).toBigInteger();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public BigInteger aggregate(String type, String indexName, String queryString,
+      AggregateFunction function, String attributeName) {
+    return aggregate(type, indexName, QueryHelper.parseQuery(queryString), function,
+        attributeName);
+  }
+
   @Override
   public Map<UniqueEntityDescription, Object> multiRetrieveUniqueEntities(
       Collection<UniqueEntityDescription> entityDefinitions) {
@@ -278,7 +447,7 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
     IndexDefinition uniqueIndexDef = getUniqueIndexDef(schema);
 
-    if (uniqueIndexDef != null) {
+    if (uniqueIndexDef != null && IndexFilter.includes(schema, uniqueIndexDef, instance)) {
       Map<String, ValueHolder> values = new LinkedHashMap<String, ValueHolder>();
 
       for (String attr : uniqueIndexDef.getAttributeNames()) {
@@ -301,9 +470,30 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> instance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
-        for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.insertEntity(handle, resolvedKey.getIdentifierLo(), instance, type,
-              indexDef.getName(), schema);
+        Long id = resolvedKey.getIdentifierLo();
+        Backfill backfill = backfills.get(type);
+        Schema liveSchema = (backfill != null) ? backfill.liveSchema : schema;
+
+        for (IndexDefinition indexDef : getSyncIndexes(liveSchema)) {
+          this.insertEntity(handle, id, instance, type, indexDef.getName(), liveSchema,
+              partitionName);
+        }
+
+        if (hasAsyncIndexes(liveSchema)) {
+          appendToOutbox(handle, type, partitionName, IndexOutbox.Operation.CREATE, id, instance,
+              null);
+        }
+
+        if (backfill != null && backfill.isCopied(id)) {
+          for (IndexDefinition indexDef : getSyncIndexes(backfill.newSchema)) {
+            this.insertEntity(handle, id, instance, type, indexDef.getName(), backfill.newSchema,
+                shadowPartitionName);
+          }
+
+          if (hasAsyncIndexes(backfill.newSchema)) {
+            appendToOutbox(handle, type, shadowPartitionName, IndexOutbox.Operation.CREATE, id,
+                instance, null);
+          }
         }
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
@@ -316,9 +506,30 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
-        for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.updateEntity(handle, resolvedKey.getIdentifierLo(), newInstance, oldInstance, type,
-              indexDef.getName(), schema);
+        Long id = resolvedKey.getIdentifierLo();
+        Backfill backfill = backfills.get(type);
+        Schema liveSchema = (backfill != null) ? backfill.liveSchema : schema;
+
+        for (IndexDefinition indexDef : getSyncIndexes(liveSchema)) {
+          this.updateEntity(handle, id, newInstance, oldInstance, type, indexDef.getName(),
+              liveSchema, partitionName);
+        }
+
+        if (hasAsyncIndexes(liveSchema)) {
+          appendToOutbox(handle, type, partitionName, IndexOutbox.Operation.UPDATE, id,
+              newInstance, oldInstance);
+        }
+
+        if (backfill != null && backfill.isCopied(id)) {
+          for (IndexDefinition indexDef : getSyncIndexes(backfill.newSchema)) {
+            this.updateEntity(handle, id, newInstance, oldInstance, type, indexDef.getName(),
+                backfill.newSchema, shadowPartitionName);
+          }
+
+          if (hasAsyncIndexes(backfill.newSchema)) {
+            appendToOutbox(handle, type, shadowPartitionName, IndexOutbox.Operation.UPDATE, id,
+                newInstance, oldInstance);
+          }
         }
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
@@ -331,9 +542,30 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> oldInstance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
-        for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.deleteEntity(handle, resolvedKey.getIdentifierLo(), type, oldInstance,
-              indexDef.getName(), schema);
+        Long id = resolvedKey.getIdentifierLo();
+        Backfill backfill = backfills.get(type);
+        Schema liveSchema = (backfill != null) ? backfill.liveSchema : schema;
+
+        for (IndexDefinition indexDef : getSyncIndexes(liveSchema)) {
+          this.deleteEntity(handle, id, type, oldInstance, indexDef.getName(), liveSchema,
+              partitionName);
+        }
+
+        if (hasAsyncIndexes(liveSchema)) {
+          appendToOutbox(handle, type, partitionName, IndexOutbox.Operation.DELETE, id, null,
+              oldInstance);
+        }
+
+        if (backfill != null && backfill.isCopied(id)) {
+          for (IndexDefinition indexDef : getSyncIndexes(backfill.newSchema)) {
+            this.deleteEntity(handle, id, type, oldInstance, indexDef.getName(),
+                backfill.newSchema, shadowPartitionName);
+          }
+
+          if (hasAsyncIndexes(backfill.newSchema)) {
+            appendToOutbox(handle, type, shadowPartitionName, IndexOutbox.Operation.DELETE, id,
+                null, oldInstance);
+          }
         }
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
@@ -344,16 +576,38 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   @Override
   public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
     try (LockManager toRelease = lockManager.acquire()) {
+      outbox.removeTypes(handle, typeToSchemaMap.keySet());
+
       for (Map.Entry<String, Schema> entry : typeToSchemaMap.entrySet()) {
         String type = entry.getKey();
         Schema schema = entry.getValue();
+        Backfill backfill = backfills.remove(type);
+
+        if (backfill != null) {
+          backfill.cancelled = true;
+          dropShadowTables(handle, type, backfill);
+
+          // the live tables still have the old shape, but the schema store holds the new schema
+          for (IndexDefinition indexDef : backfill.liveSchema.getIndexes()) {
+            this.dropTableAndIndex(handle, type, indexDef.getName(), partitionName);
+          }
+
+          if (preserveSchema) {
+            for (IndexDefinition indexDef : backfill.newSchema.getIndexes()) {
+              createTable(handle, type, indexDef.getName(), backfill.newSchema, partitionName);
+              createIndex(handle, type, indexDef.getName(), backfill.newSchema, partitionName);
+            }
+          }
+
+          continue;
+        }
 
         for (IndexDefinition indexDef : schema.getIndexes()) {
           if (preserveSchema) {
             this.truncateTable(handle, type, indexDef.getName(), groupName, storeName,
                 partitionName);
           } else {
-            this.dropTableAndIndex(handle, type, indexDef.getName());
+            this.dropTableAndIndex(handle, type, indexDef.getName(), partitionName);
           }
         }
       }
@@ -364,113 +618,680 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   public void onSchemaCreate(String type, Schema schema) {
     try (LockManager toRelease = lockManager.acquire()) {
       for (IndexDefinition indexDef : schema.getIndexes()) {
-        createTable(database, type, indexDef.getName(), schema);
-        createIndex(database, type, indexDef.getName(), schema);
+        createTable(database, type, indexDef.getName(), schema, partitionName);
+        createIndex(database, type, indexDef.getName(), schema, partitionName);
       }
     }
   }
 
 
+  /**
+   * Rebuilds the indexes of the type online: new index tables are created under shadow names and
+   * backfilled in small, rate-limited batches on a background thread. Writes that arrive meanwhile
+   * keep maintaining the live tables, and also the shadow tables for entities the backfill has
+   * already copied. Queries are served from the live tables (using the old schema) until the
+   * backfill completes, at which point the shadow tables replace the live ones.
+   */
   @Override
   public void onSchemaUpdate(final String type, final Schema newSchema, final Schema oldSchema,
       final KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    // the backfill reads the KV table directly in id order rather than using entityCollection
+    entityCollection.close();
+
     try (LockManager toRelease = lockManager.acquire()) {
-      try {
-        for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
-          database.inTransaction(new TransactionCallback<Void>() {
-            public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-              dropTableAndIndex(handle, type, indexDef.getName());
+      // the live async indexes must be current before the backfill starts copying
+      applyOutbox(outbox.getLastSequence());
 
-              return null;
-            };
-          });
+      Backfill previous = backfills.remove(type);
+      Schema liveSchema = oldSchema;
+
+      if (previous != null) {
+        previous.cancelled = true;
+        liveSchema = previous.liveSchema;
+
+        dropShadowTables(type, previous);
+      }
+
+      for (IndexDefinition indexDef : newSchema.getIndexes()) {
+        createTable(database, type, indexDef.getName(), newSchema, shadowPartitionName);
+        createIndex(database, type, indexDef.getName(), newSchema, shadowPartitionName);
+      }
+
+      final Backfill backfill = new Backfill(type, liveSchema, newSchema);
+      backfills.put(type, backfill);
+
+      getBackfillExecutor().submit(new Runnable() {
+        @Override
+        public void run() {
+          runBackfill(backfill);
         }
+      });
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(final String type, final Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      final Backfill backfill = backfills.remove(type);
+      final Schema liveSchema = (backfill != null) ? backfill.liveSchema : oldSchema;
+
+      database.inTransaction(new TransactionCallback<Void>() {
+        @Override
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          outbox.removeTypes(handle, ImmutableList.of(type));
 
-        for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
-          createTable(database, type, indexDef.getName(), newSchema);
-          createIndex(database, type, indexDef.getName(), newSchema);
+          return null;
         }
+      });
 
-        final FieldTransform fieldTransform = new FieldTransform(oldSchema);
+      if (backfill != null) {
+        backfill.cancelled = true;
+        dropShadowTables(type, backfill);
+      }
 
+      for (final IndexDefinition indexDef : liveSchema.getIndexes()) {
         database.inTransaction(new TransactionCallback<Void>() {
-          @Override
           public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            for (KeyValuePair<LinkedHashMap> entity : entityCollection) {
-              Map<String, Object> fieldTransformed = fieldTransform.pack(entity.getValue());
-
-              SecondaryIndexStoreJdbiImpl.this.onCreate(handle, type, LinkedHashMap.class,
-                  newSchema, sequence.resolveKey(entity.getKey()), entity.getValue());
-            }
+            dropTableAndIndex(handle, type, indexDef.getName(), partitionName);
 
             return null;
-          }
+          };
         });
+      }
+    }
+  }
+
+  /**
+   * Rebuilds all indexes of the type from the KV table using the parallel rebuild engine, e.g. to
+   * repair index tables that have drifted from the entities. Unlike the online backfill performed
+   * on schema update, this holds the store lock (blocking writers) until the rebuild completes; the
+   * existing index tables keep serving queries until the rebuilt ones are swapped in.
+   */
+  public long rebuildIndexes(final String type) throws KazukiException {
+    try (LockManager toRelease = lockManager.acquire()) {
+      applyOutbox(outbox.getLastSequence());
+
+      Backfill previous = backfills.remove(type);
+      Schema schema = schemaStore.retrieveSchema(type).getValue();
+
+      if (previous != null) {
+        previous.cancelled = true;
+        dropShadowTables(type, previous);
+      }
+
+      Schema liveSchema = (previous != null) ? previous.liveSchema : schema;
+      Backfill rebuild = new Backfill(type, liveSchema, schema);
+
+      for (IndexDefinition indexDef : schema.getIndexes()) {
+        createTable(database, type, indexDef.getName(), schema, shadowPartitionName);
+        createIndex(database, type, indexDef.getName(), schema, shadowPartitionName);
+      }
+
+      SecondaryIndexRebuilder.Progress progress = new SecondaryIndexRebuilder.Progress();
+      rebuilds.put(type, progress);
+
+      // the rebuild workers can't take the store lock held here, so they must find these cached
+      Integer typeId = sequence.getTypeId(type, false);
+      sequence.hasType(ValueCompression.DICTIONARY_PREFIX);
+
+      try {
+        long count = rebuilder.rebuild(type, typeId, schema, shadowPartitionName, progress);
+
+        swapTables(rebuild);
+
+        return count;
+      } catch (KazukiException | RuntimeException e) {
+        dropShadowTablesUnlessSwapping(rebuild);
+
+        throw e;
       } finally {
-        entityCollection.close();
+        rebuilds.remove(type, progress);
       }
     }
   }
 
+  /**
+   * Returns the progress of a running {@link #rebuildIndexes(String)} call for the type, or null if
+   * none is running.
+   */
+  @Nullable
+  public SecondaryIndexRebuilder.Progress getRebuildProgress(String type) {
+    return rebuilds.get(type);
+  }
+
+  /**
+   * Returns true while an online index rebuild is in progress for the given type.
+   */
+  public boolean isRebuilding(String type) {
+    return backfills.containsKey(type);
+  }
+
   @Override
-  public void onSchemaDelete(final String type, final Schema oldSchema) {
-    try (LockManager toRelease = lockManager.acquire()) {
-      for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
-        database.inTransaction(new TransactionCallback<Void>() {
-          public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            dropTableAndIndex(handle, type, indexDef.getName());
+  public boolean awaitIndexUpdates(long timeout, TimeUnit unit) {
+    long target = outbox.getLastSequence();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
 
-            return null;
-          };
+    synchronized (appliedMonitor) {
+      if (appliedThrough >= target) {
+        return true;
+      }
+    }
+
+    // don't wait for the next scheduled pass
+    if (!submitApply()) {
+      applyTask.run();
+    }
+
+    synchronized (appliedMonitor) {
+      while (appliedThrough < target) {
+        long remaining = deadline - System.nanoTime();
+
+        if (remaining <= 0L) {
+          return false;
+        }
+
+        try {
+          TimeUnit.NANOSECONDS.timedWait(appliedMonitor, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public long getPendingIndexUpdates() {
+    return outbox.getPendingCount();
+  }
+
+  @Override
+  public long getIndexLagMillis() {
+    return outbox.getLagMillis();
+  }
+
+  /**
+   * Applies the outbox entries up to the given sequence number to the async indexes, in batches
+   * of ASYNC_APPLY_BATCH_SIZE (each applied and removed in one transaction).
+   */
+  private void applyOutbox(final long throughSequence) {
+    synchronized (appliedMonitor) {
+      if (appliedThrough >= throughSequence) {
+        return;
+      }
+    }
+
+    int applied;
+
+    do {
+      try (LockManager toRelease = lockManager.acquire()) {
+        applied = database.inTransaction(new TransactionCallback<Integer>() {
+          @Override
+          public Integer inTransaction(Handle handle, TransactionStatus status) throws Exception {
+            List<IndexOutbox.Entry> entries =
+                outbox.next(handle, throughSequence, ASYNC_APPLY_BATCH_SIZE);
+
+            for (IndexOutbox.Entry entry : entries) {
+              applyOutboxEntry(handle, entry);
+            }
+
+            outbox.remove(handle, entries);
+
+            return entries.size();
+          }
         });
       }
+    } while (applied == ASYNC_APPLY_BATCH_SIZE);
+
+    synchronized (appliedMonitor) {
+      appliedThrough = Math.max(appliedThrough, throughSequence);
+      appliedMonitor.notifyAll();
+    }
+  }
+
+  private void applyOutboxEntry(Handle handle, IndexOutbox.Entry entry) throws KazukiException {
+    String type = entry.getType();
+    String entryPartitionName = entry.getPartitionName();
+    Schema schema;
+
+    if (partitionName.equals(entryPartitionName)) {
+      schema = getLiveSchema(type);
+    } else {
+      Backfill backfill = backfills.get(type);
+
+      if (backfill == null) {
+        // the shadow tables were dropped (or replaced) since
+        return;
+      }
+
+      schema = backfill.newSchema;
+    }
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (!indexDef.isAsync()) {
+        continue;
+      }
+
+      switch (entry.getOperation()) {
+        case CREATE:
+          insertEntity(handle, entry.getId(), entry.getNewInstance(), type, indexDef.getName(),
+              schema, entryPartitionName);
+          break;
+        case UPDATE:
+          updateEntity(handle, entry.getId(), entry.getNewInstance(), entry.getOldInstance(),
+              type, indexDef.getName(), schema, entryPartitionName);
+          break;
+        case DELETE:
+          deleteEntity(handle, entry.getId(), type, entry.getOldInstance(), indexDef.getName(),
+              schema, entryPartitionName);
+          break;
+        default:
+          throw new IllegalStateException("unknown outbox operation: " + entry.getOperation());
+      }
+    }
+  }
+
+  /**
+   * Appends to the outbox of the async indexes, starting the background apply loop the first time
+   * one is needed.
+   */
+  private void appendToOutbox(Handle handle, String type, String entryPartitionName,
+      IndexOutbox.Operation op, long id, @Nullable Map<String, Object> newInstance,
+      @Nullable Map<String, Object> oldInstance) throws KazukiException {
+    outbox.append(handle, type, entryPartitionName, op, id, newInstance, oldInstance);
+
+    if (started && applyExecutor == null) {
+      startApplying();
+    }
+  }
+
+  private void startApplying() {
+    synchronized (executorLock) {
+      if (applyExecutor != null) {
+        return;
+      }
+
+      applyExecutor =
+          Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kazuki-index-outbox-" + groupName + "-" + storeName + "-%d")
+              .build());
+      applyExecutor.scheduleWithFixedDelay(applyTask, 0L, ASYNC_APPLY_INTERVAL_MS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private boolean submitApply() {
+    ScheduledExecutorService executor = applyExecutor;
+
+    if (executor == null) {
+      return false;
+    }
+
+    try {
+      executor.execute(applyTask);
+
+      return true;
+    } catch (RejectedExecutionException e) {
+      // stopped meanwhile
+      return false;
+    }
+  }
+
+  private void stopApplying() {
+    synchronized (executorLock) {
+      if (applyExecutor != null) {
+        applyExecutor.shutdown();
+        applyExecutor = null;
+      }
+    }
+  }
+
+  private ExecutorService getBackfillExecutor() {
+    synchronized (executorLock) {
+      if (backfillExecutor == null) {
+        backfillExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("kazuki-index-backfill-" + groupName + "-" + storeName + "-%d")
+                .build());
+      }
+
+      return backfillExecutor;
+    }
+  }
+
+  private static List<IndexDefinition> getSyncIndexes(Schema schema) {
+    List<IndexDefinition> syncIndexes = new ArrayList<IndexDefinition>();
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (!indexDef.isAsync()) {
+        syncIndexes.add(indexDef);
+      }
+    }
+
+    return syncIndexes;
+  }
+
+  private static boolean hasAsyncIndexes(Schema schema) {
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (indexDef.isAsync()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private Schema getLiveSchema(String type) throws KazukiException {
+    Backfill backfill = backfills.get(type);
+
+    return (backfill != null) ? backfill.liveSchema : schemaStore.retrieveSchema(type).getValue();
+  }
+
+  private void runBackfill(final Backfill backfill) {
+    RateLimiter rateLimiter = RateLimiter.create(BACKFILL_MAX_ROWS_PER_SECOND);
+
+    try {
+      while (!backfill.cancelled) {
+        rateLimiter.acquire(BACKFILL_BATCH_SIZE);
+
+        try (LockManager toRelease = lockManager.acquire()) {
+          if (backfill.cancelled) {
+            return;
+          }
+
+          boolean finished = database.inTransaction(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
+              return copyBatch(handle, backfill) < BACKFILL_BATCH_SIZE;
+            }
+          });
+
+          if (finished) {
+            swapTables(backfill);
+
+            log.info("Completed online index rebuild for type {} ({} entities)", backfill.type,
+                backfill.copied);
+
+            return;
+          }
+        }
+      }
+    } catch (Exception e) {
+      log.error("Online index rebuild failed for type " + backfill.type
+          + "; continuing to serve the previous indexes", e);
+
+      try (LockManager toRelease = lockManager.acquire()) {
+        if (backfills.remove(backfill.type, backfill)) {
+          dropShadowTablesUnlessSwapping(backfill);
+        }
+      }
+    }
+  }
+
+  private int copyBatch(Handle handle, Backfill backfill) throws Exception {
+    Query<Map<String, Object>> select =
+        JDBIHelper.getBoundQuery(handle, tableHelper.getPrefix(), "kv_table_name", kvTableName,
+            "kv_key_values_of_type_after");
+
+    select.bind("key_type", sequence.getTypeId(backfill.type, false));
+    select.bind("key_id_lo", backfill.highWater);
+    select.bind("limit", BACKFILL_BATCH_SIZE);
+
+    FieldTransform fieldTransform = new FieldTransform(backfill.newSchema);
+    StructureTransform structureTransform = new StructureTransform(backfill.newSchema);
+
+    List<Long> ids = new ArrayList<Long>(BACKFILL_BATCH_SIZE);
+    List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>(BACKFILL_BATCH_SIZE);
+
+    for (Map<String, Object> row : select.list()) {
+      ids.add(((Number) row.get("_key_id_lo")).longValue());
+      instances.add(rebuilder.decode(handle, backfill.type, row, backfill.newSchema,
+          fieldTransform, structureTransform));
+    }
+
+    rebuilder.insertBatch(handle, backfill.type, backfill.newSchema, shadowPartitionName, ids,
+        instances);
+
+    if (!ids.isEmpty()) {
+      backfill.highWater = ids.get(ids.size() - 1);
+      backfill.copied += ids.size();
+    }
+
+    return ids.size();
+  }
+
+  /**
+   * Replaces the live index tables of the type with its shadow tables. DDL auto-commits on H2 and
+   * MySQL, so the swap is not transactional; instead each step leaves a recoverable state: the
+   * live tables are first renamed to retired names, then the shadow tables take the live names,
+   * and only then are the retired tables dropped. Once the first live table has been retired the
+   * shadow tables must be kept (see Backfill.swapping); a swap interrupted by a failure or crash
+   * is completed by the index rebuild run on the next start.
+   */
+  private void swapTables(final Backfill backfill) {
+    // pending shadow partition entries must be applied while the backfill is still registered
+    applyOutbox(outbox.getLastSequence());
+
+    swapLock.writeLock().lock();
+
+    try {
+      String type = backfill.type;
+
+      backfill.swapping = true;
+
+      for (IndexDefinition indexDef : backfill.liveSchema.getIndexes()) {
+        retireTable(type, indexDef.getName());
+      }
+
+      for (IndexDefinition indexDef : backfill.newSchema.getIndexes()) {
+        renameTable(type, indexDef.getName(), shadowPartitionName, partitionName);
+      }
+
+      backfills.remove(type, backfill);
+
+      for (IndexDefinition indexDef : backfill.liveSchema.getIndexes()) {
+        dropTable(type, indexDef.getName(), retiredPartitionName);
+      }
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Moves the live table of the index (if any) out of the way, replacing a retired table left
+   * over from an interrupted swap.
+   */
+  private void retireTable(String type, String indexName) {
+    dropTable(type, indexName, retiredPartitionName);
+
+    if (tableExists(type, indexName, partitionName)) {
+      renameTable(type, indexName, partitionName, retiredPartitionName);
+    }
+  }
+
+  private void renameTable(final String type, final String indexName,
+      final String fromPartitionName, final String toPartitionName) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        handle
+            .createStatement(tableHelper.getPrefix() + "rename_table")
+            .define(
+                "table_name",
+                tableHelper.getTableName(type, indexName, groupName, storeName,
+                    fromPartitionName))
+            .define("new_table_name",
+                tableHelper.getTableName(type, indexName, groupName, storeName, toPartitionName))
+            .execute();
+
+        handle
+            .createStatement(tableHelper.getPrefix() + "rename_index")
+            .define(
+                "index_name",
+                tableHelper.getIndexName(type, indexName, groupName, storeName,
+                    fromPartitionName))
+            .define("new_index_name",
+                tableHelper.getIndexName(type, indexName, groupName, storeName, toPartitionName))
+            .execute();
+
+        return null;
+      }
+    });
+  }
+
+  private void dropTable(final String type, final String indexName, final String partitionName) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        dropTableAndIndex(handle, type, indexName, partitionName);
+
+        return null;
+      }
+    });
+  }
+
+  private boolean tableExists(String type, String indexName, String partitionName) {
+    return JDBIHelper.tableExists(database, tableHelper.getPrefix(),
+        tableHelper.getTableName(type, indexName, groupName, storeName, partitionName));
+  }
+
+  /**
+   * Drops the shadow tables of a failed rebuild, unless its swap had already begun: the live tables
+   * may then be gone, leaving the shadow tables as the only complete copy of the indexes.
+   */
+  private void dropShadowTablesUnlessSwapping(Backfill backfill) {
+    if (backfill.swapping) {
+      log.error("Index table swap for type " + backfill.type
+          + " was interrupted; it will be completed on next start");
+
+      return;
+    }
+
+    dropShadowTables(backfill.type, backfill);
+  }
+
+  /**
+   * Rebuilds the indexes of every type left with shadow or retired tables by an online or full
+   * rebuild that was interrupted (e.g. by a crash), since their live tables may be missing, stale
+   * or shaped by a previous schema. The leftover shadow tables are recreated by the rebuild.
+   */
+  private void recoverInterruptedRebuilds() {
+    List<String> interrupted = new ArrayList<String>();
+
+    try {
+      if (!sequence.hasType(SchemaStoreImpl.SCHEMA_PREFIX)) {
+        return;
+      }
+
+      try (KeyValueIterable<KeyValuePair<Schema>> schemas =
+          kvStore.iterators().entries(SchemaStoreImpl.SCHEMA_PREFIX, Schema.class,
+              SortDirection.ASCENDING)) {
+        for (KeyValuePair<Schema> schemaKv : schemas) {
+          Long typeId = sequence.resolveKey(schemaKv.getKey()).getIdentifierLo();
+          String type = sequence.getTypeName(typeId.intValue());
+
+          for (IndexDefinition indexDef : schemaKv.getValue().getIndexes()) {
+            if (tableExists(type, indexDef.getName(), shadowPartitionName)
+                || tableExists(type, indexDef.getName(), retiredPartitionName)) {
+              interrupted.add(type);
+              break;
+            }
+          }
+        }
+      }
+
+      for (String type : interrupted) {
+        log.warn("Rebuilding indexes of type {} after an interrupted index rebuild", type);
+
+        rebuildIndexes(type);
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private void dropShadowTables(final String type, final Backfill backfill) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        dropShadowTables(handle, type, backfill);
+
+        return null;
+      }
+    });
+  }
+
+  private void dropShadowTables(Handle handle, String type, Backfill backfill) {
+    for (IndexDefinition indexDef : backfill.newSchema.getIndexes()) {
+      dropTableAndIndex(handle, type, indexDef.getName(), shadowPartitionName);
     }
   }
 
   private void createTable(IDBI database, final String type, final String indexName,
-      final Schema schema) {
+      final Schema schema, final String partitionName) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        createTable(handle, type, indexName, schema, partitionName);
+
+        return null;
+      }
+    });
+  }
+
+  private void createTable(Handle handle, String type, String indexName, Schema schema,
+      String partitionName) {
     String tableDefinition =
         tableHelper
             .getTableDefinition(type, indexName, schema, groupName, storeName, partitionName);
 
     log.debug("create table: {}" + tableDefinition);
 
-    JDBIHelper.createTable(database,
-        tableHelper.getTableDrop(type, indexName, groupName, storeName, partitionName),
-        tableDefinition);
+    handle.createStatement(
+        tableHelper.getTableDrop(type, indexName, groupName, storeName, partitionName)).execute();
+    handle.createStatement(tableDefinition).execute();
   }
 
   private void createIndex(IDBI database, final String type, final String indexName,
-      final Schema schemaDefinition) {
+      final Schema schemaDefinition, final String partitionName) {
     database.inTransaction(new TransactionCallback<Void>() {
       @Override
       public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-        try {
-          handle
-              .createStatement(tableHelper.getPrefix() + "drop_index")
-              .define("table_name",
-                  tableHelper.getTableName(type, indexName, groupName, storeName, partitionName))
-              .define("index_name",
-                  tableHelper.getIndexName(type, indexName, groupName, storeName, partitionName))
-              .execute();
-        } catch (UnableToExecuteStatementException ok) {
-          // expected case in mysql - this is just best-effort anyway
-        }
-
-        String indexDefinition =
-            tableHelper.getIndexDefinition(type, indexName, schemaDefinition, groupName, storeName,
-                partitionName);
-
-        log.debug("create index: {}" + indexDefinition);
-
-        handle.createStatement(indexDefinition).execute();
+        createIndex(handle, type, indexName, schemaDefinition, partitionName);
 
         return null;
       }
     });
   }
 
-  private void dropTableAndIndex(Handle handle, final String type, final String indexName) {
+  private void createIndex(Handle handle, String type, String indexName, Schema schemaDefinition,
+      String partitionName) {
+    try {
+      handle
+          .createStatement(tableHelper.getPrefix() + "drop_index")
+          .define("table_name",
+              tableHelper.getTableName(type, indexName, groupName, storeName, partitionName))
+          .define("index_name",
+              tableHelper.getIndexName(type, indexName, groupName, storeName, partitionName))
+          .execute();
+    } catch (UnableToExecuteStatementException ok) {
+      // expected case in mysql - this is just best-effort anyway
+    }
+
+    String indexDefinition =
+        tableHelper.getIndexDefinition(type, indexName, schemaDefinition, groupName, storeName,
+            partitionName);
+
+    log.debug("create index: {}" + indexDefinition);
+
+    handle.createStatement(indexDefinition).execute();
+  }
+
+  private void dropTableAndIndex(Handle handle, final String type, final String indexName,
+      final String partitionName) {
     handle.createStatement(
         tableHelper.getTableDrop(type, indexName, groupName, storeName, partitionName)).execute();
 
@@ -488,14 +1309,20 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   }
 
   private void insertEntity(Handle handle, final Long id, final Map<String, Object> value,
-      final String type, final String indexName, final Schema schema) throws KazukiException {
+      final String type, final String indexName, final Schema schema, final String partitionName)
+      throws KazukiException {
+    IndexDefinition indexDefinition = schema.getIndex(indexName);
+
+    if (!IndexFilter.includes(schema, indexDefinition, value)) {
+      return;
+    }
+
     SqlParamBindings bindings = new SqlParamBindings(true);
 
     Update insert =
         handle.createStatement(tableHelper.getInsertStatement(type, indexName, schema, bindings,
             groupName, storeName, partitionName));
 
-    IndexDefinition indexDefinition = schema.getIndex(indexName);
     bindings.bind("id", id, Attribute.Type.U64);
 
     for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
@@ -524,10 +1351,30 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   }
 
   private void updateEntity(Handle handle, final Long id, final Map<String, Object> value,
-      final Map<String, Object> prev, final String type, final String indexName, final Schema schema)
-      throws KazukiException {
+      final Map<String, Object> prev, final String type, final String indexName,
+      final Schema schema, final String partitionName) throws KazukiException {
     IndexDefinition indexDefinition = schema.getIndex(indexName);
 
+    if (indexDefinition.isPartial()) {
+      // a partial index holds only matching entities: move the row in or out as needed
+      boolean wasIncluded = IndexFilter.includes(schema, indexDefinition, prev);
+      boolean isIncluded = IndexFilter.includes(schema, indexDefinition, value);
+
+      if (!wasIncluded && isIncluded) {
+        insertEntity(handle, id, value, type, indexName, schema, partitionName);
+        return;
+      }
+
+      if (wasIncluded && !isIncluded) {
+        deleteEntity(handle, id, type, prev, indexName, schema, partitionName);
+        return;
+      }
+
+      if (!isIncluded) {
+        return;
+      }
+    }
+
     String origKey = tableHelper.computeIndexKey(type, indexName, indexDefinition, prev);
     String newKey = tableHelper.computeIndexKey(type, indexName, indexDefinition, value);
 
@@ -569,13 +1416,17 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   }
 
   private void deleteEntity(Handle handle, final Long id, final String type,
-      final Map<String, Object> value, final String indexName, final Schema schema)
-      throws KazukiException {
+      final Map<String, Object> value, final String indexName, final Schema schema,
+      final String partitionName) throws KazukiException {
     IndexDefinition indexDefinition = schema.getIndex(indexName);
     if (indexDefinition == null) {
       throw new KazukiException("schema or index not found " + type + "." + indexName);
     }
 
+    if (!IndexFilter.includes(schema, indexDefinition, value)) {
+      return;
+    }
+
     SqlParamBindings bindings = new SqlParamBindings(true);
 
     Update delete =
@@ -633,8 +1484,18 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
 
       @Override
       public KeyValueIterator<Key> iterator() {
+        // the select runs here; keep an index swap from renaming tables underneath it
+        swapLock.readLock().lock();
+
+        final KeyValueIterator<KeyValuePair<LinkedHashMap>> first;
+        try {
+          first = inner.iterator();
+        } finally {
+          swapLock.readLock().unlock();
+        }
+
         return new KeyValueIterator<Key>() {
-          volatile KeyValueIterator<KeyValuePair<LinkedHashMap>> innerIter = inner.iterator();
+          volatile KeyValueIterator<KeyValuePair<LinkedHashMap>> innerIter = first;
 
           @Override
           public boolean hasNext() {
@@ -672,6 +1533,41 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     };
   }
 
+  @Nullable
+  private Number doIndexAggregate(String type, String indexName, List<QueryTerm> queryTerms,
+      @Nullable AggregateFunction function, @Nullable String attributeName, Schema schema)
+      throws Exception {
+    SecondaryIndexQueryValidation.validateQuery(indexName, queryTerms, schema);
+
+    IndexDefinition indexDefinition = schema.getIndex(indexName);
+    FieldTransform transform = new FieldTransform(schema);
+
+    Map<String, List<QueryTerm>> termMap = tableHelper.sortTerms(indexDefinition, queryTerms);
+
+    SqlParamBindings bindings = new SqlParamBindings(true);
+
+    String querySql =
+        tableHelper.getIndexAggregateQuery(type, indexName, termMap, function, attributeName,
+            false, indexDefinition, schema, transform, bindings, groupName, storeName,
+            partitionName);
+
+    log.debug("index aggregate query : {} : bindings : {}", querySql, bindings.asMap());
+
+    // keep an index swap from renaming tables underneath the select
+    swapLock.readLock().lock();
+
+    try (Handle handle = database.open()) {
+      Query<Map<String, Object>> select = handle.createQuery(querySql);
+      bindings.bindToStatement(select);
+
+      Map<String, Object> row = select.first();
+
+      return (row == null) ? null : (Number) row.get("_value");
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
   private void truncateTable(Handle handle, final String type, final String indexName,
       final String groupName, String storeName, String partitionName) {
     String indexTableName =
@@ -680,6 +1576,32 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
         .define("table_name", indexTableName).execute();
   }
 
+  /**
+   * State of an in-progress online index rebuild. The highWater mark is the largest entity id
+   * copied into the shadow tables so far; writes at or below it must also be applied to the
+   * shadow tables, writes above it will be picked up by the backfill itself.
+   */
+  private static class Backfill {
+    private final String type;
+    private final Schema liveSchema;
+    private final Schema newSchema;
+    private volatile long highWater = -1L;
+    private volatile long copied = 0L;
+    private volatile boolean cancelled = false;
+    /** Set once swapTables() starts retiring the live tables */
+    private volatile boolean swapping = false;
+
+    public Backfill(String type, Schema liveSchema, Schema newSchema) {
+      this.type = type;
+      this.liveSchema = liveSchema;
+      this.newSchema = newSchema;
+    }
+
+    public boolean isCopied(Long id) {
+      return id <= highWater;
+    }
+  }
+
   private IndexDefinition getUniqueIndexDef(Schema schema) {
     for (IndexDefinition indexDef : schema.getIndexes()) {
       if (indexDef.isUnique()) {
@@ -45,17 +45,33 @@ public class SecondaryIndexStoreProvider implements Provider<SecondaryIndexSuppo
       Injector injector) {
     this.inject = injector;
 
-    if (kvConfig.isSecondaryIndex()) {
-      this.instance =
+    SecondaryIndexSupport store;
+
+    if (kvConfig.isInMemoryIndex()) {
+      store =
+          new SecondaryIndexStoreInMemoryImpl(lockManager, sequences, schemaStore, kvStore,
+              tableHelper, kvConfig.getGroupName(), kvConfig.getStoreName(),
+              kvConfig.getPartitionName());
+    } else if (kvConfig.isSecondaryIndex()) {
+      store =
           new SecondaryIndexStoreJdbiImpl(availability, lockManager, dataSource, database,
               sequences, schemaStore, kvStore, tableHelper, kvConfig.getGroupName(),
               kvConfig.getStoreName(), kvConfig.getPartitionName());
     } else {
-      this.instance =
+      store =
           new SecondaryIndexStoreBruteForceImpl(kvConfig, sequences, kvStore, schemaStore);
     }
 
-    this.inject.injectMembers(instance);
+    this.inject.injectMembers(store);
+
+    if (kvConfig.getQueryCacheSize() > 0L) {
+      store =
+          new CachingSecondaryIndexStore(store, lockManager, kvStore, schemaStore,
+              kvConfig.getQueryCacheSize());
+      this.inject.injectMembers(store);
+    }
+
+    this.instance = store;
   }
 
   public SecondaryIndexSupport get() {
@@ -23,6 +23,7 @@ import io.kazuki.v0.internal.helper.SqlTypeHelper;
 import io.kazuki.v0.internal.helper.StringHelper;
 import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
 import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.index.query.QueryHelper;
 import io.kazuki.v0.store.index.query.QueryOperator;
 import io.kazuki.v0.store.index.query.QueryTerm;
 import io.kazuki.v0.store.index.query.ValueHolder;
@@ -45,6 +46,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import org.skife.jdbi.v2.Handle;
@@ -311,6 +313,38 @@ public class SecondaryIndexTableHelper {
     }
   }
 
+  /**
+   * Returns the name of the outbox table holding pending mutations of async indexes.
+   */
+  public String getOutboxTableName(String groupName, String storeName, String partitionName) {
+    return typeHelper.quote("_" + groupName + "_" + storeName + "__idxoutbox__" + partitionName);
+  }
+
+  public String getOutboxTableDefinition(String groupName, String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("create table if not exists ");
+    sqlBuilder.append(getOutboxTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" (");
+    sqlBuilder.append(getColumnName("seq")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.I64)).append(" PRIMARY KEY, ");
+    sqlBuilder.append(getColumnName("type")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.UTF8_SMALLSTRING)).append(" NOT NULL, ");
+    sqlBuilder.append(getColumnName("partition")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.UTF8_SMALLSTRING)).append(" NOT NULL, ");
+    sqlBuilder.append(getColumnName("op")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.CHAR_ONE)).append(" NOT NULL, ");
+    sqlBuilder.append(getColumnName("id")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.U64)).append(" NOT NULL, ");
+    sqlBuilder.append(getColumnName("created")).append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.I64)).append(" NOT NULL, ");
+    sqlBuilder.append(getColumnName("new_value")).append(" VARBINARY, ");
+    sqlBuilder.append(getColumnName("old_value")).append(" VARBINARY");
+    sqlBuilder.append(")");
+    sqlBuilder.append(typeHelper.getTableOptions());
+
+    return sqlBuilder.toString();
+  }
+
   public String getIndexName(String type, String index, String groupName, String storeName,
       String partitionName) {
     try {
@@ -471,62 +505,7 @@ public class SecondaryIndexTableHelper {
       IndexDefinition indexDefinition, Schema schema, FieldTransform transform,
       SqlParamBindings bindings, String groupName, String storeName, String partitionName)
       throws Exception {
-    List<QueryTerm> firstTerm = termMap.get(indexDefinition.getIndexAttributes().get(0).getName());
-    if (firstTerm == null || firstTerm.isEmpty()) {
-      throw new IllegalArgumentException("missing query term for first attribute of index");
-    }
-
-    List<String> clauses = new ArrayList<String>();
-    int param = 0;
-
-    for (IndexAttribute attribute : indexDefinition.getIndexAttributes()) {
-      String attrName = attribute.getName();
-      List<QueryTerm> termList = termMap.get(attrName);
-
-      if (termList == null || termList.isEmpty()) {
-        continue;
-      }
-
-      for (QueryTerm term : termList) {
-        String maybeParam = "";
-        QueryOperator op = term.getOperator();
-
-        if (op.equals(QueryOperator.IN)) {
-          List<ValueHolder> valueList = term.getValueList().getValueList();
-
-          String sqlOperator = getSqlOperator(term.getOperator(), valueList.get(0));
-
-          List<String> paramNames = new ArrayList<String>();
-
-          for (ValueHolder value : valueList) {
-            String boundParam =
-                bindParam(attribute, schema, transform, bindings, param, attrName, value);
-
-            if (boundParam != null) {
-              maybeParam = " " + boundParam;
-              paramNames.add(maybeParam);
-              param += 1;
-            } else {
-              maybeParam = "";
-            }
-          }
-
-          clauses.add(getColumnName(term.getField()) + " " + sqlOperator + "("
-              + StringHelper.join(", ", paramNames) + ")");
-        } else {
-          String boundParam =
-              bindParam(attribute, schema, transform, bindings, param, attrName, term.getValue());
-
-          if (boundParam != null) {
-            maybeParam = " " + boundParam;
-            param += 1;
-          }
-
-          clauses.add(getColumnName(term.getField()) + " "
-              + getSqlOperator(term.getOperator(), term.getValue()) + maybeParam);
-        }
-      }
-    }
+    List<String> clauses = getWhereClauses(termMap, indexDefinition, schema, transform, bindings);
 
     List<String> sortOrders = new ArrayList<String>();
     for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
@@ -570,6 +549,41 @@ public class SecondaryIndexTableHelper {
     return sqlBuilder.toString();
   }
 
+  /**
+   * Returns a query computing count(*) (if function is null) or the given aggregate of an index
+   * column over the index rows matching the terms, as the single column "_value".
+   */
+  public String getIndexAggregateQuery(String type, String indexName,
+      Map<String, List<QueryTerm>> termMap, @Nullable AggregateFunction function,
+      @Nullable String attributeName, boolean includeQuarantine, IndexDefinition indexDefinition,
+      Schema schema, FieldTransform transform, SqlParamBindings bindings, String groupName,
+      String storeName, String partitionName) throws Exception {
+    List<String> clauses = getWhereClauses(termMap, indexDefinition, schema, transform, bindings);
+
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    if (function == null) {
+      sqlBuilder.append("count(*)");
+    } else {
+      sqlBuilder.append(function.name().toLowerCase());
+      sqlBuilder.append("(");
+      sqlBuilder.append(getColumnName(attributeName));
+      sqlBuilder.append(")");
+    }
+    sqlBuilder.append(" as ");
+    sqlBuilder.append(typeHelper.quote("_value"));
+    sqlBuilder.append(" from ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    if (!includeQuarantine) {
+      sqlBuilder.append(typeHelper.quote("quarantined"));
+      sqlBuilder.append(" = 'N' AND ");
+    }
+    sqlBuilder.append(StringHelper.join(" AND ", clauses));
+
+    return sqlBuilder.toString();
+  }
+
   public String getIndexAllQuery(String type, String token, Long pageSize, boolean includeQuarantine)
       throws Exception {
     StringBuilder sqlBuilder = new StringBuilder();
@@ -699,6 +713,87 @@ public class SecondaryIndexTableHelper {
     return builder.toString();
   }
 
+  private List<String> getWhereClauses(Map<String, List<QueryTerm>> termMap,
+      IndexDefinition indexDefinition, Schema schema, FieldTransform transform,
+      SqlParamBindings bindings) throws Exception {
+    List<QueryTerm> firstTerm = termMap.get(indexDefinition.getIndexAttributes().get(0).getName());
+    if (firstTerm == null || firstTerm.isEmpty()) {
+      throw new IllegalArgumentException("missing query term for first attribute of index");
+    }
+
+    List<String> clauses = new ArrayList<String>();
+    int param = 0;
+
+    for (IndexAttribute attribute : indexDefinition.getIndexAttributes()) {
+      String attrName = attribute.getName();
+      List<QueryTerm> termList = termMap.get(attrName);
+
+      if (termList == null || termList.isEmpty()) {
+        continue;
+      }
+
+      for (QueryTerm term : termList) {
+        String maybeParam = "";
+        QueryOperator op = term.getOperator();
+
+        if (op.equals(QueryOperator.IN)) {
+          List<ValueHolder> valueList = term.getValueList().getValueList();
+
+          String sqlOperator = getSqlOperator(term.getOperator(), valueList.get(0));
+
+          List<String> paramNames = new ArrayList<String>();
+
+          for (ValueHolder value : valueList) {
+            String boundParam =
+                bindParam(attribute, schema, transform, bindings, param, attrName, value);
+
+            if (boundParam != null) {
+              maybeParam = " " + boundParam;
+              paramNames.add(maybeParam);
+              param += 1;
+            } else {
+              maybeParam = "";
+            }
+          }
+
+          clauses.add(getColumnName(term.getField()) + " " + sqlOperator + "("
+              + StringHelper.join(", ", paramNames) + ")");
+        } else if (op.equals(QueryOperator.PREFIX)) {
+          // prefix match as an index range: col >= p AND col < successor(p)
+          Attribute.Type attrType = schema.getAttribute(attrName).getType();
+          String lower =
+              transformAttributeValue(
+                  transform.transformValue(attrName, term.getValue().getValue()).toString(),
+                  attribute).toString();
+          String upper = QueryHelper.prefixUpperBound(lower);
+
+          clauses.add(getColumnName(term.getField()) + " >= "
+              + bindings.bind("p" + param, lower, attrType));
+          param += 1;
+
+          if (upper != null) {
+            clauses.add(getColumnName(term.getField()) + " < "
+                + bindings.bind("p" + param, upper, attrType));
+            param += 1;
+          }
+        } else {
+          String boundParam =
+              bindParam(attribute, schema, transform, bindings, param, attrName, term.getValue());
+
+          if (boundParam != null) {
+            maybeParam = " " + boundParam;
+            param += 1;
+          }
+
+          clauses.add(getColumnName(term.getField()) + " "
+              + getSqlOperator(term.getOperator(), term.getValue()) + maybeParam);
+        }
+      }
+    }
+
+    return clauses;
+  }
+
   private String bindParam(IndexAttribute attribute, Schema schema, FieldTransform transform,
       SqlParamBindings bindings, int param, String attrName, ValueHolder value)
       throws KazukiException {
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreImpl;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Loads the in-memory state a listener keeps per type (indexes, aggregations) into the given map:
+ * for every type with a schema on lifecycle start, or lazily on first use of a type. Loading
+ * happens with the store lock held, so it does not race with the listener callbacks (which hold
+ * the lock while updating the map).
+ */
+public abstract class TypeStateLoader<T> {
+  private final Logger log = LogTranslation.getLogger(getClass());
+
+  private final String description;
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final ConcurrentMap<String, T> states;
+
+  public TypeStateLoader(String description, LockManager lockManager, SequenceService sequence,
+      SchemaStore schemaStore, KeyValueStore kvStore, ConcurrentMap<String, T> states) {
+    this.description = description;
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.states = states;
+  }
+
+  /**
+   * Builds the state of the type from its schema (and entities), or returns null if the type
+   * needs no state.
+   */
+  @Nullable
+  protected abstract T load(String type, Schema schema);
+
+  /**
+   * Returns the state of the type, loading it if needed; null if the type has no schema or needs
+   * no state.
+   */
+  @Nullable
+  public T get(String type) {
+    T state = states.get(type);
+
+    if (state != null) {
+      return state;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      state = states.get(type);
+
+      if (state == null) {
+        KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+
+        if (schemaKv == null) {
+          return null;
+        }
+
+        state = loadState(type, schemaKv.getValue());
+      }
+
+      return state;
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * As get(type), for callers which already have the schema of the type.
+   */
+  @Nullable
+  public T get(String type, Schema schema) {
+    T state = states.get(type);
+
+    if (state != null) {
+      return state;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      state = states.get(type);
+
+      return (state != null) ? state : loadState(type, schema);
+    }
+  }
+
+  /**
+   * Loads the state of every type with a schema, replacing any state present.
+   */
+  public void loadAll() {
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (!sequence.hasType(SchemaStoreImpl.SCHEMA_PREFIX)) {
+        return;
+      }
+
+      try (KeyValueIterable<KeyValuePair<Schema>> schemas =
+          kvStore.iterators().entries(SchemaStoreImpl.SCHEMA_PREFIX, Schema.class,
+              SortDirection.ASCENDING)) {
+        for (KeyValuePair<Schema> schemaKv : schemas) {
+          Long typeId = sequence.resolveKey(schemaKv.getKey()).getIdentifierLo();
+          String type = sequence.getTypeName(typeId.intValue());
+
+          loadState(type, schemaKv.getValue());
+        }
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Nullable
+  private T loadState(String type, Schema schema) {
+    T state = load(type, schema);
+
+    if (state != null) {
+      states.put(type, state);
+
+      log.debug("Loaded {} for type {}", description, type);
+    }
+
+    return state;
+  }
+}
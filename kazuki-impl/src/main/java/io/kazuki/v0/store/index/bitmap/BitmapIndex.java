@@ -0,0 +1,359 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.bitmap;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bitmap indexes for the low-cardinality (ENUM, BOOLEAN, CHAR_ONE) attributes of one type: for
+ * each attribute, one CompressedBitmap of entity ids per distinct (packed) value, including null.
+ * Conjunctions and disjunctions of terms over these attributes are answered with bitwise
+ * operations.
+ */
+public class BitmapIndex {
+  private final Schema schema;
+  private final FieldTransform transform;
+  private final Map<String, Map<Object, CompressedBitmap>> bitmaps;
+  private final CompressedBitmap all;
+  private final ReadWriteLock lock;
+
+  public BitmapIndex(Schema schema) {
+    this.schema = schema;
+    this.transform = new FieldTransform(schema);
+    this.all = new CompressedBitmap();
+    this.lock = new ReentrantReadWriteLock();
+
+    Map<String, Map<Object, CompressedBitmap>> newBitmaps =
+        new LinkedHashMap<String, Map<Object, CompressedBitmap>>();
+
+    for (Attribute attribute : schema.getAttributes()) {
+      if (isBitmapType(attribute.getType())) {
+        newBitmaps.put(attribute.getName(), new HashMap<Object, CompressedBitmap>());
+      }
+    }
+
+    this.bitmaps = Collections.unmodifiableMap(newBitmaps);
+  }
+
+  public static boolean isBitmapType(Attribute.Type type) {
+    switch (type) {
+      case ENUM:
+      case BOOLEAN:
+      case CHAR_ONE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public Set<String> getAttributeNames() {
+    return bitmaps.keySet();
+  }
+
+  /**
+   * Returns true if the term can be answered from this index.
+   */
+  public boolean supports(QueryTerm term) {
+    if (QueryOperator.PREFIX.equals(term.getOperator())) {
+      // only CHAR_ONE values are packed as strings
+      Attribute attribute = schema.getAttribute(term.getField());
+
+      return attribute != null && Attribute.Type.CHAR_ONE.equals(attribute.getType())
+          && bitmaps.containsKey(term.getField());
+    }
+
+    return bitmaps.containsKey(term.getField());
+  }
+
+  public long size() {
+    lock.readLock().lock();
+    try {
+      return all.getCardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void insert(long id, Map<String, Object> packed) {
+    lock.writeLock().lock();
+    try {
+      all.add(id);
+
+      for (Map.Entry<String, Map<Object, CompressedBitmap>> e : bitmaps.entrySet()) {
+        Object value = packed.get(e.getKey());
+        CompressedBitmap bitmap = e.getValue().get(value);
+
+        if (bitmap == null) {
+          bitmap = new CompressedBitmap();
+          e.getValue().put(value, bitmap);
+        }
+
+        bitmap.add(id);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void delete(long id, @Nullable Map<String, Object> packed) {
+    lock.writeLock().lock();
+    try {
+      all.remove(id);
+
+      for (Map.Entry<String, Map<Object, CompressedBitmap>> e : bitmaps.entrySet()) {
+        if (packed != null) {
+          removeFrom(e.getValue(), packed.get(e.getKey()), id);
+        } else {
+          // previous value unknown: remove from every value bitmap of the attribute
+          for (Object value : e.getValue().keySet().toArray()) {
+            removeFrom(e.getValue(), value, id);
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void update(long id, Map<String, Object> packed, @Nullable Map<String, Object> oldPacked) {
+    lock.writeLock().lock();
+    try {
+      delete(id, oldPacked);
+      insert(id, packed);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      all.clear();
+
+      for (Map<Object, CompressedBitmap> values : bitmaps.values()) {
+        values.clear();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the ids matching all of the given terms (a new bitmap owned by the caller).
+   */
+  public CompressedBitmap evaluate(List<QueryTerm> conjunction) {
+    lock.readLock().lock();
+    try {
+      return evaluateLocked(conjunction);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the ids matching any of the given conjunctions (a new bitmap owned by the caller).
+   */
+  public CompressedBitmap evaluateAny(List<List<QueryTerm>> disjunction) {
+    lock.readLock().lock();
+    try {
+      CompressedBitmap result = new CompressedBitmap();
+
+      for (List<QueryTerm> conjunction : disjunction) {
+        result = CompressedBitmap.or(result, evaluateLocked(conjunction));
+      }
+
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private CompressedBitmap evaluateLocked(List<QueryTerm> conjunction) {
+    CompressedBitmap result = all.copy();
+
+    for (QueryTerm term : conjunction) {
+      if (result.isEmpty()) {
+        break;
+      }
+
+      result = CompressedBitmap.and(result, evaluateTerm(term));
+    }
+
+    return result;
+  }
+
+  private CompressedBitmap evaluateTerm(QueryTerm term) {
+    Map<Object, CompressedBitmap> values = bitmaps.get(term.getField());
+
+    if (values == null) {
+      throw new IllegalArgumentException("attribute is not bitmap-indexed: " + term.getField());
+    }
+
+    QueryOperator operator = term.getOperator();
+
+    if (QueryOperator.IN.equals(operator)) {
+      CompressedBitmap result = new CompressedBitmap();
+
+      for (ValueHolder value : term.getValueList().getValueList()) {
+        result = CompressedBitmap.or(result, equalTo(values, term.getField(), value));
+      }
+
+      return result;
+    }
+
+    ValueHolder value = term.getValue();
+    boolean isNull = ValueType.NULL.equals(value.getValueType());
+
+    switch (operator) {
+      case EQ:
+        return equalTo(values, term.getField(), value);
+      case NE:
+        CompressedBitmap notEqual = CompressedBitmap.andNot(all, valueBitmap(values, null));
+        return isNull ? notEqual : CompressedBitmap.andNot(notEqual,
+            equalTo(values, term.getField(), value));
+      case GT:
+      case GE:
+      case LT:
+      case LE:
+        return isNull ? new CompressedBitmap() : range(values, operator,
+            pack(term.getField(), value));
+      case PREFIX:
+        return withPrefix(values, term);
+      default:
+        throw new UnsupportedOperationException("Operator " + operator + " not supported");
+    }
+  }
+
+  private CompressedBitmap withPrefix(Map<Object, CompressedBitmap> values, QueryTerm term) {
+    if (!supports(term) || !ValueType.STRING.equals(term.getValue().getValueType())) {
+      throw new IllegalArgumentException("prefix query requires a string attribute: "
+          + term.getField());
+    }
+
+    String prefix = (String) term.getValue().getValue();
+    CompressedBitmap result = new CompressedBitmap();
+
+    for (Map.Entry<Object, CompressedBitmap> e : values.entrySet()) {
+      if (e.getKey() != null && e.getKey().toString().startsWith(prefix)) {
+        result = CompressedBitmap.or(result, e.getValue());
+      }
+    }
+
+    return result;
+  }
+
+  private CompressedBitmap equalTo(Map<Object, CompressedBitmap> values, String attrName,
+      ValueHolder value) {
+    if (ValueType.NULL.equals(value.getValueType())) {
+      return valueBitmap(values, null);
+    }
+
+    Object packed = pack(attrName, value);
+
+    return (packed == null) ? new CompressedBitmap() : valueBitmap(values, packed);
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private CompressedBitmap range(Map<Object, CompressedBitmap> values, QueryOperator operator,
+      @Nullable Object target) {
+    CompressedBitmap result = new CompressedBitmap();
+
+    if (target == null) {
+      return result;
+    }
+
+    for (Map.Entry<Object, CompressedBitmap> e : values.entrySet()) {
+      if (e.getKey() == null) {
+        continue;
+      }
+
+      int comparison = ((Comparable) e.getKey()).compareTo(target);
+      boolean matches;
+
+      switch (operator) {
+        case GT:
+          matches = comparison > 0;
+          break;
+        case GE:
+          matches = comparison >= 0;
+          break;
+        case LT:
+          matches = comparison < 0;
+          break;
+        default:
+          matches = comparison <= 0;
+          break;
+      }
+
+      if (matches) {
+        result = CompressedBitmap.or(result, e.getValue());
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Packs the query value as stored (enum ordinal, boolean, single char); null if the value can
+   * never match, e.g. an unknown enum constant.
+   */
+  @Nullable
+  private Object pack(String attrName, ValueHolder value) {
+    try {
+      return transform.transformValue(attrName, value.getValue());
+    } catch (TransformException e) {
+      return null;
+    }
+  }
+
+  private static CompressedBitmap valueBitmap(Map<Object, CompressedBitmap> values,
+      @Nullable Object value) {
+    CompressedBitmap bitmap = values.get(value);
+
+    return (bitmap == null) ? new CompressedBitmap() : bitmap;
+  }
+
+  private static void removeFrom(Map<Object, CompressedBitmap> values, @Nullable Object value,
+      long id) {
+    CompressedBitmap bitmap = values.get(value);
+
+    if (bitmap != null && bitmap.remove(id) && bitmap.isEmpty()) {
+      values.remove(value);
+    }
+  }
+}
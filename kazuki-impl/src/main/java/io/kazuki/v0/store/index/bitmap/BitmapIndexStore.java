@@ -0,0 +1,379 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.bitmap;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.TransactionHooks;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.TypeStateLoader;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreListener;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+
+/**
+ * Maintains a BitmapIndex per type (over its ENUM, BOOLEAN and CHAR_ONE attributes) through the
+ * KeyValueStoreListener / SchemaStoreListener hooks, and answers conjunctive and disjunctive
+ * filters over those attributes with bitwise operations. Bitmaps live in memory only and are
+ * rebuilt from a KV scan on lifecycle start (or lazily on first use of a type). Writes reach the
+ * bitmaps once their transaction commits.
+ *
+ * Disabled unless KeyValueStoreConfiguration.isBitmapIndex() is set.
+ */
+public class BitmapIndexStore implements SchemaStoreListener, KeyValueStoreListener {
+  private final boolean enabled;
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final KeyValueStore kvStore;
+  private final ConcurrentHashMap<String, BitmapIndex> indexes;
+  private final TypeStateLoader<BitmapIndex> loader;
+
+  @Inject
+  public BitmapIndexStore(KeyValueStoreConfiguration config, LockManager lockManager,
+      SequenceService sequence, SchemaStore schemaStore, KeyValueStore kvStore) {
+    this.enabled = config.isBitmapIndex();
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.kvStore = kvStore;
+    this.indexes = new ConcurrentHashMap<String, BitmapIndex>();
+    this.loader =
+        new TypeStateLoader<BitmapIndex>("bitmap indexes", lockManager, sequence, schemaStore,
+            kvStore, indexes) {
+          @Override
+          protected BitmapIndex load(String type, Schema schema) {
+            return buildIndex(schema, BitmapIndexStore.this.kvStore.iterators().entries(type,
+                LinkedHashMap.class, SortDirection.ASCENDING));
+          }
+        };
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    if (enabled) {
+      kvStore.addListener(this);
+    }
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    if (enabled) {
+      schemaStore.addListener(this);
+    }
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    if (!enabled) {
+      return;
+    }
+
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        loader.loadAll();
+      }
+
+      @Override
+      public void stop() {
+        indexes.clear();
+      }
+    });
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the bitmap index for the type, or null if bitmap indexing is disabled or the type has
+   * no schema.
+   */
+  @Nullable
+  public BitmapIndex getIndex(String type) {
+    if (!enabled) {
+      return null;
+    }
+
+    return loader.get(type);
+  }
+
+  /**
+   * Returns the keys of entities matching all of the given terms, in key order.
+   */
+  public KeyValueIterable<Key> query(String type, List<QueryTerm> query,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    BitmapIndex index = getRequiredIndex(type);
+    checkSupported(index, query);
+
+    return asKeys(type, index.evaluate(query), sortDirection, offset, limit);
+  }
+
+  public KeyValueIterable<Key> query(String type, String queryString,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return query(type, QueryHelper.parseQuery(queryString), sortDirection, offset, limit);
+  }
+
+  /**
+   * Returns the keys of entities matching any of the given conjunctions, in key order.
+   */
+  public KeyValueIterable<Key> queryAny(String type, List<List<QueryTerm>> disjunction,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    BitmapIndex index = getRequiredIndex(type);
+
+    for (List<QueryTerm> conjunction : disjunction) {
+      checkSupported(index, conjunction);
+    }
+
+    return asKeys(type, index.evaluateAny(disjunction), sortDirection, offset, limit);
+  }
+
+  public static KeyValueIterable<Key> asKeys(final String type, final CompressedBitmap ids,
+      final SortDirection sortDirection, @Nullable final Long offset, @Nullable final Long limit) {
+    return new KeyValueIterable<Key>() {
+      @Override
+      public KeyValueIterator<Key> iterator() {
+        Iterator<Long> idIter =
+            SortDirection.DESCENDING.equals(sortDirection) ? ids.descendingIterator() : ids
+                .iterator();
+
+        if (offset != null) {
+          Iterators.advance(idIter, offset.intValue());
+        }
+
+        if (limit != null) {
+          idIter = Iterators.limit(idIter, limit.intValue());
+        }
+
+        final Iterator<Key> keys = Iterators.transform(idIter, new Function<Long, Key>() {
+          @Override
+          public Key apply(Long id) {
+            return KeyImpl.createInternal(type, id);
+          }
+        });
+
+        return new KeyValueIterator<Key>() {
+          @Override
+          public boolean hasNext() {
+            return keys.hasNext();
+          }
+
+          @Override
+          public Key next() {
+            return keys.next();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("not supported - yet");
+          }
+
+          @Override
+          public void close() {}
+        };
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {}
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> instance) {
+    final BitmapIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.insert(id, instance);
+      }
+    });
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> newInstance,
+      final Map<String, Object> oldInstance) {
+    final BitmapIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.update(id, newInstance, oldInstance);
+      }
+    });
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> oldInstance) {
+    final BitmapIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.delete(id, oldInstance);
+      }
+    });
+  }
+
+  @Override
+  public void clear(Handle handle, final Map<String, Schema> typeToSchemaMap,
+      final boolean preserveSchema) {
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        clearIndexes(typeToSchemaMap, preserveSchema);
+      }
+    });
+  }
+
+  private void clearIndexes(Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      for (String type : typeToSchemaMap.keySet()) {
+        BitmapIndex index = indexes.get(type);
+
+        if (index == null) {
+          continue;
+        }
+
+        if (preserveSchema) {
+          index.clear();
+        } else {
+          indexes.remove(type);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.put(type, new BitmapIndex(schema));
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.put(type, buildIndex(newSchema, entityCollection));
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.remove(type);
+    }
+  }
+
+  private BitmapIndex getRequiredIndex(String type) {
+    Preconditions.checkState(enabled, "bitmap indexes are not enabled");
+
+    BitmapIndex index = getIndex(type);
+    Preconditions.checkNotNull(index, "schema");
+
+    return index;
+  }
+
+  private static void checkSupported(BitmapIndex index, List<QueryTerm> query) {
+    Preconditions.checkNotNull(query, "query");
+
+    for (QueryTerm term : query) {
+      if (!index.supports(term)) {
+        throw new IllegalArgumentException("attribute is not bitmap-indexed: " + term.getField());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private BitmapIndex buildIndex(Schema schema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    BitmapIndex index = new BitmapIndex(schema);
+    FieldTransform fieldTransform = new FieldTransform(schema);
+
+    try {
+      for (KeyValuePair<LinkedHashMap> entity : entityCollection) {
+        index.insert(sequence.resolveKey(entity.getKey()).getIdentifierLo(),
+            fieldTransform.pack(entity.getValue()));
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      entityCollection.close();
+    }
+
+    return index;
+  }
+}
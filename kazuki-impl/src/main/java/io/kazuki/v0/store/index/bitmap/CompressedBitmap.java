@@ -0,0 +1,530 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.bitmap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Compressed bitmap over non-negative long ids (entity _key_id_lo values). Ids are grouped by their
+ * high bits into chunks of 65536; each chunk is stored either as a sorted array of its low 16 bits
+ * (when sparse) or as a plain 8KB bitmap (when dense), in the style of Roaring bitmaps.
+ *
+ * Instances are not thread-safe; callers synchronize externally.
+ */
+public class CompressedBitmap implements Iterable<Long> {
+  private static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+
+  private final TreeMap<Long, Container> containers = new TreeMap<Long, Container>();
+
+  public boolean add(long id) {
+    checkId(id);
+
+    Long high = id >>> 16;
+    char low = (char) (id & 0xFFFF);
+
+    Container container = containers.get(high);
+    if (container == null) {
+      container = new ArrayContainer();
+    }
+
+    int before = container.cardinality();
+    containers.put(high, container.add(low));
+
+    return containers.get(high).cardinality() != before;
+  }
+
+  public boolean remove(long id) {
+    checkId(id);
+
+    Long high = id >>> 16;
+    Container container = containers.get(high);
+
+    if (container == null || !container.contains((char) (id & 0xFFFF))) {
+      return false;
+    }
+
+    Container updated = container.remove((char) (id & 0xFFFF));
+
+    if (updated.cardinality() == 0) {
+      containers.remove(high);
+    } else {
+      containers.put(high, updated);
+    }
+
+    return true;
+  }
+
+  public boolean contains(long id) {
+    if (id < 0) {
+      return false;
+    }
+
+    Container container = containers.get(id >>> 16);
+
+    return container != null && container.contains((char) (id & 0xFFFF));
+  }
+
+  public long getCardinality() {
+    long total = 0L;
+
+    for (Container container : containers.values()) {
+      total += container.cardinality();
+    }
+
+    return total;
+  }
+
+  public boolean isEmpty() {
+    return containers.isEmpty();
+  }
+
+  public void clear() {
+    containers.clear();
+  }
+
+  public CompressedBitmap copy() {
+    CompressedBitmap result = new CompressedBitmap();
+
+    for (Map.Entry<Long, Container> e : containers.entrySet()) {
+      result.containers.put(e.getKey(), e.getValue().copy());
+    }
+
+    return result;
+  }
+
+  public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap result = new CompressedBitmap();
+
+    for (Map.Entry<Long, Container> e : a.containers.entrySet()) {
+      Container other = b.containers.get(e.getKey());
+
+      if (other != null) {
+        result.putIfNotEmpty(e.getKey(), e.getValue().and(other));
+      }
+    }
+
+    return result;
+  }
+
+  public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap result = b.copy();
+
+    for (Map.Entry<Long, Container> e : a.containers.entrySet()) {
+      Container other = result.containers.get(e.getKey());
+
+      result.containers.put(e.getKey(),
+          (other == null) ? e.getValue().copy() : e.getValue().or(other));
+    }
+
+    return result;
+  }
+
+  public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+    CompressedBitmap result = new CompressedBitmap();
+
+    for (Map.Entry<Long, Container> e : a.containers.entrySet()) {
+      Container other = b.containers.get(e.getKey());
+
+      result.putIfNotEmpty(e.getKey(),
+          (other == null) ? e.getValue().copy() : e.getValue().andNot(other));
+    }
+
+    return result;
+  }
+
+  /**
+   * Iterates ids in ascending order.
+   */
+  @Override
+  public Iterator<Long> iterator() {
+    return new BitmapIterator(containers, false);
+  }
+
+  /**
+   * Iterates ids in descending order.
+   */
+  public Iterator<Long> descendingIterator() {
+    return new BitmapIterator(containers.descendingMap(), true);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof CompressedBitmap)) {
+      return false;
+    }
+
+    CompressedBitmap other = (CompressedBitmap) obj;
+
+    if (!containers.keySet().equals(other.containers.keySet())) {
+      return false;
+    }
+
+    for (Map.Entry<Long, Container> e : containers.entrySet()) {
+      if (!Arrays.equals(e.getValue().toWords(), other.containers.get(e.getKey()).toWords())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 0;
+
+    for (Map.Entry<Long, Container> e : containers.entrySet()) {
+      hash = hash * 31 + e.getKey().hashCode();
+      hash = hash * 31 + Arrays.hashCode(e.getValue().toWords());
+    }
+
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "CompressedBitmap[cardinality=" + getCardinality() + ", chunks=" + containers.size()
+        + "]";
+  }
+
+  private void putIfNotEmpty(Long high, Container container) {
+    if (container.cardinality() > 0) {
+      containers.put(high, container);
+    }
+  }
+
+  private static void checkId(long id) {
+    if (id < 0) {
+      throw new IllegalArgumentException("bitmap ids must be non-negative: " + id);
+    }
+  }
+
+  private static Container fromWords(long[] words) {
+    int card = 0;
+
+    for (long word : words) {
+      card += Long.bitCount(word);
+    }
+
+    if (card > ARRAY_MAX) {
+      return new BitmapContainer(words, card);
+    }
+
+    char[] values = new char[card];
+    int pos = 0;
+
+    for (int i = 0; i < WORDS; i++) {
+      long word = words[i];
+
+      while (word != 0) {
+        int bit = Long.numberOfTrailingZeros(word);
+        values[pos++] = (char) ((i << 6) + bit);
+        word &= word - 1;
+      }
+    }
+
+    return new ArrayContainer(values, card);
+  }
+
+  private abstract static class Container {
+    abstract Container add(char value);
+
+    abstract Container remove(char value);
+
+    abstract boolean contains(char value);
+
+    abstract int cardinality();
+
+    abstract Container copy();
+
+    /**
+     * Returns a bitmap representation of the container (possibly shared, do not modify).
+     */
+    abstract long[] toWords();
+
+    /**
+     * Returns the set values, ascending.
+     */
+    abstract char[] toArray();
+
+    Container and(Container other) {
+      if (this instanceof ArrayContainer && other instanceof ArrayContainer) {
+        return ((ArrayContainer) this).intersect((ArrayContainer) other);
+      }
+
+      long[] a = toWords();
+      long[] b = other.toWords();
+      long[] result = new long[WORDS];
+
+      for (int i = 0; i < WORDS; i++) {
+        result[i] = a[i] & b[i];
+      }
+
+      return fromWords(result);
+    }
+
+    Container or(Container other) {
+      long[] a = toWords();
+      long[] b = other.toWords();
+      long[] result = new long[WORDS];
+
+      for (int i = 0; i < WORDS; i++) {
+        result[i] = a[i] | b[i];
+      }
+
+      return fromWords(result);
+    }
+
+    Container andNot(Container other) {
+      long[] a = toWords();
+      long[] b = other.toWords();
+      long[] result = new long[WORDS];
+
+      for (int i = 0; i < WORDS; i++) {
+        result[i] = a[i] & ~b[i];
+      }
+
+      return fromWords(result);
+    }
+  }
+
+  private static class ArrayContainer extends Container {
+    private char[] values;
+    private int size;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    @Override
+    Container add(char value) {
+      int pos = Arrays.binarySearch(values, 0, size, value);
+      if (pos >= 0) {
+        return this;
+      }
+
+      if (size >= ARRAY_MAX) {
+        BitmapContainer bitmap = new BitmapContainer(toWords(), size);
+
+        return bitmap.add(value);
+      }
+
+      int insertAt = -(pos + 1);
+
+      if (size == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+      }
+
+      System.arraycopy(values, insertAt, values, insertAt + 1, size - insertAt);
+      values[insertAt] = value;
+      size += 1;
+
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      int pos = Arrays.binarySearch(values, 0, size, value);
+      if (pos < 0) {
+        return this;
+      }
+
+      System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+      size -= 1;
+
+      return this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return size;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, Math.max(size, 4)), size);
+    }
+
+    @Override
+    long[] toWords() {
+      long[] words = new long[WORDS];
+
+      for (int i = 0; i < size; i++) {
+        words[values[i] >>> 6] |= 1L << (values[i] & 63);
+      }
+
+      return words;
+    }
+
+    @Override
+    char[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+
+    ArrayContainer intersect(ArrayContainer other) {
+      char[] result = new char[Math.min(size, other.size)];
+      int i = 0;
+      int j = 0;
+      int k = 0;
+
+      while (i < size && j < other.size) {
+        if (values[i] < other.values[j]) {
+          i += 1;
+        } else if (values[i] > other.values[j]) {
+          j += 1;
+        } else {
+          result[k++] = values[i];
+          i += 1;
+          j += 1;
+        }
+      }
+
+      return new ArrayContainer(result, k);
+    }
+  }
+
+  private static class BitmapContainer extends Container {
+    private final long[] words;
+    private int card;
+
+    BitmapContainer(long[] words, int card) {
+      this.words = words;
+      this.card = card;
+    }
+
+    @Override
+    Container add(char value) {
+      long mask = 1L << (value & 63);
+
+      if ((words[value >>> 6] & mask) == 0) {
+        words[value >>> 6] |= mask;
+        card += 1;
+      }
+
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      long mask = 1L << (value & 63);
+
+      if ((words[value >>> 6] & mask) != 0) {
+        words[value >>> 6] &= ~mask;
+        card -= 1;
+      }
+
+      return (card <= ARRAY_MAX) ? fromWords(words) : this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << (value & 63))) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return card;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(Arrays.copyOf(words, WORDS), card);
+    }
+
+    @Override
+    long[] toWords() {
+      return words;
+    }
+
+    @Override
+    char[] toArray() {
+      char[] values = new char[card];
+      int pos = 0;
+
+      for (int i = 0; i < WORDS; i++) {
+        long word = words[i];
+
+        while (word != 0) {
+          int bit = Long.numberOfTrailingZeros(word);
+          values[pos++] = (char) ((i << 6) + bit);
+          word &= word - 1;
+        }
+      }
+
+      return values;
+    }
+  }
+
+  private static class BitmapIterator implements Iterator<Long> {
+    private final Iterator<Map.Entry<Long, Container>> chunks;
+    private final boolean descending;
+    private long high;
+    private char[] current = new char[0];
+    private int pos = 0;
+
+    BitmapIterator(Map<Long, Container> containers, boolean descending) {
+      this.chunks = containers.entrySet().iterator();
+      this.descending = descending;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (pos >= current.length) {
+        if (!chunks.hasNext()) {
+          return false;
+        }
+
+        Map.Entry<Long, Container> next = chunks.next();
+        high = next.getKey();
+        current = next.getValue().toArray();
+        pos = 0;
+      }
+
+      return true;
+    }
+
+    @Override
+    public Long next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      char low = descending ? current[current.length - 1 - pos] : current[pos];
+      pos += 1;
+
+      return (high << 16) | low;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove() not supported");
+    }
+  }
+}
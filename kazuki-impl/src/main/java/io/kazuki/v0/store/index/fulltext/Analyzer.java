@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Turns text into index terms: splits on anything that is not a letter or digit, lowercases, and
+ * drops English stop words and overlong tokens. The same analysis is applied to documents and to
+ * queries, so a query term matches exactly the document tokens it analyzes to.
+ */
+public class Analyzer {
+  public static final int MAX_TOKEN_LENGTH = 64;
+
+  public static final Set<String> STOP_WORDS = ImmutableSet.of("a", "an", "and", "are", "as",
+      "at", "be", "but", "by", "for", "if", "in", "into", "is", "it", "no", "not", "of", "on", "or",
+      "s", "such", "t", "that", "the", "their", "then", "there", "these", "they", "this", "to",
+      "was", "will", "with");
+
+  private final Set<String> stopWords;
+
+  public Analyzer() {
+    this(STOP_WORDS);
+  }
+
+  public Analyzer(Set<String> stopWords) {
+    this.stopWords = ImmutableSet.copyOf(stopWords);
+  }
+
+  /**
+   * Returns the terms of the text in order of occurrence (including repeats).
+   */
+  public List<String> analyze(@Nullable String text) {
+    List<String> terms = new ArrayList<String>();
+
+    if (text == null) {
+      return terms;
+    }
+
+    StringBuilder token = new StringBuilder();
+    int i = 0;
+
+    while (i <= text.length()) {
+      int codePoint = (i < text.length()) ? text.codePointAt(i) : -1;
+
+      if (codePoint != -1 && Character.isLetterOrDigit(codePoint)) {
+        token.appendCodePoint(Character.toLowerCase(codePoint));
+      } else if (token.length() > 0) {
+        addTerm(terms, token.toString());
+        token.setLength(0);
+      }
+
+      i += (codePoint == -1) ? 1 : Character.charCount(codePoint);
+    }
+
+    return terms;
+  }
+
+  private void addTerm(List<String> terms, String term) {
+    if (term.length() <= MAX_TOKEN_LENGTH && !stopWords.contains(term)) {
+      terms.add(term);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import io.kazuki.v0.store.Key;
+
+/**
+ * A full-text search result: the key of a matching entity and its BM25 relevance score.
+ */
+public class FullTextHit {
+  private final Key key;
+  private final double score;
+
+  public FullTextHit(Key key, double score) {
+    this.key = key;
+    this.score = score;
+  }
+
+  public Key getKey() {
+    return key;
+  }
+
+  public double getScore() {
+    return score;
+  }
+
+  @Override
+  public String toString() {
+    return key + ":" + score;
+  }
+}
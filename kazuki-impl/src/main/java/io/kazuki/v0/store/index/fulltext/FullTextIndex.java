@@ -0,0 +1,368 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+
+/**
+ * In-memory inverted index over the full-text attributes of one type (Schema.getFullText()): per
+ * attribute, a PostingsList per term plus the length (in terms) of every indexed value. Searches
+ * are ranked with Okapi BM25; a search over several attributes adds up the per-attribute scores.
+ */
+public class FullTextIndex {
+  /** BM25 term frequency saturation */
+  public static final double K1 = 1.2;
+
+  /** BM25 length normalization */
+  public static final double B = 0.75;
+
+  private static final Comparator<Hit> BY_SCORE = new Comparator<Hit>() {
+    @Override
+    public int compare(Hit a, Hit b) {
+      int result = Double.compare(b.getScore(), a.getScore());
+
+      return (result != 0) ? result : Long.compare(a.getId(), b.getId());
+    }
+  };
+
+  private final Schema schema;
+  private final Analyzer analyzer;
+  private final Map<String, FieldPostings> fields;
+  private final ReadWriteLock lock;
+
+  public FullTextIndex(Schema schema) {
+    this(schema, new Analyzer());
+  }
+
+  public FullTextIndex(Schema schema, Analyzer analyzer) {
+    this.schema = schema;
+    this.analyzer = analyzer;
+    this.lock = new ReentrantReadWriteLock();
+
+    Map<String, FieldPostings> newFields = new LinkedHashMap<String, FieldPostings>();
+
+    for (String attrName : schema.getFullText()) {
+      newFields.put(attrName, new FieldPostings());
+    }
+
+    this.fields = Collections.unmodifiableMap(newFields);
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public Set<String> getAttributeNames() {
+    return fields.keySet();
+  }
+
+  /**
+   * Returns the number of entities with a (non-empty) value for the attribute.
+   */
+  public long size(String attributeName) {
+    lock.readLock().lock();
+    try {
+      return getRequiredField(attributeName).lengths.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of entities containing the term in the attribute.
+   */
+  public int getDocumentFrequency(String attributeName, String term) {
+    lock.readLock().lock();
+    try {
+      PostingsList postings = getRequiredField(attributeName).postings.get(term);
+
+      return (postings == null) ? 0 : postings.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void insert(long id, Map<String, Object> packed) {
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<String, FieldPostings> e : fields.entrySet()) {
+        e.getValue().insert(id, analyze(packed.get(e.getKey())));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void update(long id, Map<String, Object> newPacked, Map<String, Object> oldPacked) {
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<String, FieldPostings> e : fields.entrySet()) {
+        Object newValue = newPacked.get(e.getKey());
+        Object oldValue = oldPacked.get(e.getKey());
+
+        if (!Objects.equal(newValue, oldValue)) {
+          e.getValue().delete(id, analyze(oldValue));
+          e.getValue().insert(id, analyze(newValue));
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void delete(long id, Map<String, Object> oldPacked) {
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<String, FieldPostings> e : fields.entrySet()) {
+        e.getValue().delete(id, analyze(oldPacked.get(e.getKey())));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      for (FieldPostings field : fields.values()) {
+        field.postings.clear();
+        field.lengths.clear();
+        field.totalLength = 0L;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the entities matching any term of the query, best BM25 score first (ties in id order).
+   *
+   * @param attributeName the attribute to search, or null to search all full-text attributes
+   * @param offset number of top hits to skip
+   * @param limit maximum number of hits, or null for all
+   */
+  public List<Hit> search(@Nullable String attributeName, String query, long offset,
+      @Nullable Long limit) {
+    Set<String> terms = new LinkedHashSet<String>(analyzer.analyze(query));
+
+    lock.readLock().lock();
+    try {
+      Map<Long, double[]> scores = new HashMap<Long, double[]>();
+
+      if (attributeName != null) {
+        getRequiredField(attributeName).score(terms, scores);
+      } else {
+        for (FieldPostings field : fields.values()) {
+          field.score(terms, scores);
+        }
+      }
+
+      return topHits(scores, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static List<Hit> topHits(Map<Long, double[]> scores, long offset, @Nullable Long limit) {
+    long wanted = (limit == null) ? Long.MAX_VALUE : offset + limit;
+
+    if (wanted <= 0L || scores.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Hit> hits = new ArrayList<Hit>();
+
+    if (wanted >= scores.size()) {
+      for (Map.Entry<Long, double[]> e : scores.entrySet()) {
+        hits.add(new Hit(e.getKey(), e.getValue()[0]));
+      }
+
+      Collections.sort(hits, BY_SCORE);
+    } else {
+      // bounded heap keeps the best 'wanted' hits, worst on top
+      PriorityQueue<Hit> heap =
+          new PriorityQueue<Hit>((int) wanted, Collections.reverseOrder(BY_SCORE));
+
+      for (Map.Entry<Long, double[]> e : scores.entrySet()) {
+        Hit hit = new Hit(e.getKey(), e.getValue()[0]);
+
+        if (heap.size() < wanted) {
+          heap.add(hit);
+        } else if (BY_SCORE.compare(hit, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(hit);
+        }
+      }
+
+      hits.addAll(heap);
+      Collections.sort(hits, BY_SCORE);
+    }
+
+    return (offset >= hits.size()) ? Collections.<Hit>emptyList() : hits.subList((int) offset,
+        hits.size());
+  }
+
+  private List<String> analyze(@Nullable Object value) {
+    return analyzer.analyze((value == null) ? null : value.toString());
+  }
+
+  private FieldPostings getRequiredField(String attributeName) {
+    FieldPostings field = fields.get(attributeName);
+
+    if (field == null) {
+      throw new IllegalArgumentException("attribute is not full-text indexed: " + attributeName);
+    }
+
+    return field;
+  }
+
+  /**
+   * A search result: entity id and BM25 score.
+   */
+  public static class Hit {
+    private final long id;
+    private final double score;
+
+    public Hit(long id, double score) {
+      this.id = id;
+      this.score = score;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public double getScore() {
+      return score;
+    }
+
+    @Override
+    public String toString() {
+      return id + ":" + score;
+    }
+  }
+
+  private static class FieldPostings {
+    private final Map<String, PostingsList> postings = new HashMap<String, PostingsList>();
+    private final Map<Long, Integer> lengths = new HashMap<Long, Integer>();
+    private long totalLength = 0L;
+
+    public void insert(long id, List<String> terms) {
+      if (terms.isEmpty()) {
+        return;
+      }
+
+      for (Map.Entry<String, Integer> e : frequencies(terms).entrySet()) {
+        PostingsList list = postings.get(e.getKey());
+
+        if (list == null) {
+          list = new PostingsList();
+          postings.put(e.getKey(), list);
+        }
+
+        list.add(id, e.getValue());
+      }
+
+      lengths.put(id, terms.size());
+      totalLength += terms.size();
+    }
+
+    public void delete(long id, List<String> terms) {
+      Integer length = lengths.remove(id);
+
+      if (length == null) {
+        return;
+      }
+
+      totalLength -= length;
+
+      for (String term : frequencies(terms).keySet()) {
+        PostingsList list = postings.get(term);
+
+        if (list != null && list.remove(id) && list.isEmpty()) {
+          postings.remove(term);
+        }
+      }
+    }
+
+    /**
+     * Adds the BM25 score of each matching entity to its entry in scores.
+     */
+    public void score(Set<String> terms, Map<Long, double[]> scores) {
+      long documents = lengths.size();
+
+      if (documents == 0L) {
+        return;
+      }
+
+      double averageLength = (double) totalLength / documents;
+
+      for (String term : terms) {
+        PostingsList list = postings.get(term);
+
+        if (list == null) {
+          continue;
+        }
+
+        int df = list.size();
+        double idf = Math.log(1.0 + (documents - df + 0.5) / (df + 0.5));
+        PostingsList.Cursor cursor = list.cursor();
+
+        while (cursor.next()) {
+          long id = cursor.getId();
+          int tf = cursor.getFrequency();
+          double norm = K1 * (1.0 - B + B * lengths.get(id) / averageLength);
+          double[] score = scores.get(id);
+
+          if (score == null) {
+            score = new double[1];
+            scores.put(id, score);
+          }
+
+          score[0] += idf * tf * (K1 + 1.0) / (tf + norm);
+        }
+      }
+    }
+
+    private static Map<String, Integer> frequencies(List<String> terms) {
+      Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+
+      for (String term : terms) {
+        Integer count = result.get(term);
+        result.put(term, (count == null) ? 1 : count + 1);
+      }
+
+      return result;
+    }
+  }
+}
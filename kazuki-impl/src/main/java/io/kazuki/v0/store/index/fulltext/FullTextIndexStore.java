@@ -0,0 +1,285 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.TransactionHooks;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.index.TypeStateLoader;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreListener;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Maintains a FullTextIndex for every type whose schema declares full-text attributes, through the
+ * KeyValueStoreListener / SchemaStoreListener hooks, and answers ranked keyword searches. Indexes
+ * live in memory only and are rebuilt from a KV scan on lifecycle start (or lazily on first use
+ * of a type). Writes reach the indexes once their transaction commits.
+ */
+public class FullTextIndexStore implements SchemaStoreListener, KeyValueStoreListener {
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final KeyValueStore kvStore;
+  private final ConcurrentHashMap<String, FullTextIndex> indexes;
+  private final TypeStateLoader<FullTextIndex> loader;
+
+  @Inject
+  public FullTextIndexStore(LockManager lockManager, SequenceService sequence,
+      SchemaStore schemaStore, KeyValueStore kvStore) {
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.kvStore = kvStore;
+    this.indexes = new ConcurrentHashMap<String, FullTextIndex>();
+    this.loader =
+        new TypeStateLoader<FullTextIndex>("full-text indexes", lockManager, sequence,
+            schemaStore, kvStore, indexes) {
+          @Override
+          protected FullTextIndex load(String type, Schema schema) {
+            return schema.getFullText().isEmpty() ? null : buildIndex(type, schema);
+          }
+        };
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    kvStore.addListener(this);
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    schemaStore.addListener(this);
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        loader.loadAll();
+      }
+
+      @Override
+      public void stop() {
+        indexes.clear();
+      }
+    });
+  }
+
+  /**
+   * Returns the full-text index for the type, or null if the type has no schema or no full-text
+   * attributes.
+   */
+  @Nullable
+  public FullTextIndex getIndex(String type) {
+    return loader.get(type);
+  }
+
+  /**
+   * Returns the entities matching any term of the query, most relevant first.
+   *
+   * @param attributeName the full-text attribute to search, or null to search all of them
+   */
+  public List<FullTextHit> search(String type, @Nullable String attributeName, String query,
+      @Nullable Long offset, @Nullable Long limit) {
+    Preconditions.checkNotNull(query, "query");
+
+    FullTextIndex index = getIndex(type);
+
+    if (index == null) {
+      throw new IllegalArgumentException("type has no full-text attributes: " + type);
+    }
+
+    List<FullTextHit> result = new ArrayList<FullTextHit>();
+
+    for (FullTextIndex.Hit hit : index.search(attributeName, query,
+        (offset == null) ? 0L : offset, limit)) {
+      result.add(new FullTextHit(KeyImpl.createInternal(type, hit.getId()), hit.getScore()));
+    }
+
+    return result;
+  }
+
+  public List<FullTextHit> search(String type, String query, @Nullable Long offset,
+      @Nullable Long limit) {
+    return search(type, null, query, offset, limit);
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {}
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> instance) {
+    final FullTextIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.insert(id, instance);
+      }
+    });
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> newInstance,
+      final Map<String, Object> oldInstance) {
+    final FullTextIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.update(id, newInstance, oldInstance);
+      }
+    });
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> oldInstance) {
+    final FullTextIndex index = indexes.get(type);
+
+    if (index == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        index.delete(id, oldInstance);
+      }
+    });
+  }
+
+  @Override
+  public void clear(Handle handle, final Map<String, Schema> typeToSchemaMap,
+      final boolean preserveSchema) {
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        clearIndexes(typeToSchemaMap, preserveSchema);
+      }
+    });
+  }
+
+  private void clearIndexes(Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      for (String type : typeToSchemaMap.keySet()) {
+        FullTextIndex index = indexes.get(type);
+
+        if (index == null) {
+          continue;
+        }
+
+        if (preserveSchema) {
+          index.clear();
+        } else {
+          indexes.remove(type);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    if (schema.getFullText().isEmpty()) {
+      return;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.put(type, new FullTextIndex(schema));
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.remove(type);
+
+      if (!newSchema.getFullText().isEmpty()) {
+        indexes.put(type, buildIndex(type, newSchema));
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      indexes.remove(type);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private FullTextIndex buildIndex(String type, Schema schema) {
+    FullTextIndex index = new FullTextIndex(schema);
+    FieldTransform fieldTransform = new FieldTransform(schema);
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> entities =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> entity : entities) {
+        index.insert(sequence.resolveKey(entity.getKey()).getIdentifierLo(),
+            fieldTransform.pack(entity.getValue()));
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return index;
+  }
+}
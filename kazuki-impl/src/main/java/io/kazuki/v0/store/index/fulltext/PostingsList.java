@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compressed postings list of one term: (entity id, term frequency) pairs in ascending id order,
+ * stored as variable-byte encoded id deltas and frequencies (typically 2-3 bytes per posting).
+ *
+ * Appending an id above the current maximum (the common case, as ids are allocated in ascending
+ * order) is O(1); inserting or removing elsewhere re-encodes the list. Instances are not
+ * thread-safe; callers synchronize externally.
+ */
+public class PostingsList {
+  private byte[] data;
+  private int length;
+  private int size;
+  private long lastId;
+
+  public PostingsList() {
+    this.data = new byte[8];
+    this.length = 0;
+    this.size = 0;
+    this.lastId = -1L;
+  }
+
+  /**
+   * Number of postings (i.e. the document frequency of the term).
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Number of bytes used by the encoded postings.
+   */
+  public int getEncodedLength() {
+    return length;
+  }
+
+  /**
+   * Adds a posting, replacing the frequency if the id is already present.
+   */
+  public void add(long id, int frequency) {
+    Preconditions.checkArgument(id >= 0L, "id");
+    Preconditions.checkArgument(frequency > 0, "frequency");
+
+    if (id > lastId) {
+      append(id, frequency);
+      return;
+    }
+
+    long[] ids = new long[size + 1];
+    int[] frequencies = new int[size + 1];
+    int count = 0;
+    boolean added = false;
+    Cursor cursor = cursor();
+
+    while (cursor.next()) {
+      if (!added && cursor.getId() >= id) {
+        ids[count] = id;
+        frequencies[count] = frequency;
+        count += 1;
+        added = true;
+
+        if (cursor.getId() == id) {
+          continue;
+        }
+      }
+
+      ids[count] = cursor.getId();
+      frequencies[count] = cursor.getFrequency();
+      count += 1;
+    }
+
+    reencode(ids, frequencies, count);
+  }
+
+  /**
+   * Removes the posting of the id; returns false if it was not present.
+   */
+  public boolean remove(long id) {
+    if (id > lastId) {
+      return false;
+    }
+
+    long[] ids = new long[size];
+    int[] frequencies = new int[size];
+    int count = 0;
+    Cursor cursor = cursor();
+
+    while (cursor.next()) {
+      if (cursor.getId() != id) {
+        ids[count] = cursor.getId();
+        frequencies[count] = cursor.getFrequency();
+        count += 1;
+      }
+    }
+
+    if (count == size) {
+      return false;
+    }
+
+    reencode(ids, frequencies, count);
+
+    return true;
+  }
+
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  private void reencode(long[] ids, int[] frequencies, int count) {
+    data = new byte[Math.max(8, length)];
+    length = 0;
+    size = 0;
+    lastId = -1L;
+
+    for (int i = 0; i < count; i++) {
+      append(ids[i], frequencies[i]);
+    }
+  }
+
+  private void append(long id, int frequency) {
+    writeVarLong((lastId < 0L) ? id : id - lastId);
+    writeVarLong(frequency);
+
+    lastId = id;
+    size += 1;
+  }
+
+  private void writeVarLong(long value) {
+    if (length + 10 > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+    }
+
+    while ((value & ~0x7FL) != 0L) {
+      data[length++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    data[length++] = (byte) value;
+  }
+
+  /**
+   * Forward-only iterator over the postings, in ascending id order.
+   */
+  public class Cursor {
+    private int position = 0;
+    private long id = -1L;
+    private int frequency = 0;
+
+    public boolean next() {
+      if (position >= length) {
+        return false;
+      }
+
+      long delta = readVarLong();
+      id = (id < 0L) ? delta : id + delta;
+      frequency = (int) readVarLong();
+
+      return true;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public int getFrequency() {
+      return frequency;
+    }
+
+    private long readVarLong() {
+      long value = 0L;
+      int shift = 0;
+      byte b;
+
+      do {
+        b = data[position++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+
+      return value;
+    }
+  }
+}
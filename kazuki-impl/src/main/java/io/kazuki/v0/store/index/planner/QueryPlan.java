@@ -0,0 +1,353 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.planner;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.IndexFilter;
+import io.kazuki.v0.store.index.bitmap.BitmapIndex;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.index.stats.IndexStatistics;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Access plan for one conjunction of query terms: the terms answered by the bitmap index, the
+ * secondary indexes whose id sets are intersected (with the terms sent to each), and the residual
+ * terms checked against the retrieved entities. A plan with neither bitmap nor index terms is a
+ * filtered scan.
+ *
+ * A unique index with every attribute bound by equality beats any other index. Otherwise, when
+ * IndexStatistics are available the index with the lowest row estimate wins; without statistics,
+ * selectivity is estimated from the query shape: the longest prefix of equality (or IN)
+ * constrained attributes wins, with a range on the following attribute as tie-breaker. Partial
+ * indexes are only candidates when the conjunction contains every term of the index filter.
+ */
+public class QueryPlan {
+  /** Maximum number of secondary index id sets intersected for one conjunction */
+  public static final int MAX_INDEXES = 3;
+
+  private static final int UNIQUE_SCORE = Integer.MAX_VALUE;
+
+  private final List<QueryTerm> conjunction;
+  private final List<QueryTerm> bitmapTerms;
+  private final Map<String, List<QueryTerm>> indexTerms;
+  private final List<QueryTerm> residualTerms;
+
+  private QueryPlan(List<QueryTerm> conjunction, List<QueryTerm> bitmapTerms,
+      Map<String, List<QueryTerm>> indexTerms, List<QueryTerm> residualTerms) {
+    this.conjunction = Collections.unmodifiableList(conjunction);
+    this.bitmapTerms = Collections.unmodifiableList(bitmapTerms);
+    this.indexTerms = Collections.unmodifiableMap(indexTerms);
+    this.residualTerms = Collections.unmodifiableList(residualTerms);
+  }
+
+  public List<QueryTerm> getConjunction() {
+    return conjunction;
+  }
+
+  public List<QueryTerm> getBitmapTerms() {
+    return bitmapTerms;
+  }
+
+  /**
+   * Returns the chosen secondary indexes, most selective first, with the terms to send to each.
+   */
+  public Map<String, List<QueryTerm>> getIndexTerms() {
+    return indexTerms;
+  }
+
+  public List<QueryTerm> getResidualTerms() {
+    return residualTerms;
+  }
+
+  public boolean isScan() {
+    return bitmapTerms.isEmpty() && indexTerms.isEmpty();
+  }
+
+  /**
+   * Plans one conjunction. Bitmap-indexed terms are always answered from the bitmap index; the
+   * secondary indexes are only considered when useIndexes is set (i.e. the store maintains real
+   * index structures rather than scanning).
+   */
+  public static QueryPlan plan(Schema schema, List<QueryTerm> conjunction,
+      @Nullable BitmapIndex bitmapIndex, boolean useIndexes) {
+    return plan(schema, conjunction, bitmapIndex, useIndexes, null);
+  }
+
+  /**
+   * Plans one conjunction, ranking candidate indexes by the row estimates of the given index
+   * statistics (by index name) where available.
+   */
+  public static QueryPlan plan(Schema schema, List<QueryTerm> conjunction,
+      @Nullable BitmapIndex bitmapIndex, boolean useIndexes,
+      @Nullable Map<String, IndexStatistics> statistics) {
+    for (QueryTerm term : conjunction) {
+      if (schema.getAttribute(term.getField()) == null) {
+        throw new IllegalArgumentException("unknown schema attribute: " + term.getField());
+      }
+    }
+
+    List<QueryTerm> bitmapTerms = new ArrayList<QueryTerm>();
+    List<QueryTerm> remaining = new ArrayList<QueryTerm>();
+
+    for (QueryTerm term : conjunction) {
+      if (bitmapIndex != null && bitmapIndex.supports(term)) {
+        bitmapTerms.add(term);
+      } else {
+        remaining.add(term);
+      }
+    }
+
+    Map<String, List<QueryTerm>> indexTerms = new LinkedHashMap<String, List<QueryTerm>>();
+    Set<QueryTerm> covered = new HashSet<QueryTerm>();
+
+    if (useIndexes && !remaining.isEmpty()) {
+      chooseIndexes(schema, conjunction, remaining, statistics, indexTerms, covered);
+    }
+
+    List<QueryTerm> residualTerms = new ArrayList<QueryTerm>();
+
+    for (QueryTerm term : remaining) {
+      if (!covered.contains(term)) {
+        residualTerms.add(term);
+      }
+    }
+
+    return new QueryPlan(conjunction, bitmapTerms, indexTerms, residualTerms);
+  }
+
+  private static void chooseIndexes(Schema schema, List<QueryTerm> conjunction,
+      List<QueryTerm> terms, @Nullable Map<String, IndexStatistics> statistics,
+      Map<String, List<QueryTerm>> indexTerms, Set<QueryTerm> covered) {
+    List<IndexDefinition> candidates = new ArrayList<IndexDefinition>();
+    Map<String, Integer> scores = new LinkedHashMap<String, Integer>();
+    Map<String, Long> estimates = new LinkedHashMap<String, Long>();
+    FieldTransform transform = (statistics == null) ? null : new FieldTransform(schema);
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      // a partial index only answers queries that restrict results to its filter
+      if (!IndexFilter.isImpliedBy(schema, indexDef, conjunction)) {
+        continue;
+      }
+
+      int score = score(indexDef, terms);
+
+      if (score > 0) {
+        candidates.add(indexDef);
+        scores.put(indexDef.getName(), score);
+
+        IndexStatistics indexStats =
+            (statistics == null) ? null : statistics.get(indexDef.getName());
+
+        if (indexStats != null) {
+          estimates.put(indexDef.getName(), indexStats.estimateRows(terms, transform));
+        }
+      }
+    }
+
+    // row estimates are only comparable if every candidate has one
+    boolean useEstimates = estimates.size() == candidates.size();
+
+    Set<String> constrained = new HashSet<String>();
+
+    while (!candidates.isEmpty() && indexTerms.size() < MAX_INDEXES) {
+      IndexDefinition best = null;
+
+      for (IndexDefinition candidate : candidates) {
+        if (best == null || isBetter(candidate, best, scores, useEstimates ? estimates : null)) {
+          best = candidate;
+        }
+      }
+
+      candidates.remove(best);
+
+      // further indexes are only worth intersecting if they add an equality constraint
+      if (!indexTerms.isEmpty()
+          && (!hasEquality(best, firstAttribute(best), terms) || constrained.containsAll(best
+              .getAttributeNames()))) {
+        continue;
+      }
+
+      List<QueryTerm> sent = new ArrayList<QueryTerm>();
+
+      for (QueryTerm term : terms) {
+        IndexAttribute attr = best.getIndexAttribute(term.getField());
+
+        if (attr != null && isEligible(term)) {
+          sent.add(term);
+
+          // transformed attributes only narrow the candidates; the term is re-checked exactly
+          if (attr.getTransform() == null || AttributeTransform.NONE.equals(attr.getTransform())) {
+            covered.add(term);
+          }
+        }
+      }
+
+      indexTerms.put(best.getName(), sent);
+      constrained.addAll(best.getAttributeNames());
+
+      if (scores.get(best.getName()) == UNIQUE_SCORE) {
+        break;
+      }
+    }
+  }
+
+  private static boolean isBetter(IndexDefinition candidate, IndexDefinition best,
+      Map<String, Integer> scores, @Nullable Map<String, Long> estimates) {
+    int candidateScore = scores.get(candidate.getName());
+    int bestScore = scores.get(best.getName());
+
+    if (candidateScore == UNIQUE_SCORE || bestScore == UNIQUE_SCORE || estimates == null) {
+      return candidateScore > bestScore;
+    }
+
+    return estimates.get(candidate.getName()) < estimates.get(best.getName());
+  }
+
+  /**
+   * Returns 0 if the index cannot answer the terms, otherwise a selectivity estimate (higher is
+   * better).
+   */
+  static int score(IndexDefinition indexDef, List<QueryTerm> terms) {
+    List<String> attributeNames = indexDef.getAttributeNames();
+
+    if (indexDef.isUnique()) {
+      // unique index queries must bind every attribute by equality and nothing else
+      for (QueryTerm term : terms) {
+        if (indexDef.getIndexAttribute(term.getField()) != null
+            && (!QueryOperator.EQ.equals(term.getOperator()) || !isEligible(term))) {
+          return 0;
+        }
+      }
+
+      for (String attrName : attributeNames) {
+        if (!hasEquality(indexDef, attrName, terms)) {
+          return 0;
+        }
+      }
+
+      return UNIQUE_SCORE;
+    }
+
+    int score = 0;
+
+    for (String attrName : attributeNames) {
+      if (hasEquality(indexDef, attrName, terms)) {
+        score += 2;
+      } else {
+        if (hasRange(attrName, terms)) {
+          score += 1;
+        }
+
+        break;
+      }
+    }
+
+    return score;
+  }
+
+  private static String firstAttribute(IndexDefinition indexDef) {
+    return indexDef.getAttributeNames().get(0);
+  }
+
+  private static boolean hasEquality(IndexDefinition indexDef, String attrName,
+      List<QueryTerm> terms) {
+    for (QueryTerm term : terms) {
+      if (term.getField().equals(attrName)
+          && isEligible(term)
+          && (QueryOperator.EQ.equals(term.getOperator()) || QueryOperator.IN.equals(term
+              .getOperator()))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean hasRange(String attrName, List<QueryTerm> terms) {
+    for (QueryTerm term : terms) {
+      if (term.getField().equals(attrName) && isEligible(term)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Terms an index can answer: no NE (it would have to scan the whole index) and no null
+   * literals (entities with null attribute values are not necessarily indexed).
+   */
+  private static boolean isEligible(QueryTerm term) {
+    if (QueryOperator.NE.equals(term.getOperator())) {
+      return false;
+    }
+
+    if (QueryOperator.IN.equals(term.getOperator())) {
+      for (ValueHolder value : term.getValueList().getValueList()) {
+        if (ValueType.NULL.equals(value.getValueType())) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    return !ValueType.NULL.equals(term.getValue().getValueType());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+
+    if (!bitmapTerms.isEmpty()) {
+      result.append("bitmap").append(bitmapTerms);
+    }
+
+    for (Map.Entry<String, List<QueryTerm>> e : indexTerms.entrySet()) {
+      if (result.length() > 0) {
+        result.append(" & ");
+      }
+
+      result.append("index:").append(e.getKey()).append(e.getValue());
+    }
+
+    if (isScan()) {
+      result.append("scan");
+    }
+
+    if (!residualTerms.isEmpty()) {
+      result.append(" filter").append(residualTerms);
+    }
+
+    return result.toString();
+  }
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.planner;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.CachingSecondaryIndexStore;
+import io.kazuki.v0.store.index.FilteredKeyValueIterable;
+import io.kazuki.v0.store.index.SecondaryIndexStore;
+import io.kazuki.v0.store.index.SecondaryIndexStoreJdbiImpl;
+import io.kazuki.v0.store.index.bitmap.BitmapIndex;
+import io.kazuki.v0.store.index.bitmap.BitmapIndexStore;
+import io.kazuki.v0.store.index.bitmap.CompressedBitmap;
+import io.kazuki.v0.store.index.query.QueryCompiler;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.stats.IndexStatisticsStore;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+
+/**
+ * Answers queries over a type without a named index. Each conjunction of a (possibly
+ * disjunctive) query is planned separately (see {@link QueryPlan}): bitmap-indexed terms are
+ * answered from the BitmapIndexStore, the most selective secondary index (plus any further
+ * indexes adding an equality constraint) supply id sets which are intersected, and the terms no
+ * index covers are checked against the retrieved entities. The id sets of the conjunctions are
+ * unioned. If any conjunction has no usable index, the whole query is answered by one filtered
+ * scan instead.
+ *
+ * Results are returned in key order.
+ */
+public class QueryPlanner {
+  /** Number of candidate entities retrieved per batch when residual terms must be checked */
+  public static final int FILTER_BATCH_SIZE = 250;
+
+  private final boolean hasIndexes;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final SecondaryIndexStore indexStore;
+  private final BitmapIndexStore bitmapStore;
+  private final IndexStatisticsStore statisticsStore;
+
+  @Inject
+  public QueryPlanner(KeyValueStoreConfiguration config, SequenceService sequence,
+      SchemaStore schemaStore, KeyValueStore kvStore, SecondaryIndexStore indexStore,
+      BitmapIndexStore bitmapStore, IndexStatisticsStore statisticsStore) {
+    this.hasIndexes = config.isInMemoryIndex() || config.isSecondaryIndex();
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.indexStore = indexStore;
+    this.bitmapStore = bitmapStore;
+    this.statisticsStore = statisticsStore;
+  }
+
+  /**
+   * Queries using the Kazuki Query Language, extended with "or" between conjunctions.
+   */
+  public KeyValueIterable<Key> query(String type, String queryString,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return queryAny(type, QueryHelper.parseDisjunction(queryString), sortDirection, offset, limit);
+  }
+
+  public KeyValueIterable<Key> query(String type, List<QueryTerm> query,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    Preconditions.checkNotNull(query, "query");
+
+    return queryAny(type, ImmutableList.of(query), sortDirection, offset, limit);
+  }
+
+  /**
+   * Returns the keys of entities matching any of the given conjunctions, in key order.
+   */
+  public KeyValueIterable<Key> queryAny(String type, List<List<QueryTerm>> disjunction,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    Schema schema = getSchema(type);
+    List<QueryPlan> plans = explain(type, schema, disjunction);
+
+    for (QueryPlan plan : plans) {
+      if (plan.isScan()) {
+        return scan(type, schema, plans, sortDirection, offset, limit);
+      }
+    }
+
+    CompressedBitmap exact = new CompressedBitmap();
+    List<CompressedBitmap> candidates = new ArrayList<CompressedBitmap>();
+    List<Predicate<Object>> filters = new ArrayList<Predicate<Object>>();
+
+    for (QueryPlan plan : plans) {
+      CompressedBitmap ids = getCandidates(type, plan);
+
+      if (plan.getResidualTerms().isEmpty()) {
+        exact = CompressedBitmap.or(exact, ids);
+      } else if (!ids.isEmpty()) {
+        candidates.add(ids);
+        // residual terms were sent to no index, so they match the raw (untransformed) values
+        filters.add(QueryCompiler.compile(plan.getResidualTerms(), schema, null));
+      }
+    }
+
+    if (candidates.isEmpty()) {
+      return BitmapIndexStore.asKeys(type, exact, sortDirection, offset, limit);
+    }
+
+    return new CandidateIterable(type, exact, candidates, filters, sortDirection, offset, limit);
+  }
+
+  /**
+   * Returns the access plan of each conjunction, without executing the query.
+   */
+  public List<QueryPlan> explain(String type, List<List<QueryTerm>> disjunction) {
+    return explain(type, getSchema(type), disjunction);
+  }
+
+  private List<QueryPlan> explain(String type, Schema schema, List<List<QueryTerm>> disjunction) {
+    Preconditions.checkNotNull(disjunction, "query");
+    Preconditions.checkArgument(!disjunction.isEmpty(), "query");
+
+    BitmapIndex bitmapIndex = bitmapStore.getIndex(type);
+    boolean useIndexes = canUseIndexes(type);
+
+    List<QueryPlan> plans = new ArrayList<QueryPlan>();
+
+    for (List<QueryTerm> conjunction : disjunction) {
+      Preconditions.checkNotNull(conjunction, "query");
+
+      // statistics are used once computed; planning never triggers the initial scan
+      plans.add(QueryPlan.plan(schema, conjunction, bitmapIndex, useIndexes,
+          statisticsStore.peekStatistics(type)));
+    }
+
+    return Collections.unmodifiableList(plans);
+  }
+
+  private Schema getSchema(String type) {
+    Schema schema;
+
+    try {
+      schema = schemaStore.retrieveSchema(type).getValue();
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return Preconditions.checkNotNull(schema, "schema");
+  }
+
+  private boolean canUseIndexes(String type) {
+    if (!hasIndexes) {
+      return false;
+    }
+
+    SecondaryIndexStore store = indexStore;
+
+    if (store instanceof CachingSecondaryIndexStore) {
+      store = ((CachingSecondaryIndexStore) store).getDelegate();
+    }
+
+    // indexes created by an online rebuild are not queryable until the swap
+    return !(store instanceof SecondaryIndexStoreJdbiImpl)
+        || !((SecondaryIndexStoreJdbiImpl) store).isRebuilding(type);
+  }
+
+  private CompressedBitmap getCandidates(String type, QueryPlan plan) {
+    CompressedBitmap ids = null;
+
+    if (!plan.getBitmapTerms().isEmpty()) {
+      ids = bitmapStore.getIndex(type).evaluate(plan.getBitmapTerms());
+    }
+
+    for (Map.Entry<String, List<QueryTerm>> e : plan.getIndexTerms().entrySet()) {
+      if (ids != null && ids.isEmpty()) {
+        break;
+      }
+
+      CompressedBitmap found = new CompressedBitmap();
+
+      try (KeyValueIterable<Key> keys =
+          indexStore.queryWithoutPagination(type, LinkedHashMap.class, e.getKey(), e.getValue(),
+              SortDirection.ASCENDING, null, null)) {
+        for (Key key : keys) {
+          found.add(sequence.resolveKey(key).getIdentifierLo());
+        }
+      } catch (KazukiException ex) {
+        throw Throwables.propagate(ex);
+      }
+
+      ids = (ids == null) ? found : CompressedBitmap.and(ids, found);
+    }
+
+    return ids;
+  }
+
+  private KeyValueIterable<Key> scan(String type, Schema schema, List<QueryPlan> plans,
+      final SortDirection sortDirection, @Nullable final Long offset, @Nullable final Long limit) {
+    final List<Predicate<Object>> filters = new ArrayList<Predicate<Object>>();
+
+    // a scan answers no term from an index, so every term matches the raw (untransformed) values
+    for (QueryPlan plan : plans) {
+      filters.add(QueryCompiler.compile(plan.getConjunction(), schema, null));
+    }
+
+    Predicate<Object> anyOf = new Predicate<Object>() {
+      @Override
+      public boolean apply(Object instance) {
+        for (Predicate<Object> filter : filters) {
+          if (filter.apply(instance)) {
+            return true;
+          }
+        }
+
+        return false;
+      }
+    };
+
+    // offset and limit are applied here rather than in the filtered iterator
+    final FilteredKeyValueIterable<Key> filtered =
+        new FilteredKeyValueIterable<Key>(kvStore.iterators().entries(type, LinkedHashMap.class,
+            sortDirection), anyOf, new Function<KeyValuePair<?>, Key>() {
+          @Override
+          public Key apply(KeyValuePair<?> instance) {
+            return instance.getKey();
+          }
+        }, null, null);
+
+    return new KeyValueIterable<Key>() {
+      @Override
+      public KeyValueIterator<Key> iterator() {
+        final KeyValueIterator<Key> inner = filtered.iterator();
+        final Iterator<Key> iter = page(inner, offset, limit);
+
+        return new KeyValueIterator<Key>() {
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          @Override
+          public Key next() {
+            return iter.next();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("remove() not supported");
+          }
+
+          @Override
+          public void close() {
+            inner.close();
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        filtered.close();
+      }
+    };
+  }
+
+  private static <T> Iterator<T> page(Iterator<T> iter, @Nullable Long offset,
+      @Nullable Long limit) {
+    if (offset != null) {
+      Iterators.advance(iter, offset.intValue());
+    }
+
+    return (limit == null) ? iter : Iterators.limit(iter, limit.intValue());
+  }
+
+  /**
+   * Keys of the union of candidate id sets, in key order. Ids in the exact set match without
+   * further checks; any other id is retrieved (in batches) and matches if one of the conjunctions
+   * it is a candidate for accepts it.
+   */
+  private class CandidateIterable implements KeyValueIterable<Key> {
+    private final String type;
+    private final CompressedBitmap exact;
+    private final List<CompressedBitmap> candidates;
+    private final List<Predicate<Object>> filters;
+    private final CompressedBitmap all;
+    private final SortDirection sortDirection;
+    private final Long offset;
+    private final Long limit;
+
+    public CandidateIterable(String type, CompressedBitmap exact,
+        List<CompressedBitmap> candidates, List<Predicate<Object>> filters,
+        SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+      this.type = type;
+      this.exact = exact;
+      this.candidates = candidates;
+      this.filters = filters;
+      this.sortDirection = sortDirection;
+      this.offset = offset;
+      this.limit = limit;
+
+      CompressedBitmap union = exact;
+
+      for (CompressedBitmap ids : candidates) {
+        union = CompressedBitmap.or(union, ids);
+      }
+
+      this.all = union;
+    }
+
+    @Override
+    public KeyValueIterator<Key> iterator() {
+      final Iterator<Key> iter = page(new MatchIterator(), offset, limit);
+
+      return new KeyValueIterator<Key>() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public Key next() {
+          return iter.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("remove() not supported");
+        }
+
+        @Override
+        public void close() {}
+      };
+    }
+
+    @Override
+    public void close() {}
+
+    private boolean matches(long id, @Nullable Object value) {
+      if (exact.contains(id)) {
+        return true;
+      }
+
+      // entities deleted since the candidates were collected are skipped
+      if (value == null) {
+        return false;
+      }
+
+      for (int i = 0; i < candidates.size(); i++) {
+        if (candidates.get(i).contains(id) && filters.get(i).apply(value)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private class MatchIterator implements Iterator<Key> {
+      private final Iterator<Long> ids =
+          SortDirection.DESCENDING.equals(sortDirection) ? all.descendingIterator() : all
+              .iterator();
+      private Iterator<Key> batch = Collections.<Key>emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!batch.hasNext() && ids.hasNext()) {
+          batch = nextBatch();
+        }
+
+        return batch.hasNext();
+      }
+
+      @Override
+      public Key next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return batch.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("remove() not supported");
+      }
+
+      private Iterator<Key> nextBatch() {
+        List<Long> batchIds = new ArrayList<Long>(FILTER_BATCH_SIZE);
+        List<Key> toRetrieve = new ArrayList<Key>();
+
+        while (ids.hasNext() && batchIds.size() < FILTER_BATCH_SIZE) {
+          Long id = ids.next();
+          batchIds.add(id);
+
+          if (!exact.contains(id)) {
+            toRetrieve.add(KeyImpl.createInternal(type, id));
+          }
+        }
+
+        Map<Key, LinkedHashMap> values = Collections.emptyMap();
+
+        if (!toRetrieve.isEmpty()) {
+          try {
+            values = kvStore.multiRetrieve(toRetrieve, LinkedHashMap.class);
+          } catch (KazukiException e) {
+            throw Throwables.propagate(e);
+          }
+        }
+
+        List<Key> found = new ArrayList<Key>();
+
+        for (Long id : batchIds) {
+          Key key = KeyImpl.createInternal(type, id);
+
+          if (matches(id, values.get(key))) {
+            found.add(key);
+          }
+        }
+
+        return found.iterator();
+      }
+    }
+  }
+}
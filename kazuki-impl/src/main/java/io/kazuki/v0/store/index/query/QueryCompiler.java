@@ -0,0 +1,371 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.query;
+
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+
+/**
+ * Compiles a query into a predicate over (unpacked) entity maps, once per query. Target values
+ * are parsed (and transformed according to the index attribute) up front, and the comparison of
+ * each term is chosen from the schema type of its attribute: integral attributes compare
+ * primitive longs, while untyped (ANY / unknown) attributes and U64 fall back to the same
+ * BigInteger / BigDecimal / string parsing as {@link QueryEvaluator}.
+ */
+public class QueryCompiler {
+  private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+  private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+  public static Predicate<Object> compile(List<QueryTerm> query, Schema schema,
+      @Nullable IndexDefinition indexDefinition) {
+    Preconditions.checkNotNull(schema, "schema");
+
+    final List<TermMatcher> matchers = new ArrayList<TermMatcher>();
+
+    for (QueryTerm term : query) {
+      Attribute attribute = schema.getAttribute(term.getField());
+      IndexAttribute attr =
+          (indexDefinition == null) ? null : indexDefinition.getIndexAttribute(term.getField());
+      AttributeTransform transform = (attr == null) ? null : attr.getTransform();
+
+      matchers.add(compileTerm(term, (attribute == null) ? null : attribute.getType(), transform));
+    }
+
+    final TermMatcher[] compiled = matchers.toArray(new TermMatcher[matchers.size()]);
+
+    return new Predicate<Object>() {
+      @Override
+      public boolean apply(Object instance) {
+        Map<?, ?> values = (Map<?, ?>) instance;
+
+        for (TermMatcher matcher : compiled) {
+          if (!matcher.matches(values.get(matcher.field))) {
+            return false;
+          }
+        }
+
+        return true;
+      }
+    };
+  }
+
+  private static TermMatcher compileTerm(QueryTerm term, @Nullable Attribute.Type type,
+      @Nullable AttributeTransform transform) {
+    String field = term.getField();
+    QueryOperator operator = term.getOperator();
+
+    if (QueryOperator.IN.equals(operator)) {
+      List<ValueHolder> values = term.getValueList().getValueList();
+      TermMatcher[] alternatives = new TermMatcher[values.size()];
+
+      for (int i = 0; i < alternatives.length; i++) {
+        alternatives[i] = compileValue(field, QueryOperator.EQ, values.get(i), type, transform);
+      }
+
+      return new AnyOfMatcher(field, alternatives);
+    }
+
+    return compileValue(field, operator, term.getValue(), type, transform);
+  }
+
+  private static TermMatcher compileValue(String field, QueryOperator operator,
+      ValueHolder value, @Nullable Attribute.Type type, @Nullable AttributeTransform transform) {
+    Object target = value.getValue();
+
+    if (QueryOperator.PREFIX.equals(operator) && !ValueType.STRING.equals(value.getValueType())) {
+      throw new UnsupportedOperationException("Operator " + operator + " requires a string");
+    }
+
+    switch (value.getValueType()) {
+      case INTEGER:
+        BigInteger integer = (BigInteger) target;
+        if (isLongType(type) && integer.compareTo(LONG_MIN) >= 0
+            && integer.compareTo(LONG_MAX) <= 0) {
+          return new LongMatcher(field, operator, integer.longValue());
+        }
+        return new BigIntegerMatcher(field, operator, integer);
+      case DECIMAL:
+        return new DecimalMatcher(field, operator, (BigDecimal) target, isLongType(type));
+      case REFERENCE:
+        if (!QueryOperator.EQ.equals(operator) && !QueryOperator.NE.equals(operator)) {
+          throw new UnsupportedOperationException("Operator " + operator
+              + " not supported for reference type");
+        }
+        return new StringMatcher(field, operator, (String) target, transform);
+      case STRING:
+        return new StringMatcher(field, operator, (String) target, transform);
+      case BOOLEAN:
+        return new BooleanMatcher(field, operator, (Boolean) target,
+            Attribute.Type.BOOLEAN.equals(type));
+      case NULL:
+        return new NullMatcher(field, operator);
+      default:
+        throw new UnsupportedOperationException("Compare to " + value.getValueType()
+            + " not supported");
+    }
+  }
+
+  /**
+   * True if unpacked values of the attribute type are always Numbers with an exact long value
+   * (U64 may exceed a long, and ANY / unknown attributes may hold anything).
+   */
+  private static boolean isLongType(@Nullable Attribute.Type type) {
+    if (type == null) {
+      return false;
+    }
+
+    switch (type) {
+      case I8:
+      case I16:
+      case I32:
+      case I64:
+      case U8:
+      case U16:
+      case U32:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean test(QueryOperator operator, int comparison) {
+    switch (operator) {
+      case EQ:
+        return comparison == 0;
+      case NE:
+        return comparison != 0;
+      case GE:
+        return comparison >= 0;
+      case GT:
+        return comparison > 0;
+      case LE:
+        return comparison <= 0;
+      case LT:
+        return comparison < 0;
+      default:
+        throw new UnsupportedOperationException("Operator " + operator + " not supported");
+    }
+  }
+
+  private static String applyTransform(String value, @Nullable AttributeTransform transform) {
+    if (transform == null) {
+      return value;
+    }
+
+    switch (transform) {
+      case UPPERCASE:
+        return value.toUpperCase();
+      case LOWERCASE:
+        return value.toLowerCase();
+      default:
+        return value;
+    }
+  }
+
+  private abstract static class TermMatcher {
+    protected final String field;
+
+    protected TermMatcher(String field) {
+      this.field = field;
+    }
+
+    /**
+     * Missing (null) instance values only match NULL terms, as in QueryEvaluator.
+     */
+    public boolean matches(@Nullable Object instanceValue) {
+      return instanceValue != null && matchesValue(instanceValue);
+    }
+
+    protected abstract boolean matchesValue(Object instanceValue);
+  }
+
+  private static class AnyOfMatcher extends TermMatcher {
+    private final TermMatcher[] alternatives;
+
+    public AnyOfMatcher(String field, TermMatcher[] alternatives) {
+      super(field);
+      this.alternatives = alternatives;
+    }
+
+    @Override
+    public boolean matches(@Nullable Object instanceValue) {
+      for (TermMatcher alternative : alternatives) {
+        if (alternative.matches(instanceValue)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      return matches(instanceValue);
+    }
+  }
+
+  private static class LongMatcher extends TermMatcher {
+    private final QueryOperator operator;
+    private final long target;
+
+    public LongMatcher(String field, QueryOperator operator, long target) {
+      super(field);
+      this.operator = operator;
+      this.target = target;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      long value = ((Number) instanceValue).longValue();
+
+      return test(operator, (value < target) ? -1 : ((value == target) ? 0 : 1));
+    }
+  }
+
+  private static class BigIntegerMatcher extends TermMatcher {
+    private final QueryOperator operator;
+    private final BigInteger target;
+
+    public BigIntegerMatcher(String field, QueryOperator operator, BigInteger target) {
+      super(field);
+      this.operator = operator;
+      this.target = target;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      BigInteger value;
+
+      try {
+        value = new BigInteger(instanceValue.toString());
+      } catch (NumberFormatException e) {
+        return false;
+      }
+
+      return test(operator, value.compareTo(target));
+    }
+  }
+
+  private static class DecimalMatcher extends TermMatcher {
+    private final QueryOperator operator;
+    private final BigDecimal target;
+    private final boolean integral;
+
+    public DecimalMatcher(String field, QueryOperator operator, BigDecimal target,
+        boolean integral) {
+      super(field);
+      this.operator = operator;
+      this.target = target;
+      this.integral = integral;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      BigDecimal value;
+
+      if (integral) {
+        value = BigDecimal.valueOf(((Number) instanceValue).longValue());
+      } else {
+        try {
+          value = new BigDecimal(instanceValue.toString());
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+
+      return test(operator, value.compareTo(target));
+    }
+  }
+
+  private static class StringMatcher extends TermMatcher {
+    private final QueryOperator operator;
+    private final String target;
+    private final AttributeTransform transform;
+
+    public StringMatcher(String field, QueryOperator operator, String target,
+        @Nullable AttributeTransform transform) {
+      super(field);
+      this.operator = operator;
+      this.target = applyTransform(target, transform);
+      this.transform = transform;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      String value = applyTransform(instanceValue.toString(), transform);
+
+      if (QueryOperator.PREFIX.equals(operator)) {
+        return value.startsWith(target);
+      }
+
+      return test(operator, value.compareTo(target));
+    }
+  }
+
+  private static class BooleanMatcher extends TermMatcher {
+    private final QueryOperator operator;
+    private final boolean target;
+    private final boolean typed;
+
+    public BooleanMatcher(String field, QueryOperator operator, Boolean target, boolean typed) {
+      super(field);
+      this.operator = operator;
+      this.target = target;
+      this.typed = typed;
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      boolean value =
+          typed ? (Boolean) instanceValue : Boolean.parseBoolean(instanceValue.toString());
+
+      return test(operator, (value == target) ? 0 : (value ? 1 : -1));
+    }
+  }
+
+  private static class NullMatcher extends TermMatcher {
+    private final QueryOperator operator;
+
+    public NullMatcher(String field, QueryOperator operator) {
+      super(field);
+      this.operator = operator;
+    }
+
+    @Override
+    public boolean matches(@Nullable Object instanceValue) {
+      return test(operator, (instanceValue == null) ? 0 : 1);
+    }
+
+    @Override
+    protected boolean matchesValue(Object instanceValue) {
+      return matches(instanceValue);
+    }
+  }
+}
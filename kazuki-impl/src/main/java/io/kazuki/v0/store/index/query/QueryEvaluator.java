@@ -15,11 +15,17 @@
  */
 package io.kazuki.v0.store.index.query;
 
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * QueryEvaluator class to serve as a mock implementation of secondary indexes. For database-backed
  * indexes, this will be implemented by the SQL engine. In the long run this implementation will
@@ -27,12 +33,24 @@ import java.util.Map;
  */
 public class QueryEvaluator {
   public boolean matches(Map<String, Object> instance, List<QueryTerm> query) {
+    return matches(instance, query, null);
+  }
+
+  /**
+   * Evaluates the query as a query against the given index: string comparisons apply the
+   * transform of the index attribute (if any) to both sides, as the index implementations do.
+   */
+  public boolean matches(Map<String, Object> instance, List<QueryTerm> query,
+      @Nullable IndexDefinition indexDefinition) {
     boolean matches = true;
 
     for (QueryTerm term : query) {
       String field = term.getField();
       QueryOperator operator = term.getOperator();
       ValueHolder targetValue = term.getValue();
+      IndexAttribute attr =
+          (indexDefinition == null) ? null : indexDefinition.getIndexAttribute(field);
+      AttributeTransform transform = (attr == null) ? null : attr.getTransform();
 
       Object instanceValue = instance.get(field);
 
@@ -41,7 +59,7 @@ public class QueryEvaluator {
         break;
       }
 
-      boolean satisfied = evaluate(operator, instanceValue, targetValue);
+      boolean satisfied = evaluate(operator, instanceValue, targetValue, transform);
 
       if (!satisfied) {
         matches = false;
@@ -53,8 +71,23 @@ public class QueryEvaluator {
   }
 
   public boolean evaluate(QueryOperator operator, Object instanceValue, ValueHolder targetQueryValue) {
+    return evaluate(operator, instanceValue, targetQueryValue, null);
+  }
+
+  private boolean evaluate(QueryOperator operator, Object instanceValue,
+      ValueHolder targetQueryValue, @Nullable AttributeTransform transform) {
     Object targetValue = targetQueryValue.getValue();
 
+    if (QueryOperator.PREFIX.equals(operator)) {
+      if (!ValueType.STRING.equals(targetQueryValue.getValueType())) {
+        throw new UnsupportedOperationException("Operator " + operator + " requires a string");
+      }
+
+      return instanceValue != null
+          && transform(instanceValue.toString(), transform).startsWith(
+              transform((String) targetValue, transform));
+    }
+
     int comparison = 0;
 
     switch (targetQueryValue.getValueType()) {
@@ -79,10 +112,14 @@ public class QueryEvaluator {
           throw new UnsupportedOperationException("Operator " + operator
               + " not supported for reference type");
         }
-        comparison = instanceValue.toString().compareTo((String) targetValue);
+        comparison =
+            transform(instanceValue.toString(), transform).compareTo(
+                transform((String) targetValue, transform));
         break;
       case STRING:
-        comparison = instanceValue.toString().compareTo((String) targetValue);
+        comparison =
+            transform(instanceValue.toString(), transform).compareTo(
+                transform((String) targetValue, transform));
         break;
       case BOOLEAN:
         try {
@@ -127,4 +164,19 @@ public class QueryEvaluator {
 
     return matches;
   }
+
+  private static String transform(String value, @Nullable AttributeTransform transform) {
+    if (transform == null) {
+      return value;
+    }
+
+    switch (transform) {
+      case UPPERCASE:
+        return value.toUpperCase();
+      case LOWERCASE:
+        return value.toLowerCase();
+      default:
+        return value;
+    }
+  }
 }
@@ -18,6 +18,8 @@ package io.kazuki.v0.store.index.query;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
@@ -39,4 +41,43 @@ public class QueryHelper {
 
     return query;
   }
+
+  /**
+   * Parses a disjunction of conjunctions ("a eq 1 and b eq 2 or c eq 3"); "and" binds tighter
+   * than "or".
+   */
+  public static List<List<QueryTerm>> parseDisjunction(String queryString) {
+    QueryLexer lex = new QueryLexer(new ANTLRStringStream(queryString));
+    CommonTokenStream tokens = new CommonTokenStream(lex);
+    QueryParser parser = new QueryParser(tokens);
+
+    List<List<QueryTerm>> disjunction = new ArrayList<List<QueryTerm>>();
+    try {
+      parser.term_disjunction(disjunction);
+    } catch (RecognitionException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return disjunction;
+  }
+
+  /**
+   * Returns the least string greater than every string starting with the prefix (in String
+   * order), i.e. the exclusive upper bound of a PREFIX range, or null if there is none (the
+   * prefix is empty or consists of Character.MAX_VALUE only).
+   */
+  @Nullable
+  public static String prefixUpperBound(String prefix) {
+    int end = prefix.length();
+
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end -= 1;
+    }
+
+    if (end == 0) {
+      return null;
+    }
+
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
 }
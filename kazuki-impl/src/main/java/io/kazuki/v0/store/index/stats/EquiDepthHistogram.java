@@ -0,0 +1,167 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable equi-depth histogram: bucket boundaries chosen so that every bucket holds (about) the
+ * same number of values. Built from a sorted sample; fractions are relative to the sample, so
+ * multiply by the row count for row estimates.
+ */
+public class EquiDepthHistogram {
+  /** Orders values as stored in the index: numerically for numbers, naturally otherwise */
+  public static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public int compare(Object a, Object b) {
+      if (a instanceof Number && b instanceof Number) {
+        return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+      }
+
+      if (a instanceof Comparable && a.getClass().equals(b.getClass())) {
+        return ((Comparable) a).compareTo(b);
+      }
+
+      return a.toString().compareTo(b.toString());
+    }
+  };
+
+  private final List<Object> lowerBounds;
+  private final List<Object> upperBounds;
+  private final List<Integer> counts;
+  private final int total;
+
+  /**
+   * Builds a histogram of at most the given number of buckets from values sorted by VALUE_ORDER.
+   */
+  public EquiDepthHistogram(List<Object> sortedValues, int buckets) {
+    List<Object> newLower = new ArrayList<Object>();
+    List<Object> newUpper = new ArrayList<Object>();
+    List<Integer> newCounts = new ArrayList<Integer>();
+
+    int size = sortedValues.size();
+    int bucketCount = Math.max(1, Math.min(buckets, size));
+
+    for (int i = 0; i < bucketCount && size > 0; i++) {
+      int from = (int) ((long) i * size / bucketCount);
+      int to = (int) ((long) (i + 1) * size / bucketCount);
+
+      if (to > from) {
+        newLower.add(sortedValues.get(from));
+        newUpper.add(sortedValues.get(to - 1));
+        newCounts.add(to - from);
+      }
+    }
+
+    this.lowerBounds = Collections.unmodifiableList(newLower);
+    this.upperBounds = Collections.unmodifiableList(newUpper);
+    this.counts = Collections.unmodifiableList(newCounts);
+    this.total = size;
+  }
+
+  public int getBucketCount() {
+    return counts.size();
+  }
+
+  public List<Object> getLowerBounds() {
+    return lowerBounds;
+  }
+
+  public List<Object> getUpperBounds() {
+    return upperBounds;
+  }
+
+  public List<Integer> getCounts() {
+    return counts;
+  }
+
+  public int getSampleSize() {
+    return total;
+  }
+
+  /**
+   * Estimated fraction of values less than (or, if inclusive, less than or equal to) the given
+   * value. Values inside a bucket are assumed to be spread evenly, i.e. half of the bucket.
+   */
+  public double fractionBelow(Object value, boolean inclusive) {
+    if (total == 0) {
+      return 0.0;
+    }
+
+    double below = 0.0;
+
+    for (int i = 0; i < counts.size(); i++) {
+      int vsLower = VALUE_ORDER.compare(value, lowerBounds.get(i));
+      int vsUpper = VALUE_ORDER.compare(value, upperBounds.get(i));
+
+      if (vsUpper > 0 || (inclusive && vsUpper == 0)) {
+        below += counts.get(i);
+      } else if (vsLower > 0 || (inclusive && vsLower == 0)) {
+        below += counts.get(i) / 2.0;
+      } else {
+        break;
+      }
+    }
+
+    return below / total;
+  }
+
+  /**
+   * Estimated fraction of values equal to the given value, as far as the histogram can tell:
+   * buckets consisting only of the value, plus a share of the bucket it falls into otherwise.
+   */
+  public double fractionEqual(Object value) {
+    if (total == 0) {
+      return 0.0;
+    }
+
+    double equal = 0.0;
+
+    for (int i = 0; i < counts.size(); i++) {
+      int vsLower = VALUE_ORDER.compare(value, lowerBounds.get(i));
+      int vsUpper = VALUE_ORDER.compare(value, upperBounds.get(i));
+
+      if (vsLower == 0 && vsUpper == 0) {
+        equal += counts.get(i);
+      } else if (vsLower >= 0 && vsUpper <= 0) {
+        equal += 1.0;
+      }
+    }
+
+    return equal / total;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("EquiDepthHistogram[");
+
+    for (int i = 0; i < counts.size(); i++) {
+      if (i > 0) {
+        result.append(", ");
+      }
+
+      result.append(lowerBounds.get(i)).append("..").append(upperBounds.get(i)).append(":")
+          .append(counts.get(i));
+    }
+
+    return result.append("]").toString();
+  }
+}
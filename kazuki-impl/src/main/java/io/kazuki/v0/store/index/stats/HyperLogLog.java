@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HyperLogLog distinct-value estimator over the string form of values. With the default precision
+ * of 12 (4096 one-byte registers) the standard error is about 1.6%.
+ *
+ * HyperLogLog cannot forget values, so after deletes the estimate is an upper bound until the
+ * sketch is rebuilt. Instances are not thread-safe; callers synchronize externally.
+ */
+public class HyperLogLog {
+  public static final int DEFAULT_PRECISION = 12;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  public HyperLogLog(int precision) {
+    Preconditions.checkArgument(precision >= 4 && precision <= 16, "precision");
+
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public void add(Object value) {
+    addHash(HASH.hashString(String.valueOf(value), Charsets.UTF_8).asLong());
+  }
+
+  void addHash(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    long rest = hash << precision;
+    int rank = Math.min(Long.numberOfLeadingZeros(rest), 64 - precision) + 1;
+
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0.0;
+    int zeros = 0;
+
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+
+      if (register == 0) {
+        zeros += 1;
+      }
+    }
+
+    double estimate = alpha(m) * m * m / sum;
+
+    // small-range correction (linear counting)
+    if (estimate <= 2.5 * m && zeros > 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+
+    return Math.round(estimate);
+  }
+
+  public void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1.0 + 1.079 / m);
+    }
+  }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+/**
+ * Statistics for one secondary index, maintained incrementally from the KV store hooks: row count,
+ * HyperLogLog estimates of distinct index keys and distinct leading-column values, and an
+ * equi-depth histogram of the leading column.
+ *
+ * The histogram is computed on demand from a backing sample of leading-column values (reservoir
+ * sampling on insert; deleted and updated rows are removed from / replaced in the sample), so
+ * it follows the data distribution without rescanning.
+ */
+public class IndexStatistics {
+  public static final int SAMPLE_SIZE = 1024;
+  public static final int HISTOGRAM_BUCKETS = 32;
+
+  private final IndexDefinition indexDefinition;
+  private final String leadingAttribute;
+  private final HyperLogLog distinctKeys;
+  private final HyperLogLog distinctLeading;
+  private final Random random;
+
+  private final long[] sampleIds;
+  private final Object[] sampleValues;
+  private final Map<Long, Integer> samplePositions;
+  private int sampleCount;
+
+  private long rowCount;
+  private long inserts;
+  private EquiDepthHistogram histogram;
+
+  public IndexStatistics(IndexDefinition indexDefinition) {
+    this.indexDefinition = indexDefinition;
+    this.leadingAttribute = indexDefinition.getAttributeNames().get(0);
+    this.distinctKeys = new HyperLogLog();
+    this.distinctLeading = new HyperLogLog();
+    this.random = new Random();
+    this.sampleIds = new long[SAMPLE_SIZE];
+    this.sampleValues = new Object[SAMPLE_SIZE];
+    this.samplePositions = new HashMap<Long, Integer>();
+  }
+
+  public IndexDefinition getIndexDefinition() {
+    return indexDefinition;
+  }
+
+  public synchronized long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Estimated number of distinct index keys (all index attributes together).
+   */
+  public synchronized long getDistinctKeys() {
+    return Math.min(rowCount, distinctKeys.estimate());
+  }
+
+  /**
+   * Estimated number of distinct values of the leading index attribute.
+   */
+  public synchronized long getDistinctLeadingValues() {
+    return Math.min(rowCount, distinctLeading.estimate());
+  }
+
+  /**
+   * Equi-depth histogram of the leading index attribute (non-null values only).
+   */
+  public synchronized EquiDepthHistogram getHistogram() {
+    if (histogram == null) {
+      List<Object> values = new ArrayList<Object>(sampleCount);
+
+      for (int i = 0; i < sampleCount; i++) {
+        if (sampleValues[i] != null) {
+          values.add(sampleValues[i]);
+        }
+      }
+
+      Collections.sort(values, EquiDepthHistogram.VALUE_ORDER);
+      histogram = new EquiDepthHistogram(values, HISTOGRAM_BUCKETS);
+    }
+
+    return histogram;
+  }
+
+  /**
+   * Records a new row; the instance is in packed (FieldTransform) form.
+   */
+  public synchronized void insert(long id, Map<String, Object> packed) {
+    rowCount += 1;
+    inserts += 1;
+
+    distinctKeys.add(indexKey(packed));
+
+    Object leading = leadingValue(packed);
+    if (leading != null) {
+      distinctLeading.add(leading);
+    }
+
+    if (sampleCount < SAMPLE_SIZE) {
+      addSample(id, leading);
+    } else {
+      long slot = (long) (random.nextDouble() * inserts);
+
+      if (slot < SAMPLE_SIZE) {
+        replaceSample((int) slot, id, leading);
+      }
+    }
+  }
+
+  public synchronized void update(long id, Map<String, Object> packed) {
+    distinctKeys.add(indexKey(packed));
+
+    Object leading = leadingValue(packed);
+    if (leading != null) {
+      distinctLeading.add(leading);
+    }
+
+    Integer position = samplePositions.get(id);
+    if (position != null) {
+      sampleValues[position] = leading;
+      histogram = null;
+    }
+  }
+
+  public synchronized void delete(long id) {
+    rowCount = Math.max(0L, rowCount - 1);
+
+    Integer position = samplePositions.remove(id);
+    if (position != null) {
+      int last = sampleCount - 1;
+
+      if (position != last) {
+        sampleIds[position] = sampleIds[last];
+        sampleValues[position] = sampleValues[last];
+        samplePositions.put(sampleIds[position], position);
+      }
+
+      sampleValues[last] = null;
+      sampleCount -= 1;
+      histogram = null;
+    }
+  }
+
+  public synchronized void clear() {
+    rowCount = 0L;
+    inserts = 0L;
+    distinctKeys.clear();
+    distinctLeading.clear();
+    samplePositions.clear();
+    Arrays.fill(sampleValues, null);
+    sampleCount = 0;
+    histogram = null;
+  }
+
+  /**
+   * Estimates the number of rows matching the given terms (terms on attributes outside the index
+   * are ignored). Only the leading attribute is estimated from the histogram; an equality match on
+   * every attribute is estimated from the distinct key count.
+   *
+   * @param transform FieldTransform of the schema, used to pack the query literals
+   */
+  public synchronized long estimateRows(List<QueryTerm> terms, FieldTransform transform) {
+    if (rowCount == 0L) {
+      return 0L;
+    }
+
+    boolean allEquality = true;
+    int boundAttributes = 0;
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      boolean bound = false;
+
+      for (QueryTerm term : terms) {
+        if (term.getField().equals(attr.getName())) {
+          bound = true;
+          allEquality = allEquality && QueryOperator.EQ.equals(term.getOperator());
+        }
+      }
+
+      if (bound) {
+        boundAttributes += 1;
+      }
+    }
+
+    if (allEquality && boundAttributes == indexDefinition.getIndexAttributes().size()) {
+      if (indexDefinition.isUnique()) {
+        return 1L;
+      }
+
+      return Math.max(1L, rowCount / Math.max(1L, getDistinctKeys()));
+    }
+
+    double low = 0.0;
+    double high = 1.0;
+    double equalFraction = 1.0;
+    IndexAttribute leading = indexDefinition.getIndexAttribute(leadingAttribute);
+
+    for (QueryTerm term : terms) {
+      if (!term.getField().equals(leadingAttribute)) {
+        continue;
+      }
+
+      QueryOperator operator = term.getOperator();
+
+      if (QueryOperator.IN.equals(operator)) {
+        double sum = 0.0;
+
+        for (ValueHolder value : term.getValueList().getValueList()) {
+          sum += equalFraction(pack(transform, leading, value));
+        }
+
+        equalFraction *= Math.min(1.0, sum);
+        continue;
+      }
+
+      Object value = pack(transform, leading, term.getValue());
+
+      switch (operator) {
+        case EQ:
+          equalFraction *= equalFraction(value);
+          break;
+        case NE:
+          equalFraction *= 1.0 - equalFraction(value);
+          break;
+        case GT:
+          low = Math.max(low, fractionBelow(value, true));
+          break;
+        case GE:
+          low = Math.max(low, fractionBelow(value, false));
+          break;
+        case LT:
+          high = Math.min(high, fractionBelow(value, false));
+          break;
+        case LE:
+          high = Math.min(high, fractionBelow(value, true));
+          break;
+        case PREFIX:
+          String upperBound =
+              (value == null) ? null : QueryHelper.prefixUpperBound(value.toString());
+
+          low = Math.max(low, fractionBelow(value, false));
+          high = Math.min(high, (upperBound == null) ? 1.0 : fractionBelow(upperBound, false));
+          break;
+        default:
+          break;
+      }
+    }
+
+    double fraction = Math.max(0.0, high - low) * equalFraction;
+
+    return Math.max(1L, Math.round(fraction * rowCount));
+  }
+
+  private double equalFraction(@Nullable Object value) {
+    if (value == null) {
+      return 1.0 / Math.max(1L, rowCount);
+    }
+
+    long distinct = Math.max(1L, getDistinctLeadingValues());
+
+    return Math.max(1.0 / distinct, getHistogram().fractionEqual(value));
+  }
+
+  private double fractionBelow(@Nullable Object value, boolean inclusive) {
+    return (value == null) ? 0.0 : getHistogram().fractionBelow(value, inclusive);
+  }
+
+  @Nullable
+  private static Object pack(FieldTransform transform, IndexAttribute attr, ValueHolder value) {
+    if (ValueType.NULL.equals(value.getValueType())) {
+      return null;
+    }
+
+    try {
+      return applyTransform(transform.transformValue(attr.getName(), value.getValue()), attr);
+    } catch (TransformException e) {
+      return null;
+    }
+  }
+
+  private void addSample(long id, Object value) {
+    sampleIds[sampleCount] = id;
+    sampleValues[sampleCount] = value;
+    samplePositions.put(id, sampleCount);
+    sampleCount += 1;
+    histogram = null;
+  }
+
+  private void replaceSample(int position, long id, Object value) {
+    samplePositions.remove(sampleIds[position]);
+    sampleIds[position] = id;
+    sampleValues[position] = value;
+    samplePositions.put(id, position);
+    histogram = null;
+  }
+
+  @Nullable
+  private Object leadingValue(Map<String, Object> packed) {
+    return applyTransform(packed.get(leadingAttribute),
+        indexDefinition.getIndexAttribute(leadingAttribute));
+  }
+
+  private String indexKey(Map<String, Object> packed) {
+    StringBuilder key = new StringBuilder();
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      key.append(applyTransform(packed.get(attr.getName()), attr)).append('\u0000');
+    }
+
+    return key.toString();
+  }
+
+  @Nullable
+  private static Object applyTransform(@Nullable Object value, IndexAttribute attr) {
+    if (value == null || attr.getTransform() == null) {
+      return value;
+    }
+
+    switch (attr.getTransform()) {
+      case UPPERCASE:
+        return value.toString().toUpperCase();
+      case LOWERCASE:
+        return value.toString().toLowerCase();
+      default:
+        return value;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "IndexStatistics[index=" + indexDefinition.getName() + ", rows=" + rowCount
+        + ", distinctKeys=" + getDistinctKeys() + ", distinctLeading="
+        + getDistinctLeadingValues() + ", histogram=" + getHistogram() + "]";
+  }
+}
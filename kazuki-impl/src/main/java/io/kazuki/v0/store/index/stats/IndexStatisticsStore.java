@@ -0,0 +1,375 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.TransactionHooks;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.index.IndexFilter;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.management.KazukiComponent;
+import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreListener;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Maintains IndexStatistics for every secondary index of a type, and answers row estimates for
+ * index queries. Statistics for a type are computed with one KV scan on first request and kept
+ * up to date from the onCreate / onUpdate / onDelete hooks afterwards, once the write commits; a
+ * schema change discards them, to be recomputed on next request. Statistics of a partial index
+ * cover only the entities matching its filter.
+ *
+ * Registered as a management component, so operators can inspect index sizes and value
+ * distributions.
+ *
+ * Disabled unless KeyValueStoreConfiguration.isIndexStatistics() is set.
+ */
+public class IndexStatisticsStore
+    implements
+      KazukiComponent<IndexStatisticsStore>,
+      SchemaStoreListener,
+      KeyValueStoreListener {
+  private final boolean enabled;
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final ConcurrentHashMap<String, TypeStatistics> statistics;
+  private final ComponentDescriptor<IndexStatisticsStore> componentDescriptor;
+
+  @Inject
+  public IndexStatisticsStore(KeyValueStoreConfiguration config, LockManager lockManager,
+      SequenceService sequence, SchemaStore schemaStore, KeyValueStore kvStore) {
+    this.enabled = config.isIndexStatistics();
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.statistics = new ConcurrentHashMap<String, TypeStatistics>();
+    this.componentDescriptor =
+        new ComponentDescriptorImpl<IndexStatisticsStore>("KZ:IndexStatistics:"
+            + config.getGroupName() + "-" + config.getStoreName(), IndexStatisticsStore.class,
+            this, new ImmutableList.Builder().add(
+                ((KazukiComponent) this.schemaStore).getComponentDescriptor(),
+                ((KazukiComponent) this.kvStore).getComponentDescriptor()).build());
+  }
+
+  @Override
+  public ComponentDescriptor<IndexStatisticsStore> getComponentDescriptor() {
+    return this.componentDescriptor;
+  }
+
+  @Override
+  @Inject
+  public void registerAsComponent(ComponentRegistrar manager) {
+    manager.register(this.componentDescriptor);
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    if (enabled) {
+      kvStore.addListener(this);
+    }
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    if (enabled) {
+      schemaStore.addListener(this);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the statistics of each index of the type by index name (computing them if needed),
+   * or an empty map if the type has no schema.
+   */
+  public Map<String, IndexStatistics> getStatistics(String type) {
+    Preconditions.checkState(enabled, "index statistics are not enabled");
+
+    TypeStatistics typeStats = statistics.get(type);
+
+    if (typeStats != null) {
+      return typeStats.byIndex;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      typeStats = statistics.get(type);
+
+      if (typeStats == null) {
+        KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+
+        if (schemaKv == null) {
+          return Collections.emptyMap();
+        }
+
+        typeStats = build(type, schemaKv.getValue());
+        statistics.put(type, typeStats);
+      }
+
+      return typeStats.byIndex;
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Nullable
+  public IndexStatistics getStatistics(String type, String indexName) {
+    return getStatistics(type).get(indexName);
+  }
+
+  /**
+   * Returns the statistics of the type if they have already been computed, without scanning (so
+   * always null if statistics are disabled).
+   */
+  @Nullable
+  public Map<String, IndexStatistics> peekStatistics(String type) {
+    TypeStatistics typeStats = statistics.get(type);
+
+    return (typeStats == null) ? null : typeStats.byIndex;
+  }
+
+  /**
+   * Estimates the number of rows an index query would return.
+   */
+  public long estimateRows(String type, String indexName, List<QueryTerm> query) {
+    Preconditions.checkNotNull(query, "query");
+
+    TypeStatistics typeStats = statistics.get(type);
+
+    if (typeStats == null) {
+      getStatistics(type);
+      typeStats = statistics.get(type);
+    }
+
+    Preconditions.checkNotNull(typeStats, "schema");
+
+    IndexStatistics indexStats = typeStats.byIndex.get(indexName);
+    Preconditions.checkNotNull(indexStats, "index");
+
+    return indexStats.estimateRows(query, typeStats.transform);
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {}
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, final Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> instance) {
+    final TypeStatistics typeStats = statistics.get(type);
+
+    if (typeStats == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (IndexStatistics indexStats : typeStats.byIndex.values()) {
+          if (IndexFilter.includes(schema, indexStats.getIndexDefinition(), instance)) {
+            indexStats.insert(id, instance);
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, final Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> newInstance,
+      final Map<String, Object> oldInstance) {
+    final TypeStatistics typeStats = statistics.get(type);
+
+    if (typeStats == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (IndexStatistics indexStats : typeStats.byIndex.values()) {
+          IndexDefinition indexDef = indexStats.getIndexDefinition();
+          boolean wasIncluded = IndexFilter.includes(schema, indexDef, oldInstance);
+          boolean isIncluded = IndexFilter.includes(schema, indexDef, newInstance);
+
+          if (wasIncluded && isIncluded) {
+            indexStats.update(id, newInstance);
+          } else if (isIncluded) {
+            indexStats.insert(id, newInstance);
+          } else if (wasIncluded) {
+            indexStats.delete(id);
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, final Schema schema,
+      ResolvedKey resolvedKey, final Map<String, Object> oldInstance) {
+    final TypeStatistics typeStats = statistics.get(type);
+
+    if (typeStats == null) {
+      return;
+    }
+
+    final long id = resolvedKey.getIdentifierLo();
+
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        for (IndexStatistics indexStats : typeStats.byIndex.values()) {
+          if (IndexFilter.includes(schema, indexStats.getIndexDefinition(), oldInstance)) {
+            indexStats.delete(id);
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public void clear(Handle handle, final Map<String, Schema> typeToSchemaMap,
+      final boolean preserveSchema) {
+    TransactionHooks.afterCommit(handle, new Runnable() {
+      @Override
+      public void run() {
+        clearStatistics(typeToSchemaMap, preserveSchema);
+      }
+    });
+  }
+
+  private void clearStatistics(Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      for (String type : typeToSchemaMap.keySet()) {
+        TypeStatistics typeStats = statistics.get(type);
+
+        if (typeStats == null) {
+          continue;
+        }
+
+        if (preserveSchema) {
+          for (IndexStatistics indexStats : typeStats.byIndex.values()) {
+            indexStats.clear();
+          }
+        } else {
+          statistics.remove(type);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      statistics.put(type, new TypeStatistics(schema));
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      statistics.remove(type);
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    try (LockManager toRelease = lockManager.acquire()) {
+      statistics.remove(type);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private TypeStatistics build(String type, Schema schema) throws KazukiException {
+    TypeStatistics typeStats = new TypeStatistics(schema);
+
+    if (typeStats.byIndex.isEmpty()) {
+      return typeStats;
+    }
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> entities =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> entity : entities) {
+        long id = sequence.resolveKey(entity.getKey()).getIdentifierLo();
+        Map<String, Object> packed = typeStats.transform.pack(entity.getValue());
+
+        for (IndexStatistics indexStats : typeStats.byIndex.values()) {
+          if (IndexFilter.includes(schema, indexStats.getIndexDefinition(), packed)) {
+            indexStats.insert(id, packed);
+          }
+        }
+      }
+    }
+
+    return typeStats;
+  }
+
+  private static class TypeStatistics {
+    private final FieldTransform transform;
+    private final Map<String, IndexStatistics> byIndex;
+
+    public TypeStatistics(Schema schema) {
+      this.transform = new FieldTransform(schema);
+
+      Map<String, IndexStatistics> newByIndex = new LinkedHashMap<String, IndexStatistics>();
+
+      for (IndexDefinition indexDef : schema.getIndexes()) {
+        newByIndex.put(indexDef.getName(), new IndexStatistics(indexDef));
+      }
+
+      this.byIndex = Collections.unmodifiableMap(newByIndex);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A trained compression dictionary (see ValueCompression), stored in the KV table as an entity of
+ * the internal type "$dictionary". Dictionaries are never modified: retraining a type adds the
+ * next version, and older versions stay available for the values compressed with them.
+ */
+public class CompressionDictionary {
+  private final int id;
+  private final String type;
+  private final long version;
+  private final byte[] dictionary;
+
+  public CompressionDictionary(@JsonProperty("id") int id, @JsonProperty("type") String type,
+      @JsonProperty("version") long version, @JsonProperty("dictionary") byte[] dictionary) {
+    this.id = id;
+    this.type = type;
+    this.version = version;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Random identifier, referenced by each value compressed with the dictionary.
+   */
+  public int getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public byte[] getDictionary() {
+    return dictionary;
+  }
+}
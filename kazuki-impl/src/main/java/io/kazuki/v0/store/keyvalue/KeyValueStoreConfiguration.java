@@ -17,6 +17,10 @@ package io.kazuki.v0.store.keyvalue;
 
 import io.kazuki.v0.store.config.ConfigurationBuilder;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
 
@@ -30,6 +34,13 @@ public class KeyValueStoreConfiguration {
   private final boolean strictTypeCreation;
   private final Long partitionSize;
   private final boolean secondaryIndex;
+  private final boolean inMemoryIndex;
+  private final int queryParallelism;
+  private final boolean bitmapIndex;
+  private final boolean indexStatistics;
+  private final long queryCacheSize;
+  private final ValueFormat valueFormat;
+  private final Map<String, ValueFormat> typeValueFormats;
 
   public KeyValueStoreConfiguration(@JsonProperty("dbType") String dbType,
       @JsonProperty("dataType") String dataType, @JsonProperty("groupName") String groupName,
@@ -37,7 +48,14 @@ public class KeyValueStoreConfiguration {
       @JsonProperty("partitionName") String partitionName,
       @JsonProperty("partitionSize") Long partitionSize,
       @JsonProperty("strictTypeCreation") boolean strictTypeCreation,
-      @JsonProperty("secondaryIndex") boolean secondaryIndex) {
+      @JsonProperty("secondaryIndex") boolean secondaryIndex,
+      @JsonProperty("inMemoryIndex") boolean inMemoryIndex,
+      @JsonProperty("queryParallelism") int queryParallelism,
+      @JsonProperty("bitmapIndex") boolean bitmapIndex,
+      @JsonProperty("indexStatistics") boolean indexStatistics,
+      @JsonProperty("queryCacheSize") long queryCacheSize,
+      @JsonProperty("valueFormat") ValueFormat valueFormat,
+      @JsonProperty("typeValueFormats") Map<String, ValueFormat> typeValueFormats) {
     Preconditions.checkNotNull(dbType, "dbType");
     Preconditions.checkArgument(!dbType.contains("_") && !dbType.contains(":"), "invalid dbType");
     Preconditions.checkNotNull(groupName, "groupName");
@@ -46,6 +64,8 @@ public class KeyValueStoreConfiguration {
         "partitionName or partitionSize must be set");
     Preconditions
         .checkArgument(partitionSize == null || partitionSize > 1, "invalid partitionSize");
+    Preconditions.checkArgument(queryParallelism >= 0, "invalid queryParallelism");
+    Preconditions.checkArgument(queryCacheSize >= 0L, "invalid queryCacheSize");
 
     this.dbType = dbType;
     this.dataType = dataType;
@@ -56,6 +76,15 @@ public class KeyValueStoreConfiguration {
     this.partitionSize = partitionSize;
     this.strictTypeCreation = strictTypeCreation;
     this.secondaryIndex = secondaryIndex;
+    this.inMemoryIndex = inMemoryIndex;
+    this.queryParallelism = Math.max(1, queryParallelism);
+    this.bitmapIndex = bitmapIndex;
+    this.indexStatistics = indexStatistics;
+    this.queryCacheSize = queryCacheSize;
+    this.valueFormat = (valueFormat == null) ? ValueFormat.SMILE : valueFormat;
+    this.typeValueFormats =
+        (typeValueFormats == null) ? Collections.<String, ValueFormat>emptyMap() : Collections
+            .unmodifiableMap(new LinkedHashMap<String, ValueFormat>(typeValueFormats));
   }
 
   public String getDbType() {
@@ -94,6 +123,56 @@ public class KeyValueStoreConfiguration {
     return secondaryIndex;
   }
 
+  public boolean isInMemoryIndex() {
+    return inMemoryIndex;
+  }
+
+  public int getQueryParallelism() {
+    return queryParallelism;
+  }
+
+  public boolean isBitmapIndex() {
+    return bitmapIndex;
+  }
+
+  /**
+   * Whether per-index statistics are maintained (and used by the query planner); off by default,
+   * since they add work to every write.
+   */
+  public boolean isIndexStatistics() {
+    return indexStatistics;
+  }
+
+  /**
+   * Maximum number of result keys held by the secondary index query cache; 0 disables it.
+   */
+  public long getQueryCacheSize() {
+    return queryCacheSize;
+  }
+
+  /**
+   * Default storage format of values (see ValueFormat).
+   */
+  public ValueFormat getValueFormat() {
+    return valueFormat;
+  }
+
+  /**
+   * Storage formats of the types that override the default, by type name.
+   */
+  public Map<String, ValueFormat> getTypeValueFormats() {
+    return typeValueFormats;
+  }
+
+  /**
+   * Returns the storage format of values of the given type.
+   */
+  public ValueFormat getValueFormat(String type) {
+    ValueFormat typeFormat = typeValueFormats.get(type);
+
+    return (typeFormat == null) ? valueFormat : typeFormat;
+  }
+
   public static class Builder implements ConfigurationBuilder<KeyValueStoreConfiguration> {
     private String dbType;
     private String dataType;
@@ -103,6 +182,13 @@ public class KeyValueStoreConfiguration {
     private Long partitionSize;
     private boolean strictTypeCreation = true;
     private boolean secondaryIndex = false;
+    private boolean inMemoryIndex = false;
+    private int queryParallelism = 1;
+    private boolean bitmapIndex = false;
+    private boolean indexStatistics = false;
+    private long queryCacheSize = 0L;
+    private ValueFormat valueFormat = ValueFormat.SMILE;
+    private Map<String, ValueFormat> typeValueFormats = new LinkedHashMap<String, ValueFormat>();
 
     public Builder withDbType(String dbType) {
       this.dbType = dbType;
@@ -152,9 +238,52 @@ public class KeyValueStoreConfiguration {
       return this;
     }
 
+    public Builder withInMemoryIndex(boolean inMemoryIndex) {
+      this.inMemoryIndex = inMemoryIndex;
+
+      return this;
+    }
+
+    public Builder withQueryParallelism(int queryParallelism) {
+      this.queryParallelism = queryParallelism;
+
+      return this;
+    }
+
+    public Builder withBitmapIndex(boolean bitmapIndex) {
+      this.bitmapIndex = bitmapIndex;
+
+      return this;
+    }
+
+    public Builder withIndexStatistics(boolean indexStatistics) {
+      this.indexStatistics = indexStatistics;
+
+      return this;
+    }
+
+    public Builder withQueryCacheSize(long queryCacheSize) {
+      this.queryCacheSize = queryCacheSize;
+
+      return this;
+    }
+
+    public Builder withValueFormat(ValueFormat valueFormat) {
+      this.valueFormat = valueFormat;
+
+      return this;
+    }
+
+    public Builder withValueFormat(String type, ValueFormat valueFormat) {
+      this.typeValueFormats.put(type, valueFormat);
+
+      return this;
+    }
+
     public KeyValueStoreConfiguration build() {
       return new KeyValueStoreConfiguration(dbType, dataType, groupName, storeName, partitionName,
-          partitionSize, strictTypeCreation, secondaryIndex);
+          partitionSize, strictTypeCreation, secondaryIndex, inMemoryIndex, queryParallelism,
+          bitmapIndex, indexStatistics, queryCacheSize, valueFormat, typeValueFormats);
     }
   }
 }
@@ -16,11 +16,8 @@
 package io.kazuki.v0.store.keyvalue;
 
 import io.kazuki.v0.internal.availability.AvailabilityManager;
-import io.kazuki.v0.internal.helper.EncodingHelper;
 import io.kazuki.v0.internal.helper.IoHelper;
 import io.kazuki.v0.internal.helper.LogTranslation;
-import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
-import io.kazuki.v0.internal.v2schema.compact.StructureTransform;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Key;
 import io.kazuki.v0.store.Version;
@@ -60,6 +57,7 @@ public class KeyValueStoreIteratorJdbiImpl {
     private final Long limit;
     private final boolean includeValues;
     private final boolean doBind;
+    private final List<String> fields;
     private volatile KeyValueIterator<KeyValuePair<T>> theIter = null;
     private boolean instantiated = false;
 
@@ -68,6 +66,29 @@ public class KeyValueStoreIteratorJdbiImpl {
         final Handle handle, final String prefix, final String idColumn,
         final Query<Map<String, Object>> query, String type, Class<T> clazz,
         SortDirection sortDirection, Long offset, Long limit, boolean includeValues, boolean doBind) {
+      this(availability, sequences, kvStore, schema, handle, prefix, idColumn, query, type, clazz,
+          sortDirection, offset, limit, includeValues, doBind, null);
+    }
+
+    /**
+     * Creates an iterable over the given fields of the values (see
+     * KeyValueStore.retrieveFields(Key, String...)); T must be Map&lt;String, Object&gt;.
+     */
+    public KeyValueIterableJdbiImpl(final AvailabilityManager availability,
+        final SequenceService sequences, final KeyValueStore kvStore, final Schema schema,
+        final Handle handle, final String prefix, final String idColumn,
+        final Query<Map<String, Object>> query, String type, List<String> fields,
+        SortDirection sortDirection, Long offset, Long limit) {
+      this(availability, sequences, kvStore, schema, handle, prefix, idColumn, query, type, null,
+          sortDirection, offset, limit, true, true, fields);
+    }
+
+    private KeyValueIterableJdbiImpl(final AvailabilityManager availability,
+        final SequenceService sequences, final KeyValueStore kvStore, final Schema schema,
+        final Handle handle, final String prefix, final String idColumn,
+        final Query<Map<String, Object>> query, String type, Class<T> clazz,
+        SortDirection sortDirection, Long offset, Long limit, boolean includeValues,
+        boolean doBind, List<String> fields) {
       this.availability = availability;
       this.sequences = sequences;
       this.handle = handle;
@@ -83,6 +104,7 @@ public class KeyValueStoreIteratorJdbiImpl {
       this.limit = limit;
       this.includeValues = includeValues;
       this.doBind = doBind;
+      this.fields = fields;
     }
 
     @Override
@@ -106,6 +128,7 @@ public class KeyValueStoreIteratorJdbiImpl {
         private KeyValuePair<T> nextKv = advance();
         private KeyValuePair<T> currentKv = null;
 
+        @SuppressWarnings("unchecked")
         public KeyValuePair<T> advance() {
           Preconditions.checkNotNull(inner, "iterator");
 
@@ -139,16 +162,12 @@ public class KeyValueStoreIteratorJdbiImpl {
                   VersionImpl.createInternal(KeyImpl.valueOf("$schema:" + typeId.toString()),
                       ((Number) record.get("_schema_version")).longValue());
 
-              byte[] resultBytes = (byte[]) record.get("_value");
-              Object result = EncodingHelper.parseSmile(resultBytes, Object.class);
-
-              if (schema != null && result instanceof List) {
-                FieldTransform fieldTransform = new FieldTransform(schema);
-                StructureTransform structureTransform = new StructureTransform(schema);
-                result = fieldTransform.unpack(structureTransform.unpack((List<Object>) result));
-              }
+              // values are decoded (and uncompressed) by the store that owns the table
+              KeyValueStoreJdbiBaseImpl store = (KeyValueStoreJdbiBaseImpl) kvStore;
 
-              value = EncodingHelper.asValue((Map<String, Object>) result, clazz);
+              value =
+                  (fields == null) ? store.decodeValue(handle, type, record, schema, clazz)
+                      : (T) store.decodeFields(handle, type, record, schema, fields);
             }
           } catch (Exception e) {
             throw Throwables.propagate(e);
@@ -22,8 +22,7 @@ import io.kazuki.v0.internal.helper.JDBIHelper;
 import io.kazuki.v0.internal.helper.LockManager;
 import io.kazuki.v0.internal.helper.LogTranslation;
 import io.kazuki.v0.internal.helper.SqlTypeHelper;
-import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
-import io.kazuki.v0.internal.v2schema.compact.StructureTransform;
+import io.kazuki.v0.internal.v2schema.compact.SchemaSmileCodec;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Key;
 import io.kazuki.v0.store.Version;
@@ -44,12 +43,14 @@ import io.kazuki.v0.store.sequence.SequenceServiceJdbiImpl;
 import io.kazuki.v0.store.sequence.VersionImpl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -83,6 +84,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
       KeyValueStoreRegistration {
   public static int MULTIGET_MAX_KEYS = 3000;
 
+  private static final int SAMPLE_BATCH_SIZE = 1000;
+
   protected final Logger log = LogTranslation.getLogger(getClass());
 
   protected final AvailabilityManager availability;
@@ -101,6 +104,14 @@ public abstract class KeyValueStoreJdbiBaseImpl
 
   protected final List<KeyValueStoreListener> kvListeners;
 
+  protected final ValueFormat valueFormat;
+
+  protected final Map<String, ValueFormat> typeValueFormats;
+
+  protected final ValueCompression compression;
+
+  protected final StringDictionaries stringDictionaries;
+
   protected abstract String getPrefix();
 
   protected final Lock nukeLock = new ReentrantLock();
@@ -115,6 +126,15 @@ public abstract class KeyValueStoreJdbiBaseImpl
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schemaService, SequenceService sequences, String groupName, String storeName,
       String partitionName) {
+    this(availability, lockManager, dataSource, database, typeHelper, schemaService, sequences,
+        groupName, storeName, partitionName, ValueFormat.SMILE, Collections
+            .<String, ValueFormat>emptyMap());
+  }
+
+  public KeyValueStoreJdbiBaseImpl(AvailabilityManager availability, LockManager lockManager,
+      KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
+      SchemaStore schemaService, SequenceService sequences, String groupName, String storeName,
+      String partitionName, ValueFormat valueFormat, Map<String, ValueFormat> typeValueFormats) {
     this.availability = availability;
     this.lockManager = lockManager;
     this.dataSource = dataSource;
@@ -123,7 +143,11 @@ public abstract class KeyValueStoreJdbiBaseImpl
     this.sequences = sequences;
     this.typeHelper = typeHelper;
     this.kvListeners = new ArrayList<KeyValueStoreListener>();
-    this.tableName = "_" + groupName + "_" + storeName + "__kv__" + partitionName;
+    this.valueFormat = valueFormat;
+    this.typeValueFormats = typeValueFormats;
+    this.tableName = getTableName(groupName, storeName, partitionName);
+    this.compression = new ValueCompression(sequences, typeHelper.getPrefix(), tableName);
+    this.stringDictionaries = new StringDictionaries(typeHelper.getPrefix(), tableName);
 
     this.componentDescriptor =
         new ComponentDescriptorImpl<KeyValueStore>("KZ:KeyValueStore:" + groupName + "-"
@@ -139,6 +163,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
                 ((KazukiComponent) this.schemaService).getComponentDescriptor()).build());
   }
 
+  public static String getTableName(String groupName, String storeName, String partitionName) {
+    return "_" + groupName + "_" + storeName + "__kv__" + partitionName;
+  }
+
   @Inject
   public void register(Lifecycle lifecycle) {
     this.lifecycle = lifecycle;
@@ -236,30 +264,28 @@ public abstract class KeyValueStoreJdbiBaseImpl
           @Override
           public KeyValuePair<T> inTransaction(Handle handle, TransactionStatus status)
               throws Exception {
-            Object storeValue = EncodingHelper.asJsonMap(inValue);
+            ValueFormat format = getValueFormat(type).forSchema(schema);
+            Map<String, Object> storeValue;
 
             if (schema != null) {
-              FieldTransform fieldTransform = new FieldTransform(schema);
-              StructureTransform structureTransform = new StructureTransform(schema);
-
-              Map<String, Object> fieldTransformed =
-                  fieldTransform.pack((Map<String, Object>) storeValue);
+              storeValue = SchemaSmileCodec.forSchema(schema).pack(inValue);
 
               for (KeyValueStoreListener kvListener : kvListeners) {
-                kvListener.enforceUnique(type, clazz, schema, resolvedKey, fieldTransformed);
-                kvListener.onCreate(handle, type, clazz, schema, resolvedKey, fieldTransformed);
+                kvListener.enforceUnique(type, clazz, schema, resolvedKey, storeValue);
+                kvListener.onCreate(handle, type, clazz, schema, resolvedKey, storeValue);
               }
-
-              storeValue = structureTransform.pack(fieldTransformed);
+            } else {
+              storeValue = EncodingHelper.asJsonMap(inValue);
             }
 
-            byte[] storeValueBytes = EncodingHelper.convertToSmile(storeValue);
+            byte[] storeValueBytes =
+                format.encode(schema, storeValue, stringDictionaries.forType(handle, type));
 
             DateTime createdDate = new DateTime();
 
             int inserted =
-                doInsert(handle, resolvedKey, (VersionImpl) schemaVersion, storeValueBytes,
-                    createdDate);
+                doInsert(handle, type, resolvedKey, (VersionImpl) schemaVersion, format,
+                    storeValueBytes, createdDate);
 
             if (inserted < 1) {
               throw new KazukiException("Entity not created!");
@@ -287,6 +313,35 @@ public abstract class KeyValueStoreJdbiBaseImpl
     return (result == null) ? null : result.getValue();
   }
 
+  @Override
+  public Map<String, Object> retrieveFields(final Key realKey, final String... fields)
+      throws KazukiException {
+    availability.assertAvailable();
+
+    final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(realKey.getTypePart());
+    final Schema schema = schemaKv == null ? null : schemaKv.getValue();
+    final ResolvedKey resolvedKey = sequences.resolveKey(realKey);
+
+    return database.inTransaction(new TransactionCallback<Map<String, Object>>() {
+      @Override
+      public Map<String, Object> inTransaction(Handle handle, TransactionStatus status)
+          throws Exception {
+        try {
+          Map<String, Object> objectMap = loadObjectMap(handle, resolvedKey);
+
+          if (getObjectBytes(objectMap) == null) {
+            return null;
+          }
+
+          return decodeFields(handle, realKey.getTypePart(), objectMap, schema,
+              Arrays.asList(fields));
+        } catch (Exception e) {
+          throw new KazukiException(e);
+        }
+      }
+    });
+  }
+
   @Override
   public <T> KeyValuePair<T> retrieveVersioned(final Key realKey, final Class<T> clazz)
       throws KazukiException {
@@ -313,17 +368,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
           Version version =
               VersionImpl.createInternal(realKey, ((Number) objectMap.get("_version")).longValue());
 
-          Object storedValue = EncodingHelper.parseSmile(objectBytes, Object.class);
-
-          if (schema != null && storedValue instanceof List) {
-            FieldTransform fieldTransform = new FieldTransform(schema);
-            StructureTransform structureTransform = new StructureTransform(schema);
-            storedValue =
-                fieldTransform.unpack(structureTransform.unpack((List<Object>) storedValue));
-          }
-
-          return new KeyValuePair<T>(realKey, version, schemaVersion, EncodingHelper.asValue(
-              (Map<String, Object>) storedValue, clazz));
+          return new KeyValuePair<T>(realKey, version, schemaVersion, decodeValue(handle,
+              realKey.getTypePart(), objectMap, schema, clazz));
         } catch (Exception e) {
           throw new KazukiException(e);
         }
@@ -384,19 +430,9 @@ public abstract class KeyValueStoreJdbiBaseImpl
 
           Map<String, Object> first = results.iterator().next();
 
-          Object storedValue =
-              EncodingHelper.parseSmile((byte[]) first.get("_value"), Object.class);
-
           final Schema schema = schemaMap.get(realKey.getTypePart());
 
-          if (schema != null && storedValue instanceof List) {
-            FieldTransform fieldTransform = new FieldTransform(schema);
-            StructureTransform structureTransform = new StructureTransform(schema);
-            storedValue =
-                fieldTransform.unpack(structureTransform.unpack((List<Object>) storedValue));
-          }
-
-          dbFound.put(realKey, EncodingHelper.asValue((Map<String, Object>) storedValue, clazz));
+          dbFound.put(realKey, decodeValue(handle, realKey.getTypePart(), first, schema, clazz));
         }
 
         return dbFound;
@@ -459,24 +495,12 @@ public abstract class KeyValueStoreJdbiBaseImpl
           Version version =
               VersionImpl.createInternal(realKey, ((Number) first.get("_version")).longValue());
 
-          Object storedValue =
-              EncodingHelper.parseSmile((byte[]) first.get("_value"), Object.class);
-
           final KeyValuePair<Schema> schemaKv = schemaMap.get(realKey.getTypePart());
           final Schema schema = schemaKv == null ? null : schemaKv.getValue();
           final Version schemaVersion = schemaKv == null ? null : schemaKv.getVersion();
 
-          if (schema != null && storedValue instanceof List) {
-            FieldTransform fieldTransform = new FieldTransform(schema);
-            StructureTransform structureTransform = new StructureTransform(schema);
-            storedValue =
-                fieldTransform.unpack(structureTransform.unpack((List<Object>) storedValue));
-          }
-
-          dbFound.put(
-              realKey,
-              new KeyValuePair<T>(realKey, version, schemaVersion, EncodingHelper.asValue(
-                  (Map<String, Object>) storedValue, clazz)));
+          dbFound.put(realKey, new KeyValuePair<T>(realKey, version, schemaVersion, decodeValue(
+              handle, realKey.getTypePart(), first, schema, clazz)));
         }
 
         return dbFound;
@@ -499,36 +523,30 @@ public abstract class KeyValueStoreJdbiBaseImpl
         return database.inTransaction(new TransactionCallback<Boolean>() {
           @Override
           public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            Map<String, Object> storeValueMap = EncodingHelper.asJsonMap(inValue);
-            Object storeValue = storeValueMap;
-
-            FieldTransform fieldTransform = null;
-            StructureTransform structureTransform = null;
+            ValueFormat format = getValueFormat(type).forSchema(schema);
             Map<String, Object> fieldTransformed = null;
-            Map<String, Object> objectMap = null;
             Map<String, Object> oldInstance = null;
+            byte[] storeValueBytes;
 
             if (schema != null) {
-              fieldTransform = new FieldTransform(schema);
-              structureTransform = new StructureTransform(schema);
-
-              fieldTransformed = fieldTransform.pack((Map<String, Object>) storeValue);
-              storeValue = structureTransform.pack(fieldTransformed);
+              fieldTransformed = SchemaSmileCodec.forSchema(schema).pack(inValue);
+              storeValueBytes =
+                  format.encode(schema, fieldTransformed,
+                      stringDictionaries.forType(handle, type));
 
               for (KeyValueStoreListener kvListener : kvListeners) {
                 kvListener.enforceUnique(type, clazz, schema, resolvedKey, fieldTransformed);
               }
 
-              objectMap = loadObjectMap(handle, resolvedKey);
-
-              oldInstance =
-                  structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                      getObjectBytes(objectMap), Object.class));
+              oldInstance = decodePacked(handle, type, loadObjectMap(handle, resolvedKey),
+                  schema);
+            } else {
+              storeValueBytes = format.encode(null, EncodingHelper.asJsonMap(inValue));
             }
 
             int updatedCount =
-                doUpdate(handle, resolvedKey, (VersionImpl) schemaKv.getVersion(),
-                    EncodingHelper.convertToSmile(storeValue));
+                doUpdate(handle, type, resolvedKey, getSchemaVersion(schemaKv), format,
+                    storeValueBytes);
             boolean updated = (updatedCount == 1);
 
             if (updated && schema != null) {
@@ -567,36 +585,30 @@ public abstract class KeyValueStoreJdbiBaseImpl
         return database.inTransaction(new TransactionCallback<Version>() {
           @Override
           public Version inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            Map<String, Object> storeValueMap = EncodingHelper.asJsonMap(inValue);
-            Object storeValue = storeValueMap;
-
-            FieldTransform fieldTransform = null;
-            StructureTransform structureTransform = null;
+            ValueFormat format = getValueFormat(type).forSchema(schema);
             Map<String, Object> fieldTransformed = null;
-            Map<String, Object> objectMap = null;
             Map<String, Object> oldInstance = null;
+            byte[] storeValueBytes;
 
             if (schema != null) {
-              fieldTransform = new FieldTransform(schema);
-              structureTransform = new StructureTransform(schema);
-
-              fieldTransformed = fieldTransform.pack((Map<String, Object>) storeValue);
-              storeValue = structureTransform.pack(fieldTransformed);
+              fieldTransformed = SchemaSmileCodec.forSchema(schema).pack(inValue);
+              storeValueBytes =
+                  format.encode(schema, fieldTransformed,
+                      stringDictionaries.forType(handle, type));
 
               for (KeyValueStoreListener kvListener : kvListeners) {
                 kvListener.enforceUnique(type, clazz, schema, resolvedKey, fieldTransformed);
               }
 
-              objectMap = loadObjectMap(handle, resolvedKey);
-
-              oldInstance =
-                  structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                      getObjectBytes(objectMap), Object.class));
+              oldInstance = decodePacked(handle, type, loadObjectMap(handle, resolvedKey),
+                  schema);
+            } else {
+              storeValueBytes = format.encode(null, EncodingHelper.asJsonMap(inValue));
             }
 
             int updatedCount =
-                doUpdateVersioned(handle, resolvedKey, (VersionImpl) version,
-                    (VersionImpl) schemaKv.getVersion(), EncodingHelper.convertToSmile(storeValue));
+                doUpdateVersioned(handle, type, resolvedKey, (VersionImpl) version,
+                    getSchemaVersion(schemaKv), format, storeValueBytes);
 
             boolean updated = (updatedCount == 1);
 
@@ -636,13 +648,9 @@ public abstract class KeyValueStoreJdbiBaseImpl
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
-            StructureTransform structureTransform = new StructureTransform(schema);
-
             Map<String, Object> objectMap = loadObjectMap(handle, resolvedKey);
 
-            Map<String, Object> oldInstance =
-                structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                    getObjectBytes(objectMap), Object.class));
+            Map<String, Object> oldInstance = decodePacked(handle, type, objectMap, schema);
 
             for (KeyValueStoreListener kvListener : kvListeners) {
               kvListener.onDelete(handle, type, LinkedHashMap.class, schema, resolvedKey,
@@ -681,13 +689,9 @@ public abstract class KeyValueStoreJdbiBaseImpl
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
-            StructureTransform structureTransform = new StructureTransform(schema);
-
             Map<String, Object> objectMap = loadObjectMap(handle, resolvedKey);
 
-            Map<String, Object> oldInstance =
-                structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                    getObjectBytes(objectMap), Object.class));
+            Map<String, Object> oldInstance = decodePacked(handle, type, objectMap, schema);
 
             for (KeyValueStoreListener kvListener : kvListeners) {
               kvListener.onDelete(handle, type, LinkedHashMap.class, schema, resolvedKey,
@@ -727,13 +731,9 @@ public abstract class KeyValueStoreJdbiBaseImpl
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
-            StructureTransform structureTransform = new StructureTransform(schema);
-
             Map<String, Object> objectMap = loadObjectMap(handle, resolvedKey);
 
-            Map<String, Object> oldInstance =
-                structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                    getObjectBytes(objectMap), Object.class));
+            Map<String, Object> oldInstance = decodePacked(handle, type, objectMap, schema);
 
             for (KeyValueStoreListener kvListener : kvListeners) {
               kvListener.onDelete(handle, type, LinkedHashMap.class, schema, resolvedKey,
@@ -773,13 +773,9 @@ public abstract class KeyValueStoreJdbiBaseImpl
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
-            StructureTransform structureTransform = new StructureTransform(schema);
-
             Map<String, Object> objectMap = loadObjectMap(handle, resolvedKey);
 
-            Map<String, Object> oldInstance =
-                structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(
-                    getObjectBytes(objectMap), Object.class));
+            Map<String, Object> oldInstance = decodePacked(handle, type, objectMap, schema);
 
             for (KeyValueStoreListener kvListener : kvListeners) {
               kvListener.onDelete(handle, type, LinkedHashMap.class, schema, resolvedKey,
@@ -815,6 +811,49 @@ public abstract class KeyValueStoreJdbiBaseImpl
     return (nextId == null) ? 0L : resolvedKey.getIdentifierLo();
   }
 
+  @Override
+  public Long trainCompressionDictionary(final String type) throws KazukiException {
+    availability.assertAvailable();
+
+    if (type == null || type.startsWith("$")) {
+      throw new IllegalArgumentException("Invalid entity 'type'");
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (!sequences.hasType(type)) {
+        return null;
+      }
+
+      final Integer typeId = sequences.getTypeId(type, false);
+
+      CompressionDictionary dictionary =
+          database.inTransaction(new TransactionCallback<CompressionDictionary>() {
+            @Override
+            public CompressionDictionary inTransaction(Handle handle, TransactionStatus status)
+                throws Exception {
+              byte[] trained =
+                  ValueCompression.train(sampleValues(handle, typeId),
+                      ValueCompression.MAX_DICTIONARY_SIZE);
+
+              return (trained == null) ? null : compression.newDictionary(handle, type, trained);
+            }
+          });
+
+      if (dictionary == null) {
+        return null;
+      }
+
+      create(ValueCompression.DICTIONARY_PREFIX, CompressionDictionary.class, dictionary,
+          TypeValidation.LAX);
+      compression.reset();
+
+      log.info("Trained compression dictionary version {} ({} bytes) for type {}",
+          dictionary.getVersion(), dictionary.getDictionary().length, type);
+
+      return dictionary.getVersion();
+    }
+  }
+
   public void clear(final boolean preserveTypes, final boolean preserveCounters) {
     log.debug("Clearing KeyValueStore {} table {}", this, tableName);
 
@@ -841,6 +880,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       });
 
       sequences.clear(preserveTypes, preserveCounters);
+      compression.reset();
     } finally {
       nukeLock.unlock();
     }
@@ -869,6 +909,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
         }
       });
 
+      compression.reset();
+
       log.debug("Cleared KeyValueStore {} table {} type {}", this, tableName, type);
     } finally {
       nukeLock.unlock();
@@ -891,9 +933,13 @@ public abstract class KeyValueStoreJdbiBaseImpl
           JDBIHelper.getBoundStatement(handle, getPrefix(), "kv_table_name", tableName,
               "kv_destroy");
 
+          stringDictionaries.destroy(handle);
+
           return null;
         }
       });
+
+      compression.reset();
     } finally {
       nukeLock.unlock();
     }
@@ -940,6 +986,32 @@ public abstract class KeyValueStoreJdbiBaseImpl
     }
   }
 
+  @Override
+  public KeyValueIterable<KeyValuePair<Map<String, Object>>> projections(String type,
+      List<String> fields, SortDirection sortDirection) {
+    return this.projections(type, fields, sortDirection, null, null);
+  }
+
+  @Override
+  public KeyValueIterable<KeyValuePair<Map<String, Object>>> projections(final String type,
+      final List<String> fields, SortDirection sortDirection, @Nullable final Long offset,
+      @Nullable final Long limit) {
+    Preconditions.checkNotNull(fields, "fields");
+
+    final Handle handle = database.open();
+
+    try {
+      KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
+      return new KeyValueIterableJdbiImpl<Map<String, Object>>(availability, sequences,
+          KeyValueStoreJdbiBaseImpl.this, schemaKv != null ? schemaKv.getValue() : null, handle,
+          typeHelper.getPrefix(), "_key_id_lo", JDBIHelper.getBoundQuery(handle,
+              KeyValueStoreJdbiBaseImpl.this.typeHelper.getPrefix(), "kv_table_name", tableName,
+              "kv_key_values_of_type"), type, fields, sortDirection, offset, limit);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
   @Override
   public <T> KeyValueIterable<Key> keys(String type, Class<T> clazz, SortDirection sortDirection) {
     return this.keys(type, clazz, sortDirection, null, null);
@@ -1069,6 +1141,41 @@ public abstract class KeyValueStoreJdbiBaseImpl
     }
   }
 
+  /**
+   * Returns the configured storage format of new values of the type.
+   */
+  protected ValueFormat getValueFormat(String type) {
+    ValueFormat typeFormat = typeValueFormats.get(type);
+
+    return (typeFormat == null) ? valueFormat : typeFormat;
+  }
+
+  /**
+   * Decodes the value of a KV row (as selected by kv_retrieve) according to its _format.
+   */
+  <T> T decodeValue(Handle handle, String type, Map<String, Object> objectMap, Schema schema,
+      Class<T> clazz) throws KazukiException {
+    return ValueFormat.fromCode(objectMap.get("_format")).decode(schema,
+        compression.uncompress(handle, objectMap), clazz,
+        stringDictionaries.forType(handle, type));
+  }
+
+  /**
+   * Decodes the given fields of the value of a KV row according to its _format.
+   */
+  Map<String, Object> decodeFields(Handle handle, String type, Map<String, Object> objectMap,
+      Schema schema, Collection<String> fields) throws KazukiException {
+    return ValueFormat.fromCode(objectMap.get("_format")).decodeFields(schema,
+        compression.uncompress(handle, objectMap), fields,
+        stringDictionaries.forType(handle, type));
+  }
+
+  private Map<String, Object> decodePacked(Handle handle, String type,
+      Map<String, Object> objectMap, Schema schema) throws KazukiException {
+    return ValueFormat.fromCode(objectMap.get("_format")).decodePacked(schema,
+        compression.uncompress(handle, objectMap), stringDictionaries.forType(handle, type));
+  }
+
   private byte[] getObjectBytes(Map<String, Object> objectMap) {
     if (objectMap == null) {
       return null;
@@ -1077,6 +1184,47 @@ public abstract class KeyValueStoreJdbiBaseImpl
     return (byte[]) objectMap.get("_value");
   }
 
+  /**
+   * Returns a uniform sample (reservoir sampling over all rows) of the encoded values of a type.
+   */
+  private List<byte[]> sampleValues(Handle handle, Integer typeId) throws KazukiException {
+    List<byte[]> samples = new ArrayList<byte[]>(ValueCompression.SAMPLE_SIZE);
+    Random random = new Random();
+    long highWater = Long.MIN_VALUE;
+    long seen = 0L;
+
+    while (true) {
+      Query<Map<String, Object>> select =
+          JDBIHelper.getBoundQuery(handle, getPrefix(), "kv_table_name", tableName,
+              "kv_key_values_of_type_after");
+      select.bind("key_type", typeId);
+      select.bind("key_id_lo", highWater);
+      select.bind("limit", SAMPLE_BATCH_SIZE);
+
+      List<Map<String, Object>> rows = select.list();
+
+      for (Map<String, Object> row : rows) {
+        highWater = ((Number) row.get("_key_id_lo")).longValue();
+        byte[] value = compression.uncompress(handle, row);
+        seen += 1;
+
+        if (samples.size() < ValueCompression.SAMPLE_SIZE) {
+          samples.add(value);
+        } else {
+          long slot = (long) (random.nextDouble() * seen);
+
+          if (slot < ValueCompression.SAMPLE_SIZE) {
+            samples.set((int) slot, value);
+          }
+        }
+      }
+
+      if (rows.size() < SAMPLE_BATCH_SIZE) {
+        return samples;
+      }
+    }
+  }
+
   private Map<String, Object> loadObjectMap(final Handle handle, final ResolvedKey key)
       throws KazukiException {
     Query<Map<String, Object>> select =
@@ -1111,10 +1259,13 @@ public abstract class KeyValueStoreJdbiBaseImpl
 
     JDBIHelper.getBoundStatement(handle, getPrefix(), "kv_table_name", tableName,
         "kv_create_table_index").execute();
+
+    stringDictionaries.initialize(handle);
   }
 
-  private int doInsert(Handle handle, final ResolvedKey resolvedKey,
-      final VersionImpl schemaVersion, byte[] valueBytes, DateTime date) {
+  private int doInsert(Handle handle, String type, final ResolvedKey resolvedKey,
+      final VersionImpl schemaVersion, ValueFormat format, byte[] valueBytes, DateTime date)
+      throws KazukiException {
     Long schemaVersionLong = schemaVersion != null ? schemaVersion.getInternalIdentifier() : 0L;
 
     Update update =
@@ -1125,29 +1276,37 @@ public abstract class KeyValueStoreJdbiBaseImpl
     update.bind("created_dt", date.withZone(DateTimeZone.UTC).getMillis() / 1000);
     update.bind("version", 1L);
     update.bind("schema_version", schemaVersionLong);
-    update.bind("value", valueBytes);
+    bindValue(handle, update, type, format, valueBytes);
     int inserted = update.execute();
 
     return inserted;
   }
 
-  private int doUpdate(Handle handle, final ResolvedKey resolvedKey,
-      final VersionImpl schemaVersion, byte[] valueBytes) {
+  @Nullable
+  private static VersionImpl getSchemaVersion(@Nullable KeyValuePair<Schema> schemaKv) {
+    return (schemaKv == null) ? null : (VersionImpl) schemaKv.getVersion();
+  }
+
+  private int doUpdate(Handle handle, String type, final ResolvedKey resolvedKey,
+      final VersionImpl schemaVersion, ValueFormat format, byte[] valueBytes)
+      throws KazukiException {
     Update update =
         JDBIHelper.getBoundStatement(handle, getPrefix(), "kv_table_name", tableName, "kv_update");
     update.bind("key_type", resolvedKey.getTypeTag());
     update.bind("key_id_hi", resolvedKey.getIdentifierHi());
     update.bind("key_id_lo", resolvedKey.getIdentifierLo());
-    update.bind("schema_version", schemaVersion.getInternalIdentifier());
+    update.bind("schema_version", schemaVersion != null ? schemaVersion.getInternalIdentifier()
+        : 0L);
     update.bind("updated_dt", getEpochSecondsNow());
-    update.bind("value", valueBytes);
+    bindValue(handle, update, type, format, valueBytes);
     int updated = update.execute();
 
     return updated;
   }
 
-  private int doUpdateVersioned(Handle handle, final ResolvedKey resolvedKey,
-      final VersionImpl version, final VersionImpl schemaVersion, byte[] valueBytes) {
+  private int doUpdateVersioned(Handle handle, String type, final ResolvedKey resolvedKey,
+      final VersionImpl version, final VersionImpl schemaVersion, ValueFormat format,
+      byte[] valueBytes) throws KazukiException {
     Update update =
         JDBIHelper.getBoundStatement(handle, getPrefix(), "kv_table_name", tableName,
             "kv_update_versioned");
@@ -1158,13 +1317,27 @@ public abstract class KeyValueStoreJdbiBaseImpl
     update.bind("updated_dt", getEpochSecondsNow());
     update.bind("old_version", version.getInternalIdentifier());
     update.bind("new_version", version.getInternalIdentifier() + 1L);
-    update.bind("schema_version", schemaVersion.getInternalIdentifier());
-    update.bind("value", valueBytes);
+    update.bind("schema_version", schemaVersion != null ? schemaVersion.getInternalIdentifier()
+        : 0L);
+    bindValue(handle, update, type, format, valueBytes);
     int updated = update.execute();
 
     return updated;
   }
 
+  /**
+   * Binds the _format, _compression and _value columns of a KV row.
+   */
+  private void bindValue(Handle handle, Update update, String type, ValueFormat format,
+      byte[] valueBytes) throws KazukiException {
+    byte[] compressed = compression.compress(handle, type, valueBytes);
+
+    update.bind("format", format.getCode());
+    update.bind("compression", (compressed == null) ? ValueCompression.NONE
+        : ValueCompression.DICTIONARY);
+    update.bind("value", (compressed == null) ? valueBytes : compressed);
+  }
+
   private int getEpochSecondsNow() {
     return (int) (new DateTime().withZone(DateTimeZone.UTC).getMillis() / 1000);
   }
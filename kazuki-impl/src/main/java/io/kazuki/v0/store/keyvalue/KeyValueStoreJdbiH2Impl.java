@@ -40,8 +40,9 @@ public class KeyValueStoreJdbiH2Impl extends KeyValueStoreJdbiBaseImpl {
   public KeyValueStoreJdbiH2Impl(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schemaManager, SequenceService sequences, KeyValueStoreConfiguration config) {
-    this(availability, lockManager, dataSource, database, typeHelper, schemaManager, sequences,
-        config.getGroupName(), config.getStoreName(), config.getPartitionName());
+    super(availability, lockManager, dataSource, database, typeHelper, schemaManager, sequences,
+        config.getGroupName(), config.getStoreName(), config.getPartitionName(), config
+            .getValueFormat(), config.getTypeValueFormats());
   }
 
   public KeyValueStoreJdbiH2Impl(AvailabilityManager availability, LockManager lockManager,
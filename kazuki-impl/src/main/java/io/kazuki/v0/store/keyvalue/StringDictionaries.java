@@ -0,0 +1,209 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import io.kazuki.v0.internal.helper.JDBIHelper;
+import io.kazuki.v0.internal.v2schema.compact.StringDictionary;
+import io.kazuki.v0.store.KazukiException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Persistent per-type string dictionaries for dictionary attributes (see
+ * Attribute.isDictionary()), stored in the "__strings" table next to the KV table. Codes are
+ * assigned in order of first use and never reused, so rows keep decoding correctly as long as
+ * the table exists; clearing the KV store therefore keeps the dictionaries.
+ *
+ * Like ValueCompression, dictionaries are read and written through the handle of the calling
+ * transaction. New codes are written by the transaction that first uses them; the codes of the
+ * type are reloaded once a later transaction encodes a value, so codes of rolled back
+ * transactions are never handed out as committed. Encoding relies on the store lock to serialize
+ * writers. Decoding goes through a bounded LRU cache of code to (shared) string instance per
+ * type. Instances are thread-safe.
+ */
+public class StringDictionaries {
+  /** Maximum number of decoded values cached per type */
+  public static final int DECODE_CACHE_SIZE = 10000;
+
+  private final String prefix;
+  private final String tableName;
+  private final ConcurrentHashMap<String, TypeDictionary> dictionaries;
+
+  public StringDictionaries(String prefix, String tableName) {
+    this.prefix = prefix;
+    this.tableName = tableName;
+    this.dictionaries = new ConcurrentHashMap<String, TypeDictionary>();
+  }
+
+  /**
+   * Returns the dictionary of the type, bound to the handle of the calling transaction.
+   */
+  public StringDictionary forType(Handle handle, String type) {
+    TypeDictionary dictionary = dictionaries.get(type);
+
+    if (dictionary == null) {
+      TypeDictionary newDictionary = new TypeDictionary(type);
+      dictionary = dictionaries.putIfAbsent(type, newDictionary);
+
+      if (dictionary == null) {
+        dictionary = newDictionary;
+      }
+    }
+
+    return new BoundDictionary(dictionary, handle);
+  }
+
+  public void initialize(Handle handle) {
+    JDBIHelper.getBoundStatement(handle, prefix, "kv_table_name", tableName,
+        "kv_strings_create_table").execute();
+  }
+
+  public void destroy(Handle handle) {
+    JDBIHelper.getBoundStatement(handle, prefix, "kv_table_name", tableName,
+        "kv_strings_destroy").execute();
+
+    dictionaries.clear();
+  }
+
+  private class TypeDictionary {
+    private final String type;
+    private final Map<String, Long> codes;
+    private final Map<String, Long> pending;
+    private final Cache<Long, String> values;
+    private Handle pendingHandle;
+    private boolean loaded;
+    private long nextCode;
+
+    public TypeDictionary(String type) {
+      this.type = type;
+      this.codes = new ConcurrentHashMap<String, Long>();
+      this.pending = new HashMap<String, Long>();
+      this.values = CacheBuilder.newBuilder().maximumSize(DECODE_CACHE_SIZE).build();
+    }
+
+    public long encode(Handle handle, String value) {
+      Long code = codes.get(value);
+
+      if (code != null) {
+        return code;
+      }
+
+      synchronized (this) {
+        if (pendingHandle != null && pendingHandle != handle) {
+          // the transaction that assigned the pending codes is over; see what it committed
+          pending.clear();
+          pendingHandle = null;
+          loaded = false;
+        }
+
+        if (!loaded) {
+          load(handle);
+        }
+
+        code = codes.get(value);
+
+        if (code == null) {
+          code = pending.get(value);
+        }
+
+        if (code == null) {
+          code = nextCode++;
+
+          JDBIHelper
+              .getBoundStatement(handle, prefix, "kv_table_name", tableName, "kv_strings_create")
+              .bind("type_name", type).bind("code", code).bind("value", value).execute();
+
+          pending.put(value, code);
+          pendingHandle = handle;
+        }
+
+        return code;
+      }
+    }
+
+    public String decode(Handle handle, long code) throws KazukiException {
+      String value = values.getIfPresent(code);
+
+      if (value != null) {
+        return value;
+      }
+
+      Query<Map<String, Object>> select =
+          JDBIHelper.getBoundQuery(handle, prefix, "kv_table_name", tableName,
+              "kv_strings_retrieve");
+      select.bind("type_name", type);
+      select.bind("code", code);
+
+      List<Map<String, Object>> results = select.list();
+
+      if (results.isEmpty()) {
+        throw new KazukiException("unknown string dictionary code " + code + " for type " + type);
+      }
+
+      value = (String) results.get(0).get("_value");
+      values.put(code, value);
+
+      return value;
+    }
+
+    private void load(Handle handle) {
+      Query<Map<String, Object>> select =
+          JDBIHelper.getBoundQuery(handle, prefix, "kv_table_name", tableName,
+              "kv_strings_of_type");
+      select.bind("type_name", type);
+
+      codes.clear();
+
+      for (Map<String, Object> row : select.list()) {
+        long code = ((Number) row.get("_code")).longValue();
+
+        codes.put((String) row.get("_value"), code);
+        nextCode = Math.max(nextCode, code + 1);
+      }
+
+      loaded = true;
+    }
+  }
+
+  private static class BoundDictionary implements StringDictionary {
+    private final TypeDictionary dictionary;
+    private final Handle handle;
+
+    public BoundDictionary(TypeDictionary dictionary, Handle handle) {
+      this.dictionary = dictionary;
+      this.handle = handle;
+    }
+
+    @Override
+    public long encode(String value) throws KazukiException {
+      return dictionary.encode(handle, value);
+    }
+
+    @Override
+    public String decode(long code) throws KazukiException {
+      return dictionary.decode(handle, code);
+    }
+  }
+}
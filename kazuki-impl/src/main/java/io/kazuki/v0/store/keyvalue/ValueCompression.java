@@ -0,0 +1,447 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import io.kazuki.v0.internal.helper.JDBIHelper;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Bytes;
+
+/**
+ * Compression of stored values with per-type preset dictionaries, identified by the
+ * one-character code in the _compression column: 'F' (flat) values are stored as encoded, 'D'
+ * values are deflated with a dictionary trained from a sample of the type's values.
+ *
+ * Values of a few hundred bytes hardly compress on their own, but most of their bytes (field
+ * names, enum constants, common string values) repeat across the values of a type; with those
+ * in the dictionary, deflate encodes them as short back-references. A 'D' value starts with the
+ * dictionary id (4 bytes) and the uncompressed length (varint), followed by the raw deflate
+ * stream. A value is only stored compressed if that makes it smaller.
+ *
+ * Dictionaries are CompressionDictionary entities of the type "$dictionary" in the same KV table,
+ * loaded through the handle of the calling transaction and cached; an unknown dictionary id
+ * (trained by another store instance) reloads the cache. Instances are thread-safe.
+ */
+public class ValueCompression {
+  public static final String NONE = "F";
+  public static final String DICTIONARY = "D";
+
+  public static final String DICTIONARY_PREFIX = "$dictionary";
+
+  /** Maximum dictionary size; deflate only references the last 32KB anyway */
+  public static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+  /** Number of values sampled to train a dictionary */
+  public static final int SAMPLE_SIZE = 500;
+
+  private static final int GRAM_SIZE = 8;
+  private static final int HEADER_SIZE = 4;
+
+  private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_COMPRESSION, true);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private final SequenceService sequences;
+  private final String prefix;
+  private final String tableName;
+  private final Random random;
+  private volatile Dictionaries dictionaries;
+
+  public ValueCompression(SequenceService sequences, String prefix, String tableName) {
+    this.sequences = sequences;
+    this.prefix = prefix;
+    this.tableName = tableName;
+    this.random = new Random();
+  }
+
+  /**
+   * Compresses an encoded value with the current dictionary of the type; returns null if the
+   * type has no dictionary or compression would not make the value smaller.
+   */
+  @Nullable
+  public byte[] compress(Handle handle, String type, byte[] bytes) throws KazukiException {
+    // internal types (schemas, dictionaries) are never compressed
+    if (type.startsWith("$")) {
+      return null;
+    }
+
+    CompressionDictionary dictionary = getDictionaries(handle).current.get(type);
+
+    return (dictionary == null) ? null : compress(dictionary, bytes);
+  }
+
+  /**
+   * Compresses an encoded value with the given dictionary; returns null if that would not make
+   * the value smaller.
+   */
+  @Nullable
+  static byte[] compress(CompressionDictionary dictionary, byte[] bytes) {
+    if (bytes.length <= HEADER_SIZE + 5) {
+      return null;
+    }
+
+    byte[] result = new byte[bytes.length];
+    int pos = writeInt(result, 0, dictionary.getId());
+    pos = writeVarint(result, pos, bytes.length);
+
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+
+    try {
+      deflater.setDictionary(dictionary.getDictionary());
+      deflater.setInput(bytes);
+      deflater.finish();
+
+      while (!deflater.finished()) {
+        if (pos >= result.length) {
+          return null;
+        }
+
+        pos += deflater.deflate(result, pos, result.length - pos);
+      }
+    } finally {
+      deflater.reset();
+    }
+
+    return (pos < bytes.length) ? Arrays.copyOf(result, pos) : null;
+  }
+
+  /**
+   * Returns the encoded value of a KV row ("_compression" and "_value" columns), uncompressing
+   * it if needed.
+   */
+  public byte[] uncompress(Handle handle, Map<String, Object> row) throws KazukiException {
+    byte[] value = (byte[]) row.get("_value");
+    Object code = row.get("_compression");
+
+    if (value == null || code == null || NONE.equals(code.toString())) {
+      return value;
+    }
+
+    if (!DICTIONARY.equals(code.toString())) {
+      throw new KazukiException("unknown value compression: " + code);
+    }
+
+    return uncompress(handle, value);
+  }
+
+  public byte[] uncompress(Handle handle, byte[] value) throws KazukiException {
+    int id = readInt(value, 0);
+    CompressionDictionary dictionary = getDictionaries(handle).byId.get(id);
+
+    if (dictionary == null) {
+      dictionary = load(handle).byId.get(id);
+
+      if (dictionary == null) {
+        throw new KazukiException("unknown compression dictionary: " + id);
+      }
+    }
+
+    return uncompress(dictionary, value);
+  }
+
+  /**
+   * Uncompresses a value compressed with the given dictionary.
+   */
+  static byte[] uncompress(CompressionDictionary dictionary, byte[] value) throws KazukiException {
+    int pos = HEADER_SIZE;
+    int length = 0;
+
+    for (int shift = 0;; shift += 7) {
+      byte b = value[pos++];
+      length |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+
+    byte[] result = new byte[length];
+
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+
+    try {
+      inflater.setDictionary(dictionary.getDictionary());
+      inflater.setInput(value, pos, value.length - pos);
+
+      int done = 0;
+
+      while (done < length) {
+        int inflated = inflater.inflate(result, done, length - done);
+
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new KazukiException("truncated compressed value");
+        }
+
+        done += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new KazukiException("invalid compressed value", e);
+    } finally {
+      inflater.reset();
+    }
+
+    return result;
+  }
+
+  /**
+   * Creates the next version of the dictionary of the type, with an id no other dictionary uses.
+   */
+  public CompressionDictionary newDictionary(Handle handle, String type, byte[] dictionary)
+      throws KazukiException {
+    Dictionaries loaded = load(handle);
+    CompressionDictionary current = loaded.current.get(type);
+    int id;
+
+    do {
+      id = random.nextInt();
+    } while (loaded.byId.containsKey(id));
+
+    return new CompressionDictionary(id, type, (current == null) ? 1L
+        : current.getVersion() + 1L, dictionary);
+  }
+
+  /**
+   * Discards the cached dictionaries (after they were added or removed).
+   */
+  public void reset() {
+    dictionaries = null;
+  }
+
+  /**
+   * Builds a dictionary of at most maxSize bytes from sample values: byte sequences that occur
+   * in many of the samples (runs of frequent 8-byte grams), densest first, with the most valuable
+   * sequences at the end of the dictionary where deflate references them most cheaply. Returns
+   * null if the samples have nothing in common.
+   */
+  @Nullable
+  public static byte[] train(List<byte[]> samples, int maxSize) {
+    int minFrequency = Math.max(2, samples.size() / 100);
+
+    // number of samples containing each gram
+    Map<Long, Integer> frequencies = new HashMap<Long, Integer>();
+
+    for (byte[] sample : samples) {
+      Set<Long> seen = new HashSet<Long>();
+
+      for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+        Long gram = gram(sample, i);
+
+        if (seen.add(gram)) {
+          Integer frequency = frequencies.get(gram);
+          frequencies.put(gram, (frequency == null) ? 1 : frequency + 1);
+        }
+      }
+    }
+
+    // candidate fragments are maximal runs of frequent grams, scored by total gram frequency
+    Map<String, Fragment> fragments = new HashMap<String, Fragment>();
+
+    for (byte[] sample : samples) {
+      int i = 0;
+
+      while (i + GRAM_SIZE <= sample.length) {
+        int start = i;
+        long score = 0L;
+
+        while (i + GRAM_SIZE <= sample.length) {
+          int frequency = frequencies.get(gram(sample, i));
+
+          if (frequency < minFrequency) {
+            break;
+          }
+
+          score += frequency;
+          i += 1;
+        }
+
+        if (i == start) {
+          i += 1;
+          continue;
+        }
+
+        byte[] fragment = Arrays.copyOfRange(sample, start, i - 1 + GRAM_SIZE);
+        String fragmentKey = new String(fragment, Charsets.ISO_8859_1);
+
+        if (!fragments.containsKey(fragmentKey)) {
+          fragments.put(fragmentKey, new Fragment(fragment, score));
+        }
+      }
+    }
+
+    if (fragments.isEmpty()) {
+      return null;
+    }
+
+    List<Fragment> ranked = new ArrayList<Fragment>(fragments.values());
+    Collections.sort(ranked, Fragment.DENSEST_FIRST);
+
+    List<byte[]> chosen = new ArrayList<byte[]>();
+    byte[] selected = new byte[0];
+
+    for (Fragment fragment : ranked) {
+      if (selected.length + fragment.bytes.length > maxSize) {
+        continue;
+      }
+
+      if (Bytes.indexOf(selected, fragment.bytes) < 0) {
+        chosen.add(fragment.bytes);
+        selected = Bytes.concat(selected, fragment.bytes);
+      }
+    }
+
+    Collections.reverse(chosen);
+
+    return Bytes.concat(chosen.toArray(new byte[chosen.size()][]));
+  }
+
+  private Dictionaries getDictionaries(Handle handle) throws KazukiException {
+    Dictionaries loaded = dictionaries;
+
+    return (loaded == null) ? load(handle) : loaded;
+  }
+
+  private synchronized Dictionaries load(Handle handle) throws KazukiException {
+    Map<Integer, CompressionDictionary> byId = new HashMap<Integer, CompressionDictionary>();
+    Map<String, CompressionDictionary> current = new HashMap<String, CompressionDictionary>();
+
+    if (sequences.hasType(DICTIONARY_PREFIX)) {
+      Query<Map<String, Object>> select =
+          JDBIHelper.getBoundQuery(handle, prefix, "kv_table_name", tableName,
+              "kv_key_values_of_type");
+      select.define("order", "ASC");
+      select.bind("key_type", sequences.getTypeId(DICTIONARY_PREFIX, false));
+      select.bind("offset", (Long) null);
+      select.bind("limit", (Long) null);
+
+      for (Map<String, Object> row : select.list()) {
+        CompressionDictionary dictionary =
+            ValueFormat.fromCode(row.get("_format")).decode(null, (byte[]) row.get("_value"),
+                CompressionDictionary.class);
+        CompressionDictionary existing = current.get(dictionary.getType());
+
+        byId.put(dictionary.getId(), dictionary);
+
+        if (existing == null || existing.getVersion() < dictionary.getVersion()) {
+          current.put(dictionary.getType(), dictionary);
+        }
+      }
+    }
+
+    Dictionaries loaded = new Dictionaries(byId, current);
+    dictionaries = loaded;
+
+    return loaded;
+  }
+
+  private static Long gram(byte[] bytes, int offset) {
+    long gram = 0L;
+
+    for (int i = 0; i < GRAM_SIZE; i++) {
+      gram = (gram << 8) | (bytes[offset + i] & 0xFF);
+    }
+
+    return gram;
+  }
+
+  private static int writeInt(byte[] bytes, int pos, int value) {
+    bytes[pos] = (byte) (value >>> 24);
+    bytes[pos + 1] = (byte) (value >>> 16);
+    bytes[pos + 2] = (byte) (value >>> 8);
+    bytes[pos + 3] = (byte) value;
+
+    return pos + HEADER_SIZE;
+  }
+
+  private static int readInt(byte[] bytes, int pos) {
+    return ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+        | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+  }
+
+  private static int writeVarint(byte[] bytes, int pos, int value) {
+    int remaining = value;
+
+    while ((remaining & ~0x7F) != 0) {
+      bytes[pos++] = (byte) ((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+
+    bytes[pos++] = (byte) remaining;
+
+    return pos;
+  }
+
+  private static class Dictionaries {
+    private final Map<Integer, CompressionDictionary> byId;
+    private final Map<String, CompressionDictionary> current;
+
+    public Dictionaries(Map<Integer, CompressionDictionary> byId,
+        Map<String, CompressionDictionary> current) {
+      this.byId = byId;
+      this.current = current;
+    }
+  }
+
+  private static class Fragment {
+    private static final Comparator<Fragment> DENSEST_FIRST = new Comparator<Fragment>() {
+      @Override
+      public int compare(Fragment a, Fragment b) {
+        return Double.compare(b.score / (double) b.bytes.length, a.score
+            / (double) a.bytes.length);
+      }
+    };
+
+    private final byte[] bytes;
+    private final long score;
+
+    public Fragment(byte[] bytes, long score) {
+      this.bytes = bytes;
+      this.score = score;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.serialize.SerializationException;
+import io.kazuki.v0.internal.serialize.Serializer;
+import io.kazuki.v0.internal.serialize.json.JsonCodec;
+import io.kazuki.v0.internal.serialize.kryo.KryoCodec;
+import io.kazuki.v0.internal.serialize.msgpack.MsgPackCodec;
+import io.kazuki.v0.internal.v2schema.compact.BinaryRowCodec;
+import io.kazuki.v0.internal.v2schema.compact.SchemaSmileCodec;
+import io.kazuki.v0.internal.v2schema.compact.StringDictionary;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Storage formats of KV values, identified by the one-character code in the _format column. The
+ * configured format (KeyValueStoreConfiguration.getValueFormat(type)) applies to new writes;
+ * rows are decoded according to their own _format, so the format can be changed at any time.
+ * Values of types without a schema are stored as SMILE if the format requires a schema.
+ *
+ * The "packed" maps are field-transformed (see FieldTransform), as passed to KeyValueStoreListener
+ * hooks; for types without a schema they are plain JSON maps. JSON, MSGPACK and KRYO store the
+ * packed map with the corresponding io.kazuki.v0.internal.serialize codec; MessagePack and Kryo
+ * are optional dependencies, needed on the classpath only if those formats are used.
+ *
+ * Values outside the schema (and all values of types without one) are read back as Jackson reads
+ * untyped values: integers as the smallest of Integer, Long and BigInteger that holds them, so a
+ * Long 1 comes back as Integer 1. This holds for SMILE, JSON and MSGPACK alike; only KRYO keeps
+ * the Java types that were written.
+ */
+public enum ValueFormat {
+  /** Smile; structure-compacted for schema'd types */
+  SMILE('S', false) {
+    @Override
+    public byte[] encode(@Nullable Schema schema, Map<String, Object> packed)
+        throws KazukiException {
+      return (schema == null) ? EncodingHelper.convertValueToSmile(packed) : SchemaSmileCodec
+          .forSchema(schema).encode(packed);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, Object> decodePacked(@Nullable Schema schema, byte[] valueBytes)
+        throws KazukiException {
+      return (schema == null) ? EncodingHelper.parseSmile(valueBytes, Map.class) : SchemaSmileCodec
+          .forSchema(schema).decodePacked(valueBytes);
+    }
+
+    @Override
+    public <T> T decode(@Nullable Schema schema, byte[] valueBytes, Class<T> clazz)
+        throws KazukiException {
+      return (schema == null) ? super.decode(null, valueBytes, clazz) : SchemaSmileCodec
+          .forSchema(schema).decode(valueBytes, clazz);
+    }
+
+    @Override
+    public Map<String, Object> decodeFields(@Nullable Schema schema, byte[] valueBytes,
+        Collection<String> fields) throws KazukiException {
+      return (schema == null) ? super.decodeFields(null, valueBytes, fields) : SchemaSmileCodec
+          .forSchema(schema).decodeFields(valueBytes, fields);
+    }
+  },
+
+  /**
+   * Schema-compiled binary rows (see BinaryRowCodec); schema'd types only. The only format that
+   * stores dictionary attributes as StringDictionary codes.
+   */
+  BINARY('B', true) {
+    @Override
+    public byte[] encode(@Nullable Schema schema, Map<String, Object> packed)
+        throws KazukiException {
+      return encode(schema, packed, null);
+    }
+
+    @Override
+    public byte[] encode(@Nullable Schema schema, Map<String, Object> packed,
+        @Nullable StringDictionary dictionary) throws KazukiException {
+      return BinaryRowCodec.forSchema(requireSchema(schema)).encode(packed, dictionary);
+    }
+
+    @Override
+    public Map<String, Object> decodePacked(@Nullable Schema schema, byte[] valueBytes)
+        throws KazukiException {
+      return decodePacked(schema, valueBytes, null);
+    }
+
+    @Override
+    public Map<String, Object> decodePacked(@Nullable Schema schema, byte[] valueBytes,
+        @Nullable StringDictionary dictionary) throws KazukiException {
+      return BinaryRowCodec.forSchema(requireSchema(schema)).decodePacked(valueBytes, dictionary);
+    }
+
+    @Override
+    public <T> T decode(@Nullable Schema schema, byte[] valueBytes, Class<T> clazz,
+        @Nullable StringDictionary dictionary) throws KazukiException {
+      return SchemaSmileCodec.forSchema(requireSchema(schema)).bind(
+          decodePacked(schema, valueBytes, dictionary), clazz);
+    }
+
+    @Override
+    public Map<String, Object> decodeFields(@Nullable Schema schema, byte[] valueBytes,
+        Collection<String> fields) throws KazukiException {
+      return decodeFields(schema, valueBytes, fields, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, Object> decodeFields(@Nullable Schema schema, byte[] valueBytes,
+        Collection<String> fields, @Nullable StringDictionary dictionary) throws KazukiException {
+      return SchemaSmileCodec.forSchema(requireSchema(schema)).bind(
+          BinaryRowCodec.forSchema(schema).decodeFields(valueBytes, fields, dictionary),
+          LinkedHashMap.class);
+    }
+  },
+
+  /** JSON text (see JsonCodec) */
+  JSON('J', false) {
+    @Override
+    protected Serializer<LinkedHashMap> serializer() {
+      return JsonHolder.CODEC;
+    }
+  },
+
+  /** MessagePack (see MsgPackCodec) */
+  MSGPACK('M', false) {
+    @Override
+    protected Serializer<LinkedHashMap> serializer() {
+      return MsgPackHolder.CODEC;
+    }
+  },
+
+  /** Kryo (see KryoCodec) */
+  KRYO('K', false) {
+    @Override
+    protected Serializer<LinkedHashMap> serializer() {
+      return KryoHolder.CODEC;
+    }
+  };
+
+  private final char code;
+  private final boolean schemaRequired;
+
+  private ValueFormat(char code, boolean schemaRequired) {
+    this.code = code;
+    this.schemaRequired = schemaRequired;
+  }
+
+  /**
+   * Returns the value of the _format column.
+   */
+  public String getCode() {
+    return String.valueOf(code);
+  }
+
+  public byte[] encode(@Nullable Schema schema, Map<String, Object> packed)
+      throws KazukiException {
+    try {
+      return serializer().encode(plain(packed));
+    } catch (SerializationException e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decodePacked(@Nullable Schema schema, byte[] valueBytes)
+      throws KazukiException {
+    try {
+      return serializer().decode(valueBytes);
+    } catch (SerializationException e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  public <T> T decode(@Nullable Schema schema, byte[] valueBytes, Class<T> clazz)
+      throws KazukiException {
+    Map<String, Object> packed = decodePacked(schema, valueBytes);
+
+    if (schema != null) {
+      return SchemaSmileCodec.forSchema(schema).bind(packed, clazz);
+    }
+
+    try {
+      return EncodingHelper.asValue(packed, clazz);
+    } catch (Exception e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  /**
+   * Decodes only the given fields of a value, as they would appear in the value retrieved as a
+   * map; fields the value does not contain are omitted. Formats without field access decode the
+   * whole value.
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> decodeFields(@Nullable Schema schema, byte[] valueBytes,
+      Collection<String> fields) throws KazukiException {
+    Map<String, Object> value = decodePacked(schema, valueBytes);
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+    for (String field : fields) {
+      if (value.containsKey(field)) {
+        result.put(field, value.get(field));
+      }
+    }
+
+    return (schema == null) ? result : SchemaSmileCodec.forSchema(schema).bind(result,
+        LinkedHashMap.class);
+  }
+
+  /**
+   * Encodes the packed map, writing dictionary attributes as codes of the given dictionary in
+   * formats that support it (the other formats ignore the dictionary).
+   */
+  public byte[] encode(@Nullable Schema schema, Map<String, Object> packed,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    return encode(schema, packed);
+  }
+
+  public Map<String, Object> decodePacked(@Nullable Schema schema, byte[] valueBytes,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    return decodePacked(schema, valueBytes);
+  }
+
+  public <T> T decode(@Nullable Schema schema, byte[] valueBytes, Class<T> clazz,
+      @Nullable StringDictionary dictionary) throws KazukiException {
+    return decode(schema, valueBytes, clazz);
+  }
+
+  public Map<String, Object> decodeFields(@Nullable Schema schema, byte[] valueBytes,
+      Collection<String> fields, @Nullable StringDictionary dictionary) throws KazukiException {
+    return decodeFields(schema, valueBytes, fields);
+  }
+
+  /**
+   * Returns the serializer of the packed map, for formats stored with a generic codec.
+   */
+  protected Serializer<LinkedHashMap> serializer() {
+    throw new UnsupportedOperationException("no generic codec for " + this);
+  }
+
+  /**
+   * Returns the format to store a value of a type with the given schema in.
+   */
+  public ValueFormat forSchema(@Nullable Schema schema) {
+    return (schema == null && schemaRequired) ? SMILE : this;
+  }
+
+  /**
+   * Returns the format of a _format column value (rows without one are SMILE).
+   */
+  public static ValueFormat fromCode(@Nullable Object code) {
+    if (code == null) {
+      return SMILE;
+    }
+
+    String codeString = code.toString();
+
+    for (ValueFormat format : values()) {
+      if (format.getCode().equals(codeString)) {
+        return format;
+      }
+    }
+
+    throw new IllegalArgumentException("unknown value format: " + codeString);
+  }
+
+  private static Schema requireSchema(@Nullable Schema schema) throws KazukiException {
+    if (schema == null) {
+      throw new KazukiException("binary value format requires a schema");
+    }
+
+    return schema;
+  }
+
+  /**
+   * Copies the packed map to plain maps and lists, which every codec can write and read back.
+   */
+  @SuppressWarnings("unchecked")
+  private static LinkedHashMap<String, Object> plain(Map<String, Object> packed) {
+    LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+
+    for (Map.Entry<String, Object> e : packed.entrySet()) {
+      result.put(e.getKey(), plainValue(e.getValue()));
+    }
+
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object plainValue(@Nullable Object value) {
+    if (value instanceof Map) {
+      return plain((Map<String, Object>) value);
+    }
+
+    if (value instanceof Collection) {
+      List<Object> result = new ArrayList<Object>();
+
+      for (Object element : (Collection<Object>) value) {
+        result.add(plainValue(element));
+      }
+
+      return result;
+    }
+
+    return value;
+  }
+
+  // holders, so the optional codec dependencies are only loaded when their format is used
+
+  private static class JsonHolder {
+    private static final Serializer<LinkedHashMap> CODEC = new JsonCodec<LinkedHashMap>(
+        LinkedHashMap.class);
+  }
+
+  private static class MsgPackHolder {
+    private static final Serializer<LinkedHashMap> CODEC = new MsgPackCodec<LinkedHashMap>(
+        LinkedHashMap.class);
+  }
+
+  private static class KryoHolder {
+    private static final Serializer<LinkedHashMap> CODEC = new KryoCodec<LinkedHashMap>(
+        LinkedHashMap.class);
+  }
+}
@@ -0,0 +1,659 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.store.schema.model.Attribute;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Annotation processor generating an EntityCodec (and matching Schema) for each KazukiEntity
+ * class. The processor is not registered as a service, so builds opt in explicitly, e.g. with
+ * javac -processor or the annotationProcessors setting of the maven compiler plugin.
+ *
+ * Properties are the public non-final fields and the fields with public getter / setter pairs,
+ * in declaration order (superclass fields first); static, transient and JsonIgnore fields are
+ * skipped and JsonProperty renames the attribute. The attribute type is inferred from the field
+ * type unless given by KazukiAttribute. Generated codecs read and write properties directly;
+ * only nested values that are not plain strings (beans, collections of beans, arrays, ...) go
+ * through Jackson.
+ */
+@SupportedAnnotationTypes("io.kazuki.v0.store.schema.codec.KazukiEntity")
+public class EntityCodecProcessor extends AbstractProcessor {
+  private static final Pattern VALID_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_]+");
+
+  private static final String SUPPORT = EntityCodecSupport.class.getName();
+
+  /** Types written as-is (their values are already plain) */
+  private static final Set<String> PLAIN_TYPES = new HashSet<String>(Arrays.asList(
+      "java.lang.Boolean", "java.lang.Byte", "java.lang.Short", "java.lang.Integer",
+      "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.String",
+      "java.math.BigInteger"));
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(KazukiEntity.class)) {
+      try {
+        generate(validateEntity(element));
+      } catch (InvalidEntityException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(),
+            e.getElement());
+      } catch (IOException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+            "unable to write entity codec : " + e.getMessage(), element);
+      }
+    }
+
+    return true;
+  }
+
+  private TypeElement validateEntity(Element element) throws InvalidEntityException {
+    if (!element.getKind().equals(ElementKind.CLASS)) {
+      throw new InvalidEntityException(element, "KazukiEntity must be a class");
+    }
+
+    TypeElement type = (TypeElement) element;
+    Set<Modifier> modifiers = type.getModifiers();
+
+    if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.ABSTRACT)) {
+      throw new InvalidEntityException(element, "KazukiEntity must not be private or abstract");
+    }
+
+    if (type.getNestingKind().equals(NestingKind.MEMBER) && !modifiers.contains(Modifier.STATIC)) {
+      throw new InvalidEntityException(element, "KazukiEntity must be top-level or static");
+    }
+
+    if (!type.getNestingKind().equals(NestingKind.TOP_LEVEL)
+        && !type.getNestingKind().equals(NestingKind.MEMBER)) {
+      throw new InvalidEntityException(element, "KazukiEntity must not be local or anonymous");
+    }
+
+    if (!type.getTypeParameters().isEmpty()) {
+      throw new InvalidEntityException(element, "KazukiEntity must not be generic");
+    }
+
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()
+          && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+        return type;
+      }
+    }
+
+    throw new InvalidEntityException(element, "KazukiEntity must have a non-private no-arg "
+        + "constructor");
+  }
+
+  private List<Property> getProperties(TypeElement type) throws InvalidEntityException {
+    List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+
+    for (TypeElement current = type; current != null; current = getSuperclass(current)) {
+      hierarchy.add(current);
+    }
+
+    Collections.reverse(hierarchy);
+
+    List<ExecutableElement> methods =
+        ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+    List<Property> properties = new ArrayList<Property>();
+    Set<String> names = new HashSet<String>();
+
+    for (TypeElement current : hierarchy) {
+      for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+        Set<Modifier> modifiers = field.getModifiers();
+        JsonIgnore ignore = field.getAnnotation(JsonIgnore.class);
+
+        if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)
+            || (ignore != null && ignore.value())) {
+          continue;
+        }
+
+        Property property = getProperty(type, field, methods);
+
+        if (property == null) {
+          continue;
+        }
+
+        if (!VALID_NAME_PATTERN.matcher(property.name).matches()) {
+          throw new InvalidEntityException(field, "Invalid attribute name : " + property.name);
+        }
+
+        if (!names.add(property.name)) {
+          throw new InvalidEntityException(field, "Duplicate attribute name : " + property.name);
+        }
+
+        properties.add(property);
+      }
+    }
+
+    return properties;
+  }
+
+  private Property getProperty(TypeElement type, VariableElement field,
+      List<ExecutableElement> methods) throws InvalidEntityException {
+    String fieldName = field.getSimpleName().toString();
+    TypeMirror fieldType =
+        processingEnv.getTypeUtils().asMemberOf((DeclaredType) type.asType(), field);
+    Set<Modifier> modifiers = field.getModifiers();
+    JsonProperty jsonProperty = field.getAnnotation(JsonProperty.class);
+
+    String name =
+        (jsonProperty == null || jsonProperty.value().isEmpty()) ? fieldName : jsonProperty
+            .value();
+    String getter;
+    String setter;
+
+    if (modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.FINAL)) {
+      getter = fieldName;
+      setter = fieldName + " = ";
+    } else {
+      String suffix = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+      ExecutableElement getMethod = findMethod(methods, "get" + suffix, 0);
+
+      if (getMethod == null && fieldType.getKind().equals(TypeKind.BOOLEAN)) {
+        getMethod = findMethod(methods, "is" + suffix, 0);
+      }
+
+      if (getMethod == null) {
+        if (jsonProperty != null) {
+          throw new InvalidEntityException(field, "JsonProperty field '" + fieldName
+              + "' must be public or have a public getter and setter");
+        }
+
+        // not visible to Jackson either
+        return null;
+      }
+
+      if (findMethod(methods, "set" + suffix, 1) == null) {
+        throw new InvalidEntityException(field, "property '" + fieldName
+            + "' has a getter but no public setter set" + suffix + "()");
+      }
+
+      getter = getMethod.getSimpleName() + "()";
+      setter = "set" + suffix + "(";
+    }
+
+    KazukiAttribute attribute = field.getAnnotation(KazukiAttribute.class);
+    Attribute.Type attrType = inferType(fieldType);
+
+    if (attribute != null && !attribute.type().equals(Attribute.Type.ANY)) {
+      attrType = attribute.type();
+    }
+
+    boolean nullable = !fieldType.getKind().isPrimitive() && (attribute == null
+        || attribute.nullable());
+    boolean dictionary = attribute != null && attribute.dictionary();
+
+    if (dictionary && !attrType.equals(Attribute.Type.UTF8_SMALLSTRING)) {
+      throw new InvalidEntityException(field, "Invalid dictionary attribute (not UTF8_SMALLSTRING)"
+          + " : " + name);
+    }
+
+    List<String> values = null;
+
+    if (attrType.equals(Attribute.Type.ENUM)) {
+      values = getEnumValues(fieldType);
+
+      if (values == null) {
+        throw new InvalidEntityException(field, "ENUM attribute must have an enum type : " + name);
+      }
+    }
+
+    return new Property(name, fieldType, getter, setter, attrType, nullable, dictionary, values);
+  }
+
+  private TypeElement getSuperclass(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+
+    if (!superclass.getKind().equals(TypeKind.DECLARED)) {
+      return null;
+    }
+
+    TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+
+    return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+  }
+
+  private static ExecutableElement findMethod(List<ExecutableElement> methods, String name,
+      int parameterCount) {
+    for (ExecutableElement method : methods) {
+      Set<Modifier> modifiers = method.getModifiers();
+
+      if (method.getSimpleName().contentEquals(name)
+          && method.getParameters().size() == parameterCount
+          && modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC)) {
+        return method;
+      }
+    }
+
+    return null;
+  }
+
+  private Attribute.Type inferType(TypeMirror type) {
+    switch (type.getKind()) {
+      case BOOLEAN:
+        return Attribute.Type.BOOLEAN;
+      case BYTE:
+        return Attribute.Type.I8;
+      case SHORT:
+        return Attribute.Type.I16;
+      case INT:
+        return Attribute.Type.I32;
+      case LONG:
+        return Attribute.Type.I64;
+      case CHAR:
+        return Attribute.Type.CHAR_ONE;
+      case ARRAY:
+        return Attribute.Type.ARRAY;
+      case DECLARED:
+        break;
+      default:
+        return Attribute.Type.ANY;
+    }
+
+    if (getEnumValues(type) != null) {
+      return Attribute.Type.ENUM;
+    }
+
+    String name = getErasedName(type);
+
+    if (name.equals("java.lang.Boolean")) {
+      return Attribute.Type.BOOLEAN;
+    } else if (name.equals("java.lang.Byte")) {
+      return Attribute.Type.I8;
+    } else if (name.equals("java.lang.Short")) {
+      return Attribute.Type.I16;
+    } else if (name.equals("java.lang.Integer")) {
+      return Attribute.Type.I32;
+    } else if (name.equals("java.lang.Long")) {
+      return Attribute.Type.I64;
+    } else if (name.equals("java.lang.Character")) {
+      return Attribute.Type.CHAR_ONE;
+    } else if (name.equals("java.lang.String")) {
+      return Attribute.Type.UTF8_SMALLSTRING;
+    } else if (name.equals("org.joda.time.DateTime") || name.equals("java.util.Date")) {
+      return Attribute.Type.UTC_DATE_SECS;
+    } else if (isSubtype(type, "java.util.Collection")) {
+      return Attribute.Type.ARRAY;
+    } else if (isSubtype(type, "java.util.Map")) {
+      return Attribute.Type.MAP;
+    }
+
+    return Attribute.Type.ANY;
+  }
+
+  private List<String> getEnumValues(TypeMirror type) {
+    if (!type.getKind().equals(TypeKind.DECLARED)) {
+      return null;
+    }
+
+    Element element = ((DeclaredType) type).asElement();
+
+    if (!element.getKind().equals(ElementKind.ENUM)) {
+      return null;
+    }
+
+    List<String> values = new ArrayList<String>();
+
+    for (Element member : element.getEnclosedElements()) {
+      if (member.getKind().equals(ElementKind.ENUM_CONSTANT)) {
+        values.add(member.getSimpleName().toString());
+      }
+    }
+
+    return values;
+  }
+
+  private String getErasedName(TypeMirror type) {
+    return processingEnv.getTypeUtils().erasure(type).toString();
+  }
+
+  private boolean isSubtype(TypeMirror type, String className) {
+    TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+
+    return element != null
+        && processingEnv.getTypeUtils().isAssignable(type,
+            processingEnv.getTypeUtils().erasure(element.asType()));
+  }
+
+  /**
+   * Returns true for List / Map types holding strings only, which are already in their plain form
+   * and are passed through as-is.
+   */
+  private boolean isPlainContainer(TypeMirror type) {
+    if (!type.getKind().equals(TypeKind.DECLARED)) {
+      return false;
+    }
+
+    String name = getErasedName(type);
+
+    if (!name.equals("java.util.List") && !name.equals("java.util.Map")) {
+      return false;
+    }
+
+    List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+
+    if (arguments.isEmpty()) {
+      return false;
+    }
+
+    for (TypeMirror argument : arguments) {
+      if (!argument.getKind().equals(TypeKind.DECLARED)
+          || !getErasedName(argument).equals("java.lang.String")) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the expression converting the property value to its plain (unpacked) form.
+   */
+  private String getWriteExpression(Property property, String value) {
+    TypeMirror type = property.type;
+
+    if (type.getKind().isPrimitive()) {
+      return type.getKind().equals(TypeKind.CHAR) ? "String.valueOf(" + value + ")" : value;
+    }
+
+    if (property.values != null || getEnumValues(type) != null) {
+      return SUPPORT + ".fromEnum(" + value + ")";
+    }
+
+    String name = getErasedName(type);
+
+    if (name.equals("java.lang.Character")) {
+      return SUPPORT + ".fromChar(" + value + ")";
+    } else if (name.equals("org.joda.time.DateTime")) {
+      return SUPPORT + ".fromDateTime(" + value + ")";
+    } else if (name.equals("java.util.Date")) {
+      return SUPPORT + ".fromDate(" + value + ")";
+    } else if (PLAIN_TYPES.contains(name) || isPlainContainer(type)) {
+      return value;
+    }
+
+    return SUPPORT + ".fromObject(" + value + ")";
+  }
+
+  /**
+   * Returns the expression converting a plain value to the property type; types needing Jackson
+   * get a TypeReference constant (added to typeReferences).
+   */
+  private String getReadExpression(Property property, String value, List<String> typeReferences) {
+    TypeMirror type = property.type;
+
+    switch (type.getKind()) {
+      case BOOLEAN:
+        return SUPPORT + ".toBooleanValue(" + value + ")";
+      case BYTE:
+        return SUPPORT + ".toByteValue(" + value + ")";
+      case SHORT:
+        return SUPPORT + ".toShortValue(" + value + ")";
+      case INT:
+        return SUPPORT + ".toIntValue(" + value + ")";
+      case LONG:
+        return SUPPORT + ".toLongValue(" + value + ")";
+      case FLOAT:
+        return SUPPORT + ".toFloatValue(" + value + ")";
+      case DOUBLE:
+        return SUPPORT + ".toDoubleValue(" + value + ")";
+      case CHAR:
+        return SUPPORT + ".toCharValue(" + value + ")";
+      default:
+        break;
+    }
+
+    if (getEnumValues(type) != null) {
+      return SUPPORT + ".toEnum(" + getErasedName(type) + ".class, " + value + ")";
+    }
+
+    String name = getErasedName(type);
+
+    if (name.equals("java.lang.Boolean")) {
+      return SUPPORT + ".toBoolean(" + value + ")";
+    } else if (name.equals("java.lang.Byte")) {
+      return SUPPORT + ".toByte(" + value + ")";
+    } else if (name.equals("java.lang.Short")) {
+      return SUPPORT + ".toShort(" + value + ")";
+    } else if (name.equals("java.lang.Integer")) {
+      return SUPPORT + ".toInteger(" + value + ")";
+    } else if (name.equals("java.lang.Long")) {
+      return SUPPORT + ".toLong(" + value + ")";
+    } else if (name.equals("java.lang.Float")) {
+      return SUPPORT + ".toFloat(" + value + ")";
+    } else if (name.equals("java.lang.Double")) {
+      return SUPPORT + ".toDouble(" + value + ")";
+    } else if (name.equals("java.lang.Character")) {
+      return SUPPORT + ".toChar(" + value + ")";
+    } else if (name.equals("java.lang.String")) {
+      return SUPPORT + ".toString(" + value + ")";
+    } else if (name.equals("java.math.BigInteger")) {
+      return SUPPORT + ".toBigInteger(" + value + ")";
+    } else if (name.equals("org.joda.time.DateTime")) {
+      return SUPPORT + ".toDateTime(" + value + ")";
+    } else if (name.equals("java.util.Date")) {
+      return SUPPORT + ".toDate(" + value + ")";
+    } else if (isPlainContainer(type)) {
+      return "(" + type + ") " + value;
+    }
+
+    String reference = "TYPE_" + typeReferences.size();
+    typeReferences.add(type.toString());
+
+    return SUPPORT + ".toObject(" + value + ", " + reference + ")";
+  }
+
+  private void generate(TypeElement type) throws InvalidEntityException, IOException {
+    List<Property> properties = getProperties(type);
+
+    String packageName =
+        processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    String codecName =
+        EntityCodecs.getCodecName(processingEnv.getElementUtils().getBinaryName(type)
+            .toString());
+    String entityName = type.getQualifiedName().toString();
+
+    List<String> typeReferences = new ArrayList<String>();
+    List<String> reads = new ArrayList<String>();
+
+    for (Property property : properties) {
+      reads.add(getReadExpression(property, "value", typeReferences));
+    }
+
+    String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+    PrintWriter out =
+        new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, type)
+            .openWriter());
+
+    try {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+
+      out.println("/**");
+      out.println(" * EntityCodec for " + entityName + "; generated by EntityCodecProcessor.");
+      out.println(" */");
+      out.println("public final class " + codecName + " implements "
+          + EntityCodec.class.getName() + "<" + entityName + "> {");
+      out.println("  public static final io.kazuki.v0.store.schema.model.Schema SCHEMA = "
+          + "schemaBuilder().build();");
+
+      for (int i = 0; i < typeReferences.size(); i++) {
+        String reference =
+            "com.fasterxml.jackson.core.type.TypeReference<" + typeReferences.get(i) + ">";
+
+        out.println();
+        out.println("  private static final " + reference + " TYPE_" + i + " =");
+        out.println("      new " + reference + "() {};");
+      }
+
+      out.println();
+      out.println("  /**");
+      out.println("   * Returns a builder holding the entity attributes, e.g. to add indexes.");
+      out.println("   */");
+      out.println("  public static io.kazuki.v0.store.schema.model.Schema.Builder "
+          + "schemaBuilder() {");
+      out.println("    io.kazuki.v0.store.schema.model.Schema.Builder builder =");
+      out.println("        new io.kazuki.v0.store.schema.model.Schema.Builder();");
+
+      for (Property property : properties) {
+        String attrType = "io.kazuki.v0.store.schema.model.Attribute.Type." + property.attrType;
+
+        if (property.values != null) {
+          StringBuilder values = new StringBuilder();
+
+          for (String value : property.values) {
+            values.append(values.length() == 0 ? "" : ", ").append('"').append(value).append('"');
+          }
+
+          out.println("    builder.addAttribute(\"" + property.name + "\", " + attrType
+              + ", java.util.Arrays.<Object>asList(" + values + "), " + property.nullable + ");");
+        } else {
+          out.println("    builder.addAttribute(\"" + property.name + "\", " + attrType + ", "
+              + property.nullable + ", " + property.dictionary + ");");
+        }
+      }
+
+      out.println();
+      out.println("    return builder;");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public Class<" + entityName + "> getEntityClass() {");
+      out.println("    return " + entityName + ".class;");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public io.kazuki.v0.store.schema.model.Schema getSchema() {");
+      out.println("    return SCHEMA;");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public void write(" + entityName + " instance, PropertyWriter writer)");
+      out.println("      throws io.kazuki.v0.store.KazukiException {");
+
+      for (Property property : properties) {
+        out.println("    writer.put(\"" + property.name + "\", "
+            + getWriteExpression(property, "instance." + property.getter) + ");");
+      }
+
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public " + entityName + " newInstance() {");
+      out.println("    return new " + entityName + "();");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  @SuppressWarnings(\"unchecked\")");
+      out.println("  public void set(" + entityName + " instance, String name, Object value)");
+      out.println("      throws io.kazuki.v0.store.KazukiException {");
+      out.println("    switch (name) {");
+
+      for (int i = 0; i < properties.size(); i++) {
+        Property property = properties.get(i);
+        String assignment =
+            property.setter.endsWith("(") ? property.setter + reads.get(i) + ")" : property.setter
+                + reads.get(i);
+
+        out.println("      case \"" + property.name + "\":");
+        out.println("        instance." + assignment + ";");
+        out.println("        return;");
+      }
+
+      out.println("      default:");
+      out.println("        throw new io.kazuki.v0.store.schema.model.TransformException("
+          + "\"unknown property: \" + name);");
+      out.println("    }");
+      out.println("  }");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static class Property {
+    private final String name;
+    private final TypeMirror type;
+    private final String getter;
+    private final String setter;
+    private final Attribute.Type attrType;
+    private final boolean nullable;
+    private final boolean dictionary;
+    private final List<String> values;
+
+    public Property(String name, TypeMirror type, String getter, String setter,
+        Attribute.Type attrType, boolean nullable, boolean dictionary, List<String> values) {
+      this.name = name;
+      this.type = type;
+      this.getter = getter;
+      this.setter = setter;
+      this.attrType = attrType;
+      this.nullable = nullable;
+      this.dictionary = dictionary;
+      this.values = values;
+    }
+  }
+
+  private static class InvalidEntityException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final Element element;
+
+    public InvalidEntityException(Element element, String message) {
+      super(message);
+      this.element = element;
+    }
+
+    public Element getElement() {
+      return element;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+/**
+ * Value conversions used by generated EntityCodec classes: the "from" methods convert property
+ * values to the form Jackson serialization produces, the "to" methods convert them back as Jackson
+ * deserialization would (numbers of any width, strings for characters, enums and dates).
+ */
+public class EntityCodecSupport {
+  private static final DateTimeFormatter format = ISODateTimeFormat.basicDateTimeNoMillis()
+      .withZoneUTC();
+
+  private EntityCodecSupport() {}
+
+  @Nullable
+  public static String fromEnum(@Nullable Enum<?> value) {
+    return (value == null) ? null : value.name();
+  }
+
+  @Nullable
+  public static String fromChar(@Nullable Character value) {
+    return (value == null) ? null : value.toString();
+  }
+
+  @Nullable
+  public static String fromDateTime(@Nullable DateTime value) {
+    return (value == null) ? null : format.print(value);
+  }
+
+  @Nullable
+  public static Long fromDate(@Nullable Date value) {
+    return (value == null) ? null : value.getTime();
+  }
+
+  /**
+   * Converts any other value (beans, collections of beans) to plain maps, lists and scalars.
+   */
+  @Nullable
+  public static Object fromObject(@Nullable Object value) throws KazukiException {
+    if (value == null || value instanceof String || value instanceof Number
+        || value instanceof Boolean) {
+      return value;
+    }
+
+    try {
+      return EncodingHelper.asJsonValue(value);
+    } catch (Exception e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  public static boolean toBooleanValue(@Nullable Object value) {
+    Boolean result = toBoolean(value);
+
+    return (result != null) && result;
+  }
+
+  @Nullable
+  public static Boolean toBoolean(@Nullable Object value) {
+    if (value == null || value instanceof Boolean) {
+      return (Boolean) value;
+    }
+
+    return Boolean.valueOf(value.toString());
+  }
+
+  public static byte toByteValue(@Nullable Object value) {
+    return (value == null) ? 0 : toNumber(value).byteValue();
+  }
+
+  @Nullable
+  public static Byte toByte(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).byteValue();
+  }
+
+  public static short toShortValue(@Nullable Object value) {
+    return (value == null) ? 0 : toNumber(value).shortValue();
+  }
+
+  @Nullable
+  public static Short toShort(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).shortValue();
+  }
+
+  public static int toIntValue(@Nullable Object value) {
+    return (value == null) ? 0 : toNumber(value).intValue();
+  }
+
+  @Nullable
+  public static Integer toInteger(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).intValue();
+  }
+
+  public static long toLongValue(@Nullable Object value) {
+    return (value == null) ? 0L : toNumber(value).longValue();
+  }
+
+  @Nullable
+  public static Long toLong(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).longValue();
+  }
+
+  public static float toFloatValue(@Nullable Object value) {
+    return (value == null) ? 0.0f : toNumber(value).floatValue();
+  }
+
+  @Nullable
+  public static Float toFloat(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).floatValue();
+  }
+
+  public static double toDoubleValue(@Nullable Object value) {
+    return (value == null) ? 0.0 : toNumber(value).doubleValue();
+  }
+
+  @Nullable
+  public static Double toDouble(@Nullable Object value) {
+    return (value == null) ? null : toNumber(value).doubleValue();
+  }
+
+  @Nullable
+  public static BigInteger toBigInteger(@Nullable Object value) {
+    if (value == null || value instanceof BigInteger) {
+      return (BigInteger) value;
+    }
+
+    return (value instanceof Number) ? BigInteger.valueOf(((Number) value).longValue())
+        : new BigInteger(value.toString());
+  }
+
+  public static char toCharValue(@Nullable Object value) {
+    Character result = toChar(value);
+
+    return (result == null) ? '\u0000' : result;
+  }
+
+  @Nullable
+  public static Character toChar(@Nullable Object value) {
+    if (value == null || value instanceof Character) {
+      return (Character) value;
+    }
+
+    String string = value.toString();
+
+    if (string.length() != 1) {
+      throw new TransformException("not a single character: " + string);
+    }
+
+    return string.charAt(0);
+  }
+
+  @Nullable
+  public static String toString(@Nullable Object value) {
+    return (value == null) ? null : value.toString();
+  }
+
+  @Nullable
+  public static <E extends Enum<E>> E toEnum(Class<E> enumClass, @Nullable Object value) {
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return Enum.valueOf(enumClass, value.toString());
+    } catch (IllegalArgumentException e) {
+      throw new TransformException("is not a valid enum value : " + value);
+    }
+  }
+
+  @Nullable
+  public static DateTime toDateTime(@Nullable Object value) {
+    if (value == null || value instanceof DateTime) {
+      return (DateTime) value;
+    }
+
+    if (value instanceof Number) {
+      return new DateTime(((Number) value).longValue(), DateTimeZone.UTC);
+    }
+
+    try {
+      return format.parseDateTime(value.toString());
+    } catch (IllegalArgumentException e) {
+      throw new TransformException("is not ISO8601 datetime (yyyyMMdd'T'HHmmssZ)");
+    }
+  }
+
+  @Nullable
+  public static Date toDate(@Nullable Object value) {
+    DateTime dateTime = toDateTime(value);
+
+    return (dateTime == null) ? null : new Date(dateTime.getMillis());
+  }
+
+  /**
+   * Converts plain maps, lists and scalars to the given (generic) type.
+   */
+  @Nullable
+  public static <T> T toObject(@Nullable Object value, TypeReference<T> type)
+      throws KazukiException {
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return EncodingHelper.asValue(value, type);
+    } catch (Exception e) {
+      throw new KazukiException(e);
+    }
+  }
+
+  private static Number toNumber(Object value) {
+    if (value instanceof Number) {
+      return (Number) value;
+    }
+
+    try {
+      return new BigDecimal(value.toString());
+    } catch (NumberFormatException e) {
+      throw new TransformException("is not a valid number: " + value);
+    }
+  }
+}
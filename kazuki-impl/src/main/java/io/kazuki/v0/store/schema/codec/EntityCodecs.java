@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.internal.helper.LogTranslation;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+/**
+ * Registry of EntityCodec instances by entity class. Codecs generated for KazukiEntity classes
+ * are found by name (&lt;ClassName&gt;KazukiCodec in the package of the class) on first use;
+ * other codecs (e.g. hand-written ones) can be registered explicitly. Classes without a codec
+ * are converted with Jackson.
+ */
+public class EntityCodecs {
+  public static final String CODEC_SUFFIX = "KazukiCodec";
+
+  private static final Logger log = LogTranslation.getLogger(EntityCodecs.class);
+
+  private static final Object NONE = new Object();
+
+  private static final ConcurrentHashMap<Class<?>, Object> codecs =
+      new ConcurrentHashMap<Class<?>, Object>();
+
+  private EntityCodecs() {}
+
+  public static <T> void register(EntityCodec<T> codec) {
+    codecs.put(codec.getEntityClass(), codec);
+  }
+
+  /**
+   * Returns the codec of the class, or null if it has none.
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public static <T> EntityCodec<T> forClass(Class<T> clazz) {
+    Object codec = codecs.get(clazz);
+
+    if (codec == null) {
+      codec = load(clazz);
+
+      Object existing = codecs.putIfAbsent(clazz, codec);
+
+      if (existing != null) {
+        codec = existing;
+      }
+    }
+
+    return (codec == NONE) ? null : (EntityCodec<T>) codec;
+  }
+
+  /**
+   * Returns the simple name of the codec generated for the class (nested class names are joined
+   * with '_').
+   */
+  public static String getCodecName(String binaryName) {
+    return binaryName.substring(binaryName.lastIndexOf('.') + 1).replace('$', '_') + CODEC_SUFFIX;
+  }
+
+  private static Object load(Class<?> clazz) {
+    if (!clazz.isAnnotationPresent(KazukiEntity.class)) {
+      return NONE;
+    }
+
+    String packagePrefix =
+        (clazz.getPackage() == null) ? "" : clazz.getPackage().getName() + ".";
+    String codecName = packagePrefix + getCodecName(clazz.getName());
+
+    try {
+      return Class.forName(codecName, true, clazz.getClassLoader()).getDeclaredConstructor()
+          .newInstance();
+    } catch (ClassNotFoundException e) {
+      log.warn("No generated codec {} for entity class {} (is EntityCodecProcessor enabled?)",
+          codecName, clazz.getName());
+
+      return NONE;
+    } catch (ReflectiveOperationException e) {
+      log.warn("Unable to instantiate codec " + codecName, e);
+
+      return NONE;
+    }
+  }
+}
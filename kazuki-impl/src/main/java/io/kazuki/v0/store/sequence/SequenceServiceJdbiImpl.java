@@ -294,6 +294,10 @@ public class SequenceServiceJdbiImpl implements SequenceService, LifecycleRegist
       throw new IllegalArgumentException("Invalid entity 'type'");
     }
 
+    if (typeCodes.containsKey(type)) {
+      return typeCodes.get(type);
+    }
+
     try (LockManager toRelease = lockManager.acquire()) {
       if (typeCodes.containsKey(type)) {
         return typeCodes.get(type);
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+@Test
+public class EncodingHelperTest {
+  public void testSmileRoundTrip() throws Exception {
+    List<Object> rows = new ArrayList<Object>();
+
+    for (int i = 0; i < 100; i++) {
+      rows.add(ImmutableMap.of("status", "ACTIVE", "kind", "widget", "count", i));
+    }
+
+    Map<String, Object> value = ImmutableMap.<String, Object>of("rows", rows);
+    byte[] encoded = EncodingHelper.convertValueToSmile(value);
+
+    Assert.assertEquals(EncodingHelper.parseSmile(encoded, Map.class), value);
+
+    // shared names and values: repeated strings cost a back-reference byte after the first row
+    Assert.assertTrue(encoded.length < 100 * 16, "encoded length " + encoded.length);
+
+    // other payloads keep the default encoding, without shared string values
+    byte[] plain = EncodingHelper.convertToSmile(value);
+
+    Assert.assertEquals(EncodingHelper.parseSmile(plain, Map.class), value);
+    Assert.assertTrue(plain.length > encoded.length, "plain length " + plain.length);
+  }
+
+  public void testBufferReuse() throws Exception {
+    String large = Strings.repeat("x", 4 * EncodingHelper.MAX_RETAINED_BUFFER_SIZE / 3);
+
+    for (Object value : new Object[] {"small", large, "small again", large, 42}) {
+      Assert.assertEquals(EncodingHelper.parseSmile(EncodingHelper.convertToSmile(value),
+          Object.class), value);
+    }
+  }
+
+  public void testNestedWrite() throws Exception {
+    final byte[][] inner = new byte[1][];
+
+    byte[] outer = EncodingHelper.writeSmile(new EncodingHelper.SmileWriter() {
+      @Override
+      public void write(JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        generator.writeString("outer");
+
+        try {
+          inner[0] = EncodingHelper.convertToSmile("inner");
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+
+        generator.writeEndArray();
+      }
+    });
+
+    Assert.assertEquals(EncodingHelper.parseSmile(outer, List.class).get(0), "outer");
+    Assert.assertEquals(EncodingHelper.parseSmile(inner[0], String.class), "inner");
+  }
+}
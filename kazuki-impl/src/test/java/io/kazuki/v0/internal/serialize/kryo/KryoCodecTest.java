@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.serialize.kryo;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+
+@Test
+public class KryoCodecTest {
+  public void testRoundTrip() throws Exception {
+    KryoCodec<LinkedHashMap> codec = new KryoCodec<LinkedHashMap>(LinkedHashMap.class);
+
+    LinkedHashMap<String, Object> value = new LinkedHashMap<String, Object>();
+    value.put("id", new BigInteger("18446744073709551615"));
+    value.put("name", "widget");
+    value.put("tags", new ArrayList<Object>(Arrays.asList("a", 1L, true)));
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(codec.decode(codec.encode(value)), value);
+    }
+  }
+
+  public void testRegistration() throws Exception {
+    Holder holder = new Holder();
+    holder.value = new Partition("PartitionInfo-foo-foostore:11", 42L);
+
+    byte[] unregistered = new KryoCodec<Holder>(Holder.class).encode(holder);
+    KryoCodec<Holder> codec = new KryoCodec<Holder>(Holder.class, Partition.class);
+    byte[] registered = codec.encode(holder);
+
+    Assert.assertTrue(registered.length < unregistered.length);
+
+    Holder decoded = codec.decode(registered);
+    Assert.assertEquals(((Partition) decoded.value).id, "PartitionInfo-foo-foostore:11");
+    Assert.assertEquals(((Partition) decoded.value).size, 42L);
+  }
+
+  public void testLargeValue() throws Exception {
+    KryoCodec<String> codec = new KryoCodec<String>(String.class);
+    String large = Strings.repeat("x", 2 * KryoCodec.MAX_RETAINED_BUFFER_SIZE);
+
+    Assert.assertEquals(codec.decode(codec.encode(large)), large);
+    Assert.assertEquals(codec.decode(codec.encode("small")), "small");
+  }
+
+  public void testThreads() throws Exception {
+    final KryoCodec<Partition> codec = new KryoCodec<Partition>(Partition.class);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+      for (int t = 0; t < 4; t++) {
+        final int thread = t;
+
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int i = 0; i < 1000; i++) {
+              Partition decoded = codec.decode(codec.encode(new Partition("p" + thread, i)));
+
+              if (!decoded.id.equals("p" + thread) || decoded.size != i) {
+                return false;
+              }
+            }
+
+            return true;
+          }
+        }));
+      }
+
+      for (Future<Boolean> result : results) {
+        Assert.assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public static class Holder {
+    private Object value;
+  }
+
+  public static class Partition {
+    private String id;
+    private long size;
+
+    public Partition() {}
+
+    public Partition(String id, long size) {
+      this.id = id;
+      this.size = size;
+    }
+  }
+}
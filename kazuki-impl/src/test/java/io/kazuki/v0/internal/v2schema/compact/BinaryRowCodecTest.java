@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.compact;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.Everything;
+import io.kazuki.v0.store.Everything.TestEnum;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.Attribute.Type;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+@Test
+public class BinaryRowCodecTest {
+  Schema SCHEMA = Everything.EVERYTHING_SCHEMA;
+
+  public void testRoundTrip() throws Exception {
+    Everything e = new Everything();
+    e.theEnum = TestEnum.THREE;
+    e.theBoolean = true;
+    e.theCharOne = 'k';
+    e.theI8 = -3L;
+    e.theI64 = Long.MIN_VALUE;
+    e.theU32 = 4000000000L;
+    e.theU64 = new BigInteger("18446744073709551615");
+    e.theUtcDate = new DateTime().withMillis(-86400000L).withZone(DateTimeZone.UTC);
+    e.theUtf8SmallString = "kazuki \u00e9t\u00e9";
+    e.theUtf8Text = "";
+    e.theArray = ImmutableList.of(1, "two");
+    e.theMap = ImmutableMap.of("three", 3);
+    e.theAny = "any";
+
+    SchemaSmileCodec smileCodec = SchemaSmileCodec.forSchema(SCHEMA);
+    BinaryRowCodec codec = BinaryRowCodec.forSchema(SCHEMA);
+
+    Map<String, Object> packed = smileCodec.pack(e);
+    Map<String, Object> decoded = codec.decodePacked(codec.encode(packed));
+
+    Assert.assertEquals(decoded.keySet(), packed.keySet());
+    Assert.assertEquals(decoded.get("theU64"), e.theU64);
+    Assert.assertEquals(EncodingHelper.asJsonMap(smileCodec.bind(decoded, Everything.class)),
+        EncodingHelper.asJsonMap(e));
+  }
+
+  public void testNullsAndExtras() throws Exception {
+    BinaryRowCodec codec = BinaryRowCodec.forSchema(SCHEMA);
+
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("theEnum", 0);
+    packed.put("theUtf8Text", null);
+    packed.put("notInSchema", ImmutableMap.of("nested", "extra"));
+
+    Map<String, Object> decoded = codec.decodePacked(codec.encode(packed));
+
+    Assert.assertEquals(decoded, packed);
+    Assert.assertTrue(decoded.containsKey("theUtf8Text"));
+    Assert.assertFalse(decoded.containsKey("theU8"));
+  }
+
+  public void testDecodeFields() throws Exception {
+    BinaryRowCodec codec = BinaryRowCodec.forSchema(SCHEMA);
+
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("theEnum", 2);
+    packed.put("theMap", ImmutableMap.of("three", 3));
+    packed.put("theU16", 1234L);
+    packed.put("theUtf8Text", null);
+    packed.put("notInSchema", "extra");
+
+    byte[] encoded = codec.encode(packed);
+
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("theU16")),
+        ImmutableMap.<String, Object>of("theU16", 1234L));
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("theU8", "theUtf8Text")),
+        Collections.singletonMap("theUtf8Text", null));
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("notInSchema", "theEnum")),
+        ImmutableMap.<String, Object>of("theEnum", 2, "notInSchema", "extra"));
+  }
+
+  public void testDictionary() throws Exception {
+    Schema schema =
+        new Schema.Builder().addAttribute("country", Type.UTF8_SMALLSTRING, true, true)
+            .addAttribute("name", Type.UTF8_SMALLSTRING, true).build();
+    BinaryRowCodec codec = BinaryRowCodec.forSchema(schema);
+    MapDictionary dictionary = new MapDictionary();
+
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("country", "Switzerland");
+    packed.put("name", "Switzerland");
+
+    byte[] coded = codec.encode(packed, dictionary);
+    byte[] inline = codec.encode(packed);
+    Map<String, Object> decoded = codec.decodePacked(coded, dictionary);
+
+    Assert.assertEquals(coded.length, inline.length - "Switzerland".length());
+    Assert.assertEquals(decoded, packed);
+    Assert.assertSame(decoded.get("country"), dictionary.values.get(0));
+    Assert.assertEquals(codec.decodePacked(inline, dictionary), packed);
+    Assert.assertEquals(codec.decodeFields(coded, ImmutableList.of("name"), dictionary),
+        ImmutableMap.<String, Object>of("name", "Switzerland"));
+  }
+
+  public void testUntaggedRows() throws Exception {
+    Schema schema = new Schema.Builder().addAttribute("name", Type.UTF8_SMALLSTRING, true).build();
+    byte[] version1 = new byte[] {1, 1, 1, 0, 2, 'k', 'z', 0};
+
+    Assert.assertEquals(BinaryRowCodec.forSchema(schema).decodePacked(version1),
+        ImmutableMap.<String, Object>of("name", "kz"));
+  }
+
+  @Test(expectedExceptions = KazukiException.class)
+  public void testTruncated() throws Exception {
+    BinaryRowCodec codec = BinaryRowCodec.forSchema(SCHEMA);
+    byte[] encoded = codec.encode(ImmutableMap.<String, Object>of("theUtf8Text", "truncated"));
+    byte[] truncated = new byte[encoded.length - 4];
+
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+
+    codec.decodePacked(truncated);
+  }
+
+  private static class MapDictionary implements StringDictionary {
+    private final List<String> values = new ArrayList<String>();
+
+    @Override
+    public long encode(String value) {
+      int code = values.indexOf(value);
+
+      if (code < 0) {
+        values.add(value);
+        code = values.size() - 1;
+      }
+
+      return code;
+    }
+
+    @Override
+    public String decode(long code) {
+      return values.get((int) code);
+    }
+  }
+}
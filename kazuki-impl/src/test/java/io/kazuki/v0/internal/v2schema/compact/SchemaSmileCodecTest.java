@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.compact;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.Everything;
+import io.kazuki.v0.store.Everything.TestEnum;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+@Test
+public class SchemaSmileCodecTest {
+  Schema SCHEMA = Everything.EVERYTHING_SCHEMA;
+
+  @SuppressWarnings("unchecked")
+  public void testMatchesTransforms() throws Exception {
+    Everything e = new Everything();
+    e.theEnum = TestEnum.THREE;
+    e.theBoolean = true;
+    e.theCharOne = 'k';
+    e.theI64 = -42L;
+    e.theU32 = 4000000000L;
+    e.theUtcDate = new DateTime().withMillis(0L).withZone(DateTimeZone.UTC);
+    e.theUtf8SmallString = "kazuki";
+    e.theArray = ImmutableList.of(1, "two");
+    e.theMap = ImmutableMap.of("three", 3);
+
+    Map<String, Object> withExtra = new LinkedHashMap<String, Object>(EncodingHelper.asJsonMap(e));
+    withExtra.put("notInSchema", "extra");
+
+    FieldTransform fieldTransform = new FieldTransform(SCHEMA);
+    StructureTransform structureTransform = new StructureTransform(SCHEMA);
+    SchemaSmileCodec codec = SchemaSmileCodec.forSchema(SCHEMA);
+
+    for (Object instance : new Object[] {e, withExtra}) {
+      Map<String, Object> packed = fieldTransform.pack(EncodingHelper.asJsonMap(instance));
+      byte[] expected = EncodingHelper.convertValueToSmile(structureTransform.pack(packed));
+
+      Assert.assertEquals(codec.pack(instance), packed);
+
+      byte[] encoded = codec.encode(codec.pack(instance));
+      Assert.assertEquals(encoded, expected);
+
+      Map<String, Object> stored =
+          structureTransform.unpack((List<Object>) EncodingHelper.parseSmile(encoded,
+              Object.class));
+
+      Assert.assertEquals(codec.decodePacked(encoded), stored);
+      Assert.assertEquals(codec.decode(encoded, LinkedHashMap.class),
+          fieldTransform.unpack(stored));
+
+      if (instance == e) {
+        Assert.assertEquals(EncodingHelper.asJsonMap(codec.decode(encoded, Everything.class)),
+            EncodingHelper.asJsonMap(EncodingHelper.asValue(fieldTransform.unpack(stored),
+                Everything.class)));
+      }
+    }
+  }
+
+  public void testExtraFieldsOnPojoDecode() throws Exception {
+    Everything e = new Everything();
+    e.theEnum = TestEnum.ONE;
+
+    Map<String, Object> withExtra = new LinkedHashMap<String, Object>(EncodingHelper.asJsonMap(e));
+    withExtra.put("notInSchema", "extra");
+
+    SchemaSmileCodec codec = SchemaSmileCodec.forSchema(SCHEMA);
+    byte[] encoded = codec.encode(codec.pack(withExtra));
+
+    // as with plain Jackson binding, a property the class doesn't declare is an error
+    try {
+      codec.decode(encoded, Everything.class);
+      Assert.fail("expected KazukiException");
+    } catch (KazukiException expected) {
+      Assert.assertTrue(expected.getMessage().contains("notInSchema"), expected.getMessage());
+    }
+
+    try {
+      codec.bind(codec.decodePacked(encoded), Everything.class);
+      Assert.fail("expected KazukiException");
+    } catch (KazukiException expected) {
+      Assert.assertTrue(expected.getMessage().contains("notInSchema"), expected.getMessage());
+    }
+
+    // maps keep them
+    Assert.assertEquals(codec.decode(encoded, LinkedHashMap.class).get("notInSchema"), "extra");
+  }
+
+  public void testLegacyValues() throws Exception {
+    // values stored without structure compaction decode as-is
+    Map<String, Object> plain = ImmutableMap.<String, Object>of("theEnum", "ONE");
+    byte[] encoded = EncodingHelper.convertToSmile(plain);
+
+    SchemaSmileCodec codec = SchemaSmileCodec.forSchema(SCHEMA);
+
+    Assert.assertEquals(codec.decodePacked(encoded), plain);
+    Assert.assertEquals(codec.decode(encoded, Everything.class).theEnum, TestEnum.ONE);
+  }
+
+  public void testDecodeFields() throws Exception {
+    Everything e = new Everything();
+    e.theEnum = TestEnum.TWO;
+    e.theMap = ImmutableMap.of("three", 3);
+    e.theU16 = 1234L;
+
+    Map<String, Object> withExtra = new LinkedHashMap<String, Object>(EncodingHelper.asJsonMap(e));
+    withExtra.put("notInSchema", "extra");
+
+    SchemaSmileCodec codec = SchemaSmileCodec.forSchema(SCHEMA);
+    byte[] encoded = codec.encode(codec.pack(withExtra));
+
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("theU16")),
+        ImmutableMap.<String, Object>of("theU16", 1234L));
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("theU8")),
+        Collections.singletonMap("theU8", null));
+    Assert.assertEquals(codec.decodeFields(encoded, ImmutableList.of("notInSchema", "theEnum")),
+        ImmutableMap.<String, Object>of("theEnum", "TWO", "notInSchema", "extra"));
+  }
+
+  @Test(expectedExceptions = TransformException.class)
+  public void testRequiredAttribute() throws Exception {
+    SchemaSmileCodec.forSchema(SCHEMA).pack(new Everything());
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.internal.v2schema.types;
+
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.math.BigInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class IntegerTransformTest {
+  IntegerTransform U8 = new IntegerTransform("0", "255");
+  IntegerTransform U64 = new IntegerTransform("0", "18446744073709551615");
+  IntegerTransform I64 = new IntegerTransform(Long.toString(Long.MIN_VALUE),
+      Long.toString(Long.MAX_VALUE));
+
+  public void testPack() throws Exception {
+    for (Object instance : new Object[] {(byte) 7, (short) 7, 7, 7L, "7", BigInteger.valueOf(7L)}) {
+      Assert.assertEquals(U8.pack(instance), 7L);
+    }
+
+    Assert.assertEquals(U8.pack(255), 255L);
+    Assert.assertEquals(I64.pack(Long.MIN_VALUE), Long.MIN_VALUE);
+    Assert.assertEquals(I64.pack(BigInteger.valueOf(Long.MIN_VALUE)), Long.MIN_VALUE);
+    Assert.assertEquals(U64.pack(Long.MAX_VALUE), Long.MAX_VALUE);
+    Assert.assertEquals(U64.pack("9223372036854775807"), Long.MAX_VALUE);
+    Assert.assertEquals(U64.pack("18446744073709551615"), new BigInteger("18446744073709551615"));
+  }
+
+  public void testPackOutOfRange() throws Exception {
+    assertInvalid(U8, 256);
+    assertInvalid(U8, -1L);
+    assertInvalid(U8, "256");
+    assertInvalid(U64, -1);
+    assertInvalid(U64, new BigInteger("18446744073709551616"));
+    assertInvalid(I64, new BigInteger("9223372036854775808"));
+    assertInvalid(I64, "1.5");
+    assertInvalid(I64, 1.5d);
+  }
+
+  public void testUnpack() throws Exception {
+    Assert.assertEquals(U8.unpack(7), 7L);
+    Assert.assertEquals(U8.unpack(BigInteger.valueOf(7L)), 7L);
+    Assert.assertEquals(I64.unpack(Long.MIN_VALUE), Long.MIN_VALUE);
+    Assert.assertEquals(U64.unpack(new BigInteger("18446744073709551615")), new BigInteger(
+        "18446744073709551615"));
+  }
+
+  private static void assertInvalid(IntegerTransform transform, Object instance) {
+    try {
+      transform.pack(instance);
+      Assert.fail("expected TransformException for " + instance);
+    } catch (TransformException expected) {
+      // expected
+    }
+  }
+}
@@ -77,6 +77,11 @@ public class Everything {
 
     indexDefs.add(new IndexDefinition("theEnum", ImmutableList.of(new IndexAttribute("theEnum",
         SortDirection.ASCENDING, AttributeTransform.NONE)), false, null));
+    indexDefs.add(new IndexDefinition("theEnumI64", ImmutableList.of(new IndexAttribute(
+        "theEnum", SortDirection.ASCENDING, AttributeTransform.NONE), new IndexAttribute("theI64",
+        SortDirection.ASCENDING, AttributeTransform.NONE)), false, null));
+    indexDefs.add(new IndexDefinition("theSmallStringLower", ImmutableList.of(new IndexAttribute(
+        "theUtf8SmallString", SortDirection.ASCENDING, AttributeTransform.LOWERCASE)), false, null));
 
     EVERYTHING_SCHEMA =
         new Schema(Collections.unmodifiableList(attrs), Collections.unmodifiableList(indexDefs));
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.aggregate;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.TestSupport;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.AggregationDefinition.Function;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+@Test
+public class MaterializedAggregationStoreTest extends TestSupport {
+  private final Schema schema = new Schema.Builder()
+      .addAttribute("city", Attribute.Type.UTF8_SMALLSTRING, true)
+      .addAttribute("age", Attribute.Type.I32, true)
+      .addAggregation("countByCity", Function.COUNT, ImmutableList.of("city"), null).build();
+
+  private final Injector inject = Guice.createInjector(new KazukiModule.Builder("foo")
+      .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+      .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+      .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo").build())
+      .build());
+
+  private final Lifecycle lifecycle = inject.getInstance(com.google.inject.Key.get(
+      Lifecycle.class, Names.named("foo")));
+
+  private final KeyValueStore store = inject.getInstance(com.google.inject.Key.get(
+      KeyValueStore.class, Names.named("foo")));
+
+  private final SchemaStore manager = inject.getInstance(com.google.inject.Key.get(
+      SchemaStore.class, Names.named("foo")));
+
+  private final MaterializedAggregationStore aggregations = inject.getInstance(com.google.inject.Key
+      .get(MaterializedAggregationStore.class, Names.named("foo")));
+
+  public void testRestart() throws Exception {
+    lifecycle.init();
+    lifecycle.start();
+
+    store.clear(false, false);
+    manager.createSchema("person", schema);
+    store.create("person", LinkedHashMap.class, person("Boston"), TypeValidation.STRICT);
+
+    lifecycle.stop();
+    lifecycle.shutdown();
+    lifecycle.init();
+    lifecycle.start();
+
+    store.create("person", LinkedHashMap.class, person("Boston"), TypeValidation.STRICT);
+    Assert.assertEquals(aggregations.getValue("person", "countByCity", "Boston"),
+        BigInteger.valueOf(2));
+
+    store.clear(false, false);
+    lifecycle.stop();
+    lifecycle.shutdown();
+  }
+
+  public void testRolledBackWrites() throws Exception {
+    lifecycle.init();
+    lifecycle.start();
+
+    store.clear(false, false);
+    manager.createSchema("person", schema);
+    store.create("person", LinkedHashMap.class, person("Boston"), TypeValidation.STRICT);
+
+    ((KeyValueStoreRegistration) store).addListener(new FailingListener());
+
+    try {
+      store.create("person", LinkedHashMap.class, person("fail"), TypeValidation.STRICT);
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    Assert.assertEquals(aggregations.getValue("person", "countByCity", "Boston"), BigInteger.ONE);
+    Assert.assertEquals(aggregations.getValue("person", "countByCity", "fail"), BigInteger.ZERO);
+
+    store.clear(false, false);
+    lifecycle.stop();
+    lifecycle.shutdown();
+  }
+
+  private static LinkedHashMap<String, Object> person(String city) {
+    LinkedHashMap<String, Object> person = new LinkedHashMap<String, Object>();
+    person.put("city", city);
+    person.put("age", 30);
+
+    return person;
+  }
+
+  private static class FailingListener implements KeyValueStoreListener {
+    @Override
+    public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) {}
+
+    @Override
+    public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+      if ("fail".equals(instance.get("city"))) {
+        throw new KazukiException("failed write");
+      }
+    }
+
+    @Override
+    public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> newInstance,
+        Map<String, Object> oldInstance) {}
+
+    @Override
+    public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> oldInstance) {}
+
+    @Override
+    public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {}
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.aggregate;
+
+import io.kazuki.v0.store.schema.model.AggregationDefinition;
+import io.kazuki.v0.store.schema.model.AggregationDefinition.Function;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+@Test
+public class MaterializedAggregationTest {
+  private final AggregationDefinition countByCity = new AggregationDefinition("countByCity",
+      Function.COUNT, ImmutableList.of("city"), null);
+
+  private final AggregationDefinition sumAgeByCity = new AggregationDefinition("sumAgeByCity",
+      Function.SUM, ImmutableList.of("city"), "age");
+
+  public void testCount() {
+    MaterializedAggregation agg = new MaterializedAggregation(countByCity);
+
+    agg.insert(entity(30, "Boston"));
+    agg.insert(entity(40, "Boston"));
+    agg.insert(entity(50, "Denver"));
+    agg.insert(entity(60, null));
+
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.valueOf(2));
+    Assert.assertEquals(agg.getValue(key("Denver")), BigInteger.ONE);
+    Assert.assertEquals(agg.getValue(key((Object) null)), BigInteger.ONE);
+    Assert.assertEquals(agg.getValue(key("Austin")), BigInteger.ZERO);
+
+    agg.update(entity(40, "Denver"), entity(40, "Boston"));
+
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.ONE);
+    Assert.assertEquals(agg.getValue(key("Denver")), BigInteger.valueOf(2));
+
+    agg.delete(entity(30, "Boston"));
+
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.ZERO);
+    Assert.assertFalse(agg.getValues().containsKey(key("Boston")));
+    Assert.assertEquals(agg.getValues().size(), 2);
+  }
+
+  public void testSum() {
+    MaterializedAggregation agg = new MaterializedAggregation(sumAgeByCity);
+
+    agg.insert(entity(30, "Boston"));
+    agg.insert(entity(40, "Boston"));
+    agg.insert(entity(null, "Boston"));
+
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.valueOf(70));
+
+    agg.update(entity(45, "Boston"), entity(40, "Boston"));
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.valueOf(75));
+
+    agg.update(entity(45, "Boston"), entity(null, "Boston"));
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.valueOf(120));
+
+    agg.delete(entity(null, "Boston"));
+    Assert.assertEquals(agg.getValue(key("Boston")), BigInteger.valueOf(120));
+  }
+
+  public void testDirtyTracking() {
+    MaterializedAggregation agg = new MaterializedAggregation(countByCity);
+
+    agg.load(key("Boston"), BigInteger.TEN);
+    Assert.assertEquals(agg.getDirtyCount(), 0);
+
+    agg.insert(entity(30, "Boston"));
+    agg.insert(entity(30, "Denver"));
+    agg.insert(entity(31, "Denver"));
+    Assert.assertEquals(agg.getDirtyCount(), 2);
+
+    List<String> drained = agg.drainDirty();
+    Collections.sort(drained);
+    Assert.assertEquals(drained, ImmutableList.of(key("Boston"), key("Denver")));
+    Assert.assertEquals(agg.getDirtyCount(), 0);
+
+    agg.update(entity(35, "Boston"), entity(30, "Boston"));
+    Assert.assertEquals(agg.getDirtyCount(), 0);
+
+    agg.clear();
+    Assert.assertEquals(agg.getDirtyCount(), 2);
+    Assert.assertTrue(agg.getValues().isEmpty());
+  }
+
+  public void testGroupKeyEncoding() {
+    Assert.assertEquals(MaterializedAggregation.encodeGroupKey(ImmutableList.of(7)),
+        MaterializedAggregation.encodeGroupKey(ImmutableList.of(BigInteger.valueOf(7L))));
+
+    String encoded =
+        MaterializedAggregation.encodeGroupKey(Arrays.asList("x", null, true, 3L));
+    Assert.assertEquals(MaterializedAggregation.decodeGroupKey(encoded).size(), 4);
+    Assert.assertEquals(MaterializedAggregation.decodeGroupKey(encoded).get(0), "x");
+    Assert.assertNull(MaterializedAggregation.decodeGroupKey(encoded).get(1));
+  }
+
+  public void testSchemaValidation() {
+    List<Attribute> attributes =
+        ImmutableList.of(new Attribute("age", Attribute.Type.I32, null, true, null), new Attribute(
+            "city", Attribute.Type.UTF8_SMALLSTRING, null, true, null));
+
+    Schema schema =
+        new Schema(attributes, ImmutableList.<IndexDefinition>of(), ImmutableList.of(countByCity,
+            sumAgeByCity));
+    Assert.assertEquals(schema.getAggregation("sumAgeByCity"), sumAgeByCity);
+
+    try {
+      new Schema(attributes, ImmutableList.<IndexDefinition>of(),
+          ImmutableList.of(new AggregationDefinition("sumCity", Function.SUM, ImmutableList
+              .<String>of(), "city")));
+      Assert.fail("expected exception");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static Map<String, Object> entity(Integer age, String city) {
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("age", (age == null) ? null : BigInteger.valueOf(age));
+    packed.put("city", city);
+
+    return packed;
+  }
+
+  private static String key(Object... values) {
+    return MaterializedAggregation.encodeGroupKey(Arrays.asList(values));
+  }
+}
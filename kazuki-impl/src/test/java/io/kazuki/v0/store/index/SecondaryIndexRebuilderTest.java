@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.H2TypeHelper;
+import io.kazuki.v0.internal.helper.JDBIHelper;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.SecondaryIndexRebuilder.KeyRange;
+import io.kazuki.v0.store.index.SecondaryIndexRebuilder.Progress;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
+import io.kazuki.v0.store.keyvalue.StringDictionaries;
+import io.kazuki.v0.store.keyvalue.ValueCompression;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+@Test
+public class SecondaryIndexRebuilderTest {
+  public void testPartitionEmpty() {
+    Assert.assertTrue(SecondaryIndexRebuilder.partition(10L, 9L, 100L).isEmpty());
+  }
+
+  public void testPartitionSingle() {
+    List<KeyRange> chunks = SecondaryIndexRebuilder.partition(5L, 5L, 100L);
+
+    Assert.assertEquals(chunks.size(), 1);
+    Assert.assertEquals(chunks.get(0), new KeyRange(5L, 5L));
+  }
+
+  public void testPartitionExact() {
+    List<KeyRange> chunks = SecondaryIndexRebuilder.partition(1L, 300L, 100L);
+
+    Assert.assertEquals(chunks.size(), 3);
+    Assert.assertEquals(chunks.get(0), new KeyRange(1L, 100L));
+    Assert.assertEquals(chunks.get(1), new KeyRange(101L, 200L));
+    Assert.assertEquals(chunks.get(2), new KeyRange(201L, 300L));
+  }
+
+  public void testPartitionRemainder() {
+    List<KeyRange> chunks = SecondaryIndexRebuilder.partition(1L, 250L, 100L);
+
+    Assert.assertEquals(chunks.size(), 3);
+    Assert.assertEquals(chunks.get(2), new KeyRange(201L, 250L));
+  }
+
+  public void testPartitionNearMaxValue() {
+    List<KeyRange> chunks =
+        SecondaryIndexRebuilder.partition(Long.MAX_VALUE - 150L, Long.MAX_VALUE, 100L);
+
+    Assert.assertEquals(chunks.size(), 2);
+    Assert.assertEquals(chunks.get(1), new KeyRange(Long.MAX_VALUE - 50L, Long.MAX_VALUE));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testPartitionInvalidChunkSize() {
+    SecondaryIndexRebuilder.partition(1L, 10L, 0L);
+  }
+
+  public void testParallelRebuildMatchesIncrementalIndexes() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build()).build());
+
+    Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+    SequenceService sequence =
+        inject.getInstance(com.google.inject.Key.get(SequenceService.class, Names.named("foo")));
+    DataSource dataSource =
+        inject.getInstance(com.google.inject.Key.get(DataSource.class, Names.named("foo")));
+
+    // maintains the live index tables
+    Assert.assertTrue(inject.getInstance(com.google.inject.Key.get(SecondaryIndexStore.class,
+        Names.named("foo"))) instanceof SecondaryIndexStoreJdbiImpl);
+
+    lifecycle.init();
+    lifecycle.start();
+
+    String type = "rebuilt";
+    Schema schema =
+        new Schema(Foo.FOO_SCHEMA.getAttributes(), ImmutableList.<IndexDefinition>builder()
+            .addAll(Foo.FOO_SCHEMA.getIndexes())
+            .add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute("fooValue",
+                SortDirection.DESCENDING, AttributeTransform.LOWERCASE)), false, null)).build());
+
+    manager.createSchema(type, schema);
+
+    // the live index tables are maintained incrementally through creates, updates and deletes
+    List<Key> keys = new ArrayList<Key>();
+
+    for (int i = 0; i < 300; i++) {
+      keys.add(store.create(type, Foo.class, new Foo("k" + (i % 10), "V" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    for (int i = 0; i < keys.size(); i += 7) {
+      store.update(keys.get(i), Foo.class, new Foo("k" + (i % 3), "Updated" + i));
+    }
+
+    for (int i = 0; i < keys.size(); i += 11) {
+      store.delete(keys.get(i));
+    }
+
+    IDBI database = JDBIHelper.getDBI(KeyValueStore.class, dataSource);
+    SecondaryIndexTableHelper tableHelper =
+        new SecondaryIndexTableHelper(new H2TypeHelper(), sequence);
+    String kvTableName = KeyValueStoreJdbiBaseImpl.getTableName("foo", "foo", "default");
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      tableHelper.createIndex(database, type, indexDef.getName(), schema, "foo", "foo", "rebuilt");
+    }
+
+    // small chunks, so that several workers rebuild the type concurrently
+    SecondaryIndexRebuilder rebuilder =
+        new SecondaryIndexRebuilder(database, tableHelper, kvTableName, "foo", "foo", 4, 16L, 10,
+            new ValueCompression(sequence, tableHelper.getPrefix(), kvTableName),
+            new StringDictionaries(tableHelper.getPrefix(), kvTableName));
+    Progress progress = new Progress();
+
+    try {
+      long count =
+          rebuilder.rebuild(type, sequence.getTypeId(type, false), schema, "rebuilt", progress);
+
+      Assert.assertEquals(count, 300L - 28L);
+      Assert.assertTrue(progress.getChunksTotal() > 4, progress.toString());
+      Assert.assertEquals(progress.getChunksCompleted(), progress.getChunksTotal());
+    } finally {
+      rebuilder.shutdown();
+    }
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      List<Map<String, Object>> live =
+          rows(database, tableHelper.getTableName(type, indexDef.getName(), "foo", "foo",
+              "default"));
+      List<Map<String, Object>> rebuilt =
+          rows(database, tableHelper.getTableName(type, indexDef.getName(), "foo", "foo",
+              "rebuilt"));
+
+      Assert.assertEquals(live.size(), 300 - 28, indexDef.getName());
+      Assert.assertEquals(rebuilt, live, indexDef.getName());
+    }
+
+    lifecycle.stop();
+    lifecycle.shutdown();
+  }
+
+  private static List<Map<String, Object>> rows(IDBI database, String tableName) {
+    Handle handle = database.open();
+
+    try {
+      return handle.createQuery("select * from " + tableName + " order by \"_id\"").list();
+    } finally {
+      handle.close();
+    }
+  }
+}
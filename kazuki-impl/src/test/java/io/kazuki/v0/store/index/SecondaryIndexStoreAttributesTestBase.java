@@ -21,6 +21,7 @@ import io.kazuki.v0.store.Everything.TestEnum;
 import io.kazuki.v0.store.Key;
 import io.kazuki.v0.store.index.query.QueryBuilder;
 import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
 import io.kazuki.v0.store.index.query.ValueType;
 import io.kazuki.v0.store.keyvalue.KeyValueIterator;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
@@ -28,15 +29,39 @@ import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.lifecycle.Lifecycle;
 import io.kazuki.v0.store.schema.SchemaStore;
 import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
 import io.kazuki.v0.store.schema.model.Schema;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Injector;
 import com.google.inject.name.Names;
 
 public abstract class SecondaryIndexStoreAttributesTestBase extends TestSupport {
+  /** The Everything schema plus a partial index and an async index over theI64 */
+  private static final Schema PARTIAL_AND_ASYNC_SCHEMA;
+
+  static {
+    List<IndexDefinition> indexDefs =
+        new ArrayList<IndexDefinition>(Everything.EVERYTHING_SCHEMA.getIndexes());
+
+    indexDefs.add(new IndexDefinition("theI64Four", ImmutableList.of(new IndexAttribute("theI64",
+        SortDirection.ASCENDING, AttributeTransform.NONE)), false, null, "theEnum eq \"FOUR\""));
+    indexDefs.add(new IndexDefinition("theI64Async", ImmutableList.of(new IndexAttribute("theI64",
+        SortDirection.ASCENDING, AttributeTransform.NONE)), false, null, null, true));
+
+    PARTIAL_AND_ASYNC_SCHEMA = new Schema(Everything.EVERYTHING_SCHEMA.getAttributes(), indexDefs);
+  }
+
   protected abstract Injector getInjector();
 
   @Test
@@ -96,4 +121,258 @@ public abstract class SecondaryIndexStoreAttributesTestBase extends TestSupport
 
     store.clear(false, false);
   }
+
+  @Test
+  public void testCountAndAggregate() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    for (Long value : new Long[] {10L, 20L, 30L, null}) {
+      Everything e = new Everything();
+      e.theEnum = TestEnum.FOUR;
+      e.theI64 = value;
+
+      store.create("everything", Everything.class, e, TypeValidation.STRICT);
+    }
+
+    Everything other = new Everything();
+    other.theEnum = TestEnum.ONE;
+    other.theI64 = 5L;
+    store.create("everything", Everything.class, other, TypeValidation.STRICT);
+
+    List<QueryTerm> four =
+        new QueryBuilder().andMatchesSingle("theEnum", QueryOperator.EQ, ValueType.STRING, "FOUR")
+            .build();
+
+    Assert.assertEquals(4L, index.count("everything", "theEnumI64", four));
+    Assert.assertEquals(BigInteger.valueOf(60L),
+        index.aggregate("everything", "theEnumI64", four, AggregateFunction.SUM, "theI64"));
+    Assert.assertEquals(BigInteger.valueOf(10L),
+        index.aggregate("everything", "theEnumI64", four, AggregateFunction.MIN, "theI64"));
+    Assert.assertEquals(BigInteger.valueOf(30L),
+        index.aggregate("everything", "theEnumI64", four, AggregateFunction.MAX, "theI64"));
+
+    List<QueryTerm> none =
+        new QueryBuilder().andMatchesSingle("theEnum", QueryOperator.EQ, ValueType.STRING, "ONE")
+            .andMatchesSingle("theI64", QueryOperator.GT, ValueType.INTEGER, "5").build();
+
+    Assert.assertEquals(0L, index.count("everything", "theEnumI64", none));
+    Assert.assertEquals(BigInteger.ZERO,
+        index.aggregate("everything", "theEnumI64", none, AggregateFunction.SUM, "theI64"));
+    Assert.assertNull(index.aggregate("everything", "theEnumI64", none, AggregateFunction.MAX,
+        "theI64"));
+
+    try {
+      index.aggregate("everything", "theEnumI64", four, AggregateFunction.SUM, "theEnum");
+      Assert.fail("should reject non-integer attribute");
+    } catch (IllegalArgumentException expected) {
+      // ENUM ordinals are not aggregated
+    }
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testPartialIndex() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("everything", PARTIAL_AND_ASYNC_SCHEMA);
+
+    Key moved = null;
+
+    for (TestEnum value : new TestEnum[] {TestEnum.FOUR, TestEnum.FOUR, TestEnum.ONE}) {
+      Everything e = new Everything();
+      e.theEnum = value;
+      e.theI64 = 10L;
+
+      moved = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+    }
+
+    // "theI64Four" only holds entities matching its filter (theEnum eq "FOUR")
+    List<QueryTerm> positive =
+        new QueryBuilder().andMatchesSingle("theI64", QueryOperator.GT, ValueType.INTEGER, "0")
+            .build();
+
+    Assert.assertEquals(2L, index.count("everything", "theI64Four", positive));
+
+    Everything updated = new Everything();
+    updated.theEnum = TestEnum.FOUR;
+    updated.theI64 = 10L;
+    store.update(moved, Everything.class, updated);
+
+    Assert.assertEquals(3L, index.count("everything", "theI64Four", positive));
+
+    updated.theEnum = TestEnum.TWO;
+    store.update(moved, Everything.class, updated);
+
+    Assert.assertEquals(2L, index.count("everything", "theI64Four", positive));
+
+    store.delete(moved);
+
+    Assert.assertEquals(2L, index.count("everything", "theI64Four", positive));
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testAsyncIndex() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("everything", PARTIAL_AND_ASYNC_SCHEMA);
+
+    Key last = null;
+
+    for (long value = 1L; value <= 10L; value++) {
+      Everything e = new Everything();
+      e.theEnum = TestEnum.ONE;
+      e.theI64 = value;
+
+      last = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+    }
+
+    List<QueryTerm> aboveFive =
+        new QueryBuilder().andMatchesSingle("theI64", QueryOperator.GT, ValueType.INTEGER, "5")
+            .build();
+
+    // "theI64Async" is maintained in the background; the barrier makes our writes visible
+    Assert.assertTrue(index.awaitIndexUpdates(10L, TimeUnit.SECONDS));
+    Assert.assertEquals(0L, index.getPendingIndexUpdates());
+    Assert.assertEquals(5L, index.count("everything", "theI64Async", aboveFive));
+
+    store.delete(last);
+
+    Assert.assertTrue(index.awaitIndexUpdates(10L, TimeUnit.SECONDS));
+    Assert.assertEquals(4L, index.count("everything", "theI64Async", aboveFive));
+    Assert.assertEquals(0L, index.getIndexLagMillis());
+
+    // the background apply must resume after a restart
+    lifecycle.stop();
+    lifecycle.shutdown();
+    lifecycle.init();
+    lifecycle.start();
+
+    Everything e = new Everything();
+    e.theEnum = TestEnum.ONE;
+    e.theI64 = 11L;
+
+    store.create("everything", Everything.class, e, TypeValidation.STRICT);
+
+    Assert.assertTrue(index.awaitIndexUpdates(10L, TimeUnit.SECONDS));
+    Assert.assertEquals(5L, index.count("everything", "theI64Async", aboveFive));
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testPrefix() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    Key kazuki = null;
+
+    for (String value : new String[] {"Kazuki", "kazoo", "Karma", "other", null}) {
+      Everything e = new Everything();
+      e.theEnum = TestEnum.ONE;
+      e.theUtf8SmallString = value;
+
+      Key key = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+
+      if ("Kazuki".equals(value)) {
+        kazuki = key;
+      }
+    }
+
+    // the index lowercases values, so the prefix matches case-insensitively
+    List<QueryTerm> kaz =
+        new QueryBuilder().andMatchesSingle("theUtf8SmallString", QueryOperator.PREFIX,
+            ValueType.STRING, "KAZ").build();
+
+    Assert.assertEquals(2L, index.count("everything", "theSmallStringLower", kaz));
+
+    List<QueryTerm> kazu =
+        new QueryBuilder().andMatchesSingle("theUtf8SmallString", QueryOperator.PREFIX,
+            ValueType.STRING, "kazu").build();
+
+    try (KeyValueIterator<Key> iter =
+        index.queryWithoutPagination("everything", Everything.class, "theSmallStringLower", kazu,
+            SortDirection.ASCENDING, null, null).iterator()) {
+      Assert.assertTrue(iter.hasNext());
+      Assert.assertEquals(kazuki, iter.next());
+      Assert.assertFalse(iter.hasNext());
+    }
+
+    List<QueryTerm> nothing =
+        new QueryBuilder().andMatchesSingle("theUtf8SmallString", QueryOperator.PREFIX,
+            ValueType.STRING, "z").build();
+
+    Assert.assertEquals(0L, index.count("everything", "theSmallStringLower", nothing));
+
+    store.clear(false, false);
+  }
 }
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.QueryBuilder;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+@Test
+public class SecondaryIndexStoreBruteForceImplParallelTest extends SecondaryIndexStoreTestBase {
+  @Override
+  protected Injector getInjector() {
+    return Guice.createInjector(new KazukiModule.Builder("foo")
+        .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+        .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo")
+            .withQueryParallelism(4).build())
+        .build());
+  }
+
+  @Test
+  public void testChunkedQueries() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    // without the unique index, whose brute-force check scans the type on every create
+    manager.createSchema("foo", new Schema(Foo.FOO_SCHEMA.getAttributes(), ImmutableList.of(
+        Foo.FOO_SCHEMA.getIndex("fooKey"))));
+
+    List<Key> expected = new ArrayList<Key>();
+
+    // several chunks per worker, so matches span many chunks
+    for (int i = 0; i < 6 * SecondaryIndexStoreBruteForceImpl.PARALLEL_CHUNK_SIZE; i++) {
+      Key key =
+          store.create("foo", Foo.class, new Foo("k" + (i % 3), "v" + i), TypeValidation.STRICT)
+              .getKey();
+
+      if (i % 3 == 1) {
+        expected.add(key);
+      }
+    }
+
+    Assert.assertEquals(expected, keys(index, SortDirection.ASCENDING, null, null));
+    Assert.assertEquals(expected.subList(0, 5), keys(index, SortDirection.ASCENDING, null, 5L));
+    Assert.assertEquals(expected.subList(100, 400),
+        keys(index, SortDirection.ASCENDING, 100L, 300L));
+    Assert.assertEquals(expected.subList(450, expected.size()),
+        keys(index, SortDirection.ASCENDING, 450L, 300L));
+    Assert.assertEquals(Lists.reverse(expected).subList(10, 20),
+        keys(index, SortDirection.DESCENDING, 10L, 10L));
+
+    // the query pool is recreated on restart
+    lifecycle.stop();
+    lifecycle.shutdown();
+    lifecycle.init();
+    lifecycle.start();
+
+    Assert.assertEquals(expected.subList(100, 400),
+        keys(index, SortDirection.ASCENDING, 100L, 300L));
+
+    store.clear(false, false);
+  }
+
+  private static List<Key> keys(SecondaryIndexStore index, SortDirection sortDirection,
+      Long offset, Long limit) {
+    List<QueryTerm> query =
+        new QueryBuilder().andMatchesSingle("fooKey", QueryOperator.EQ, ValueType.STRING, "k1")
+            .build();
+
+    try (KeyValueIterator<Key> iter =
+        index.queryWithoutPagination("foo", Foo.class, "fooKey", query, sortDirection, offset,
+            limit).iterator()) {
+      return ImmutableList.copyOf(iter);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.store.Everything;
+import io.kazuki.v0.store.Everything.TestEnum;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.QueryBuilder;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+/**
+ * Runs the attribute tests with the query cache enabled, and checks that cached results are
+ * invalidated by writes.
+ */
+@Test
+public class SecondaryIndexStoreCachingAttributesTest
+    extends SecondaryIndexStoreAttributesTestBase {
+  @Override
+  protected Injector getInjector() {
+    return Guice.createInjector(new KazukiModule.Builder("foo")
+        .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+        .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo",
+            Configurations.getKeyValue("foo", "foo").withQueryCacheSize(1000L).build()).build());
+  }
+
+  @Test
+  public void testQueryCache() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Assert.assertTrue(index instanceof CachingSecondaryIndexStore);
+    CachingSecondaryIndexStore cache = (CachingSecondaryIndexStore) index;
+
+    manager.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    Everything e = new Everything();
+    e.theEnum = TestEnum.FOUR;
+    Key k0 = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+
+    List<QueryTerm> four =
+        new QueryBuilder().andMatchesSingle("theEnum", QueryOperator.EQ, ValueType.STRING, "FOUR")
+            .build();
+
+    Assert.assertEquals(ImmutableList.of(k0), query(index, four));
+    Assert.assertEquals(ImmutableList.of(k0), query(index, four));
+    Assert.assertEquals(1L, cache.getStats().hitCount());
+
+    Key k1 = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+
+    Assert.assertEquals(ImmutableList.of(k0, k1), query(index, four));
+
+    e.theEnum = TestEnum.ONE;
+    store.update(k0, Everything.class, e);
+
+    Assert.assertEquals(ImmutableList.of(k1), query(index, four));
+
+    store.delete(k1);
+
+    Assert.assertEquals(ImmutableList.<Key>of(), query(index, four));
+    Assert.assertEquals(1L, cache.getStats().hitCount());
+
+    // unbounded queries bypass the cache
+    index.queryWithoutPagination("everything", Everything.class, "theEnum", four,
+        SortDirection.ASCENDING, null, null).close();
+    Assert.assertEquals(5L, cache.getStats().requestCount());
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testQueryCacheOfSchemaFromBeforeStart() throws Exception {
+    Injector inject = getInjector();
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    LockManager lockManager =
+        inject.getInstance(com.google.inject.Key.get(LockManager.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    Everything e = new Everything();
+    e.theEnum = TestEnum.FOUR;
+    Key k0 = store.create("everything", Everything.class, e, TypeValidation.STRICT).getKey();
+
+    // a cache that saw no hooks for the type, as after a restart
+    CachingSecondaryIndexStore cache =
+        new CachingSecondaryIndexStore(((CachingSecondaryIndexStore) index).getDelegate(),
+            lockManager, store, manager, 1000L);
+
+    List<QueryTerm> four =
+        new QueryBuilder().andMatchesSingle("theEnum", QueryOperator.EQ, ValueType.STRING, "FOUR")
+            .build();
+
+    Assert.assertEquals(ImmutableList.of(k0), query(cache, four));
+    Assert.assertEquals(ImmutableList.of(k0), query(cache, four));
+    Assert.assertEquals(1L, cache.getStats().hitCount());
+
+    store.clear(false, false);
+  }
+
+  private static List<Key> query(SecondaryIndexStore index, List<QueryTerm> query) {
+    try (KeyValueIterable<Key> keys =
+        index.queryWithoutPagination("everything", Everything.class, "theEnum", query,
+            SortDirection.ASCENDING, null, 10L)) {
+      return ImmutableList.copyOf(keys);
+    }
+  }
+}
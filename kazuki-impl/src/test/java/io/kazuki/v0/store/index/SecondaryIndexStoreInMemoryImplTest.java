@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index;
+
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.QueryBuilder;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+@Test
+public class SecondaryIndexStoreInMemoryImplTest extends SecondaryIndexStoreTestBase {
+  @Override
+  protected Injector getInjector() {
+    return Guice.createInjector(new KazukiModule.Builder("foo")
+        .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+        .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo")
+            .withInMemoryIndex(true).build())
+        .build());
+  }
+
+  public void testRolledBackWrites() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+    SecondaryIndexStore index =
+        inject
+            .getInstance(com.google.inject.Key.get(SecondaryIndexStore.class, Names.named("foo")));
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    Key k0 = store.create("foo", Foo.class, new Foo("k00", "v00"), TypeValidation.STRICT).getKey();
+
+    // fails every write of "fail" after the index listener has seen it
+    ((KeyValueStoreRegistration) store).addListener(new FailingListener());
+
+    try {
+      store.create("foo", Foo.class, new Foo("k00", "fail"), TypeValidation.STRICT);
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    try {
+      store.update(k0, Foo.class, new Foo("k11", "fail"));
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    Assert.assertEquals(query(index, "k00"), ImmutableList.of(k0));
+    Assert.assertEquals(query(index, "k11"), ImmutableList.of());
+
+    // the unique index must not hold the rolled back entity either
+    store.create("foo", Foo.class, new Foo("k00", "v11"), TypeValidation.STRICT);
+
+    Assert.assertEquals(query(index, "k00").size(), 2);
+
+    store.clear(false, false);
+    lifecycle.stop();
+    lifecycle.shutdown();
+  }
+
+  private static List<Key> query(SecondaryIndexStore index, String fooKey) {
+    return Lists.newArrayList(index.queryWithoutPagination("foo", Foo.class, "fooKey",
+        new QueryBuilder().andMatchesSingle("fooKey", QueryOperator.EQ, ValueType.STRING, fooKey)
+            .build(), SortDirection.ASCENDING, null, null));
+  }
+
+  private static class FailingListener implements KeyValueStoreListener {
+    @Override
+    public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) {}
+
+    @Override
+    public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+      fail(instance);
+    }
+
+    @Override
+    public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance)
+        throws KazukiException {
+      fail(newInstance);
+    }
+
+    @Override
+    public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> oldInstance) {}
+
+    @Override
+    public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {}
+
+    private static void fail(Map<String, Object> instance) throws KazukiException {
+      if ("fail".equals(instance.get("fooValue"))) {
+        throw new KazukiException("failed write");
+      }
+    }
+  }
+}
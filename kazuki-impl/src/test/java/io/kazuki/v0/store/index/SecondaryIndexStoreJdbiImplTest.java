@@ -17,12 +17,46 @@ package io.kazuki.v0.store.index;
 
 
 import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.H2TypeHelper;
+import io.kazuki.v0.internal.helper.JDBIHelper;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.Version;
 import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.QueryBuilder;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.SequenceService;
 
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.name.Names;
 
 @Test
 public class SecondaryIndexStoreJdbiImplTest extends SecondaryIndexStoreTestBase {
@@ -34,4 +68,310 @@ public class SecondaryIndexStoreJdbiImplTest extends SecondaryIndexStoreTestBase
         .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo").build())
         .build());
   }
+
+  @Test
+  public void testOnlineBackfill() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build()).build());
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(com.google.inject.Key.get(
+            SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    // enough rows for several rate-limited backfill batches
+    int count = 4 * SecondaryIndexStoreJdbiImpl.BACKFILL_BATCH_SIZE;
+
+    for (int i = 0; i < count; i++) {
+      store.create("foo", Foo.class, new Foo("k" + (i % 10), "v" + i), TypeValidation.STRICT);
+    }
+
+    // appends an attribute, so existing rows are decoded with the new structure
+    Schema newSchema =
+        new Schema(ImmutableList.<Attribute>builder().addAll(Foo.FOO_SCHEMA.getAttributes())
+            .add(new Attribute("fooRank", Attribute.Type.I32, null, true, null)).build(),
+            ImmutableList.<IndexDefinition>builder().addAll(Foo.FOO_SCHEMA.getIndexes())
+                .add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute(
+                    "fooValue", SortDirection.ASCENDING, AttributeTransform.NONE)), false, null))
+                .build());
+
+    manager.updateSchema("foo", version, newSchema);
+
+    Assert.assertTrue(index.isRebuilding("foo"));
+
+    // the live indexes keep serving queries and enforcing uniqueness meanwhile
+    Assert.assertEquals(count / 10, keys(index, "fooKey", "fooKey", "k3").size());
+
+    try {
+      store.create("foo", Foo.class, new Foo("k3", "v3"), TypeValidation.STRICT);
+      Assert.fail("should be uniqueness failure");
+    } catch (KazukiException expected) {
+      // still enforced
+    }
+
+    Key during =
+        store.create("foo", Foo.class, new Foo("k3", "during"), TypeValidation.STRICT).getKey();
+
+    Assert.assertEquals(count / 10 + 1, keys(index, "fooKey", "fooKey", "k3").size());
+
+    long deadline = System.currentTimeMillis() + 30000L;
+
+    while (index.isRebuilding("foo")) {
+      Assert.assertTrue("backfill did not complete", System.currentTimeMillis() < deadline);
+      Thread.sleep(50L);
+    }
+
+    // the new index covers the rows that existed before and the ones written during the backfill
+    Assert.assertEquals(ImmutableList.of(during), keys(index, "fooValue", "fooValue", "during"));
+    Assert.assertEquals(1, keys(index, "fooValue", "fooValue", "v1234").size());
+    Assert.assertEquals(count / 10 + 1, keys(index, "fooKey", "fooKey", "k3").size());
+
+    try {
+      store.create("foo", Foo.class, new Foo("k3", "during"), TypeValidation.STRICT);
+      Assert.fail("should be uniqueness failure");
+    } catch (KazukiException expected) {
+      // enforced with the swapped tables too
+    }
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testClearDuringBackfill() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build()).build());
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    final SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(com.google.inject.Key.get(
+            SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    DataSource dataSource =
+        inject.getInstance(com.google.inject.Key.get(DataSource.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    for (int i = 0; i < 4 * SecondaryIndexStoreJdbiImpl.BACKFILL_BATCH_SIZE; i++) {
+      store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    final Schema newSchema =
+        new Schema(Foo.FOO_SCHEMA.getAttributes(), ImmutableList.<IndexDefinition>builder()
+            .addAll(Foo.FOO_SCHEMA.getIndexes())
+            .add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute("fooValue",
+                SortDirection.ASCENDING, AttributeTransform.NONE)), false, null)).build());
+
+    manager.updateSchema("foo", version, newSchema);
+
+    Assert.assertTrue(index.isRebuilding("foo"));
+
+    JDBIHelper.getDBI(KeyValueStore.class, dataSource).inTransaction(
+        new TransactionCallback<Void>() {
+          @Override
+          public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+            index.clear(handle, ImmutableMap.of("foo", newSchema), true);
+
+            return null;
+          }
+        });
+
+    Assert.assertFalse(index.isRebuilding("foo"));
+
+    // the live tables now have the shape of the schema held by the schema store
+    Assert.assertEquals(0, keys(index, "fooValue", "fooValue", "v1").size());
+
+    Key created =
+        store.create("foo", Foo.class, new Foo("fresh", "fresh"), TypeValidation.STRICT).getKey();
+
+    Assert.assertEquals(ImmutableList.of(created), keys(index, "fooValue", "fooValue", "fresh"));
+    Assert.assertEquals(ImmutableList.of(created), keys(index, "fooKey", "fooKey", "fresh"));
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testRebuildIndexes() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build()).build());
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(com.google.inject.Key.get(
+            SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    Key k3 = null;
+
+    for (int i = 0; i < 50; i++) {
+      Key key = store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT)
+          .getKey();
+
+      if (i == 3) {
+        k3 = key;
+      }
+    }
+
+    // holds the store lock while the rebuild workers run
+    Assert.assertEquals(50L, index.rebuildIndexes("foo"));
+    Assert.assertEquals(ImmutableList.of(k3), keys(index, "fooKey", "fooKey", "k3"));
+
+    store.clear(false, false);
+  }
+
+  @Test
+  public void testRecoversInterruptedSwap() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build()).build());
+
+    final Lifecycle lifecycle =
+        inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+
+    KeyValueStore store =
+        inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(com.google.inject.Key.get(
+            SecondaryIndexStore.class, Names.named("foo")));
+
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    SequenceService sequence =
+        inject.getInstance(com.google.inject.Key.get(SequenceService.class, Names.named("foo")));
+
+    DataSource dataSource =
+        inject.getInstance(com.google.inject.Key.get(DataSource.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    Key k3 = null;
+
+    for (int i = 0; i < 50; i++) {
+      Key key = store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT)
+          .getKey();
+
+      if (i == 3) {
+        k3 = key;
+      }
+    }
+
+    // the state left by a crash after retiring the live table, before renaming the shadow table
+    IDBI database = JDBIHelper.getDBI(KeyValueStore.class, dataSource);
+    SecondaryIndexTableHelper tableHelper =
+        new SecondaryIndexTableHelper(new H2TypeHelper(), sequence);
+
+    tableHelper.createIndex(database, "foo", "fooKey", Foo.FOO_SCHEMA, "foo", "foo",
+        "default__shadow");
+    copyRows(database, tableHelper, "default", "default__shadow");
+    tableHelper.dropTableAndIndex(database, "foo", "fooKey", "foo", "foo", "default");
+    tableHelper.createIndex(database, "foo", "fooKey", Foo.FOO_SCHEMA, "foo", "foo",
+        "default__retired");
+
+    Assert.assertTrue(tableExists(database, tableHelper, "default__shadow"));
+    Assert.assertFalse(tableExists(database, tableHelper, "default"));
+
+    lifecycle.stop();
+    lifecycle.shutdown();
+    lifecycle.init();
+    lifecycle.start();
+
+    Assert.assertEquals(ImmutableList.of(k3), keys(index, "fooKey", "fooKey", "k3"));
+    Assert.assertFalse(tableExists(database, tableHelper, "default__shadow"));
+    Assert.assertFalse(tableExists(database, tableHelper, "default__retired"));
+
+    store.clear(false, false);
+  }
+
+  private static void copyRows(IDBI database, final SecondaryIndexTableHelper tableHelper,
+      final String fromPartitionName, final String toPartitionName) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        handle.execute("insert into "
+            + tableHelper.getTableName("foo", "fooKey", "foo", "foo", toPartitionName)
+            + " select * from "
+            + tableHelper.getTableName("foo", "fooKey", "foo", "foo", fromPartitionName));
+
+        return null;
+      }
+    });
+  }
+
+  private static boolean tableExists(IDBI database, SecondaryIndexTableHelper tableHelper,
+      String partitionName) {
+    return JDBIHelper.tableExists(database, tableHelper.getPrefix(),
+        tableHelper.getTableName("foo", "fooKey", "foo", "foo", partitionName));
+  }
+
+  private static List<Key> keys(SecondaryIndexStore index, String indexName, String attribute,
+      String value) {
+    List<QueryTerm> query =
+        new QueryBuilder().andMatchesSingle(attribute, QueryOperator.EQ, ValueType.STRING, value)
+            .build();
+
+    try (KeyValueIterator<Key> iter =
+        index.queryWithoutPagination("foo", Foo.class, indexName, query, SortDirection.ASCENDING,
+            null, null).iterator()) {
+      return ImmutableList.copyOf(iter);
+    }
+  }
 }
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.bitmap;
+
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueHolderList;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@Test
+public class BitmapIndexTest {
+  private final Schema schema = new Schema(ImmutableList.<Attribute>of(
+      new Attribute("status", Attribute.Type.ENUM,
+          ImmutableList.<Object>of("NEW", "ACTIVE", "CLOSED"), false, null),
+      new Attribute("flag", Attribute.Type.BOOLEAN, null, true, null),
+      new Attribute("name", Attribute.Type.UTF8_SMALLSTRING, null, true, null)),
+      ImmutableList.<IndexDefinition>of());
+
+  public void testAttributes() {
+    BitmapIndex index = new BitmapIndex(schema);
+
+    Assert.assertEquals(Lists.newArrayList(index.getAttributeNames()),
+        ImmutableList.of("status", "flag"));
+  }
+
+  public void testConjunctionAndDisjunction() {
+    BitmapIndex index = populated();
+
+    Assert.assertEquals(ids(index.evaluate(query(term("status", QueryOperator.EQ, s("ACTIVE"))))),
+        ImmutableList.of(2L, 3L));
+    Assert.assertEquals(
+        ids(index.evaluate(query(term("status", QueryOperator.EQ, s("ACTIVE")),
+            term("flag", QueryOperator.EQ, b(true))))),
+        ImmutableList.of(2L));
+    Assert.assertEquals(
+        ids(index.evaluateAny(ImmutableList.of(query(term("status", QueryOperator.EQ, s("NEW"))),
+            query(term("flag", QueryOperator.EQ, b(false)))))), ImmutableList.of(1L, 3L));
+    Assert.assertEquals(ids(index.evaluate(query(term("status", QueryOperator.GT, s("NEW"))))),
+        ImmutableList.of(2L, 3L, 4L));
+    Assert.assertEquals(ids(index.evaluate(query(term("status", QueryOperator.EQ, s("BOGUS"))))),
+        ImmutableList.of());
+  }
+
+  public void testNulls() {
+    BitmapIndex index = populated();
+
+    Assert.assertEquals(ids(index.evaluate(query(term("flag", QueryOperator.EQ, nul())))),
+        ImmutableList.of(4L));
+    Assert.assertEquals(ids(index.evaluate(query(term("flag", QueryOperator.NE, nul())))),
+        ImmutableList.of(1L, 2L, 3L));
+    Assert.assertEquals(ids(index.evaluate(query(term("flag", QueryOperator.NE, b(true))))),
+        ImmutableList.of(3L));
+  }
+
+  public void testUpdateAndDelete() {
+    BitmapIndex index = populated();
+
+    index.update(2L, entity(2, false), entity(1, true));
+    Assert.assertEquals(ids(index.evaluate(query(term("flag", QueryOperator.EQ, b(true))))),
+        ImmutableList.of(1L));
+
+    index.delete(3L, entity(1, false));
+    Assert.assertEquals(ids(index.evaluate(query(term("status", QueryOperator.NE, s("NEW"))))),
+        ImmutableList.of(2L, 4L));
+    Assert.assertEquals(index.size(), 3L);
+  }
+
+  private BitmapIndex populated() {
+    BitmapIndex index = new BitmapIndex(schema);
+
+    index.insert(1L, entity(0, true));
+    index.insert(2L, entity(1, true));
+    index.insert(3L, entity(1, false));
+    index.insert(4L, entity(2, null));
+
+    return index;
+  }
+
+  private static Map<String, Object> entity(int status, Boolean flag) {
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("status", status);
+    packed.put("flag", flag);
+    packed.put("name", "n" + status);
+
+    return packed;
+  }
+
+  public void testIn() {
+    BitmapIndex index = populated();
+
+    Assert.assertEquals(ids(index.evaluate(query(new QueryTerm(QueryOperator.IN, "status",
+        new ValueHolderList(ImmutableList.of(s("NEW"), s("CLOSED"))))))), ImmutableList.of(1L, 4L));
+  }
+
+  private static List<QueryTerm> query(QueryTerm... terms) {
+    return ImmutableList.copyOf(terms);
+  }
+
+  private static QueryTerm term(String field, QueryOperator operator, ValueHolder value) {
+    return new QueryTerm(operator, field, value);
+  }
+
+  private static ValueHolder s(String value) {
+    return new ValueHolder(ValueType.STRING, "\"" + value + "\"");
+  }
+
+  private static ValueHolder b(boolean value) {
+    return new ValueHolder(ValueType.BOOLEAN, Boolean.toString(value));
+  }
+
+  private static ValueHolder nul() {
+    return new ValueHolder(ValueType.NULL, "null");
+  }
+
+  private static List<Long> ids(CompressedBitmap bitmap) {
+    return Lists.newArrayList(bitmap);
+  }
+}
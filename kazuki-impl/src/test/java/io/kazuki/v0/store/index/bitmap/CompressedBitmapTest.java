@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.bitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+@Test
+public class CompressedBitmapTest {
+  public void testAddRemoveContains() {
+    CompressedBitmap bitmap = new CompressedBitmap();
+
+    Assert.assertTrue(bitmap.isEmpty());
+    Assert.assertTrue(bitmap.add(5L));
+    Assert.assertFalse(bitmap.add(5L));
+    Assert.assertTrue(bitmap.add(70000L));
+    Assert.assertTrue(bitmap.contains(5L));
+    Assert.assertTrue(bitmap.contains(70000L));
+    Assert.assertFalse(bitmap.contains(6L));
+    Assert.assertEquals(bitmap.getCardinality(), 2L);
+
+    Assert.assertTrue(bitmap.remove(5L));
+    Assert.assertFalse(bitmap.remove(5L));
+    Assert.assertEquals(bitmap.getCardinality(), 1L);
+
+    Assert.assertTrue(bitmap.remove(70000L));
+    Assert.assertTrue(bitmap.isEmpty());
+  }
+
+  public void testDenseChunkRoundTrip() {
+    CompressedBitmap bitmap = new CompressedBitmap();
+    TreeSet<Long> expected = new TreeSet<Long>();
+
+    // enough ids in one chunk to switch to the bitmap representation, then back
+    for (long i = 0; i < 10000; i++) {
+      bitmap.add(i * 3);
+      expected.add(i * 3);
+    }
+
+    Assert.assertEquals(Lists.newArrayList(bitmap), new ArrayList<Long>(expected));
+
+    for (long i = 0; i < 8000; i++) {
+      bitmap.remove(i * 3);
+      expected.remove(i * 3);
+    }
+
+    Assert.assertEquals(Lists.newArrayList(bitmap), new ArrayList<Long>(expected));
+    Assert.assertEquals(bitmap.getCardinality(), (long) expected.size());
+  }
+
+  public void testOperationsMatchSets() {
+    Random random = new Random(42L);
+
+    for (int round = 0; round < 20; round++) {
+      int bound = (round % 2 == 0) ? 200000 : 20000;
+      TreeSet<Long> a = randomSet(random, bound, 1 + random.nextInt(12000));
+      TreeSet<Long> b = randomSet(random, bound, 1 + random.nextInt(12000));
+
+      CompressedBitmap ba = bitmapOf(a);
+      CompressedBitmap bb = bitmapOf(b);
+
+      TreeSet<Long> and = new TreeSet<Long>(a);
+      and.retainAll(b);
+      TreeSet<Long> or = new TreeSet<Long>(a);
+      or.addAll(b);
+      TreeSet<Long> andNot = new TreeSet<Long>(a);
+      andNot.removeAll(b);
+
+      Assert.assertEquals(Lists.newArrayList(CompressedBitmap.and(ba, bb)),
+          new ArrayList<Long>(and));
+      Assert.assertEquals(Lists.newArrayList(CompressedBitmap.or(ba, bb)),
+          new ArrayList<Long>(or));
+      Assert.assertEquals(Lists.newArrayList(CompressedBitmap.andNot(ba, bb)),
+          new ArrayList<Long>(andNot));
+
+      // inputs are left untouched
+      Assert.assertEquals(Lists.newArrayList(ba), new ArrayList<Long>(a));
+      Assert.assertEquals(Lists.newArrayList(bb), new ArrayList<Long>(b));
+    }
+  }
+
+  public void testDescendingIterator() {
+    TreeSet<Long> expected = randomSet(new Random(7L), 300000, 5000);
+    List<Long> descending = new ArrayList<Long>(expected);
+    Collections.reverse(descending);
+
+    Assert.assertEquals(Lists.newArrayList(bitmapOf(expected).descendingIterator()), descending);
+  }
+
+  public void testEqualsAcrossRepresentations() {
+    CompressedBitmap sparse = new CompressedBitmap();
+    CompressedBitmap dense = new CompressedBitmap();
+
+    for (long i = 0; i < 5000; i++) {
+      dense.add(i);
+    }
+
+    for (long i = 100; i < 5000; i++) {
+      dense.remove(i);
+    }
+
+    for (long i = 0; i < 100; i++) {
+      sparse.add(i);
+    }
+
+    Assert.assertEquals(dense, sparse);
+    Assert.assertEquals(dense.hashCode(), sparse.hashCode());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNegativeId() {
+    new CompressedBitmap().add(-1L);
+  }
+
+  private static TreeSet<Long> randomSet(Random random, int bound, int count) {
+    TreeSet<Long> result = new TreeSet<Long>();
+
+    for (int i = 0; i < count; i++) {
+      result.add((long) random.nextInt(bound));
+    }
+
+    return result;
+  }
+
+  private static CompressedBitmap bitmapOf(Iterable<Long> ids) {
+    CompressedBitmap bitmap = new CompressedBitmap();
+
+    for (Long id : ids) {
+      bitmap.add(id);
+    }
+
+    return bitmap;
+  }
+}
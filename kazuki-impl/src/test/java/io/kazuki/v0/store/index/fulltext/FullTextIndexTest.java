@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.fulltext;
+
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+@Test
+public class FullTextIndexTest {
+  private final Schema schema = new Schema.Builder()
+      .addAttribute("title", Attribute.Type.UTF8_SMALLSTRING, true)
+      .addAttribute("body", Attribute.Type.UTF8_TEXT, true)
+      .addAttribute("rank", Attribute.Type.I32, true).addFullText("title").addFullText("body")
+      .build();
+
+  public void testAnalyzer() {
+    Analyzer analyzer = new Analyzer();
+
+    Assert.assertEquals(analyzer.analyze("The Quick, brown FOX -- isn't it 42?"),
+        ImmutableList.of("quick", "brown", "fox", "isn", "42"));
+    Assert.assertEquals(analyzer.analyze("Ünïcode wörds"), ImmutableList.of("ünïcode", "wörds"));
+    Assert.assertTrue(analyzer.analyze(null).isEmpty());
+    Assert.assertTrue(analyzer.analyze("  ...  ").isEmpty());
+  }
+
+  public void testPostingsList() {
+    PostingsList postings = new PostingsList();
+
+    postings.add(0L, 1);
+    postings.add(5L, 2);
+    postings.add(300L, 1);
+    postings.add(1L << 40, 7);
+    postings.add(3L, 4);
+    postings.add(5L, 3);
+
+    Assert.assertEquals(postings.size(), 5);
+    Assert.assertEquals(read(postings), ImmutableList.of(0L, 1L, 3L, 4L, 5L, 3L, 300L, 1L,
+        1L << 40, 7L));
+
+    Assert.assertTrue(postings.remove(3L));
+    Assert.assertFalse(postings.remove(4L));
+    Assert.assertTrue(postings.remove(1L << 40));
+    Assert.assertEquals(read(postings), ImmutableList.of(0L, 1L, 5L, 3L, 300L, 1L));
+
+    postings.add(301L, 1);
+    Assert.assertEquals(postings.size(), 4);
+  }
+
+  public void testRanking() {
+    FullTextIndex index = new FullTextIndex(schema);
+
+    index.insert(1L, doc("Kazuki storage", "a key value store for the jvm"));
+    index.insert(2L, doc("Indexing", "secondary index and index statistics for the store"));
+    index.insert(3L, doc("Unrelated", "nothing to see here"));
+    index.insert(4L, doc(null, "full text index: index index"));
+
+    List<FullTextIndex.Hit> hits = index.search(null, "index", 0L, null);
+    Assert.assertEquals(ids(hits), ImmutableList.of(4L, 2L));
+    Assert.assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+
+    Assert.assertEquals(ids(index.search(null, "store index", 0L, 1L)), ImmutableList.of(2L));
+    Assert.assertEquals(ids(index.search(null, "store index", 1L, 10L)),
+        ImmutableList.of(4L, 1L));
+    Assert.assertEquals(ids(index.search("title", "storage", 0L, null)), ImmutableList.of(1L));
+    Assert.assertTrue(index.search("title", "index", 0L, null).isEmpty());
+    Assert.assertTrue(index.search(null, "the", 0L, null).isEmpty());
+
+    try {
+      index.search("rank", "index", 0L, null);
+      Assert.fail("expected exception");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testUpdateAndDelete() {
+    FullTextIndex index = new FullTextIndex(schema);
+
+    index.insert(1L, doc("alpha", "one two"));
+    index.insert(2L, doc("beta", "two three"));
+
+    Assert.assertEquals(index.getDocumentFrequency("body", "two"), 2);
+
+    index.update(1L, doc("alpha", "four five"), doc("alpha", "one two"));
+    Assert.assertEquals(index.getDocumentFrequency("body", "two"), 1);
+    Assert.assertEquals(index.getDocumentFrequency("body", "one"), 0);
+    Assert.assertEquals(ids(index.search("body", "four", 0L, null)), ImmutableList.of(1L));
+
+    index.delete(2L, doc("beta", "two three"));
+    Assert.assertEquals(index.size("body"), 1L);
+    Assert.assertTrue(index.search(null, "beta two three", 0L, null).isEmpty());
+
+    index.clear();
+    Assert.assertEquals(index.size("title"), 0L);
+  }
+
+  private static Map<String, Object> doc(String title, String body) {
+    Map<String, Object> packed = new LinkedHashMap<String, Object>();
+    packed.put("title", title);
+    packed.put("body", body);
+
+    return packed;
+  }
+
+  private static List<Long> ids(List<FullTextIndex.Hit> hits) {
+    List<Long> result = new ArrayList<Long>();
+
+    for (FullTextIndex.Hit hit : hits) {
+      result.add(hit.getId());
+    }
+
+    return result;
+  }
+
+  private static List<Long> read(PostingsList postings) {
+    List<Long> result = new ArrayList<Long>();
+    PostingsList.Cursor cursor = postings.cursor();
+
+    while (cursor.next()) {
+      result.add(cursor.getId());
+      result.add((long) cursor.getFrequency());
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.planner;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.bitmap.BitmapIndex;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueHolderList;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.index.stats.IndexStatistics;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@Test
+public class QueryPlanTest {
+  private final Schema schema = new Schema(ImmutableList.<Attribute>of(
+      new Attribute("status", Attribute.Type.ENUM,
+          ImmutableList.<Object>of("NEW", "ACTIVE", "CLOSED"), false, null),
+      new Attribute("country", Attribute.Type.UTF8_SMALLSTRING, null, true, null),
+      new Attribute("city", Attribute.Type.UTF8_SMALLSTRING, null, true, null),
+      new Attribute("email", Attribute.Type.UTF8_SMALLSTRING, null, true, null),
+      new Attribute("age", Attribute.Type.I32, null, true, null),
+      new Attribute("note", Attribute.Type.UTF8_SMALLSTRING, null, true, null)),
+      ImmutableList.<IndexDefinition>of(
+          index("byEmail", true, new IndexAttribute("email", SortDirection.ASCENDING,
+              AttributeTransform.LOWERCASE)),
+          index("byCountryCity", false, attr("country"), attr("city")),
+          index("byAge", false, attr("age"))));
+
+  public void testScanWithoutIndexes() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("country", QueryOperator.EQ, s("US"))), null, false);
+
+    Assert.assertTrue(plan.isScan());
+    Assert.assertEquals(plan.getResidualTerms().size(), 1);
+  }
+
+  public void testScanWhenFirstIndexAttributeMissing() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("city", QueryOperator.EQ, s("Austin")),
+            term("note", QueryOperator.EQ, s("x"))), null, true);
+
+    Assert.assertTrue(plan.isScan());
+    Assert.assertEquals(plan.getResidualTerms().size(), 2);
+  }
+
+  public void testMostSelectiveIndexFirst() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("age", QueryOperator.GT, i(30)),
+            term("city", QueryOperator.EQ, s("Austin")),
+            term("country", QueryOperator.EQ, s("US"))), null, true);
+
+    // byCountryCity (two equalities) wins; byAge has no equality and is not intersected
+    Assert.assertEquals(Lists.newArrayList(plan.getIndexTerms().keySet()),
+        ImmutableList.of("byCountryCity"));
+    Assert.assertEquals(plan.getIndexTerms().get("byCountryCity").size(), 2);
+    Assert.assertEquals(plan.getResidualTerms().size(), 1);
+    Assert.assertEquals(plan.getResidualTerms().get(0).getField(), "age");
+  }
+
+  public void testIntersection() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("age", QueryOperator.EQ, i(30)),
+            term("country", QueryOperator.IN, list(s("US"), s("CA")))), null, true);
+
+    Assert.assertEquals(Lists.newArrayList(plan.getIndexTerms().keySet()),
+        ImmutableList.of("byCountryCity", "byAge"));
+    Assert.assertTrue(plan.getResidualTerms().isEmpty());
+  }
+
+  public void testStatisticsRanking() throws Exception {
+    List<QueryTerm> query =
+        query(term("country", QueryOperator.EQ, s("US")), term("age", QueryOperator.EQ, i(30)));
+
+    // same shape score: schema order decides
+    Assert.assertEquals(Lists.newArrayList(QueryPlan.plan(schema, query, null, true)
+        .getIndexTerms().keySet()), ImmutableList.of("byCountryCity", "byAge"));
+
+    FieldTransform transform = new FieldTransform(schema);
+    Map<String, IndexStatistics> statistics = new LinkedHashMap<String, IndexStatistics>();
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      statistics.put(indexDef.getName(), new IndexStatistics(indexDef));
+    }
+
+    for (long id = 1; id <= 1000; id++) {
+      Map<String, Object> entity = new LinkedHashMap<String, Object>();
+      entity.put("status", "NEW");
+      entity.put("country", "US");
+      entity.put("age", (int) id);
+
+      for (IndexStatistics indexStats : statistics.values()) {
+        indexStats.insert(id, transform.pack(entity));
+      }
+    }
+
+    // every row is in the US, ages are unique: byAge is far more selective
+    Assert.assertEquals(Lists.newArrayList(QueryPlan.plan(schema, query, null, true, statistics)
+        .getIndexTerms().keySet()), ImmutableList.of("byAge", "byCountryCity"));
+  }
+
+  public void testUniqueIndex() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("email", QueryOperator.EQ, s("A@example.com")),
+            term("country", QueryOperator.EQ, s("US"))), null, true);
+
+    Assert.assertEquals(Lists.newArrayList(plan.getIndexTerms().keySet()),
+        ImmutableList.of("byEmail"));
+
+    // the lowercase transform only narrows candidates, so both terms are re-checked
+    Assert.assertEquals(plan.getResidualTerms().size(), 2);
+
+    QueryPlan range =
+        QueryPlan.plan(schema, query(term("email", QueryOperator.GT, s("a"))), null, true);
+
+    Assert.assertTrue(range.isScan());
+  }
+
+  public void testIneligibleTerms() {
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("age", QueryOperator.NE, i(30)),
+            term("country", QueryOperator.EQ, nul())), null, true);
+
+    Assert.assertTrue(plan.isScan());
+  }
+
+  public void testBitmapTerms() {
+    BitmapIndex bitmap = new BitmapIndex(schema);
+
+    QueryPlan plan =
+        QueryPlan.plan(schema, query(term("status", QueryOperator.EQ, s("ACTIVE")),
+            term("note", QueryOperator.EQ, s("x"))), bitmap, true);
+
+    Assert.assertFalse(plan.isScan());
+    Assert.assertEquals(plan.getBitmapTerms().size(), 1);
+    Assert.assertTrue(plan.getIndexTerms().isEmpty());
+    Assert.assertEquals(plan.getResidualTerms().size(), 1);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnknownAttribute() {
+    QueryPlan.plan(schema, query(term("bogus", QueryOperator.EQ, s("x"))), null, true);
+  }
+
+  private static IndexDefinition index(String name, boolean unique, IndexAttribute... cols) {
+    return new IndexDefinition(name, ImmutableList.copyOf(cols), unique, null);
+  }
+
+  private static IndexAttribute attr(String name) {
+    return new IndexAttribute(name, SortDirection.ASCENDING, AttributeTransform.NONE);
+  }
+
+  private static List<QueryTerm> query(QueryTerm... terms) {
+    return ImmutableList.copyOf(terms);
+  }
+
+  private static QueryTerm term(String field, QueryOperator operator, ValueHolder value) {
+    return new QueryTerm(operator, field, value);
+  }
+
+  private static QueryTerm term(String field, QueryOperator operator, ValueHolderList values) {
+    return new QueryTerm(operator, field, values);
+  }
+
+  private static ValueHolderList list(ValueHolder... values) {
+    return new ValueHolderList(ImmutableList.copyOf(values));
+  }
+
+  private static ValueHolder s(String value) {
+    return new ValueHolder(ValueType.STRING, "\"" + value + "\"");
+  }
+
+  private static ValueHolder i(long value) {
+    return new ValueHolder(ValueType.INTEGER, Long.toString(value));
+  }
+
+  private static ValueHolder nul() {
+    return new ValueHolder(ValueType.NULL, "null");
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.query;
+
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+
+@Test
+public class QueryCompilerTest {
+  private static final QueryOperator[] COMPARISONS = {QueryOperator.EQ, QueryOperator.NE,
+      QueryOperator.GT, QueryOperator.GE, QueryOperator.LT, QueryOperator.LE};
+
+  private static final Schema UNTYPED = schema(Attribute.Type.ANY);
+
+  private QueryEvaluator e = new QueryEvaluator();
+
+  public void testMatchesEvaluatorForIntegers() {
+    Object[] instances =
+        {Integer.valueOf(1), Long.valueOf(2), Long.valueOf(-5), "1", "2", "abc", Double.valueOf(1.0),
+            new BigInteger("99999999999999999999"), Long.MAX_VALUE, Long.MIN_VALUE};
+
+    for (String target : new String[] {"1", "2", "-5", "99999999999999999999",
+        Long.toString(Long.MAX_VALUE), Long.toString(Long.MIN_VALUE)}) {
+      assertSameAsEvaluator(instances, new ValueHolder(ValueType.INTEGER, target));
+    }
+  }
+
+  public void testMatchesEvaluatorForTypedIntegers() {
+    Object[] instances =
+        {Long.valueOf(1), Long.valueOf(2), Long.valueOf(-5), Long.valueOf(0), Long.MAX_VALUE,
+            Long.MIN_VALUE};
+
+    for (Attribute.Type type : new Attribute.Type[] {Attribute.Type.I32, Attribute.Type.I64,
+        Attribute.Type.U32}) {
+      for (String target : new String[] {"1", "-5", "99999999999999999999",
+          Long.toString(Long.MIN_VALUE)}) {
+        assertSameAsEvaluator(schema(type), instances, new ValueHolder(ValueType.INTEGER, target));
+      }
+
+      for (String target : new String[] {"1.0", "1.5", "-4.9", "0"}) {
+        assertSameAsEvaluator(schema(type), instances, new ValueHolder(ValueType.DECIMAL, target));
+      }
+    }
+  }
+
+  public void testMatchesEvaluatorForTypedBooleans() {
+    Object[] instances = {Boolean.TRUE, Boolean.FALSE};
+
+    for (String target : new String[] {"true", "false"}) {
+      assertSameAsEvaluator(schema(Attribute.Type.BOOLEAN), instances, new ValueHolder(
+          ValueType.BOOLEAN, target));
+    }
+  }
+
+  public void testMatchesEvaluatorForTransformedStrings() {
+    Object[] instances = {"", "Kazuki", "kazuki", "KAZUKI", "kaz", "Ka", "kA", "zeta", "Alpha"};
+    QueryOperator[] operators =
+        {QueryOperator.EQ, QueryOperator.NE, QueryOperator.GT, QueryOperator.GE, QueryOperator.LT,
+            QueryOperator.LE, QueryOperator.PREFIX};
+    Schema schema = schema(Attribute.Type.UTF8_SMALLSTRING);
+
+    for (AttributeTransform transform : AttributeTransform.values()) {
+      IndexDefinition index =
+          new IndexDefinition("byA", ImmutableList.of(new IndexAttribute("a",
+              SortDirection.ASCENDING, transform)), false, null);
+
+      for (String target : new String[] {"Ka", "kazuki", "KAZUKI", "M", "m"}) {
+        for (QueryOperator operator : operators) {
+          List<QueryTerm> query = ImmutableList.of(term(operator, "a", s(target)));
+          Predicate<Object> compiled = QueryCompiler.compile(query, schema, index);
+
+          for (Object instance : instances) {
+            Assert.assertEquals(compiled.apply(instance(instance)),
+                e.matches(instance(instance), query, index), instance + " " + operator + " "
+                    + target + " " + transform);
+          }
+        }
+      }
+    }
+  }
+
+  public void testMatchesEvaluatorForDecimals() {
+    Object[] instances =
+        {Double.valueOf(1.0), Double.valueOf(0.1), Double.valueOf(-0.0), Float.valueOf(2.5f),
+            Integer.valueOf(1), Long.valueOf(3), "0.1", "1.0", "x", Double.NaN,
+            Double.POSITIVE_INFINITY};
+
+    for (String target : new String[] {"1.0", "0.1", "0", "2.5", "0.10000000000000000001", "-3"}) {
+      assertSameAsEvaluator(instances, new ValueHolder(ValueType.DECIMAL, target));
+    }
+  }
+
+  public void testMatchesEvaluatorForStringsAndBooleans() {
+    Object[] instances = {"", "a", "aaa", "bbb", Integer.valueOf(7), Boolean.TRUE, "true", "false"};
+
+    for (String target : new String[] {"\"\"", "\"aaa\"", "\"b\"", "\"7\"", "\"true\""}) {
+      assertSameAsEvaluator(instances, new ValueHolder(ValueType.STRING, target));
+    }
+
+    for (String target : new String[] {"true", "false"}) {
+      assertSameAsEvaluator(instances, new ValueHolder(ValueType.BOOLEAN, target));
+    }
+  }
+
+  public void testNulls() {
+    Predicate<Object> isNull = compile(term(QueryOperator.EQ, "a", nul()));
+    Predicate<Object> isNotNull = compile(term(QueryOperator.NE, "a", nul()));
+    Predicate<Object> eqOne = compile(term(QueryOperator.EQ, "a", i("1")));
+
+    Assert.assertTrue(isNull.apply(instance(null)));
+    Assert.assertFalse(isNull.apply(instance(1L)));
+    Assert.assertFalse(isNotNull.apply(instance(null)));
+    Assert.assertTrue(isNotNull.apply(instance(1L)));
+    Assert.assertFalse(eqOne.apply(instance(null)));
+    Assert.assertFalse(eqOne.apply(Collections.emptyMap()));
+  }
+
+  public void testIn() {
+    Predicate<Object> in =
+        compile(new QueryTerm(QueryOperator.IN, "a", new ValueHolderList(ImmutableList.of(i("1"),
+            i("3")))));
+
+    Assert.assertTrue(in.apply(instance(1L)));
+    Assert.assertFalse(in.apply(instance(2L)));
+    Assert.assertTrue(in.apply(instance(3)));
+    Assert.assertFalse(in.apply(instance(null)));
+  }
+
+  public void testConjunction() {
+    Predicate<Object> both =
+        QueryCompiler.compile(
+            ImmutableList.of(term(QueryOperator.GE, "a", i("1")),
+                term(QueryOperator.LT, "b", s("m"))), UNTYPED, null);
+
+    Map<String, Object> instance = new LinkedHashMap<String, Object>();
+    instance.put("a", 5L);
+    instance.put("b", "k");
+    Assert.assertTrue(both.apply(instance));
+
+    instance.put("b", "z");
+    Assert.assertFalse(both.apply(instance));
+  }
+
+  public void testTransform() {
+    IndexDefinition index =
+        new IndexDefinition("byA", ImmutableList.of(new IndexAttribute("a",
+            SortDirection.ASCENDING, AttributeTransform.LOWERCASE)), false, null);
+
+    Predicate<Object> eq =
+        QueryCompiler.compile(ImmutableList.of(term(QueryOperator.EQ, "a", s("HeLLo"))), UNTYPED,
+            index);
+
+    Assert.assertTrue(eq.apply(instance("hello")));
+    Assert.assertTrue(eq.apply(instance("HELLO")));
+    Assert.assertFalse(eq.apply(instance("help")));
+  }
+
+  public void testPrefix() {
+    IndexDefinition index =
+        new IndexDefinition("byA", ImmutableList.of(new IndexAttribute("a",
+            SortDirection.ASCENDING, AttributeTransform.LOWERCASE)), false, null);
+
+    Predicate<Object> exact = compile(term(QueryOperator.PREFIX, "a", s("Ka")));
+    Predicate<Object> lowercase =
+        QueryCompiler.compile(ImmutableList.of(term(QueryOperator.PREFIX, "a", s("Ka"))), UNTYPED,
+            index);
+
+    for (Object instance : new Object[] {"Kazuki", "kazuki", "K", "Ka", "xKa", null}) {
+      Assert.assertEquals(exact.apply(instance(instance)),
+          e.matches(instance(instance), ImmutableList.of(term(QueryOperator.PREFIX, "a", s("Ka")))),
+          String.valueOf(instance));
+    }
+
+    Assert.assertTrue(exact.apply(instance("Kazuki")));
+    Assert.assertFalse(exact.apply(instance("kazuki")));
+    Assert.assertTrue(lowercase.apply(instance("kAZUKI")));
+    Assert.assertFalse(lowercase.apply(instance("k")));
+
+    try {
+      compile(term(QueryOperator.PREFIX, "a", i("1")));
+      Assert.fail("expected exception");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  private void assertSameAsEvaluator(Object[] instances, ValueHolder target) {
+    assertSameAsEvaluator(UNTYPED, instances, target);
+  }
+
+  private void assertSameAsEvaluator(Schema schema, Object[] instances, ValueHolder target) {
+    for (QueryOperator operator : COMPARISONS) {
+      Predicate<Object> compiled =
+          QueryCompiler.compile(ImmutableList.of(term(operator, "a", target)), schema, null);
+
+      for (Object instance : instances) {
+        Assert.assertEquals(compiled.apply(instance(instance)),
+            e.matches(instance(instance), ImmutableList.of(term(operator, "a", target))),
+            instance + " " + operator + " " + target);
+      }
+    }
+  }
+
+  private static Predicate<Object> compile(QueryTerm term) {
+    return QueryCompiler.compile(ImmutableList.of(term), UNTYPED, null);
+  }
+
+  private static Schema schema(Attribute.Type type) {
+    return new Schema.Builder().addAttribute("a", type, true).addAttribute("b", type, true)
+        .build();
+  }
+
+  private static Map<String, Object> instance(Object value) {
+    Map<String, Object> instance = new LinkedHashMap<String, Object>();
+    instance.put("a", value);
+
+    return instance;
+  }
+
+  private static QueryTerm term(QueryOperator operator, String field, ValueHolder value) {
+    return new QueryTerm(operator, field, value);
+  }
+
+  private static ValueHolder s(String value) {
+    return new ValueHolder(ValueType.STRING, "\"" + value + "\"");
+  }
+
+  private static ValueHolder i(String value) {
+    return new ValueHolder(ValueType.INTEGER, value);
+  }
+
+  private static ValueHolder nul() {
+    return new ValueHolder(ValueType.NULL, "null");
+  }
+}
@@ -48,4 +48,45 @@ public class QueryHelperTest {
     Assert.assertEquals(term2.getOperator(), QueryOperator.NE);
     Assert.assertEquals(term2.getValue().getValue(), new BigInteger("4"));
   }
+
+  public void disjunctionTest() {
+    List<List<QueryTerm>> query =
+        QueryHelper.parseDisjunction("a eq \"foo\" and b ne 4 or c eq true");
+    Assert.assertEquals(query.size(), 2);
+    Assert.assertEquals(query.get(0).size(), 2);
+    Assert.assertEquals(query.get(1).size(), 1);
+
+    QueryTerm term = query.get(1).get(0);
+    Assert.assertEquals(term.getField(), "c");
+    Assert.assertEquals(term.getOperator(), QueryOperator.EQ);
+  }
+
+  public void orFieldTest() {
+    List<QueryTerm> query = QueryHelper.parseQuery("or eq \"or\" and b eq 1");
+    Assert.assertEquals(query.size(), 2);
+    Assert.assertEquals(query.get(0).getField(), "or");
+    Assert.assertEquals(query.get(0).getValue().getValue(), "or");
+
+    List<List<QueryTerm>> disjunction =
+        QueryHelper.parseDisjunction("or eq 1 or or ne 2 and a eq \"or\"");
+    Assert.assertEquals(disjunction.size(), 2);
+    Assert.assertEquals(disjunction.get(0).size(), 1);
+    Assert.assertEquals(disjunction.get(0).get(0).getField(), "or");
+    Assert.assertEquals(disjunction.get(1).size(), 2);
+    Assert.assertEquals(disjunction.get(1).get(0).getField(), "or");
+    Assert.assertEquals(disjunction.get(1).get(0).getOperator(), QueryOperator.NE);
+    Assert.assertEquals(disjunction.get(1).get(1).getValue().getValue(), "or");
+  }
+
+  public void prefixTest() {
+    List<QueryTerm> query = QueryHelper.parseQuery("a prefix \"fo\"");
+    Assert.assertEquals(query.size(), 1);
+    Assert.assertEquals(query.get(0).getOperator(), QueryOperator.PREFIX);
+    Assert.assertEquals(query.get(0).getValue().getValue(), "fo");
+
+    Assert.assertEquals(QueryHelper.prefixUpperBound("fo"), "fp");
+    Assert.assertEquals(QueryHelper.prefixUpperBound("a\uffff"), "b");
+    Assert.assertNull(QueryHelper.prefixUpperBound("\uffff\uffff"));
+    Assert.assertNull(QueryHelper.prefixUpperBound(""));
+  }
 }
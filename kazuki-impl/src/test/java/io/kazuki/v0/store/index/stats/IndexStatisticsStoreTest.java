@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.TestSupport;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreListener;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+@Test
+public class IndexStatisticsStoreTest extends TestSupport {
+  private final Schema schema = new Schema.Builder()
+      .addAttribute("city", Attribute.Type.UTF8_SMALLSTRING, true)
+      .addAttribute("name", Attribute.Type.UTF8_SMALLSTRING, true)
+      .addIndex(
+          "byCity",
+          ImmutableList.of(new IndexAttribute("city", SortDirection.ASCENDING,
+              AttributeTransform.NONE)), false).build();
+
+  private final Injector inject = Guice.createInjector(new KazukiModule.Builder("foo")
+      .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+      .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+      .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo")
+          .withIndexStatistics(true).build())
+      .build());
+
+  private final Lifecycle lifecycle = inject.getInstance(com.google.inject.Key.get(
+      Lifecycle.class, Names.named("foo")));
+
+  private final KeyValueStore store = inject.getInstance(com.google.inject.Key.get(
+      KeyValueStore.class, Names.named("foo")));
+
+  private final SchemaStore manager = inject.getInstance(com.google.inject.Key.get(
+      SchemaStore.class, Names.named("foo")));
+
+  private final IndexStatisticsStore statistics = inject.getInstance(com.google.inject.Key.get(
+      IndexStatisticsStore.class, Names.named("foo")));
+
+  public void testRolledBackWrites() throws Exception {
+    lifecycle.init();
+    lifecycle.start();
+
+    store.clear(false, false);
+    manager.createSchema("item", schema);
+
+    IndexStatistics byCity = statistics.getStatistics("item", "byCity");
+
+    Key k0 =
+        store.create("item", LinkedHashMap.class, item("Boston", "k0"), TypeValidation.STRICT)
+            .getKey();
+    Key k1 =
+        store.create("item", LinkedHashMap.class, item("Denver", "locked"),
+            TypeValidation.STRICT).getKey();
+
+    // fails every write of "fail" and every delete of "locked" after the statistics have seen it
+    ((KeyValueStoreRegistration) store).addListener(new FailingListener());
+
+    try {
+      store.create("item", LinkedHashMap.class, item("Austin", "fail"), TypeValidation.STRICT);
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    try {
+      store.update(k0, LinkedHashMap.class, item("Austin", "fail"));
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    try {
+      store.delete(k1);
+      Assert.fail("should have failed");
+    } catch (Exception expected) {
+      // rolled back
+    }
+
+    EquiDepthHistogram histogram = byCity.getHistogram();
+
+    Assert.assertEquals(byCity.getRowCount(), 2L);
+    Assert.assertEquals(histogram.getSampleSize(), 2);
+    Assert.assertEquals(histogram.getLowerBounds().get(0), "Boston");
+    Assert.assertEquals(histogram.getUpperBounds().get(histogram.getBucketCount() - 1), "Denver");
+
+    store.clear(false, false);
+    lifecycle.stop();
+    lifecycle.shutdown();
+  }
+
+  private static LinkedHashMap<String, Object> item(String city, String name) {
+    LinkedHashMap<String, Object> item = new LinkedHashMap<String, Object>();
+    item.put("city", city);
+    item.put("name", name);
+
+    return item;
+  }
+
+  private static class FailingListener implements KeyValueStoreListener {
+    @Override
+    public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) {}
+
+    @Override
+    public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+      fail(instance);
+    }
+
+    @Override
+    public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance)
+        throws KazukiException {
+      fail(newInstance);
+    }
+
+    @Override
+    public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+        ResolvedKey resolvedKey, Map<String, Object> oldInstance) {
+      if ("locked".equals(oldInstance.get("name"))) {
+        throw new IllegalStateException("failed delete");
+      }
+    }
+
+    @Override
+    public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {}
+
+    private static void fail(Map<String, Object> instance) throws KazukiException {
+      if ("fail".equals(instance.get("name"))) {
+        throw new KazukiException("failed write");
+      }
+    }
+  }
+}
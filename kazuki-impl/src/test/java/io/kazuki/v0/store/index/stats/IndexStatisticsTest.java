@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.index.stats;
+
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+@Test
+public class IndexStatisticsTest {
+  private final IndexDefinition byAgeCity = new IndexDefinition("byAgeCity", ImmutableList.of(
+      new IndexAttribute("age", SortDirection.ASCENDING, AttributeTransform.NONE),
+      new IndexAttribute("city", SortDirection.ASCENDING, AttributeTransform.NONE)), false, null);
+
+  private final Schema schema = new Schema(ImmutableList.<Attribute>of(
+      new Attribute("age", Attribute.Type.I32, null, true, null),
+      new Attribute("city", Attribute.Type.UTF8_SMALLSTRING, null, true, null)),
+      ImmutableList.<IndexDefinition>of(byAgeCity));
+
+  public void testHyperLogLog() {
+    HyperLogLog hll = new HyperLogLog();
+
+    for (int i = 0; i < 100000; i++) {
+      hll.add("value" + (i % 20000));
+    }
+
+    Assert.assertEquals(hll.estimate(), 20000.0, 20000 * 0.05);
+
+    HyperLogLog small = new HyperLogLog();
+
+    for (int i = 0; i < 10; i++) {
+      small.add(i);
+    }
+
+    Assert.assertEquals(small.estimate(), 10L);
+  }
+
+  public void testHistogram() {
+    List<Object> values = new ArrayList<Object>();
+
+    for (int i = 0; i < 1000; i++) {
+      values.add(BigInteger.valueOf(i));
+    }
+
+    EquiDepthHistogram histogram = new EquiDepthHistogram(values, 10);
+
+    Assert.assertEquals(histogram.getBucketCount(), 10);
+    Assert.assertEquals(histogram.getCounts().get(0).intValue(), 100);
+    Assert.assertEquals(histogram.getUpperBounds().get(0), BigInteger.valueOf(99));
+    Assert.assertEquals(histogram.fractionBelow(BigInteger.valueOf(500), false), 0.5, 0.05);
+    Assert.assertEquals(histogram.fractionBelow(BigInteger.valueOf(-1), true), 0.0);
+    Assert.assertEquals(histogram.fractionBelow(BigInteger.valueOf(5000), true), 1.0);
+  }
+
+  public void testIncrementalMaintenance() throws Exception {
+    IndexStatistics stats = new IndexStatistics(byAgeCity);
+    FieldTransform transform = new FieldTransform(schema);
+
+    for (long id = 1; id <= 10000; id++) {
+      stats.insert(id, transform.pack(entity((int) (id % 100), "city" + (id % 7))));
+    }
+
+    Assert.assertEquals(stats.getRowCount(), 10000L);
+    Assert.assertEquals(stats.getDistinctLeadingValues(), 100.0, 5.0);
+    Assert.assertEquals(stats.getDistinctKeys(), 700.0, 35.0);
+
+    long equal = stats.estimateRows(query(term("age", QueryOperator.EQ, i(42))), transform);
+    Assert.assertEquals(equal, 100.0, 30.0);
+
+    long range = stats.estimateRows(query(term("age", QueryOperator.LT, i(25))), transform);
+    Assert.assertEquals(range, 2500.0, 500.0);
+
+    long between =
+        stats.estimateRows(query(term("age", QueryOperator.GE, i(25)),
+            term("age", QueryOperator.LT, i(50))), transform);
+    Assert.assertEquals(between, 2500.0, 500.0);
+
+    long full =
+        stats.estimateRows(query(term("age", QueryOperator.EQ, i(42)),
+            term("city", QueryOperator.EQ, s("city0"))), transform);
+    Assert.assertEquals(full, 14.0, 3.0);
+
+    for (long id = 1; id <= 5000; id++) {
+      stats.delete(id);
+    }
+
+    Assert.assertEquals(stats.getRowCount(), 5000L);
+    Assert.assertTrue(stats.getHistogram().getSampleSize() <= IndexStatistics.SAMPLE_SIZE);
+
+    stats.clear();
+
+    Assert.assertEquals(stats.getRowCount(), 0L);
+    Assert.assertEquals(stats.getHistogram().getBucketCount(), 0);
+    Assert.assertEquals(stats.estimateRows(query(term("age", QueryOperator.EQ, i(42))), transform),
+        0L);
+  }
+
+  private static Map<String, Object> entity(int age, String city) {
+    Map<String, Object> entity = new LinkedHashMap<String, Object>();
+    entity.put("age", age);
+    entity.put("city", city);
+
+    return entity;
+  }
+
+  private static List<QueryTerm> query(QueryTerm... terms) {
+    return ImmutableList.copyOf(terms);
+  }
+
+  private static QueryTerm term(String field, QueryOperator operator, ValueHolder value) {
+    return new QueryTerm(operator, field, value);
+  }
+
+  private static ValueHolder s(String value) {
+    return new ValueHolder(ValueType.STRING, "\"" + value + "\"");
+  }
+
+  private static ValueHolder i(long value) {
+    return new ValueHolder(ValueType.INTEGER, Long.toString(value));
+  }
+}
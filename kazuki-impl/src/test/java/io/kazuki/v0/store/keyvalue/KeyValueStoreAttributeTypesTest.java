@@ -22,11 +22,15 @@ import io.kazuki.v0.store.Everything.TestEnum;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Version;
 import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.lifecycle.Lifecycle;
 import io.kazuki.v0.store.schema.SchemaStore;
 import io.kazuki.v0.store.schema.TypeValidation;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.testng.Assert;
@@ -142,4 +146,99 @@ public class KeyValueStoreAttributeTypesTest {
     Assert.assertFalse(kvStore.deleteVersioned(k1.getKey(), k1.getVersion()));
     Assert.assertTrue(kvStore.deleteVersioned(k1.getKey(), k2));
   }
+
+  @Test
+  public void projections() throws Exception {
+    schema.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    Everything e1 = new Everything();
+    e1.theEnum = Everything.TestEnum.FOUR;
+    e1.theU16 = 1234L;
+    e1.theUtf8Text = "this would be a big string";
+
+    KeyValuePair<Everything> k1 =
+        kvStore.create("everything", Everything.class, e1, TypeValidation.STRICT);
+
+    Map<String, Object> fields = kvStore.retrieveFields(k1.getKey(), "theUtf8Text", "theEnum", "nope");
+
+    Assert.assertEquals(fields, ImmutableMap.<String, Object>of("theEnum", "FOUR", "theUtf8Text",
+        "this would be a big string"));
+    Assert.assertEquals(kvStore.retrieveFields(k1.getKey(), "theU16"),
+        ImmutableMap.<String, Object>of("theU16", 1234L));
+
+    try (KeyValueIterable<KeyValuePair<Map<String, Object>>> iter =
+        kvStore.iterators().projections("everything", ImmutableList.of("theU16"),
+            SortDirection.ASCENDING)) {
+      int count = 0;
+
+      for (KeyValuePair<Map<String, Object>> kv : iter) {
+        Assert.assertEquals(kv.getKey(), k1.getKey());
+        Assert.assertEquals(kv.getValue(), ImmutableMap.<String, Object>of("theU16", 1234L));
+        count += 1;
+      }
+
+      Assert.assertEquals(count, 1);
+    }
+
+    kvStore.delete(k1.getKey());
+    Assert.assertNull(kvStore.retrieveFields(k1.getKey(), "theU16"));
+  }
+
+  @Test
+  public void compressionDictionary() throws Exception {
+    schema.createSchema("everything", Everything.EVERYTHING_SCHEMA);
+
+    Assert.assertNull(kvStore.trainCompressionDictionary("everything"));
+
+    List<KeyValuePair<Everything>> created = new ArrayList<KeyValuePair<Everything>>();
+
+    for (int i = 0; i < 100; i++) {
+      created.add(kvStore.create("everything", Everything.class, compressible(i),
+          TypeValidation.STRICT));
+
+      // values written before, with and after each dictionary version
+      if (i == 40) {
+        Assert.assertEquals(kvStore.trainCompressionDictionary("everything"), Long.valueOf(1L));
+      } else if (i == 80) {
+        Assert.assertEquals(kvStore.trainCompressionDictionary("everything"), Long.valueOf(2L));
+      }
+    }
+
+    for (int i = 0; i < created.size(); i++) {
+      Everything found = kvStore.retrieve(created.get(i).getKey(), Everything.class);
+
+      Assert.assertEquals(found.theUtf8Text, compressible(i).theUtf8Text);
+      Assert.assertEquals(found.theU32, compressible(i).theU32);
+      Assert.assertEquals(found.theEnum, compressible(i).theEnum);
+    }
+
+    Everything updated = compressible(1000);
+    Assert.assertTrue(kvStore.update(created.get(0).getKey(), Everything.class, updated));
+    Assert.assertEquals(kvStore.retrieve(created.get(0).getKey(), Everything.class).theUtf8Text,
+        updated.theUtf8Text);
+
+    try (KeyValueIterable<KeyValuePair<Map<String, Object>>> iter =
+        kvStore.iterators().projections("everything", ImmutableList.of("theU32"),
+            SortDirection.ASCENDING)) {
+      int count = 0;
+
+      for (KeyValuePair<Map<String, Object>> kv : iter) {
+        Assert.assertNotNull(kv.getValue().get("theU32"));
+        count += 1;
+      }
+
+      Assert.assertEquals(count, created.size());
+    }
+  }
+
+  private static Everything compressible(int i) {
+    Everything value = new Everything();
+    value.theEnum = TestEnum.values()[i % TestEnum.values().length];
+    value.theU32 = Long.valueOf(i);
+    value.theBoolean = (i % 2) == 0;
+    value.theUtf8SmallString = "provisioning-service";
+    value.theUtf8Text = "account " + i + " created by the provisioning service in us-east-1";
+
+    return value;
+  }
 }
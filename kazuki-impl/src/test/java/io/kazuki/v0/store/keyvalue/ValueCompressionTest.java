@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import io.kazuki.v0.store.KazukiException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+
+@Test
+public class ValueCompressionTest {
+  private static final String[] STATUSES = {"ACTIVE", "SUSPENDED", "CLOSED"};
+
+  public void testRoundTrip() throws Exception {
+    List<byte[]> samples = documents(new Random(1L), 200);
+    byte[] trained = ValueCompression.train(samples, ValueCompression.MAX_DICTIONARY_SIZE);
+
+    Assert.assertNotNull(trained);
+    Assert.assertTrue(trained.length <= ValueCompression.MAX_DICTIONARY_SIZE);
+
+    CompressionDictionary dictionary = new CompressionDictionary(42, "account", 1L, trained);
+    int original = 0;
+    int compressed = 0;
+
+    for (byte[] document : documents(new Random(2L), 100)) {
+      byte[] value = ValueCompression.compress(dictionary, document);
+
+      Assert.assertNotNull(value);
+      Assert.assertEquals(ValueCompression.uncompress(dictionary, value), document);
+
+      original += document.length;
+      compressed += value.length;
+    }
+
+    // repeated keys and enum strings come from the dictionary
+    Assert.assertTrue(compressed * 3 < original, compressed + " vs " + original);
+  }
+
+  public void testIncompressible() throws Exception {
+    byte[] trained =
+        ValueCompression.train(documents(new Random(1L), 50), ValueCompression.MAX_DICTIONARY_SIZE);
+    CompressionDictionary dictionary = new CompressionDictionary(42, "account", 1L, trained);
+
+    byte[] noise = new byte[200];
+    new Random(3L).nextBytes(noise);
+
+    Assert.assertNull(ValueCompression.compress(dictionary, noise));
+    Assert.assertNull(ValueCompression.compress(dictionary, new byte[] {1, 2, 3}));
+  }
+
+  public void testNothingInCommon() throws Exception {
+    Random random = new Random(4L);
+    List<byte[]> samples = new ArrayList<byte[]>();
+
+    for (int i = 0; i < 20; i++) {
+      byte[] noise = new byte[100];
+      random.nextBytes(noise);
+      samples.add(noise);
+    }
+
+    Assert.assertNull(ValueCompression.train(samples, ValueCompression.MAX_DICTIONARY_SIZE));
+  }
+
+  @Test(expectedExceptions = KazukiException.class)
+  public void testTruncated() throws Exception {
+    List<byte[]> samples = documents(new Random(1L), 50);
+    byte[] trained = ValueCompression.train(samples, ValueCompression.MAX_DICTIONARY_SIZE);
+    CompressionDictionary dictionary = new CompressionDictionary(42, "account", 1L, trained);
+    byte[] value = ValueCompression.compress(dictionary, samples.get(0));
+
+    ValueCompression.uncompress(dictionary, Arrays.copyOf(value, value.length - 4));
+  }
+
+  private static List<byte[]> documents(Random random, int count) {
+    List<byte[]> documents = new ArrayList<byte[]>();
+
+    for (int i = 0; i < count; i++) {
+      String document =
+          "{\"accountId\":" + random.nextInt(1000000) + ",\"status\":\""
+              + STATUSES[random.nextInt(STATUSES.length)]
+              + "\",\"region\":\"us-east-1\",\"createdBy\":\"provisioning-service\","
+              + "\"balanceCents\":" + random.nextInt(100000) + ",\"emailVerified\":"
+              + random.nextBoolean() + ",\"plan\":{\"name\":\"standard\",\"seats\":"
+              + random.nextInt(50) + ",\"billingPeriod\":\"MONTHLY\"}}";
+
+      documents.add(document.getBytes(Charsets.UTF_8));
+    }
+
+    return documents;
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.keyvalue;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.v2schema.compact.SchemaSmileCodec;
+import io.kazuki.v0.store.Everything;
+import io.kazuki.v0.store.Everything.TestEnum;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+@Test
+public class ValueFormatTest {
+  Schema SCHEMA = Everything.EVERYTHING_SCHEMA;
+
+  public void testCodes() {
+    for (ValueFormat format : ValueFormat.values()) {
+      Assert.assertEquals(ValueFormat.fromCode(format.getCode()), format);
+    }
+
+    Assert.assertEquals(ValueFormat.fromCode(null), ValueFormat.SMILE);
+    Assert.assertEquals(ValueFormat.BINARY.forSchema(null), ValueFormat.SMILE);
+    Assert.assertEquals(ValueFormat.KRYO.forSchema(null), ValueFormat.KRYO);
+  }
+
+  public void testSmileRoundTrip() throws Exception {
+    assertRoundTrip(ValueFormat.SMILE);
+  }
+
+  public void testJsonRoundTrip() throws Exception {
+    assertRoundTrip(ValueFormat.JSON);
+  }
+
+  public void testMsgPackRoundTrip() throws Exception {
+    assertRoundTrip(ValueFormat.MSGPACK);
+  }
+
+  public void testKryoRoundTrip() throws Exception {
+    assertRoundTrip(ValueFormat.KRYO);
+  }
+
+  private void assertRoundTrip(ValueFormat format) throws Exception {
+    Everything e = new Everything();
+    e.theEnum = TestEnum.THREE;
+    e.theBoolean = true;
+    e.theCharOne = 'k';
+    e.theI64 = -42L;
+    e.theU64 = new BigInteger("18446744073709551615");
+    e.theUtcDate = new DateTime().withMillis(0L).withZone(DateTimeZone.UTC);
+    e.theUtf8SmallString = "kazuki";
+    e.theArray = ImmutableList.of(1, "two");
+    e.theMap = ImmutableMap.of("three", 3);
+
+    SchemaSmileCodec codec = SchemaSmileCodec.forSchema(SCHEMA);
+    byte[] encoded = format.encode(SCHEMA, codec.pack(e));
+
+    Assert.assertEquals(EncodingHelper.asJsonMap(format.decode(SCHEMA, encoded, Everything.class)),
+        EncodingHelper.asJsonMap(e));
+    Assert.assertEquals(format.decodeFields(SCHEMA, encoded, ImmutableList.of("theEnum", "nope")),
+        ImmutableMap.<String, Object>of("theEnum", "THREE"));
+
+    Map<String, Object> untyped =
+        ImmutableMap.<String, Object>of("name", "value", "nested", ImmutableMap.of("list",
+            ImmutableList.of(1L, 5000000000L, true)));
+
+    // only Kryo keeps Java types; the others read integers back as Integer, Long or BigInteger
+    Map<String, Object> expected =
+        (format == ValueFormat.KRYO) ? untyped : ImmutableMap.<String, Object>of("name", "value",
+            "nested", ImmutableMap.of("list", ImmutableList.of(1, 5000000000L, true)));
+
+    Assert.assertEquals(format.decode(null, format.encode(null, untyped), Map.class), expected);
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.store.schema.model.Attribute;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@KazukiEntity
+public class CodecEntity {
+  public enum Status {
+    ACTIVE, RETIRED
+  }
+
+  public long id;
+
+  @JsonProperty("display_name")
+  @KazukiAttribute(dictionary = true)
+  public String name;
+
+  @KazukiAttribute(nullable = false)
+  public Status status;
+
+  public DateTime created;
+
+  public List<String> tags;
+
+  @KazukiAttribute(type = Attribute.Type.UTF8_TEXT)
+  public String notes;
+
+  @JsonIgnore
+  public String cached;
+
+  private int[] scores;
+
+  private boolean flagged;
+
+  public int[] getScores() {
+    return scores;
+  }
+
+  public void setScores(int[] scores) {
+    this.scores = scores;
+  }
+
+  public boolean isFlagged() {
+    return flagged;
+  }
+
+  public void setFlagged(boolean flagged) {
+    this.flagged = flagged;
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014 Sunny Gleason and original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.kazuki.v0.store.schema.codec;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.store.schema.model.Attribute;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.schema.model.TransformException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class EntityCodecTest {
+  public void testSchema() throws Exception {
+    Assert.assertTrue(EntityCodecs.forClass(CodecEntity.class) instanceof CodecEntityKazukiCodec);
+    Assert.assertNull(EntityCodecs.forClass(Map.class));
+
+    Schema schema = CodecEntityKazukiCodec.SCHEMA;
+
+    Assert.assertEquals(schema.getAttributeMap().keySet(), new LinkedHashMap<String, Object>() {
+      {
+        put("id", null);
+        put("display_name", null);
+        put("status", null);
+        put("created", null);
+        put("tags", null);
+        put("notes", null);
+        put("scores", null);
+        put("flagged", null);
+      }
+    }.keySet());
+
+    Assert.assertEquals(schema.getAttribute("id").getType(), Attribute.Type.I64);
+    Assert.assertFalse(schema.getAttribute("id").isNullable());
+    Assert.assertEquals(schema.getAttribute("display_name").getType(),
+        Attribute.Type.UTF8_SMALLSTRING);
+    Assert.assertTrue(schema.getAttribute("display_name").isDictionary());
+    Assert.assertEquals(schema.getAttribute("status").getType(), Attribute.Type.ENUM);
+    Assert.assertEquals(schema.getAttribute("status").getValues(),
+        Arrays.asList("ACTIVE", "RETIRED"));
+    Assert.assertFalse(schema.getAttribute("status").isNullable());
+    Assert.assertEquals(schema.getAttribute("created").getType(), Attribute.Type.UTC_DATE_SECS);
+    Assert.assertEquals(schema.getAttribute("tags").getType(), Attribute.Type.ARRAY);
+    Assert.assertEquals(schema.getAttribute("notes").getType(), Attribute.Type.UTF8_TEXT);
+    Assert.assertEquals(schema.getAttribute("scores").getType(), Attribute.Type.ARRAY);
+    Assert.assertEquals(schema.getAttribute("flagged").getType(), Attribute.Type.BOOLEAN);
+  }
+
+  public void testRoundTrip() throws Exception {
+    CodecEntity entity = new CodecEntity();
+    entity.id = 42L;
+    entity.name = "widget";
+    entity.status = CodecEntity.Status.RETIRED;
+    entity.tags = Arrays.asList("a", "b");
+    entity.cached = "ignored";
+    entity.setScores(new int[] {1, 2, 3});
+    entity.setFlagged(true);
+
+    Map<String, Object> map = EncodingHelper.asJsonMap(entity);
+
+    Assert.assertEquals(map.get("id"), 42L);
+    Assert.assertEquals(map.get("display_name"), "widget");
+    Assert.assertEquals(map.get("status"), "RETIRED");
+    Assert.assertTrue(map.containsKey("created"));
+    Assert.assertNull(map.get("created"));
+    Assert.assertEquals(map.get("tags"), Arrays.asList("a", "b"));
+    Assert.assertEquals(map.get("scores"), Arrays.asList(1, 2, 3));
+    Assert.assertEquals(map.get("flagged"), true);
+    Assert.assertFalse(map.containsKey("cached"));
+
+    // values as they come back from storage
+    map.put("id", 42);
+    map.put("status", "RETIRED");
+    map.put("scores", Arrays.asList(1L, 2L, 3L));
+
+    CodecEntity copy = EncodingHelper.asValue(map, CodecEntity.class);
+
+    Assert.assertEquals(copy.id, 42L);
+    Assert.assertEquals(copy.name, "widget");
+    Assert.assertEquals(copy.status, CodecEntity.Status.RETIRED);
+    Assert.assertNull(copy.created);
+    Assert.assertEquals(copy.tags, Arrays.asList("a", "b"));
+    Assert.assertTrue(Arrays.equals(copy.getScores(), new int[] {1, 2, 3}));
+    Assert.assertTrue(copy.isFlagged());
+    Assert.assertNull(copy.cached);
+  }
+
+  @Test(expectedExceptions = TransformException.class)
+  public void testUnknownProperty() throws Exception {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("id", 1L);
+    map.put("unknown", "value");
+
+    EncodingHelper.asValue(map, CodecEntity.class);
+  }
+}